@@ -0,0 +1,36 @@
+package at.borkowski.spicej.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost of {@link SleepWakeup#wakeup()} when nobody is sleeping,
+ * which is what happens on most ticks of an idle shaped stream, compared to the
+ * monitor-based implementation it replaced (notifyAll on a single lock).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SleepWakeupBenchmark {
+
+   private final SleepWakeup sleep = new SleepWakeup();
+   private final Object lock = new Object();
+
+   @Benchmark
+   public void idleWakeup() {
+      sleep.wakeup();
+   }
+
+   @Benchmark
+   public void idleWakeupMonitor() {
+      synchronized (lock) {
+         lock.notifyAll();
+      }
+   }
+}
@@ -0,0 +1,47 @@
+package at.borkowski.spicej.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import at.borkowski.spicej.ticks.TickListener;
+
+/**
+ * Measures the fan-out of one tick to a number of listeners by
+ * {@link AbstractTickSource#doTick()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TickFanOutBenchmark {
+
+   @Param({ "1", "16", "256", "4096" })
+   public int listeners;
+
+   private SimulationTickSource tickSource;
+
+   @Setup
+   public void setUp(final Blackhole blackhole) {
+      tickSource = new SimulationTickSource();
+      for (int i = 0; i < listeners; i++)
+         tickSource.addListener(new TickListener() {
+            @Override
+            public void tick(long tick) {
+               blackhole.consume(tick);
+            }
+         });
+   }
+
+   @Benchmark
+   public void tick() {
+      tickSource.advance();
+   }
+}
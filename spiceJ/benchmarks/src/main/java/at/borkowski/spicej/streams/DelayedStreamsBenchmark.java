@@ -0,0 +1,91 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.streams.RateLimitInputStreamBenchmark.ZeroInputStream;
+
+/**
+ * Measures the tick mark handling of {@link DelayedInputStream} and
+ * {@link DelayedOutputStream}. Every operation transfers one chunk and
+ * advances the tick source by one tick, so that one tick mark is added and
+ * (once the delay has passed) one is released per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DelayedStreamsBenchmark {
+
+   @Param({ "1", "100", "10000" })
+   public long delay;
+
+   @Param({ "1", "1024" })
+   public int chunkSize;
+
+   private SimulationTickSource inputTickSource, outputTickSource;
+   private DelayedInputStream input;
+   private DelayedOutputStream output;
+   private byte[] buffer;
+
+   @Setup
+   public void setUp() {
+      int bufferSize = (int) Math.min(Integer.MAX_VALUE - 1, (delay + 1) * chunkSize);
+
+      inputTickSource = new SimulationTickSource();
+      input = new DelayedInputStream(inputTickSource, new ChunkInputStream(chunkSize), delay, bufferSize);
+
+      outputTickSource = new SimulationTickSource();
+      output = new DelayedOutputStream(outputTickSource, new NullOutputStream(), delay, bufferSize);
+
+      buffer = new byte[chunkSize];
+   }
+
+   @Benchmark
+   public int input() throws IOException {
+      inputTickSource.advance();
+      int available = input.available();
+      return available == 0 ? 0 : input.read(buffer, 0, Math.min(available, buffer.length));
+   }
+
+   @Benchmark
+   public void output() throws IOException {
+      output.write(buffer, 0, buffer.length);
+      outputTickSource.advance();
+   }
+
+   /**
+    * A stream of zeros which always reports one chunk as available, so that
+    * the delayed stream reads one chunk per tick.
+    */
+   private static class ChunkInputStream extends ZeroInputStream {
+      private final int chunkSize;
+
+      ChunkInputStream(int chunkSize) {
+         this.chunkSize = chunkSize;
+      }
+
+      @Override
+      public int available() {
+         return chunkSize;
+      }
+   }
+
+   private static class NullOutputStream extends OutputStream {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+   }
+}
@@ -0,0 +1,53 @@
+package at.borkowski.spicej.streams;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+
+/**
+ * Measures {@link RateHelper#take(int)} and {@link RateHelper#giveBack(int)},
+ * uncontended and contended by several threads sharing one helper. Every
+ * taken thing is given back, so that the rate never blocks and only the
+ * accounting itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RateHelperBenchmark {
+
+   @Param({ "1", "1024" })
+   public int n;
+
+   private RateHelper rateHelper;
+
+   @Setup
+   public void setUp() {
+      rateHelper = new RateHelper(new SimulationTickSource(), Integer.MAX_VALUE, 1);
+   }
+
+   @Benchmark
+   @Threads(1)
+   public int takeGiveBack() {
+      int taken = rateHelper.take(n);
+      rateHelper.giveBack(taken);
+      return taken;
+   }
+
+   @Benchmark
+   @Threads(4)
+   public int takeGiveBackContended() {
+      int taken = rateHelper.take(n);
+      rateHelper.giveBack(taken);
+      return taken;
+   }
+}
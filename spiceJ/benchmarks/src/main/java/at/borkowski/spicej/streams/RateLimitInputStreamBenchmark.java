@@ -0,0 +1,66 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+
+/**
+ * Measures {@link RateLimitInputStream#read(byte[], int, int)} reading the
+ * quota of one tick per operation (including the tick itself).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RateLimitInputStreamBenchmark {
+
+   @Param({ "64", "1024", "65536" })
+   public int bytesPerTick;
+
+   private SimulationTickSource tickSource;
+   private RateLimitInputStream stream;
+   private byte[] buffer;
+
+   @Setup
+   public void setUp() {
+      tickSource = new SimulationTickSource();
+      stream = new RateLimitInputStream(new ZeroInputStream(), tickSource, bytesPerTick, 1);
+      buffer = new byte[bytesPerTick];
+   }
+
+   @Benchmark
+   public int read() throws IOException {
+      tickSource.advance();
+      return stream.read(buffer, 0, buffer.length);
+   }
+
+   /**
+    * An endless stream of zeros, always having data available.
+    */
+   static class ZeroInputStream extends InputStream {
+      @Override
+      public int read() {
+         return 0;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         return len;
+      }
+
+      @Override
+      public int available() {
+         return Integer.MAX_VALUE;
+      }
+   }
+}
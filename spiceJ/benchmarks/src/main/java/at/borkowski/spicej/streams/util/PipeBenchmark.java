@@ -0,0 +1,81 @@
+package at.borkowski.spicej.streams.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * Measures the throughput of a {@link PipedOutputStream} connected to a
+ * {@link PipedInputStream}, written to by one thread and read from by another.
+ * The throughput in bytes is the number of operations times the chunk size.
+ * 
+ * Since one side of the pipe may stop before the other at the end of an
+ * iteration, neither side blocks: they only write or read once there is room
+ * or data for a whole chunk, and give up when the measurement is stopped.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PipeBenchmark {
+
+   @Param({ "1", "64", "1024" })
+   public int chunkSize;
+
+   @Param({ "1024", "65536" })
+   public int pipeSize;
+
+   private PipedInputStream input;
+   private PipedOutputStream output;
+   private byte[] writeBuffer, readBuffer;
+
+   @Setup
+   public void setUp() throws IOException {
+      output = new PipedOutputStream();
+      input = new PipedInputStream(output, pipeSize);
+      writeBuffer = new byte[chunkSize];
+      readBuffer = new byte[chunkSize];
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      output.close();
+      input.close();
+   }
+
+   @Benchmark
+   @Group("pipe")
+   @GroupThreads(1)
+   public void write(Control control) throws IOException {
+      while (!control.stopMeasurement) {
+         if (pipeSize - input.available() >= chunkSize) {
+            output.write(writeBuffer, 0, chunkSize);
+            return;
+         }
+         Thread.yield();
+      }
+   }
+
+   @Benchmark
+   @Group("pipe")
+   @GroupThreads(1)
+   public int read(Control control) throws IOException {
+      while (!control.stopMeasurement) {
+         if (input.available() >= chunkSize)
+            return input.read(readBuffer, 0, chunkSize);
+         Thread.yield();
+      }
+      return 0;
+   }
+}
@@ -2,14 +2,26 @@ package at.borkowski.spicej;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import at.borkowski.spicej.streams.DelayedInputStream;
+import at.borkowski.spicej.streams.DelayedOutputStream;
+import at.borkowski.spicej.streams.DelayedReadableChannel;
+import at.borkowski.spicej.streams.DelayedWritableChannel;
 import at.borkowski.spicej.streams.RateLimitInputStream;
 import at.borkowski.spicej.streams.RateLimitOutputStream;
+import at.borkowski.spicej.streams.RateLimitReadableChannel;
+import at.borkowski.spicej.streams.RateLimitWritableChannel;
+import at.borkowski.spicej.streams.SegmentPool;
 import at.borkowski.spicej.ticks.TickSource;
 
 /**
- * Provides helper functions for easy shaping of streams.
+ * Provides helper functions for easy shaping of streams and channels.
+ * 
+ * The channel helpers are named after the direction they shape (eg.
+ * {@link #limitReadRate(ReadableByteChannel, TickSource, int, int)}), since
+ * many channels (eg. socket channels) are both readable and writable.
  */
 public class Streams {
    private Streams() {}
@@ -37,6 +49,33 @@ public class Streams {
       return new RateLimitInputStream(base, tickSource, bytesPerTick, prescale);
    }
 
+   /**
+    * Creates a byte-rate-limited {@link InputStream} allowing bursts. See
+    * {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int, int)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link InputStream}
+    * @param tickSource
+    *           The source of ticks
+    * @param bytesPerTick
+    *           (see
+    *           {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int, int)}
+    *           )
+    * @param prescale
+    *           (see
+    *           {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int, int)}
+    *           )
+    * @param burst
+    *           (see
+    *           {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int, int)}
+    *           )
+    * @return the resulting input stream
+    */
+   public static RateLimitInputStream limitRate(InputStream base, TickSource tickSource, int bytesPerTick, int prescale, int burst) {
+      return new RateLimitInputStream(base, tickSource, bytesPerTick, prescale, burst);
+   }
+
    /**
     * Creates a byte-rate-limited {@link OutputStream}. See
     * {@link RateLimitOutputStream#RateLimitOutputStream(OutputStream, TickSource, int, int)}
@@ -60,6 +99,33 @@ public class Streams {
       return new RateLimitOutputStream(base, tickSource, bytesPerTick, prescaler);
    }
 
+   /**
+    * Creates a byte-rate-limited {@link OutputStream} allowing bursts. See
+    * {@link RateLimitOutputStream#RateLimitOutputStream(OutputStream, TickSource, int, int, int)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link OutputStream}
+    * @param tickSource
+    *           The source of ticks
+    * @param bytesPerTick
+    *           (see
+    *           {@link RateLimitOutputStream#RateLimitOutputStream(OutputStream, TickSource, int, int, int)}
+    *           )
+    * @param prescaler
+    *           (see
+    *           {@link RateLimitOutputStream#RateLimitOutputStream(OutputStream, TickSource, int, int, int)}
+    *           )
+    * @param burst
+    *           (see
+    *           {@link RateLimitOutputStream#RateLimitOutputStream(OutputStream, TickSource, int, int, int)}
+    *           )
+    * @return the resulting output stream
+    */
+   public static RateLimitOutputStream limitRate(OutputStream base, TickSource tickSource, int bytesPerTick, int prescaler, int burst) {
+      return new RateLimitOutputStream(base, tickSource, bytesPerTick, prescaler, burst);
+   }
+
    /**
     * Creates a delayed {@link InputStream}. See
     * {@link DelayedInputStream#DelayedInputStream(TickSource, InputStream, long, int)}
@@ -81,4 +147,187 @@ public class Streams {
       return new DelayedInputStream(tickSource, base, delay, bufferSize);
    }
 
+   /**
+    * Creates a delayed {@link InputStream}, optionally with its buffer in
+    * direct memory. See
+    * {@link DelayedInputStream#DelayedInputStream(TickSource, InputStream, long, int, boolean)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link InputStream}.
+    * @param tickSource
+    *           The source of ticks
+    * @param delay
+    *           The delay in ticks to add to the stream
+    * @param bufferSize
+    *           The buffer size to use (see
+    *           {@link DelayedInputStream#DelayedInputStream(TickSource, InputStream, long, int)}
+    *           )
+    * @param direct
+    *           Whether to allocate the buffer in direct memory
+    * @return the resulting input stream
+    */
+   public static DelayedInputStream addDelay(InputStream base, TickSource tickSource, long delay, int bufferSize, boolean direct) {
+      return new DelayedInputStream(tickSource, base, delay, bufferSize, direct);
+   }
+
+   /**
+    * Creates a delayed {@link OutputStream}. See
+    * {@link DelayedOutputStream#DelayedOutputStream(TickSource, OutputStream, long, int)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link OutputStream}.
+    * @param tickSource
+    *           The source of ticks
+    * @param delay
+    *           The delay in ticks to add to the stream
+    * @param bufferSize
+    *           The buffer size to use (see
+    *           {@link DelayedOutputStream#DelayedOutputStream(TickSource, OutputStream, long, int)}
+    *           )
+    * @return the resulting output stream
+    */
+   public static DelayedOutputStream addDelay(OutputStream base, TickSource tickSource, long delay, int bufferSize) {
+      return new DelayedOutputStream(tickSource, base, delay, bufferSize);
+   }
+
+   /**
+    * Creates a delayed {@link OutputStream}, optionally with its buffer in
+    * direct memory. See
+    * {@link DelayedOutputStream#DelayedOutputStream(TickSource, OutputStream, long, int, boolean)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link OutputStream}.
+    * @param tickSource
+    *           The source of ticks
+    * @param delay
+    *           The delay in ticks to add to the stream
+    * @param bufferSize
+    *           The buffer size to use (see
+    *           {@link DelayedOutputStream#DelayedOutputStream(TickSource, OutputStream, long, int)}
+    *           )
+    * @param direct
+    *           Whether to allocate the buffer in direct memory
+    * @return the resulting output stream
+    */
+   public static DelayedOutputStream addDelay(OutputStream base, TickSource tickSource, long delay, int bufferSize, boolean direct) {
+      return new DelayedOutputStream(tickSource, base, delay, bufferSize, direct);
+   }
+
+   /**
+    * Creates a delayed {@link OutputStream} with a segmented buffer. See
+    * {@link DelayedOutputStream#DelayedOutputStream(TickSource, OutputStream, long, SegmentPool, int)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link OutputStream}.
+    * @param tickSource
+    *           The source of ticks
+    * @param delay
+    *           The delay in ticks to add to the stream
+    * @param pool
+    *           The pool to take buffer segments from
+    * @param maxBufferSize
+    *           Up to how many bytes the buffer may hold
+    * @return the resulting output stream
+    */
+   public static DelayedOutputStream addDelay(OutputStream base, TickSource tickSource, long delay, SegmentPool pool, int maxBufferSize) {
+      return new DelayedOutputStream(tickSource, base, delay, pool, maxBufferSize);
+   }
+
+   /**
+    * Creates a byte-rate-limited {@link ReadableByteChannel}. See
+    * {@link RateLimitReadableChannel#RateLimitReadableChannel(ReadableByteChannel, TickSource, int, int)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link ReadableByteChannel}
+    * @param tickSource
+    *           The source of ticks
+    * @param bytesPerTick
+    *           (see
+    *           {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int)}
+    *           )
+    * @param prescale
+    *           (see
+    *           {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int)}
+    *           )
+    * @return the resulting channel
+    */
+   public static RateLimitReadableChannel limitReadRate(ReadableByteChannel base, TickSource tickSource, int bytesPerTick, int prescale) {
+      return new RateLimitReadableChannel(base, tickSource, bytesPerTick, prescale);
+   }
+
+   /**
+    * Creates a byte-rate-limited {@link WritableByteChannel}. See
+    * {@link RateLimitWritableChannel#RateLimitWritableChannel(WritableByteChannel, TickSource, int, int)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link WritableByteChannel}
+    * @param tickSource
+    *           The source of ticks
+    * @param bytesPerTick
+    *           (see
+    *           {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int)}
+    *           )
+    * @param prescale
+    *           (see
+    *           {@link RateLimitInputStream#RateLimitInputStream(InputStream, TickSource, int, int)}
+    *           )
+    * @return the resulting channel
+    */
+   public static RateLimitWritableChannel limitWriteRate(WritableByteChannel base, TickSource tickSource, int bytesPerTick, int prescale) {
+      return new RateLimitWritableChannel(base, tickSource, bytesPerTick, prescale);
+   }
+
+   /**
+    * Creates a delayed {@link ReadableByteChannel}. See
+    * {@link DelayedReadableChannel#DelayedReadableChannel(TickSource, ReadableByteChannel, long, int, boolean)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link ReadableByteChannel}, which must not
+    *           block
+    * @param tickSource
+    *           The source of ticks
+    * @param delay
+    *           The delay in ticks to add to the channel
+    * @param bufferSize
+    *           The buffer size to use (see
+    *           {@link DelayedInputStream#DelayedInputStream(TickSource, InputStream, long, int)}
+    *           )
+    * @param direct
+    *           Whether to use a direct buffer
+    * @return the resulting channel
+    */
+   public static DelayedReadableChannel addReadDelay(ReadableByteChannel base, TickSource tickSource, long delay, int bufferSize, boolean direct) {
+      return new DelayedReadableChannel(tickSource, base, delay, bufferSize, direct);
+   }
+
+   /**
+    * Creates a delayed {@link WritableByteChannel}. See
+    * {@link DelayedWritableChannel#DelayedWritableChannel(TickSource, WritableByteChannel, long, int, boolean)}
+    * for detailed information.
+    * 
+    * @param base
+    *           The raw (underlying) {@link WritableByteChannel}
+    * @param tickSource
+    *           The source of ticks
+    * @param delay
+    *           The delay in ticks to add to the channel
+    * @param bufferSize
+    *           The buffer size to use (see
+    *           {@link DelayedInputStream#DelayedInputStream(TickSource, InputStream, long, int)}
+    *           )
+    * @param direct
+    *           Whether to use a direct buffer
+    * @return the resulting channel
+    */
+   public static DelayedWritableChannel addWriteDelay(WritableByteChannel base, TickSource tickSource, long delay, int bufferSize, boolean direct) {
+      return new DelayedWritableChannel(tickSource, base, delay, bufferSize, direct);
+   }
+
 }
@@ -2,27 +2,68 @@ package at.borkowski.spicej.impl;
 
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import at.borkowski.spicej.ticks.BulkTickListener;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
 import at.borkowski.spicej.ticks.TickListener;
 import at.borkowski.spicej.ticks.TickSource;
 
 /**
  * An abstract tick source keeping track of its listeners. The tick source is in
  * a non-initialized state until the first call to {@link #doTick()}.
+ * 
+ * {@link DeadlineTickListener}s only receive the ticks they need. Subclasses
+ * may use {@link #nextDeadline()} to sleep through ticks none of the listeners
+ * needs, passing them with {@link #skipTicks(long)}.
+ * 
+ * Ticks are distributed by the thread generating them, unless a
+ * {@link ShardedTickDispatcher} is set (see
+ * {@link #setDispatcher(ShardedTickDispatcher)}).
  */
 public abstract class AbstractTickSource implements TickSource {
    private long tick = -1;
 
    protected final Queue<TickListener> listeners = new ConcurrentLinkedQueue<>();
 
+   private volatile ShardedTickDispatcher dispatcher;
+   // the listeners as passed to the dispatcher, taken again after any change
+   private final AtomicInteger modifications = new AtomicInteger();
+   private TickListener[] snapshot;
+   private int snapshotModifications;
+
    @Override
    public void addListener(TickListener listener) {
       listeners.add(listener);
+      modifications.incrementAndGet();
+      reschedule(tick + 1);
    }
 
    @Override
    public void removeListener(TickListener listener) {
       listeners.remove(listener);
+      modifications.incrementAndGet();
+   }
+
+   /**
+    * Sets the dispatcher distributing ticks to the listeners in parallel, or
+    * <code>null</code> (default) for distributing them on the thread
+    * generating them. The dispatcher is not closed by this source.
+    * 
+    * @param dispatcher
+    *           the dispatcher, or <code>null</code>
+    */
+   public void setDispatcher(ShardedTickDispatcher dispatcher) {
+      this.dispatcher = dispatcher;
+   }
+
+   /**
+    * Returns the dispatcher distributing ticks to the listeners in parallel.
+    * 
+    * @return the dispatcher, or <code>null</code> if there is none
+    */
+   public ShardedTickDispatcher getDispatcher() {
+      return dispatcher;
    }
 
    /**
@@ -30,8 +71,90 @@ public abstract class AbstractTickSource implements TickSource {
     */
    protected void doTick() {
       tick++;
+      distribute(tick, 1);
+   }
+
+   /**
+    * Distributes several consecutive tick events to its listeners at once.
+    * {@link BulkTickListener}s receive them with a single call,
+    * {@link DeadlineTickListener}s only the last one (if they need it), and all
+    * other listeners receive them one by one. During the distribution, the current
+    * tick already is the last one of the given ticks.
+    * 
+    * @param count
+    *           the number of ticks
+    */
+   protected void doTicks(long count) {
+      if (count <= 0)
+         throw new IllegalArgumentException("tick count must be positive");
+
+      tick += count;
+      distribute(tick, count);
+   }
+
+   private void distribute(long last, long count) {
+      ShardedTickDispatcher dispatcher = this.dispatcher;
+      if (dispatcher != null) {
+         dispatcher.dispatch(snapshot(), last, count);
+         return;
+      }
+
       for (TickListener listener : listeners)
-         listener.tick(tick);
+         deliver(listener, last, count);
+   }
+
+   private TickListener[] snapshot() {
+      int current = modifications.get();
+      if (snapshot == null || snapshotModifications != current) {
+         snapshot = listeners.toArray(new TickListener[0]);
+         snapshotModifications = current;
+      }
+      return snapshot;
+   }
+
+   /*
+    * passes the given ticks to a listener according to its kind
+    */
+   static void deliver(TickListener listener, long last, long count) {
+      if (count == 1 || listener instanceof DeadlineTickListener) {
+         if (needs(listener, last))
+            listener.tick(last);
+      } else if (listener instanceof BulkTickListener)
+         ((BulkTickListener) listener).ticks(last, count);
+      else
+         for (long i = count - 1; i >= 0; i--)
+            listener.tick(last - i);
+   }
+
+   /**
+    * Passes ticks without distributing them. This must only be done for ticks
+    * none of the listeners needs (see {@link #nextDeadline()}).
+    * 
+    * @param count
+    *           the number of ticks
+    */
+   protected void skipTicks(long count) {
+      tick += count;
+   }
+
+   /**
+    * Returns the next tick any of the listeners needs. This is the next tick
+    * unless all listeners are {@link DeadlineTickListener}s.
+    * 
+    * @return the next tick needed, or {@link Long#MAX_VALUE} if there is none
+    */
+   protected long nextDeadline() {
+      long next = Long.MAX_VALUE;
+      for (TickListener listener : listeners) {
+         if (!(listener instanceof DeadlineTickListener))
+            return tick + 1;
+         next = Math.min(next, ((DeadlineTickListener) listener).nextTick());
+      }
+      return Math.max(next, tick + 1);
+   }
+
+   private static boolean needs(TickListener listener, long tick) {
+      return !(listener instanceof DeadlineTickListener) || ((DeadlineTickListener) listener).nextTick() <= tick;
    }
 
    @Override
@@ -0,0 +1,189 @@
+package at.borkowski.spicej.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import at.borkowski.spicej.ticks.TickListener;
+
+/**
+ * Distributes ticks to the listeners of an {@link AbstractTickSource} in
+ * parallel (see {@link AbstractTickSource#setDispatcher(ShardedTickDispatcher)}
+ * ). The listeners are partitioned into contiguous shards, one per thread: the
+ * thread generating the tick handles the first shard, and a fixed set of worker
+ * threads handle the others.
+ *
+ * A tick is distributed completely before the thread generating it returns, so
+ * that each listener still receives the ticks in order and is never entered
+ * concurrently. Listeners may however receive subsequent ticks on different
+ * threads.
+ *
+ * Handing a tick to the workers costs a thread wakeup per shard, so that only
+ * sources with many listeners are worth sharding: shards contain at least
+ * {@link #MIN_SHARD_SIZE} listeners, and fewer listeners are handled by the
+ * thread generating the tick alone.
+ *
+ * A dispatcher can be shared by several tick sources, which then distribute
+ * their ticks one after another. Ticks distributed by a listener of one of
+ * these sources on the thread generating the tick are handled by that thread
+ * alone, and listeners must not distribute ticks with the dispatcher on other
+ * threads. The worker threads are daemon threads, which are stopped by
+ * {@link #close()}.
+ */
+public class ShardedTickDispatcher {
+   /**
+    * The minimal number of listeners per shard.
+    */
+   public static final int MIN_SHARD_SIZE = 64;
+
+   private final Worker[] workers;
+   private final AtomicInteger pending = new AtomicInteger();
+   private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+   private volatile Thread dispatching;
+   private volatile boolean closed = false;
+   private boolean busy = false;
+
+   /**
+    * Creates a dispatcher and starts its worker threads.
+    *
+    * @param parallelism
+    *           the maximal number of threads distributing a tick, including the
+    *           thread generating it
+    */
+   public ShardedTickDispatcher(int parallelism) {
+      if (parallelism < 1)
+         throw new IllegalArgumentException("parallelism must be positive");
+
+      workers = new Worker[parallelism - 1];
+      for (int i = 0; i < workers.length; i++) {
+         workers[i] = new Worker();
+         Thread thread = new Thread(workers[i], "tick-dispatcher-" + (i + 1));
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+
+   /**
+    * Returns the maximal number of threads distributing a tick.
+    *
+    * @return the parallelism
+    */
+   public int getParallelism() {
+      return workers.length + 1;
+   }
+
+   /**
+    * Distributes ticks to the given listeners like
+    * {@link AbstractTickSource#doTicks(long)}, returning when all listeners
+    * have handled them. If a listener throws an exception, the other listeners
+    * still receive the ticks, and the exception is rethrown afterwards.
+    *
+    * @param listeners
+    *           the listeners
+    * @param last
+    *           the last tick to distribute
+    * @param count
+    *           the number of ticks to distribute
+    */
+   synchronized void dispatch(TickListener[] listeners, long last, long count) {
+      int shards = Math.min(getParallelism(), listeners.length / MIN_SHARD_SIZE);
+      if (shards <= 1 || closed || busy) {
+         deliver(listeners, 0, listeners.length, last, count);
+         return;
+      }
+
+      busy = true;
+      dispatching = Thread.currentThread();
+      pending.set(shards - 1);
+      for (int i = 1; i < shards; i++)
+         workers[i - 1].start(listeners, bound(listeners, i, shards), bound(listeners, i + 1, shards), last, count);
+
+      try {
+         deliver(listeners, 0, bound(listeners, 1, shards), last, count);
+      } catch (RuntimeException | Error e) {
+         failure.compareAndSet(null, e);
+      }
+
+      while (pending.get() > 0)
+         LockSupport.park(this);
+      busy = false;
+
+      Throwable failed = failure.getAndSet(null);
+      if (failed instanceof RuntimeException)
+         throw (RuntimeException) failed;
+      if (failed instanceof Error)
+         throw (Error) failed;
+   }
+
+   private static int bound(TickListener[] listeners, int shard, int shards) {
+      return (int) ((long) listeners.length * shard / shards);
+   }
+
+   private static void deliver(TickListener[] listeners, int from, int to, long last, long count) {
+      for (int i = from; i < to; i++)
+         AbstractTickSource.deliver(listeners[i], last, count);
+   }
+
+   /**
+    * Stops the worker threads. Ticks distributed afterwards are handled by the
+    * thread generating them alone.
+    */
+   public synchronized void close() {
+      closed = true;
+      for (Worker worker : workers)
+         worker.wakeup();
+   }
+
+   private class Worker implements Runnable {
+      private volatile Thread thread;
+      // the number of shards assigned, published after the shard itself
+      private volatile long assigned = 0;
+
+      private TickListener[] listeners;
+      private int from, to;
+      private long last, count;
+
+      void start(TickListener[] listeners, int from, int to, long last, long count) {
+         this.listeners = listeners;
+         this.from = from;
+         this.to = to;
+         this.last = last;
+         this.count = count;
+         assigned++;
+         wakeup();
+      }
+
+      void wakeup() {
+         Thread thread = this.thread;
+         if (thread != null)
+            LockSupport.unpark(thread);
+      }
+
+      @Override
+      public void run() {
+         thread = Thread.currentThread();
+         long handled = 0;
+
+         while (true) {
+            if (assigned == handled) {
+               if (closed)
+                  return;
+               LockSupport.park(this);
+               continue;
+            }
+            handled = assigned;
+
+            try {
+               deliver(listeners, from, to, last, count);
+            } catch (Throwable t) {
+               failure.compareAndSet(null, t);
+            } finally {
+               listeners = null;
+               if (pending.decrementAndGet() == 0)
+                  LockSupport.unpark(dispatching);
+            }
+         }
+      }
+   }
+}
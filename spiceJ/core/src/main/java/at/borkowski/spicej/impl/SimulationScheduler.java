@@ -0,0 +1,156 @@
+package at.borkowski.spicej.impl;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import at.borkowski.spicej.ticks.DeadlineTickListener;
+
+/**
+ * Drives a {@link SimulationTickSource} from event to event instead of from
+ * tick to tick. Events are the ticks the listeners of the source need (see
+ * {@link DeadlineTickListener}), eg. the release of delayed data or the refill
+ * of a rate budget someone is waiting for, and actions scheduled by the
+ * simulation itself (see {@link #schedule(long, Runnable)}), eg. changing a
+ * rate or a delay.
+ *
+ * Each step jumps the source straight to the next event (see
+ * {@link SimulationTickSource#advanceTo(long)}), so that a simulation takes
+ * time proportional to the number of events rather than the number of ticks.
+ * This only holds as long as all listeners of the source are
+ * {@link DeadlineTickListener}s: any other listener needs every tick, which
+ * makes every tick an event.
+ *
+ * The next event is determined from the state of the listeners when a step is
+ * taken. A simulation must therefore let all its participants (eg. threads
+ * reading from shaped streams) react to one step before taking the next one,
+ * which is easiest if all of them are driven by the scheduled actions
+ * themselves. Like the tick source, the scheduler is not thread-safe.
+ */
+public class SimulationScheduler {
+   private final SimulationTickSource t;
+   private final PriorityQueue<Action> actions = new PriorityQueue<>(11, new Comparator<Action>() {
+      @Override
+      public int compare(Action a, Action b) {
+         if (a.tick != b.tick)
+            return Long.compare(a.tick, b.tick);
+         return Long.compare(a.sequence, b.sequence);
+      }
+   });
+   private long sequence = 0;
+
+   /**
+    * Creates a scheduler driving the given tick source.
+    *
+    * @param t
+    *           the tick source to drive
+    */
+   public SimulationScheduler(SimulationTickSource t) {
+      this.t = t;
+   }
+
+   /**
+    * Schedules an action to be run at the given tick, after the tick has been
+    * distributed to the listeners. Actions scheduled for the same tick are run
+    * in the order they have been scheduled in. An action may schedule further
+    * actions.
+    *
+    * @param tick
+    *           the tick to run the action at, which must not be before the
+    *           current tick
+    * @param action
+    *           the action
+    */
+   public void schedule(long tick, Runnable action) {
+      if (action == null)
+         throw new NullPointerException("action");
+      if (tick < t.getCurrentTick())
+         throw new IllegalArgumentException("cannot schedule an action for a past tick");
+      actions.add(new Action(tick, sequence++, action));
+   }
+
+   /**
+    * Returns the tick of the next event, ie. the earliest of the ticks the
+    * listeners need and the ticks of scheduled actions.
+    *
+    * @return the next event's tick, or {@link Long#MAX_VALUE} if there is no
+    *         event
+    */
+   public long nextEventTick() {
+      long next = t.nextDeadline();
+      Action first = actions.peek();
+      if (first != null)
+         next = Math.min(next, first.tick);
+      return next;
+   }
+
+   /**
+    * Advances the tick source to the next event (see {@link #nextEventTick()})
+    * and runs the actions scheduled for it.
+    *
+    * @return <code>false</code> if there was no event
+    */
+   public boolean step() {
+      long next = nextEventTick();
+      if (next == Long.MAX_VALUE)
+         return false;
+
+      if (next > t.getCurrentTick())
+         t.advanceTo(next);
+
+      while (!actions.isEmpty() && actions.peek().tick <= next)
+         actions.poll().action.run();
+      return true;
+   }
+
+   /**
+    * Takes steps (see {@link #step()}) until there are no events left.
+    *
+    * @return the number of steps taken
+    */
+   public long run() {
+      long steps = 0;
+      while (step())
+         steps++;
+      return steps;
+   }
+
+   /**
+    * Takes steps (see {@link #step()}) for all events up to the given tick, and
+    * then advances the tick source to it.
+    *
+    * @param tick
+    *           the tick to stop at
+    * @return the number of steps taken
+    */
+   public long runUntil(long tick) {
+      long steps = 0;
+      while (nextEventTick() <= tick) {
+         step();
+         steps++;
+      }
+      if (tick > t.getCurrentTick())
+         t.advanceTo(tick);
+      return steps;
+   }
+
+   /**
+    * Returns the tick source driven by this scheduler.
+    *
+    * @return the tick source
+    */
+   public SimulationTickSource getTickSource() {
+      return t;
+   }
+
+   private static class Action {
+      private final long tick;
+      private final long sequence;
+      private final Runnable action;
+
+      Action(long tick, long sequence, Runnable action) {
+         this.tick = tick;
+         this.sequence = sequence;
+         this.action = action;
+      }
+   }
+}
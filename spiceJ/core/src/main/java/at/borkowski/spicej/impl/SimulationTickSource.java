@@ -1,8 +1,19 @@
 package at.borkowski.spicej.impl;
 
+import at.borkowski.spicej.ticks.BulkTickListener;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
+
 /**
  * A tick source controlled by a simulation, with tick events sent out on
  * demand. Ticks start at 0 and are processed in single-threaded mode.
+ *
+ * Long simulations can advance by many ticks at once (see
+ * {@link #advance(long)}). The ticks are then passed to
+ * {@link BulkTickListener}s with a single call, and
+ * {@link DeadlineTickListener}s only receive the last one, so that the cost of
+ * a span of ticks does not depend on its length for these listeners. All
+ * shaping streams are such listeners. A {@link SimulationScheduler} determines
+ * how far to advance from the ticks the listeners need.
  */
 public class SimulationTickSource extends AbstractTickSource {
 
@@ -12,4 +23,35 @@ public class SimulationTickSource extends AbstractTickSource {
    public void advance() {
       doTick();
    }
+
+   /**
+    * Generates the given number of ticks at once and advances the tick counter
+    * accordingly (see {@link #doTicks(long)}).
+    *
+    * @param ticks
+    *           the number of ticks, 0 for none
+    */
+   public void advance(long ticks) {
+      if (ticks < 0)
+         throw new IllegalArgumentException("tick count must not be negative");
+
+      if (ticks == 1)
+         doTick();
+      else if (ticks > 1)
+         doTicks(ticks);
+   }
+
+   /**
+    * Generates all ticks up to the given one at once (see
+    * {@link #advance(long)}).
+    *
+    * @param tick
+    *           the tick to advance to, which must not be before the current
+    *           tick
+    */
+   public void advanceTo(long tick) {
+      if (tick < getCurrentTick())
+         throw new IllegalArgumentException("cannot advance to a past tick");
+      advance(tick - getCurrentTick());
+   }
 }
@@ -1,18 +1,65 @@
 package at.borkowski.spicej.impl;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
 /**
  * Provides helper methods for sleeping and waking sleepers up.
+ *
+ * Sleeping threads are parked and kept in a lock-free queue of waiters. Waking
+ * up does not acquire any lock and costs only a volatile read if nobody is
+ * sleeping, so it can be called on every tick. Waking up can also be limited
+ * to a number of waiters (see {@link #wakeup(int)}), eg. to the number of
+ * waiters which can actually make progress. Waiters which have stopped
+ * sleeping on their own (eg. after the timeout) are not woken up, and don't
+ * count towards that number.
  */
 public class SleepWakeup {
-   private final Object lock = new Object();
+   private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(5000);
+
+   private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
 
    /**
     * Wakes up all sleeping threads currently in {@link #sleep()}.
     */
    public void wakeup() {
-      synchronized (lock) {
-         lock.notifyAll();
-      }
+      if (waiters.isEmpty())
+         return;
+
+      Waiter waiter;
+      while ((waiter = waiters.poll()) != null)
+         waiter.wake();
+   }
+
+   /**
+    * Wakes up at most the given number of sleeping threads currently in
+    * {@link #sleep()}, longest sleeping first.
+    *
+    * @param max
+    *           up to how many threads to wake up
+    */
+   public void wakeup(int max) {
+      if (waiters.isEmpty())
+         return;
+
+      Waiter waiter;
+      int woken = 0;
+      while (woken < max && (waiter = waiters.poll()) != null)
+         if (waiter.wake())
+            woken++;
+   }
+
+   /**
+    * Returns whether at least one thread is currently sleeping in
+    * {@link #sleep()}.
+    *
+    * @return whether there are sleeping threads
+    */
+   public boolean hasWaiters() {
+      return !waiters.isEmpty();
    }
 
    /**
@@ -21,19 +68,43 @@ public class SleepWakeup {
     * a loop or similar environment to avoid CPU over-utilization.
     */
    public void sleep() {
-      synchronized (lock) {
-         try {
-            lock.wait(5000);
-         } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-         }
+      sleep(null);
+   }
+
+   /**
+    * Blocks the calling thread like {@link #sleep()}, unless the given
+    * condition holds once the thread has been registered as a waiter. A thread
+    * checking the condition before calling {@link #sleep()} would miss a
+    * wakeup by a thread establishing the condition in between, and sleep
+    * until the timeout.
+    *
+    * @param ready
+    *           the condition to wait for, or <code>null</code>
+    */
+   public void sleep(BooleanSupplier ready) {
+      Waiter waiter = new Waiter(Thread.currentThread());
+      waiters.add(waiter);
+
+      if (ready != null && ready.getAsBoolean()) {
+         if (waiter.cancel())
+            waiters.remove(waiter);
+         return;
       }
+
+      long deadline = System.nanoTime() + TIMEOUT;
+      long remaining;
+      while (waiter.state == PARKED && (remaining = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted())
+         LockSupport.parkNanos(this, remaining);
+
+      // a waiter woken up in the meantime has been removed already
+      if (waiter.cancel())
+         waiters.remove(waiter);
    }
 
    /**
     * Sleeps for the provided amount of milliseconds, ignoring thread
     * interrupts.
-    * 
+    *
     * @param ms
     *           how many milliseconds to sleep
     */
@@ -45,4 +116,36 @@ public class SleepWakeup {
          } catch (InterruptedException ignore) {}
       }
    }
+
+   private static final int PARKED = 0, WOKEN = 1, CANCELLED = 2;
+
+   private static class Waiter {
+      private static final AtomicIntegerFieldUpdater<Waiter> STATE = AtomicIntegerFieldUpdater.newUpdater(Waiter.class, "state");
+
+      private final Thread thread;
+      private volatile int state = PARKED;
+
+      Waiter(Thread thread) {
+         this.thread = thread;
+      }
+
+      /*
+       * returns whether the waiter has been woken up, ie. whether it hasn't
+       * stopped sleeping on its own before
+       */
+      boolean wake() {
+         if (!STATE.compareAndSet(this, PARKED, WOKEN))
+            return false;
+         LockSupport.unpark(thread);
+         return true;
+      }
+
+      /*
+       * returns whether the waiter has stopped sleeping on its own, ie. whether
+       * it hasn't been woken up before
+       */
+      boolean cancel() {
+         return STATE.compareAndSet(this, PARKED, CANCELLED);
+      }
+   }
 }
@@ -0,0 +1,29 @@
+package at.borkowski.spicej.metrics;
+
+/**
+ * The current state of a shaper's buffer, as reported by
+ * {@link ShapingMetrics}. The values are read without synchronization and may
+ * be slightly outdated.
+ */
+public interface BufferGauge {
+   /**
+    * Returns the number of bytes currently held in the buffer.
+    *
+    * @return the number of buffered bytes
+    */
+   int getBufferedBytes();
+
+   /**
+    * Returns the capacity of the buffer.
+    *
+    * @return the buffer capacity, in bytes
+    */
+   int getBufferCapacity();
+
+   /**
+    * Returns the number of pending releases of buffered data.
+    *
+    * @return the number of pending releases
+    */
+   int getPendingReleases();
+}
@@ -0,0 +1,23 @@
+package at.borkowski.spicej.metrics;
+
+/**
+ * A shaper which can report its behavior to a {@link ShapingMetrics} instance.
+ * Shapers are not metered by default, so that they don't pay for metrics they
+ * don't report.
+ */
+public interface Metered {
+   /**
+    * Sets the metrics to report to.
+    *
+    * @param metrics
+    *           the metrics, or <code>null</code> to stop reporting
+    */
+   void setMetrics(ShapingMetrics metrics);
+
+   /**
+    * Returns the metrics reported to (see {@link #setMetrics(ShapingMetrics)}).
+    *
+    * @return the metrics, or <code>null</code> if not metered
+    */
+   ShapingMetrics getMetrics();
+}
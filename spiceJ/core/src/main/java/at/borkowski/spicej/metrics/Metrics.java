@@ -0,0 +1,62 @@
+package at.borkowski.spicej.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers metrics (eg. {@link ShapingMetrics} and {@link TickMetrics}) with
+ * the platform MBean server, so that they can be read by JMX clients like
+ * JConsole.
+ */
+public class Metrics {
+   /**
+    * The domain of the object names used by spiceJ.
+    */
+   public static final String DOMAIN = "at.borkowski.spicej";
+
+   private Metrics() {}
+
+   /**
+    * Registers an MBean with the platform MBean server.
+    *
+    * @param mbean
+    *           the MBean to register
+    * @param properties
+    *           the key properties of the object name (eg.
+    *           <code>type=Shaper,name=upload</code>), which is created in the
+    *           {@link #DOMAIN} domain
+    * @return the object name the MBean has been registered with
+    * @throws IllegalArgumentException
+    *            if the object name is malformed, or if the MBean can't be
+    *            registered (eg. because the name is already in use)
+    */
+   public static ObjectName register(Object mbean, String properties) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+         server.registerMBean(mbean, name);
+         return name;
+      } catch (JMException e) {
+         throw new IllegalArgumentException("can't register MBean " + properties, e);
+      }
+   }
+
+   /**
+    * Unregisters an MBean from the platform MBean server. Names which are not
+    * registered are ignored.
+    *
+    * @param name
+    *           the object name returned by {@link #register(Object, String)}
+    */
+   public static void unregister(ObjectName name) {
+      try {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (InstanceNotFoundException ignore) {} catch (JMException e) {
+         throw new IllegalArgumentException("can't unregister MBean " + name, e);
+      }
+   }
+}
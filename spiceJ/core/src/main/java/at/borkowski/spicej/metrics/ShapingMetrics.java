@@ -0,0 +1,87 @@
+package at.borkowski.spicej.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the behavior of a shaper (see {@link Metered}): the bytes
+ * it passed, the time it blocked callers, and the state of its buffer.
+ *
+ * Counters are striped ({@link LongAdder}), so that updating them from the
+ * shaping threads is cheap and doesn't contend with readers. Reading a counter
+ * is more expensive, which is fine for monitoring. The buffer state is read
+ * from the shaper when requested (see {@link BufferGauge}).
+ *
+ * Instances can be registered as MBeans (see {@link Metrics#register(Object, String)}).
+ */
+public class ShapingMetrics implements ShapingMetricsMBean {
+   private final LongAdder bytes = new LongAdder();
+   private final LongAdder blockedNanoseconds = new LongAdder();
+   private final LongAdder blockedCount = new LongAdder();
+
+   private volatile BufferGauge buffer;
+
+   /**
+    * Adds passed bytes.
+    *
+    * @param n
+    *           the number of bytes, negative for taking back bytes counted
+    *           before
+    */
+   public void addBytes(long n) {
+      bytes.add(n);
+   }
+
+   /**
+    * Adds a period of time during which a caller was blocked.
+    *
+    * @param nanoseconds
+    *           the blocked time, in nanoseconds
+    */
+   public void addBlocked(long nanoseconds) {
+      blockedNanoseconds.add(nanoseconds);
+      blockedCount.increment();
+   }
+
+   /**
+    * Sets the gauge reporting the state of the shaper's buffer.
+    *
+    * @param buffer
+    *           the gauge, or <code>null</code> if the shaper has no buffer
+    */
+   public void setBuffer(BufferGauge buffer) {
+      this.buffer = buffer;
+   }
+
+   @Override
+   public long getBytes() {
+      return bytes.sum();
+   }
+
+   @Override
+   public long getBlockedNanoseconds() {
+      return blockedNanoseconds.sum();
+   }
+
+   @Override
+   public long getBlockedCount() {
+      return blockedCount.sum();
+   }
+
+   @Override
+   public int getBufferedBytes() {
+      BufferGauge buffer = this.buffer;
+      return buffer == null ? 0 : buffer.getBufferedBytes();
+   }
+
+   @Override
+   public int getBufferCapacity() {
+      BufferGauge buffer = this.buffer;
+      return buffer == null ? 0 : buffer.getBufferCapacity();
+   }
+
+   @Override
+   public int getPendingReleases() {
+      BufferGauge buffer = this.buffer;
+      return buffer == null ? 0 : buffer.getPendingReleases();
+   }
+}
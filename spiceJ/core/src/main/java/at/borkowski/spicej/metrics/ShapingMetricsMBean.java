@@ -0,0 +1,50 @@
+package at.borkowski.spicej.metrics;
+
+/**
+ * The management interface of {@link ShapingMetrics}.
+ */
+public interface ShapingMetricsMBean {
+   /**
+    * Returns the number of bytes passed by the shaper.
+    *
+    * @return the number of bytes passed
+    */
+   long getBytes();
+
+   /**
+    * Returns the total time the shaper blocked callers waiting for rate quota
+    * or buffer space.
+    *
+    * @return the blocked time, in nanoseconds
+    */
+   long getBlockedNanoseconds();
+
+   /**
+    * Returns how often the shaper blocked callers.
+    *
+    * @return the number of times blocked
+    */
+   long getBlockedCount();
+
+   /**
+    * Returns the number of bytes currently held in the shaper's buffer.
+    *
+    * @return the number of buffered bytes, 0 if the shaper has no buffer
+    */
+   int getBufferedBytes();
+
+   /**
+    * Returns the capacity of the shaper's buffer.
+    *
+    * @return the buffer capacity in bytes, 0 if the shaper has no buffer
+    */
+   int getBufferCapacity();
+
+   /**
+    * Returns the number of pending releases of buffered data, ie. the depth of
+    * the queue of data waiting for its delay to pass.
+    *
+    * @return the number of pending releases, 0 if the shaper has no buffer
+    */
+   int getPendingReleases();
+}
@@ -0,0 +1,135 @@
+package at.borkowski.spicej.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counters describing the timeliness of a real-time tick source: how much later
+ * than scheduled its ticks are generated. A growing lag means that the timer
+ * thread doesn't get enough CPU time or that tick handling takes longer than
+ * the tick interval. Ticks which have become due while the source was still
+ * late are counted as missed, and those dropped instead of being caught up with
+ * as skipped. The time it takes to distribute each tick to the listeners is
+ * recorded as its dispatch latency.
+ *
+ * Like {@link ShapingMetrics}, the counters are striped and can be registered
+ * as an MBean (see {@link Metrics#register(Object, String)}).
+ */
+public class TickMetrics implements TickMetricsMBean {
+   private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+      @Override
+      public long applyAsLong(long left, long right) {
+         return Math.max(left, right);
+      }
+   };
+
+   private final LongAdder ticks = new LongAdder();
+   private final LongAdder totalLag = new LongAdder();
+   private final LongAccumulator maxLag = new LongAccumulator(MAX, 0);
+   private final LongAdder missed = new LongAdder();
+   private final LongAdder skipped = new LongAdder();
+   private volatile long lastLag = 0;
+   private final LongAdder dispatches = new LongAdder();
+   private final LongAdder totalDispatch = new LongAdder();
+   private final LongAccumulator maxDispatch = new LongAccumulator(MAX, 0);
+   private volatile long lastDispatch = 0;
+
+   /**
+    * Records a generated tick.
+    *
+    * @param lagNanoseconds
+    *           how much later than scheduled the tick has been generated
+    */
+   public void recordTick(long lagNanoseconds) {
+      ticks.increment();
+      totalLag.add(lagNanoseconds);
+      maxLag.accumulate(lagNanoseconds);
+      lastLag = lagNanoseconds;
+   }
+
+   /**
+    * Records ticks which have become due while the source was late.
+    *
+    * @param ticks
+    *           the number of missed ticks
+    */
+   public void recordMissed(long ticks) {
+      missed.add(ticks);
+   }
+
+   /**
+    * Records missed ticks which have been dropped.
+    *
+    * @param ticks
+    *           the number of skipped ticks
+    */
+   public void recordSkipped(long ticks) {
+      skipped.add(ticks);
+   }
+
+   /**
+    * Records the distribution of a tick to the listeners.
+    *
+    * @param nanoseconds
+    *           the time it took to distribute the tick
+    */
+   public void recordDispatch(long nanoseconds) {
+      dispatches.increment();
+      totalDispatch.add(nanoseconds);
+      maxDispatch.accumulate(nanoseconds);
+      lastDispatch = nanoseconds;
+   }
+
+   @Override
+   public long getTicks() {
+      return ticks.sum();
+   }
+
+   @Override
+   public long getTotalLagNanoseconds() {
+      return totalLag.sum();
+   }
+
+   @Override
+   public long getMaxLagNanoseconds() {
+      return maxLag.get();
+   }
+
+   @Override
+   public long getAverageLagNanoseconds() {
+      long ticks = getTicks();
+      return ticks == 0 ? 0 : getTotalLagNanoseconds() / ticks;
+   }
+
+   @Override
+   public long getLastLagNanoseconds() {
+      return lastLag;
+   }
+
+   @Override
+   public long getMissedTicks() {
+      return missed.sum();
+   }
+
+   @Override
+   public long getSkippedTicks() {
+      return skipped.sum();
+   }
+
+   @Override
+   public long getMaxDispatchNanoseconds() {
+      return maxDispatch.get();
+   }
+
+   @Override
+   public long getAverageDispatchNanoseconds() {
+      long dispatches = this.dispatches.sum();
+      return dispatches == 0 ? 0 : totalDispatch.sum() / dispatches;
+   }
+
+   @Override
+   public long getLastDispatchNanoseconds() {
+      return lastDispatch;
+   }
+}
@@ -0,0 +1,86 @@
+package at.borkowski.spicej.metrics;
+
+/**
+ * The management interface of {@link TickMetrics}.
+ */
+public interface TickMetricsMBean {
+   /**
+    * Returns the number of ticks generated. Ticks passed to the listeners at
+    * once (see {@link at.borkowski.spicej.ticks.BulkTickListener}) count as
+    * one.
+    *
+    * @return the number of ticks
+    */
+   long getTicks();
+
+   /**
+    * Returns the sum of the lags of all ticks, ie. of how much later than
+    * scheduled they have been generated.
+    *
+    * @return the total lag, in nanoseconds
+    */
+   long getTotalLagNanoseconds();
+
+   /**
+    * Returns the highest lag of a tick.
+    *
+    * @return the maximum lag, in nanoseconds
+    */
+   long getMaxLagNanoseconds();
+
+   /**
+    * Returns the average lag of a tick.
+    *
+    * @return the average lag, in nanoseconds
+    */
+   long getAverageLagNanoseconds();
+
+   /**
+    * Returns the lag of the most recent tick, ie. the current drift of the
+    * source from its schedule.
+    *
+    * @return the last lag, in nanoseconds
+    */
+   long getLastLagNanoseconds();
+
+   /**
+    * Returns the number of ticks which have become due while the source was
+    * still late, and thus have not been generated on time.
+    *
+    * @return the number of missed ticks
+    */
+   long getMissedTicks();
+
+   /**
+    * Returns the number of missed ticks which have been dropped instead of
+    * being caught up with.
+    *
+    * @return the number of skipped ticks
+    */
+   long getSkippedTicks();
+
+   /**
+    * Returns the highest time it took to distribute a tick to the listeners.
+    *
+    * @return the maximum dispatch latency, in nanoseconds
+    */
+   long getMaxDispatchNanoseconds();
+
+   /**
+    * Returns the average time it took to distribute a tick to the listeners.
+    * If this approaches the tick interval, the listeners should be distributed
+    * to in parallel (see
+    * {@link at.borkowski.spicej.impl.ShardedTickDispatcher}).
+    *
+    * @return the average dispatch latency, in nanoseconds
+    */
+   long getAverageDispatchNanoseconds();
+
+   /**
+    * Returns the time it took to distribute the most recent tick to the
+    * listeners.
+    *
+    * @return the last dispatch latency, in nanoseconds
+    */
+   long getLastDispatchNanoseconds();
+}
@@ -0,0 +1,24 @@
+package at.borkowski.spicej.shapers;
+
+import java.util.SplittableRandom;
+
+/**
+ * A distribution of delays in ticks, as used by {@link JitterShaper}s. See
+ * {@link DelayDistributions} for common distributions.
+ * 
+ * Implementations must not keep state between samples (other than the random
+ * number generator passed in), so that one distribution can be shared by
+ * several shapers, and they should not allocate, since they are sampled for
+ * every chunk of data.
+ */
+public interface DelayDistribution {
+
+   /**
+    * Draws a delay.
+    * 
+    * @param random
+    *           the random number generator to use
+    * @return the delay in ticks, at least 0
+    */
+   long sample(SplittableRandom random);
+}
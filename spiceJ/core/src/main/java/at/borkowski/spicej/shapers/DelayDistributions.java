@@ -0,0 +1,150 @@
+package at.borkowski.spicej.shapers;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Provides common {@link DelayDistribution}s. Delays are drawn as real numbers
+ * of ticks and rounded to the nearest tick; negative delays are clamped to 0.
+ */
+public class DelayDistributions {
+   private DelayDistributions() {}
+
+   /**
+    * Returns a distribution always returning the same delay.
+    * 
+    * @param delay
+    *           the delay in ticks
+    * @return the distribution
+    */
+   public static DelayDistribution constant(final long delay) {
+      if (delay < 0)
+         throw new IllegalArgumentException("delay must not be negative");
+
+      return new DelayDistribution() {
+         @Override
+         public long sample(SplittableRandom random) {
+            return delay;
+         }
+      };
+   }
+
+   /**
+    * Returns a uniform distribution of whole ticks.
+    * 
+    * @param min
+    *           the minimum delay in ticks (inclusive)
+    * @param max
+    *           the maximum delay in ticks (inclusive)
+    * @return the distribution
+    */
+   public static DelayDistribution uniform(final long min, final long max) {
+      if (min < 0 || max < min)
+         throw new IllegalArgumentException("0 <= min <= max required");
+
+      return new DelayDistribution() {
+         @Override
+         public long sample(SplittableRandom random) {
+            return min == max ? min : random.nextLong(min, max + 1);
+         }
+      };
+   }
+
+   /**
+    * Returns a normal (Gaussian) distribution.
+    * 
+    * @param mean
+    *           the mean delay in ticks
+    * @param standardDeviation
+    *           the standard deviation in ticks
+    * @return the distribution
+    */
+   public static DelayDistribution normal(final double mean, final double standardDeviation) {
+      if (standardDeviation < 0)
+         throw new IllegalArgumentException("standard deviation must not be negative");
+
+      return new DelayDistribution() {
+         @Override
+         public long sample(SplittableRandom random) {
+            // Box-Muller transform (SplittableRandom has no nextGaussian);
+            // 1 - nextDouble() is in (0, 1], so the logarithm is finite
+            double radius = Math.sqrt(-2 * Math.log(1 - random.nextDouble()));
+            double gaussian = radius * Math.cos(2 * Math.PI * random.nextDouble());
+            return ticks(mean + standardDeviation * gaussian);
+         }
+      };
+   }
+
+   /**
+    * Returns a Pareto distribution, a heavy-tailed distribution modelling rare
+    * but long delay spikes. Since single samples can be arbitrarily large, they
+    * are capped.
+    * 
+    * @param scale
+    *           the scale, ie. the minimum delay in ticks (must be positive)
+    * @param shape
+    *           the shape (must be positive), the lower the heavier the tail
+    * @param max
+    *           the maximum delay in ticks
+    * @return the distribution
+    */
+   public static DelayDistribution pareto(final double scale, final double shape, final long max) {
+      if (scale <= 0 || shape <= 0)
+         throw new IllegalArgumentException("scale and shape must be positive");
+
+      final double inverseShape = 1 / shape;
+      return new DelayDistribution() {
+         @Override
+         public long sample(SplittableRandom random) {
+            double value = scale / Math.pow(1 - random.nextDouble(), inverseShape);
+            return Math.min(max, ticks(value));
+         }
+      };
+   }
+
+   /**
+    * Returns an empirical distribution given by a histogram, eg. measured on a
+    * real network. Sampling takes logarithmic time in the number of bins.
+    * 
+    * @param delays
+    *           the delays in ticks of the histogram's bins
+    * @param weights
+    *           the (relative) weights of the bins, not necessarily summing up
+    *           to 1
+    * @return the distribution
+    */
+   public static DelayDistribution histogram(long[] delays, double[] weights) {
+      if (delays.length == 0 || delays.length != weights.length)
+         throw new IllegalArgumentException("delays and weights must be non-empty and of the same length");
+
+      final long[] values = Arrays.copyOf(delays, delays.length);
+      final double[] cumulative = new double[weights.length];
+      double sum = 0;
+      for (int i = 0; i < weights.length; i++) {
+         if (weights[i] < 0 || delays[i] < 0)
+            throw new IllegalArgumentException("delays and weights must not be negative");
+         cumulative[i] = sum += weights[i];
+      }
+      if (sum <= 0)
+         throw new IllegalArgumentException("weights must not sum up to 0");
+      final double total = sum;
+
+      return new DelayDistribution() {
+         @Override
+         public long sample(SplittableRandom random) {
+            double point = random.nextDouble() * total;
+            int index = Arrays.binarySearch(cumulative, point);
+            // an exact hit lies on the upper edge of its bin
+            index = index >= 0 ? index + 1 : -index - 1;
+            // skip empty bins (and guard against rounding at the upper end)
+            while (index < cumulative.length - 1 && cumulative[index] <= point)
+               index++;
+            return values[Math.min(index, values.length - 1)];
+         }
+      };
+   }
+
+   private static long ticks(double value) {
+      return value <= 0 ? 0 : Math.round(value);
+   }
+}
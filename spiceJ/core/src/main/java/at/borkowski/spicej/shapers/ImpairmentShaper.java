@@ -0,0 +1,70 @@
+package at.borkowski.spicej.shapers;
+
+/**
+ * An interface for shapers impairing messages (eg. datagrams) by losing,
+ * duplicating, reordering or corrupting them.
+ */
+public interface ImpairmentShaper {
+
+   /**
+    * Sets the model deciding which messages are lost.
+    * 
+    * @param lossModel
+    *           the loss model
+    */
+   void setLossModel(LossModel lossModel);
+
+   /**
+    * Returns the model deciding which messages are lost.
+    * 
+    * @return the loss model
+    */
+   LossModel getLossModel();
+
+   /**
+    * Sets the probability of a message to be delivered twice.
+    * 
+    * @param probability
+    *           the duplication probability
+    */
+   void setDuplicationProbability(double probability);
+
+   /**
+    * Returns the probability of a message to be delivered twice.
+    * 
+    * @return the duplication probability
+    */
+   double getDuplicationProbability();
+
+   /**
+    * Sets the probability of a message to be held back and delivered after
+    * the following message.
+    * 
+    * @param probability
+    *           the reordering probability
+    */
+   void setReorderProbability(double probability);
+
+   /**
+    * Returns the probability of a message to be held back and delivered after
+    * the following message.
+    * 
+    * @return the reordering probability
+    */
+   double getReorderProbability();
+
+   /**
+    * Sets the probability of each single bit of a message to be flipped.
+    * 
+    * @param bitErrorRate
+    *           the bit error rate
+    */
+   void setBitErrorRate(double bitErrorRate);
+
+   /**
+    * Returns the probability of each single bit of a message to be flipped.
+    * 
+    * @return the bit error rate
+    */
+   double getBitErrorRate();
+}
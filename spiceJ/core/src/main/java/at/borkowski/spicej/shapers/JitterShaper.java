@@ -0,0 +1,36 @@
+package at.borkowski.spicej.shapers;
+
+/**
+ * An interface for jitter shapers. A jitter shaper adds a random delay to each
+ * chunk of data (on top of the delay of its {@link DelayShaper}), drawn from a
+ * {@link DelayDistribution}.
+ * 
+ * Since the shaped data is a stream, chunks are never reordered: a chunk whose
+ * drawn delay would release it before an earlier chunk is released together
+ * with that earlier chunk.
+ */
+public interface JitterShaper {
+
+   /**
+    * Sets the distribution to draw the additional delay of each chunk from,
+    * using a random number generator seeded with the given seed. Using the same
+    * seed on a deterministic tick source (eg.
+    * {@link at.borkowski.spicej.impl.SimulationTickSource}) reproduces the same
+    * delays.
+    * 
+    * @param jitter
+    *           the distribution of the additional delay in ticks, or
+    *           <code>null</code> for no jitter
+    * @param seed
+    *           the seed of the random number generator
+    */
+   void setJitter(DelayDistribution jitter, long seed);
+
+   /**
+    * Returns the distribution of the additional delay (see
+    * {@link #setJitter(DelayDistribution, long)}).
+    * 
+    * @return the distribution, or <code>null</code> if there is no jitter
+    */
+   DelayDistribution getJitter();
+}
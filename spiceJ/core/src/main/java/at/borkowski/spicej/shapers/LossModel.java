@@ -0,0 +1,157 @@
+package at.borkowski.spicej.shapers;
+
+import java.util.SplittableRandom;
+
+/**
+ * A model of which messages get lost, as used by {@link ImpairmentShaper}s.
+ * 
+ * Instead of deciding for every single message whether it is lost, a model's
+ * {@link Process} draws the number of messages passing before the next loss.
+ * Thus, the random number generator is only used once per loss (and, for
+ * {@link #gilbertElliott(double, double, double, double)}, once per state
+ * change), no matter how many messages pass.
+ */
+public abstract class LossModel {
+
+   /**
+    * Starts a loss process of this model.
+    * 
+    * @param random
+    *           the random number generator to use
+    * @return the process
+    */
+   public abstract Process start(SplittableRandom random);
+
+   /**
+    * A running loss process, keeping the state of its model (if any).
+    */
+   public interface Process {
+      /**
+       * Returns how many messages pass before the next one is lost.
+       * 
+       * @return the number of messages, {@link Long#MAX_VALUE} for never
+       */
+      long nextGap();
+   }
+
+   /**
+    * Returns a model losing no messages.
+    * 
+    * @return the model
+    */
+   public static LossModel none() {
+      return bernoulli(0);
+   }
+
+   /**
+    * Returns a model losing each message independently with the given
+    * probability.
+    * 
+    * @param probability
+    *           the loss probability
+    * @return the model
+    */
+   public static LossModel bernoulli(final double probability) {
+      checkProbability(probability);
+
+      return new LossModel() {
+         @Override
+         public Process start(final SplittableRandom random) {
+            return new Process() {
+               @Override
+               public long nextGap() {
+                  return geometric(random, probability);
+               }
+            };
+         }
+      };
+   }
+
+   /**
+    * Returns a Gilbert-Elliott model, a two-state Markov chain producing
+    * bursts of losses. In the good state, messages are lost with probability
+    * lossGood, in the bad state with probability lossBad. After each message,
+    * the chain moves from the good to the bad state with probability p, and
+    * back with probability r. The mean burst length is thus 1/r messages, and
+    * the stationary probability of the bad state is p/(p+r).
+    * 
+    * @param p
+    *           the probability of moving from the good to the bad state
+    * @param r
+    *           the probability of moving from the bad to the good state
+    * @param lossGood
+    *           the loss probability in the good state (usually 0)
+    * @param lossBad
+    *           the loss probability in the bad state (usually close to 1)
+    * @return the model
+    */
+   public static LossModel gilbertElliott(final double p, final double r, final double lossGood, final double lossBad) {
+      checkProbability(p);
+      checkProbability(r);
+      checkProbability(lossGood);
+      checkProbability(lossBad);
+
+      return new LossModel() {
+         @Override
+         public Process start(final SplittableRandom random) {
+            return new Process() {
+               private boolean good = true;
+               private long remaining = sojourn();
+
+               @Override
+               public long nextGap() {
+                  long passed = 0;
+                  while (true) {
+                     long gap = geometric(random, good ? lossGood : lossBad);
+                     if (gap < remaining) {
+                        remaining -= gap + 1;
+                        return passed + gap;
+                     } else if (remaining == Long.MAX_VALUE) {
+                        // stuck in a state without losses
+                        return Long.MAX_VALUE;
+                     }
+
+                     passed += remaining;
+                     good = !good;
+                     remaining = sojourn();
+                  }
+               }
+
+               // the number of messages before leaving the current state
+               private long sojourn() {
+                  long gap = geometric(random, good ? p : r);
+                  return gap == Long.MAX_VALUE ? gap : gap + 1;
+               }
+            };
+         }
+      };
+   }
+
+   /**
+    * Draws from a geometric distribution, ie. the number of independent
+    * trials failing before the first one succeeding with the given
+    * probability.
+    * 
+    * @param random
+    *           the random number generator to use
+    * @param probability
+    *           the probability of a trial to succeed
+    * @return the number of failing trials, {@link Long#MAX_VALUE} if the
+    *         probability is 0
+    */
+   public static long geometric(SplittableRandom random, double probability) {
+      if (probability <= 0)
+         return Long.MAX_VALUE;
+      else if (probability >= 1)
+         return 0;
+
+      // 1 - nextDouble() is in (0, 1], so the logarithm is finite; the cast
+      // saturates at Long.MAX_VALUE
+      return (long) (Math.log(1 - random.nextDouble()) / Math.log1p(-probability));
+   }
+
+   static void checkProbability(double probability) {
+      if (!(probability >= 0 && probability <= 1))
+         throw new IllegalArgumentException("probability must be between 0 and 1");
+   }
+}
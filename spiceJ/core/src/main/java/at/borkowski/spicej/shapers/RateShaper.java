@@ -36,4 +36,26 @@ public interface RateShaper {
     *           the new prescale
     */
    void setPrescale(int prescale);
+
+   /**
+    * Sets the burst size, ie. the maximum number of bytes which may accumulate
+    * while the shaper is idle. The shaper works as a token bucket which is
+    * refilled by the byte rate every tick (after prescaling), and the burst
+    * size is the bucket's depth. A burst size not higher than the byte rate
+    * (eg. 0, the default) means that bytes not used within a tick are lost.
+    * 
+    * Allowing bursts makes it possible to use coarser ticks at the same
+    * long-term rate, since traffic arriving in bursts is not under-served.
+    * 
+    * @param burst
+    *           the new burst size in bytes
+    */
+   void setBurst(int burst);
+
+   /**
+    * Returns the burst size (see {@link #setBurst(int)}).
+    * 
+    * @return the current burst size in bytes
+    */
+   int getBurst();
 }
@@ -0,0 +1,154 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A ring buffer of bytes backed by a (heap or direct) {@link ByteBuffer}. The
+ * ring is meant for one producing and one consuming thread at a time: both
+ * sides only publish the total number of bytes they have written or read, and
+ * each side uses its own view of the backing buffer.
+ */
+class ByteRing {
+   private final int capacity;
+   private final ByteBuffer writeView, readView;
+
+   private volatile long readCount = 0;
+   private volatile long writeCount = 0;
+
+   /**
+    * Creates a ring buffer.
+    *
+    * @param capacity
+    *           the number of bytes the ring can hold
+    * @param direct
+    *           whether to back the ring by a direct buffer
+    */
+   ByteRing(int capacity, boolean direct) {
+      if (capacity <= 0)
+         throw new IllegalArgumentException("capacity must be positive");
+
+      this.capacity = capacity;
+      ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+      this.writeView = buffer.duplicate();
+      this.readView = buffer.duplicate();
+   }
+
+   int capacity() {
+      return capacity;
+   }
+
+   boolean isDirect() {
+      return writeView.isDirect();
+   }
+
+   long readCount() {
+      return readCount;
+   }
+
+   long writeCount() {
+      return writeCount;
+   }
+
+   int used() {
+      return (int) (writeCount - readCount);
+   }
+
+   int free() {
+      return capacity - used();
+   }
+
+   /**
+    * Reads up to the given number of bytes from a channel into the ring. The
+    * number must not exceed {@link #free()}.
+    *
+    * @return the number of bytes read, or -1 if the channel has reached its end
+    *         before any byte could be read
+    */
+   int fill(ReadableByteChannel from, int max) throws IOException {
+      int total = 0;
+      while (total < max) {
+         long written = writeCount;
+         int chunk = select(writeView, written, max - total);
+         int rd = from.read(writeView);
+         if (rd < 0)
+            return total == 0 ? -1 : total;
+
+         writeCount = written + rd;
+         total += rd;
+         if (rd < chunk)
+            break;
+      }
+      return total;
+   }
+
+   /**
+    * Copies the given number of bytes from a buffer into the ring. The number
+    * must not exceed {@link #free()} nor the bytes remaining in the buffer.
+    */
+   void put(ByteBuffer src, int len) {
+      int limit = src.limit();
+      try {
+         while (len > 0) {
+            long written = writeCount;
+            int chunk = select(writeView, written, len);
+            src.limit(src.position() + chunk);
+            writeView.put(src);
+
+            writeCount = written + chunk;
+            len -= chunk;
+         }
+      } finally {
+         src.limit(limit);
+      }
+   }
+
+   /**
+    * Copies the given number of bytes from the ring into a buffer. The number
+    * must not exceed {@link #used()} nor the space remaining in the buffer.
+    */
+   void get(ByteBuffer dst, int len) {
+      while (len > 0) {
+         long read = readCount;
+         int chunk = select(readView, read, len);
+         dst.put(readView);
+
+         readCount = read + chunk;
+         len -= chunk;
+      }
+   }
+
+   /**
+    * Writes up to the given number of bytes from the ring to a channel. The
+    * number must not exceed {@link #used()}.
+    *
+    * @return the number of bytes written, which is less than requested if the
+    *         channel does not accept more bytes
+    */
+   int drain(WritableByteChannel to, int max) throws IOException {
+      int total = 0;
+      while (total < max) {
+         long read = readCount;
+         int chunk = select(readView, read, max - total);
+         int wr = to.write(readView);
+
+         readCount = read + wr;
+         total += wr;
+         if (wr < chunk)
+            break;
+      }
+      return total;
+   }
+
+   // sets the view to the contiguous region starting at the given count
+   private int select(ByteBuffer view, long count, int max) {
+      int position = (int) (count % capacity);
+      int chunk = Math.min(max, capacity - position);
+      view.clear();
+      view.position(position);
+      view.limit(position + chunk);
+      return chunk;
+   }
+}
@@ -0,0 +1,191 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The storage of the ring buffer of {@link DelayedInputStream} and
+ * {@link DelayedOutputStream}. The streams keep track of the ring positions
+ * themselves, this class only provides indexed access to the bytes, either on
+ * the heap or in direct (off-heap) memory.
+ *
+ * Direct storage keeps large buffers (as needed for high bandwidth-delay
+ * products) out of the heap, so that they neither count towards the heap size
+ * nor have to be scanned by the garbage collector. Since streams transfer data
+ * in byte arrays, direct storage copies data through a small scratch array when
+ * reading from or writing to a stream.
+ *
+ * The storage is used by one producing thread ({@link #put(int, byte)},
+ * {@link #put(int, byte[], int, int)} and
+ * {@link #readFrom(InputStream, int, int)}) and one consuming thread (
+ * {@link #get(int)}, {@link #get(int, byte[], int, int)} and
+ * {@link #writeTo(OutputStream, int, int)}) at a time, which work on disjoint
+ * regions.
+ */
+abstract class DelayBuffer {
+   /**
+    * The size of the scratch arrays used for transferring data between direct
+    * storage and streams.
+    */
+   static final int SCRATCH_SIZE = 8 * 1024;
+
+   /**
+    * Allocates a storage.
+    *
+    * @param length
+    *           the number of bytes to store
+    * @param direct
+    *           whether to allocate direct memory instead of a heap array
+    * @return the storage
+    */
+   static DelayBuffer allocate(int length, boolean direct) {
+      return direct ? new Direct(length) : new Heap(length);
+   }
+
+   abstract int length();
+
+   abstract boolean isDirect();
+
+   abstract byte get(int index);
+
+   abstract void put(int index, byte b);
+
+   abstract void get(int index, byte[] dst, int off, int len);
+
+   abstract void put(int index, byte[] src, int off, int len);
+
+   /**
+    * Reads bytes from a stream into the storage, like
+    * {@link InputStream#read(byte[], int, int)}.
+    */
+   abstract int readFrom(InputStream in, int index, int len) throws IOException;
+
+   /**
+    * Writes bytes from the storage to a stream, like
+    * {@link OutputStream#write(byte[], int, int)}.
+    */
+   abstract void writeTo(OutputStream out, int index, int len) throws IOException;
+
+   private static class Heap extends DelayBuffer {
+      private final byte[] buffer;
+
+      Heap(int length) {
+         buffer = new byte[length];
+      }
+
+      @Override
+      int length() {
+         return buffer.length;
+      }
+
+      @Override
+      boolean isDirect() {
+         return false;
+      }
+
+      @Override
+      byte get(int index) {
+         return buffer[index];
+      }
+
+      @Override
+      void put(int index, byte b) {
+         buffer[index] = b;
+      }
+
+      @Override
+      void get(int index, byte[] dst, int off, int len) {
+         System.arraycopy(buffer, index, dst, off, len);
+      }
+
+      @Override
+      void put(int index, byte[] src, int off, int len) {
+         System.arraycopy(src, off, buffer, index, len);
+      }
+
+      @Override
+      int readFrom(InputStream in, int index, int len) throws IOException {
+         return in.read(buffer, index, len);
+      }
+
+      @Override
+      void writeTo(OutputStream out, int index, int len) throws IOException {
+         out.write(buffer, index, len);
+      }
+   }
+
+   private static class Direct extends DelayBuffer {
+      private final int length;
+      // one view per side, since relative bulk operations move the position
+      private final ByteBuffer producerView, consumerView;
+      private byte[] producerScratch, consumerScratch;
+
+      Direct(int length) {
+         this.length = length;
+         ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+         producerView = buffer.duplicate();
+         consumerView = buffer.duplicate();
+      }
+
+      @Override
+      int length() {
+         return length;
+      }
+
+      @Override
+      boolean isDirect() {
+         return true;
+      }
+
+      @Override
+      byte get(int index) {
+         return consumerView.get(index);
+      }
+
+      @Override
+      void put(int index, byte b) {
+         producerView.put(index, b);
+      }
+
+      @Override
+      void get(int index, byte[] dst, int off, int len) {
+         consumerView.clear();
+         consumerView.position(index);
+         consumerView.get(dst, off, len);
+      }
+
+      @Override
+      void put(int index, byte[] src, int off, int len) {
+         producerView.clear();
+         producerView.position(index);
+         producerView.put(src, off, len);
+      }
+
+      @Override
+      int readFrom(InputStream in, int index, int len) throws IOException {
+         if (producerScratch == null)
+            producerScratch = new byte[SCRATCH_SIZE];
+
+         int rd = in.read(producerScratch, 0, Math.min(len, SCRATCH_SIZE));
+         if (rd > 0)
+            put(index, producerScratch, 0, rd);
+         return rd;
+      }
+
+      @Override
+      void writeTo(OutputStream out, int index, int len) throws IOException {
+         if (consumerScratch == null)
+            consumerScratch = new byte[SCRATCH_SIZE];
+
+         while (len > 0) {
+            int chunk = Math.min(len, SCRATCH_SIZE);
+            get(index, consumerScratch, 0, chunk);
+            out.write(consumerScratch, 0, chunk);
+            index += chunk;
+            len -= chunk;
+         }
+      }
+   }
+}
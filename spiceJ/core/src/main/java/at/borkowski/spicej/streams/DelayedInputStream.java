@@ -2,17 +2,18 @@ package at.borkowski.spicej.streams;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import at.borkowski.spicej.WouldBlockException;
 import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.metrics.BufferGauge;
+import at.borkowski.spicej.metrics.Metered;
+import at.borkowski.spicej.metrics.ShapingMetrics;
+import at.borkowski.spicej.shapers.DelayDistribution;
 import at.borkowski.spicej.shapers.DelayShaper;
-import at.borkowski.spicej.ticks.TickListener;
+import at.borkowski.spicej.shapers.JitterShaper;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
 import at.borkowski.spicej.ticks.TickSource;
 
 /**
@@ -20,15 +21,22 @@ import at.borkowski.spicej.ticks.TickSource;
  * bytes.
  * 
  * The stream uses a {@link TickSource} as a source of timing information and
- * delays the reception of data by a certain number of ticks.
- *
+ * delays the reception of data by a certain number of ticks. Optionally, a
+ * random delay is added to each chunk of data read (see {@link JitterShaper}).
+ * 
+ * The stream polls the underlying stream for new data on every tick. Only while
+ * the EOF detector (see {@link #setEofDetection(boolean)}) is waiting for new
+ * data and no data is pending, the stream doesn't need any ticks (see
+ * {@link DeadlineTickListener}).
  */
-public class DelayedInputStream extends InputStream implements TickListener, DelayShaper, Runnable {
+public class DelayedInputStream extends InputStream implements DeadlineTickListener, DelayShaper, JitterShaper, Metered, Runnable {
 
    private final InputStream real;
    private final TickSource t;
    private long delay;
-   private final byte[] buffer;
+   private volatile Jitter jitter;
+   private volatile ShapingMetrics metrics;
+   private final DelayBuffer buffer;
 
    private boolean blocking = true, eof = false, closed = false;
    private boolean eofDetection = false;
@@ -38,15 +46,16 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
    private volatile int start = 0;
    private volatile int end = 0;
 
-   private SortedSet<Long> tickMarks = new TreeSet<Long>();
-   private Map<Long, Integer> tick_virtualEnd = new HashMap<>();
+   private final TickMarkQueue tickMarks = new TickMarkQueue();
 
    private SleepWakeup sleepForTick = new SleepWakeup();
 
    private Thread eofDetector;
 
-   // object to lock on for setting (!) eofDetectorBlock and eofDetectorActive
-   private Object eofDetectorLock = new Object();
+   // lock for setting (!) eofDetectorBlock and eofDetectorActive (not a
+   // monitor, since the detector blocks in read() while holding it, which
+   // would pin the carrier when running on a virtual thread)
+   private final Lock eofDetectorLock = new ReentrantLock();
 
    // if eof detector is running and reading
    volatile boolean eofDetectorActive = false;
@@ -82,6 +91,29 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
     *           of reading from this stream).
     */
    public DelayedInputStream(TickSource t, InputStream real, long delay, int bufferSize) {
+      this(t, real, delay, bufferSize, false);
+   }
+
+   /**
+    * Constructs a new {@link DelayedInputStream} with the given parameters,
+    * optionally keeping the buffer in direct (off-heap) memory. Direct memory
+    * is preferable for large buffers (eg. for simulating links with a high
+    * bandwidth-delay product), since it neither grows the heap nor has to be
+    * scanned by the garbage collector.
+    * 
+    * @param t
+    *           the tick source to use
+    * @param real
+    *           the underlying {@link InputStream} to read data from
+    * @param delay
+    *           the delay (real ticks) to introduce to data
+    * @param bufferSize
+    *           the buffer size to use (see
+    *           {@link #DelayedInputStream(TickSource, InputStream, long, int)})
+    * @param direct
+    *           whether to allocate the buffer in direct memory
+    */
+   public DelayedInputStream(TickSource t, InputStream real, long delay, int bufferSize, boolean direct) {
       this.real = real;
       this.t = t;
       this.delay = delay;
@@ -90,7 +122,7 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
       // pipe and not, as it could be, as a full one (= we need at
       // least one empty byte to work). real order to fulfill the buffer
       // size, we increase the buffer size by one
-      this.buffer = new byte[bufferSize + 1];
+      this.buffer = DelayBuffer.allocate(bufferSize + 1, direct);
 
       t.addListener(this);
    }
@@ -98,10 +130,13 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
    private void ensureRunningEofDetector() {
       if (eofDetectorActive || !eofDetection)
          return;
-      synchronized (eofDetectorLock) {
+      eofDetectorLock.lock();
+      try {
          if (eofDetectorActive)
             return;
          eofDetectorActive = true;
+      } finally {
+         eofDetectorLock.unlock();
       }
       eofDetector = new Thread(this, "EOF Detector for " + this);
       eofDetector.setDaemon(true);
@@ -131,9 +166,10 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
 
       waitForAvailable();
 
-      byte b = buffer[start++];
-      if (start >= buffer.length)
-         start -= buffer.length;
+      byte b = buffer.get(start++);
+      if (start >= buffer.length())
+         start -= buffer.length();
+      count(1);
       return b & 0xFF;
 
    }
@@ -154,22 +190,19 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
 
    @Override
    public void run() {
+      eofDetectorLock.lock();
       try {
-         synchronized (eofDetectorLock) {
-            try {
-               eofDetectorReady = true;
-               int result = real.read();
-               eofDetectorResult = result;
-            } catch (Throwable t) {
-               eofDetectorResult = -2;
-               eofDetectorThrowable = t;
-            }
-         }
+         eofDetectorReady = true;
+         int result = real.read();
+         eofDetectorResult = result;
+      } catch (Throwable t) {
+         eofDetectorResult = -2;
+         eofDetectorThrowable = t;
       } finally {
-         synchronized (eofDetectorLock) {
-            eofDetectorActive = false;
-         }
+         eofDetectorActive = false;
+         eofDetectorLock.unlock();
       }
+      t.reschedule(Long.MIN_VALUE);
    }
 
    @Override
@@ -195,18 +228,19 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
 
       int ret;
       int toRead = ret = Math.min(len, readable);
-      if (start + toRead > buffer.length) {
-         int chunk1 = buffer.length - start;
-         System.arraycopy(buffer, start, b, off, chunk1);
+      if (start + toRead > buffer.length()) {
+         int chunk1 = buffer.length() - start;
+         buffer.get(start, b, off, chunk1);
          toRead -= chunk1;
          off += chunk1;
          start = 0;
       }
-      System.arraycopy(buffer, start, b, off, toRead);
+      buffer.get(start, b, off, toRead);
       start += toRead;
-      if (start >= buffer.length)
-         start -= buffer.length;
+      if (start >= buffer.length())
+         start -= buffer.length();
 
+      count(ret);
       return ret;
    }
 
@@ -225,11 +259,11 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
       else if (start < effectiveEnd)
          return effectiveEnd - start;
       else
-         return effectiveEnd - start + buffer.length;
+         return effectiveEnd - start + buffer.length();
    }
 
    int freeBytes() {
-      return buffer.length - bufferedBytes() - 1;
+      return buffer.length() - bufferedBytes() - 1;
    }
 
    @Override
@@ -238,6 +272,15 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
       handleNewData();
    }
 
+   @Override
+   public long nextTick() {
+      // new data is only noticed without polling if the EOF detector waits
+      // for it
+      if (!eof && !eofDetectorActive || eofDetectorResult != -3)
+         return Long.MIN_VALUE;
+      return tickMarks.isEmpty() ? Long.MAX_VALUE : tickMarks.firstTick();
+   }
+
    @Override
    public int available() throws IOException {
       checkNotClosed();
@@ -267,9 +310,9 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
                eofDetectorResult = eofResult;
                noFurtherAction = true;
             } else {
-               buffer[end] = (byte) eofResult;
-               if (++end >= buffer.length)
-                  end -= buffer.length;
+               buffer.put(end, (byte) eofResult);
+               if (++end >= buffer.length())
+                  end -= buffer.length();
             }
          }
 
@@ -277,25 +320,29 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
             int toRead = Math.min(freeBytes(), real.available());
             int rd;
             while (toRead > 0) {
-               rd = real.read(buffer, end, Math.min(toRead, buffer.length - end));
+               rd = buffer.readFrom(real, end, Math.min(toRead, buffer.length() - end));
                if (rd == -1) {
                   eof = true;
                   break;
                }
                toRead -= rd;
                end += rd;
-               if (end >= buffer.length)
-                  end -= buffer.length;
+               if (end >= buffer.length())
+                  end -= buffer.length();
             }
          } else if ((!eof && (real.available() == 0)) && freeBytes() > 0) {
             ensureRunningEofDetector();
          }
 
-         if (end != previousEnd && delay > 0) {
+         Jitter jitter = this.jitter;
+         if (end != previousEnd && (delay > 0 || jitter != null)) {
             // -1 is necessary because we read data one tick later than it actually arrived
             // (we assume to receive the tick after the phase generating the data)
-            tick_virtualEnd.put(currentTick + delay - 1, end);
-            tickMarks.add(currentTick + delay - 1);
+            updateCurrentTick();
+            long release = currentTick + Math.max(0, delay - 1);
+            release = jitter == null ? release : jitter.releaseTick(release);
+            tickMarks.add(release, end);
+            t.reschedule(release);
          }
 
          sleepForTick.wakeup();
@@ -307,12 +354,17 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
       handleNewTickMarks();
    }
 
+   /*
+    * the tick source doesn't tick an idle stream, so the last tick received
+    * may be outdated
+    */
+   private void updateCurrentTick() {
+      currentTick = Math.max(currentTick, t.getCurrentTick());
+   }
+
    private void handleNewTickMarks() {
-      while (!tickMarks.isEmpty() && tickMarks.first() <= currentTick) {
-         Long tick = tickMarks.first();
-         tickMarks.remove(tick);
-         currentAvailableEnd = tick_virtualEnd.remove(tick);
-      }
+      while (!tickMarks.isEmpty() && tickMarks.firstTick() <= currentTick)
+         currentAvailableEnd = (int) tickMarks.poll();
 
       if (tickMarks.isEmpty())
          currentAvailableEnd = end;
@@ -322,29 +374,24 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
    public void setDelay(long delay) {
       this.delay = delay;
 
-      long longestAcceptableDeadline = currentTick + delay;
-      List<Long> toDelete = new LinkedList<>();
-      for (Long tick : tickMarks)
-         if (tick > longestAcceptableDeadline)
-            toDelete.add(tick);
-
-      for (Long tick : toDelete) {
-         int previousVirtualEnd = tick_virtualEnd.get(tick);
-         tickMarks.remove(tick);
-         tick_virtualEnd.remove(tick);
-
-         // insert tick-end pair (longestAcceptableDeadline, previousVirtualEnd) if not
-         // already a pair present (tick, virtualEnd) where currentDeadline > previousVirtualEnd
+      updateCurrentTick();
+      tickMarks.collapse(currentTick + delay);
+      Jitter jitter = this.jitter;
+      if (jitter != null)
+         jitter.collapse(currentTick + delay);
+      handleNewTickMarks();
+      t.reschedule(nextTick());
+   }
 
-         long currentVirtualEnd = -1;
-         if (tickMarks.contains(longestAcceptableDeadline))
-            currentVirtualEnd = tick_virtualEnd.get(longestAcceptableDeadline);
+   @Override
+   public void setJitter(DelayDistribution jitter, long seed) {
+      this.jitter = jitter == null ? null : new Jitter(jitter, seed);
+   }
 
-         tickMarks.add(longestAcceptableDeadline);
-         if (currentVirtualEnd <= previousVirtualEnd)
-            tick_virtualEnd.put(longestAcceptableDeadline, previousVirtualEnd);
-      }
-      handleNewTickMarks();
+   @Override
+   public DelayDistribution getJitter() {
+      Jitter jitter = this.jitter;
+      return jitter == null ? null : jitter.getDistribution();
    }
 
    @Override
@@ -352,13 +399,57 @@ public class DelayedInputStream extends InputStream implements TickListener, Del
       return delay;
    }
 
+   @Override
+   public void setMetrics(ShapingMetrics metrics) {
+      if (metrics != null)
+         metrics.setBuffer(new Gauge());
+      this.metrics = metrics;
+   }
+
+   @Override
+   public ShapingMetrics getMetrics() {
+      return metrics;
+   }
+
+   private void count(int n) {
+      ShapingMetrics metrics = this.metrics;
+      if (metrics != null)
+         metrics.addBytes(n);
+   }
+
+   private class Gauge implements BufferGauge {
+      @Override
+      public int getBufferedBytes() {
+         return bufferedBytes();
+      }
+
+      @Override
+      public int getBufferCapacity() {
+         return getBufferSize();
+      }
+
+      @Override
+      public int getPendingReleases() {
+         return tickMarks.size();
+      }
+   }
+
    /**
     * Returns the buffer size, real bytes
     * 
     * @return the buffer size
     */
    public int getBufferSize() {
-      return buffer.length - 1; // see constructor on why -1
+      return buffer.length() - 1; // see constructor on why -1
+   }
+
+   /**
+    * Returns whether the buffer is allocated in direct memory.
+    * 
+    * @return whether the buffer is direct
+    */
+   public boolean isDirect() {
+      return buffer.isDirect();
    }
 
    /**
@@ -3,17 +3,16 @@ package at.borkowski.spicej.streams;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import at.borkowski.spicej.WouldBlockException;
 import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.metrics.BufferGauge;
+import at.borkowski.spicej.metrics.Metered;
+import at.borkowski.spicej.metrics.ShapingMetrics;
+import at.borkowski.spicej.shapers.DelayDistribution;
 import at.borkowski.spicej.shapers.DelayShaper;
-import at.borkowski.spicej.ticks.TickListener;
+import at.borkowski.spicej.shapers.JitterShaper;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
 import at.borkowski.spicej.ticks.TickSource;
 
 /**
@@ -21,25 +20,39 @@ import at.borkowski.spicej.ticks.TickSource;
  * bytes.
  * 
  * The stream uses a {@link TickSource} as a source of timing information and
- * delays the sending of data by a certain number of ticks.
- *
+ * delays the sending of data by a certain number of ticks. Optionally, a
+ * random delay is added to each chunk of data written (see
+ * {@link JitterShaper}).
+ * 
+ * Data is kept either in a fixed ring buffer or in a segmented buffer growing
+ * and shrinking with the data in flight (see
+ * {@link #DelayedOutputStream(TickSource, OutputStream, long, SegmentPool, int)}
+ * ).
+ * 
+ * While no data is pending, the stream doesn't need any ticks (see
+ * {@link DeadlineTickListener}).
  */
-public class DelayedOutputStream extends OutputStream implements TickListener, DelayShaper {
+public class DelayedOutputStream extends OutputStream implements DeadlineTickListener, DelayShaper, JitterShaper, Metered {
 
    private final OutputStream real;
    private final TickSource t;
    private long delay;
-   private final byte[] buffer;
+   private volatile Jitter jitter;
+   private volatile ShapingMetrics metrics;
+   // exactly one of both is used: the fixed ring buffer or the segmented one
+   private final DelayBuffer buffer;
+   private final SegmentedBuffer segments;
 
    private boolean blocking = true;
    private long currentTick;
 
-   private volatile int currentAvailableEnd = 0;
+   // the end position (ring) or write count (segmented) up to which data may
+   // be written out
+   private volatile long currentAvailableEnd = 0;
    private volatile int start = 0;
    private volatile int end = 0;
 
-   private SortedSet<Long> tickMarks = new TreeSet<Long>();
-   private Map<Long, Integer> tick_virtualEnd = new HashMap<>();
+   private final TickMarkQueue tickMarks = new TickMarkQueue();
 
    private SleepWakeup sleep = new SleepWakeup();
 
@@ -62,6 +75,29 @@ public class DelayedOutputStream extends OutputStream implements TickListener, D
     *           of reading from this stream).
     */
    public DelayedOutputStream(TickSource t, OutputStream real, long delay, int bufferSize) {
+      this(t, real, delay, bufferSize, false);
+   }
+
+   /**
+    * Constructs a new {@link DelayedOutputStream} with the given parameters,
+    * optionally keeping the buffer in direct (off-heap) memory (see
+    * {@link DelayedInputStream#DelayedInputStream(TickSource, InputStream, long, int, boolean)}
+    * ).
+    * 
+    * @param t
+    *           The tick source to use
+    * @param real
+    *           The underlying {@link OutputStream} to write data to
+    * @param delay
+    *           The delay (real ticks) to introduce to data
+    * @param bufferSize
+    *           The buffer size to use (see
+    *           {@link #DelayedOutputStream(TickSource, OutputStream, long, int)}
+    *           )
+    * @param direct
+    *           Whether to allocate the buffer in direct memory
+    */
+   public DelayedOutputStream(TickSource t, OutputStream real, long delay, int bufferSize, boolean direct) {
       this.real = real;
       this.t = t;
       this.delay = delay;
@@ -70,46 +106,134 @@ public class DelayedOutputStream extends OutputStream implements TickListener, D
       // pipe and not, as it could be, as a full one (= we need at
       // least one empty byte to work). real order to fulfill the buffer
       // size, we increase the buffer size by one
-      this.buffer = new byte[bufferSize + 1];
+      this.buffer = DelayBuffer.allocate(bufferSize + 1, direct);
+      this.segments = null;
+
+      t.addListener(this);
+   }
+
+   /**
+    * Constructs a new {@link DelayedOutputStream} with a segmented buffer. The
+    * buffer grows by segments taken from the given pool as data is written,
+    * up to the given maximum size, and returns segments to the pool as soon as
+    * their data has been written out. Other than the fixed buffer, the
+    * segmented buffer only takes as much memory as there is data in flight, so
+    * that its maximum size can be chosen generously to absorb bursts without
+    * stalling the writer (which would add delay to the data).
+    * 
+    * @param t
+    *           The tick source to use
+    * @param real
+    *           The underlying {@link OutputStream} to write data to
+    * @param delay
+    *           The delay (real ticks) to introduce to data
+    * @param pool
+    *           The pool to take segments from, which may be shared by several
+    *           streams
+    * @param maxBufferSize
+    *           Up to how many bytes the buffer may hold
+    */
+   public DelayedOutputStream(TickSource t, OutputStream real, long delay, SegmentPool pool, int maxBufferSize) {
+      this.real = real;
+      this.t = t;
+      this.delay = delay;
+
+      this.buffer = null;
+      this.segments = new SegmentedBuffer(pool, maxBufferSize);
 
       t.addListener(this);
    }
 
    @Override
    public void write(int b) throws IOException {
-      write(new byte[] { (byte) b }, 0, 1);
+      waitForFree(1);
+
+      if (segments != null) {
+         long previousEnd = segments.writeCount();
+         segments.put((byte) b);
+         handleWrittenData(previousEnd);
+         return;
+      }
+
+      int previousEnd = end;
+      buffer.put(end, (byte) b);
+      end = end + 1 >= buffer.length() ? 0 : end + 1;
+
+      handleWrittenData(previousEnd);
    }
 
    @Override
    public void write(byte[] b, int off, int len) throws IOException {
-      while (freeBytes() < len)
-         if (!blocking)
-            throw new WouldBlockException();
-         else
-            sleep.sleep();
-
-      if (end + len >= buffer.length) {
-         int chunk1 = buffer.length - end;
-         System.arraycopy(b, off, buffer, end, chunk1);
+      waitForFree(len);
+
+      if (segments != null) {
+         long previousEnd = segments.writeCount();
+         segments.put(b, off, len);
+         handleWrittenData(previousEnd);
+         return;
+      }
+
+      int previousEnd = end;
+      if (end + len >= buffer.length()) {
+         int chunk1 = buffer.length() - end;
+         buffer.put(end, b, off, chunk1);
          end = 0;
          off += chunk1;
          len -= chunk1;
       }
-      System.arraycopy(b, off, buffer, end, len);
-      int previousEnd = end;
+      buffer.put(end, b, off, len);
 
       end += len;
-      if (end >= buffer.length)
-         end -= buffer.length;
-      if (end != previousEnd && delay > 0) {
-         tick_virtualEnd.put(currentTick + delay, end);
-         tickMarks.add(currentTick + delay);
+      if (end >= buffer.length())
+         end -= buffer.length();
+
+      handleWrittenData(previousEnd);
+   }
+
+   private void waitForFree(int len) {
+      if (freeBytes() >= len)
+         return;
+      if (!blocking)
+         throw new WouldBlockException();
+
+      ShapingMetrics metrics = this.metrics;
+      long begin = metrics == null ? 0 : System.nanoTime();
+      while (freeBytes() < len)
+         sleep.sleep();
+      if (metrics != null)
+         metrics.addBlocked(System.nanoTime() - begin);
+   }
+
+   private void handleWrittenData(long previousEnd) {
+      // writes within the same tick replace each other's mark, so that
+      // byte-wise writing results in one mark per tick
+      long currentEnd = currentEnd();
+      Jitter jitter = this.jitter;
+      if (currentEnd != previousEnd && (delay > 0 || jitter != null)) {
+         updateCurrentTick();
+         long release = currentTick + delay;
+         release = jitter == null ? release : jitter.releaseTick(release);
+         tickMarks.add(release, currentEnd);
+         t.reschedule(release);
       }
 
       if (delay == 0)
          handleWritableData();
    }
 
+   /*
+    * the tick source doesn't tick an idle stream, so the last tick received
+    * may be outdated
+    */
+   private void updateCurrentTick() {
+      currentTick = Math.max(currentTick, t.getCurrentTick());
+   }
+
+   @Override
+   public long nextTick() {
+      return tickMarks.isEmpty() ? Long.MAX_VALUE : tickMarks.firstTick();
+   }
+
    @Override
    public void tick(long tick) {
       currentTick = tick;
@@ -117,32 +241,39 @@ public class DelayedOutputStream extends OutputStream implements TickListener, D
    }
 
    private void handleWritableData() {
-      while (!tickMarks.isEmpty() && tickMarks.first() <= currentTick) {
-         Long tick = tickMarks.first();
-         tickMarks.remove(tick);
-         currentAvailableEnd = tick_virtualEnd.remove(tick);
-      }
+      while (!tickMarks.isEmpty() && tickMarks.firstTick() <= currentTick)
+         currentAvailableEnd = tickMarks.poll();
 
       if (tickMarks.isEmpty())
-         currentAvailableEnd = end;
+         currentAvailableEnd = currentEnd();
 
-      int writable = bufferedBytes(currentAvailableEnd);
+      int writable = segments != null ? (int) (currentAvailableEnd - segments.readCount()) : bufferedBytes((int) currentAvailableEnd);
 
       if (writable == 0)
          return;
 
       try {
+         if (segments != null) {
+            segments.writeTo(real, writable);
+            count(writable);
+            sleep.wakeup();
+            return;
+         }
+
          int todo = writable;
-         if (start + todo > buffer.length) {
-            int chunk1 = buffer.length - start;
-            real.write(buffer, start, chunk1);
+         if (start + todo > buffer.length()) {
+            int chunk1 = buffer.length() - start;
+            buffer.writeTo(real, start, chunk1);
             todo -= chunk1;
             start = 0;
          }
-         real.write(buffer, start, todo);
+         buffer.writeTo(real, start, todo);
          start += todo;
-         if (start >= buffer.length)
-            start -= buffer.length;
+         if (start >= buffer.length())
+            start -= buffer.length();
+
+         count(writable);
+         sleep.wakeup();
       } catch (IOException ioEx) {
          throw new RuntimeException("delayed data transmission error", ioEx);
       }
@@ -158,7 +289,56 @@ public class DelayedOutputStream extends OutputStream implements TickListener, D
       // TODO better handling of closed streams
    }
 
+   @Override
+   public void setMetrics(ShapingMetrics metrics) {
+      if (metrics != null)
+         metrics.setBuffer(new Gauge());
+      this.metrics = metrics;
+   }
+
+   @Override
+   public ShapingMetrics getMetrics() {
+      return metrics;
+   }
+
+   private void count(int n) {
+      ShapingMetrics metrics = this.metrics;
+      if (metrics != null)
+         metrics.addBytes(n);
+   }
+
+   private class Gauge implements BufferGauge {
+      @Override
+      public int getBufferedBytes() {
+         return bufferedBytes();
+      }
+
+      @Override
+      public int getBufferCapacity() {
+         return getBufferSize();
+      }
+
+      @Override
+      public int getPendingReleases() {
+         return tickMarks.size();
+      }
+   }
+
+   int tickMarkCount() {
+      return tickMarks.size();
+   }
+
+   private long currentEnd() {
+      return segments != null ? segments.writeCount() : end;
+   }
+
+   int segmentCount() {
+      return segments == null ? 0 : segments.segmentCount();
+   }
+
    int bufferedBytes() {
+      if (segments != null)
+         return segments.used();
       return bufferedBytes(end);
    }
 
@@ -168,40 +348,37 @@ public class DelayedOutputStream extends OutputStream implements TickListener, D
       else if (start < effectiveEnd)
          return effectiveEnd - start;
       else
-         return effectiveEnd - start + buffer.length;
+         return effectiveEnd - start + buffer.length();
    }
 
    int freeBytes() {
-      return buffer.length - bufferedBytes() - 1;
+      if (segments != null)
+         return segments.free();
+      return buffer.length() - bufferedBytes() - 1;
    }
 
    @Override
    public void setDelay(long delay) {
       this.delay = delay;
 
-      long longestAcceptableDeadline = currentTick + delay;
-      List<Long> toDelete = new LinkedList<>();
-      for (Long tick : tickMarks)
-         if (tick > longestAcceptableDeadline)
-            toDelete.add(tick);
-
-      for (Long tick : toDelete) {
-         int previousVirtualEnd = tick_virtualEnd.get(tick);
-         tickMarks.remove(tick);
-         tick_virtualEnd.remove(tick);
-
-         // insert tick-end pair (longestAcceptableDeadline, previousVirtualEnd) if not
-         // already a pair present (tick, virtualEnd) where currentDeadline > previousVirtualEnd
+      updateCurrentTick();
+      tickMarks.collapse(currentTick + delay);
+      Jitter jitter = this.jitter;
+      if (jitter != null)
+         jitter.collapse(currentTick + delay);
+      handleWritableData();
+      t.reschedule(nextTick());
+   }
 
-         long currentVirtualEnd = -1;
-         if (tickMarks.contains(longestAcceptableDeadline))
-            currentVirtualEnd = tick_virtualEnd.get(longestAcceptableDeadline);
+   @Override
+   public void setJitter(DelayDistribution jitter, long seed) {
+      this.jitter = jitter == null ? null : new Jitter(jitter, seed);
+   }
 
-         tickMarks.add(longestAcceptableDeadline);
-         if (currentVirtualEnd <= previousVirtualEnd)
-            tick_virtualEnd.put(longestAcceptableDeadline, previousVirtualEnd);
-      }
-      handleWritableData();
+   @Override
+   public DelayDistribution getJitter() {
+      Jitter jitter = this.jitter;
+      return jitter == null ? null : jitter.getDistribution();
    }
 
    @Override
@@ -210,12 +387,24 @@ public class DelayedOutputStream extends OutputStream implements TickListener, D
    }
 
    /**
-    * Returns the buffer size, real bytes
+    * Returns the buffer size (for a segmented buffer, its maximum size), real
+    * bytes
     * 
     * @return the buffer size
     */
    public int getBufferSize() {
-      return buffer.length - 1; // see constructor on why -1
+      if (segments != null)
+         return segments.capacity();
+      return buffer.length() - 1; // see constructor on why -1
+   }
+
+   /**
+    * Returns whether the buffer is allocated in direct memory.
+    * 
+    * @return whether the buffer is direct
+    */
+   public boolean isDirect() {
+      return buffer != null && buffer.isDirect();
    }
 
    /**
@@ -0,0 +1,260 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.shapers.DelayShaper;
+import at.borkowski.spicej.ticks.BulkTickListener;
+import at.borkowski.spicej.ticks.TickSource;
+
+/**
+ * Provides a {@link ReadableByteChannel} instance with a delay in the
+ * transferred bytes.
+ *
+ * The channel uses a {@link TickSource} as a source of timing information and
+ * delays the reception of data by a certain number of ticks. On every tick,
+ * data available from the underlying channel is read into an intermediate
+ * (heap or direct) buffer, from which it is copied into the buffers passed to
+ * {@link #read(ByteBuffer)} once it is due.
+ *
+ * Since the underlying channel is read from the tick source's thread, it must
+ * not block: a {@link SelectableChannel} must be in non-blocking mode. Other
+ * channels (eg. file channels) are read as they are.
+ *
+ * When several ticks are passed at once (see {@link BulkTickListener}), the
+ * underlying channel is read only once.
+ *
+ * In blocking mode, {@link #read(ByteBuffer)} blocks until data is due. In
+ * non-blocking mode, it returns 0 instead, as usual for non-blocking channels.
+ */
+public class DelayedReadableChannel implements ReadableByteChannel, BulkTickListener, DelayShaper {
+
+   private final ReadableByteChannel real;
+   private final TickSource t;
+   private long delay;
+   private final ByteRing ring;
+
+   private boolean nonBlocking = false;
+   private long currentTick;
+
+   // the write count of the ring up to which data may be read
+   private volatile long currentAvailableEnd = 0;
+   private volatile boolean eof = false, closed = false;
+   private volatile IOException error;
+
+   // guards the tick marks, which are used by both the tick source's thread
+   // and setDelay
+   private final TickMarkQueue tickMarks = new TickMarkQueue();
+
+   private SleepWakeup sleepForTick = new SleepWakeup();
+
+   /**
+    * Constructs a new {@link DelayedReadableChannel} with the given parameters
+    * and a heap buffer.
+    *
+    * @param t
+    *           the tick source to use
+    * @param real
+    *           the underlying {@link ReadableByteChannel} to read data from
+    * @param delay
+    *           the delay (in ticks) to introduce to data
+    * @param bufferSize
+    *           the buffer size to use (see
+    *           {@link DelayedInputStream#DelayedInputStream(TickSource, java.io.InputStream, long, int)}
+    *           )
+    */
+   public DelayedReadableChannel(TickSource t, ReadableByteChannel real, long delay, int bufferSize) {
+      this(t, real, delay, bufferSize, false);
+   }
+
+   /**
+    * Constructs a new {@link DelayedReadableChannel} with the given parameters.
+    *
+    * @param t
+    *           the tick source to use
+    * @param real
+    *           the underlying {@link ReadableByteChannel} to read data from
+    * @param delay
+    *           the delay (in ticks) to introduce to data
+    * @param bufferSize
+    *           the buffer size to use (see
+    *           {@link DelayedInputStream#DelayedInputStream(TickSource, java.io.InputStream, long, int)}
+    *           )
+    * @param direct
+    *           whether to use a direct buffer, which avoids an additional copy
+    *           if the underlying channel is a native channel (eg. a socket)
+    */
+   public DelayedReadableChannel(TickSource t, ReadableByteChannel real, long delay, int bufferSize, boolean direct) {
+      if (real instanceof SelectableChannel && ((SelectableChannel) real).isBlocking())
+         throw new IllegalArgumentException("underlying channel must be in non-blocking mode");
+
+      this.real = real;
+      this.t = t;
+      this.delay = delay;
+      this.ring = new ByteRing(bufferSize, direct);
+      this.currentTick = Math.max(0, t.getCurrentTick());
+
+      t.addListener(this);
+   }
+
+   @Override
+   public int read(ByteBuffer dst) throws IOException {
+      while (true) {
+         if (closed)
+            throw new ClosedChannelException();
+         if (error != null)
+            throw error;
+
+         if (!dst.hasRemaining())
+            return 0;
+
+         int readable = (int) (currentAvailableEnd - ring.readCount());
+         if (readable > 0) {
+            int len = Math.min(readable, dst.remaining());
+            ring.get(dst, len);
+            return len;
+         }
+
+         if (eof && ring.used() == 0)
+            return -1;
+         else if (nonBlocking)
+            return 0;
+
+         sleepForTick.sleep();
+      }
+   }
+
+   @Override
+   public void tick(long tick) {
+      synchronized (tickMarks) {
+         currentTick = tick;
+         handleNewData();
+      }
+   }
+
+   /**
+    * Handles several ticks at once: the underlying channel is read once, as
+    * of the first of them, and data due until the last of them is released.
+    */
+   @Override
+   public void ticks(long lastTick, long count) {
+      synchronized (tickMarks) {
+         currentTick = lastTick - count + 1;
+         handleNewData();
+         currentTick = lastTick;
+         handleNewTickMarks();
+         sleepForTick.wakeup();
+      }
+   }
+
+   private void handleNewData() {
+      long previousEnd = ring.writeCount();
+
+      if (!eof && !closed && error == null && ring.free() > 0) {
+         try {
+            if (ring.fill(real, ring.free()) < 0)
+               eof = true;
+         } catch (IOException e) {
+            error = e;
+         }
+      }
+
+      long end = ring.writeCount();
+      if (end != previousEnd && delay > 0) {
+         // -1 is necessary because we read data one tick later than it actually arrived
+         // (see DelayedInputStream)
+         tickMarks.add(currentTick + delay - 1, end);
+      }
+
+      handleNewTickMarks();
+      sleepForTick.wakeup();
+   }
+
+   private void handleNewTickMarks() {
+      while (!tickMarks.isEmpty() && tickMarks.firstTick() <= currentTick)
+         currentAvailableEnd = tickMarks.poll();
+
+      if (tickMarks.isEmpty())
+         currentAvailableEnd = ring.writeCount();
+   }
+
+   @Override
+   public boolean isOpen() {
+      return !closed;
+   }
+
+   @Override
+   public void close() throws IOException {
+      closed = true;
+      t.removeListener(this);
+      real.close();
+      sleepForTick.wakeup();
+   }
+
+   /**
+    * Sets the non-blocking flag.
+    *
+    * @param nonBlocking
+    *           whether the channel should be in non-blocking mode (see
+    *           {@link DelayedReadableChannel})
+    */
+   public void setNonBlocking(boolean nonBlocking) {
+      this.nonBlocking = nonBlocking;
+   }
+
+   @Override
+   public void setDelay(long delay) {
+      synchronized (tickMarks) {
+         this.delay = delay;
+
+         tickMarks.collapse(currentTick + delay);
+         handleNewTickMarks();
+      }
+   }
+
+   @Override
+   public long getDelay() {
+      return delay;
+   }
+
+   /**
+    * Returns the buffer size, in bytes
+    *
+    * @return the buffer size
+    */
+   public int getBufferSize() {
+      return ring.capacity();
+   }
+
+   /**
+    * Returns whether the intermediate buffer is a direct buffer.
+    *
+    * @return whether the buffer is direct
+    */
+   public boolean isDirect() {
+      return ring.isDirect();
+   }
+
+   /**
+    * Returns the underlying {@link ReadableByteChannel}.
+    *
+    * @return the underlying channel
+    */
+   public ReadableByteChannel getBaseChannel() {
+      return real;
+   }
+
+   /**
+    * Returns the {@link TickSource} this channel uses.
+    *
+    * @return the used tick source
+    */
+   public TickSource getTickSource() {
+      return t;
+   }
+
+}
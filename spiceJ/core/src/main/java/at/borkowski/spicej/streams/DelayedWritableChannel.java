@@ -0,0 +1,266 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.shapers.DelayShaper;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
+import at.borkowski.spicej.ticks.TickSource;
+
+/**
+ * Provides a {@link WritableByteChannel} instance with a delay in the
+ * transferred bytes.
+ *
+ * The channel uses a {@link TickSource} as a source of timing information and
+ * delays the sending of data by a certain number of ticks. Written data is
+ * copied into an intermediate (heap or direct) buffer and written to the
+ * underlying channel from the tick source's thread once it is due. If the
+ * underlying channel is in non-blocking mode and does not accept all due data,
+ * the rest is retried on the next tick. While no data is pending, the channel
+ * doesn't need any ticks (see {@link DeadlineTickListener}).
+ *
+ * In blocking mode, {@link #write(ByteBuffer)} blocks until all remaining bytes
+ * of the buffer have been buffered. In non-blocking mode, it buffers only as
+ * many bytes as there is space for, possibly none.
+ */
+public class DelayedWritableChannel implements WritableByteChannel, DeadlineTickListener, DelayShaper {
+
+   private final WritableByteChannel real;
+   private final TickSource t;
+   private long delay;
+   private final ByteRing ring;
+
+   private boolean nonBlocking = false;
+   private long currentTick;
+
+   // the write count of the ring up to which data may be written out
+   private long currentAvailableEnd = 0;
+   private volatile boolean closed = false;
+   private volatile IOException error;
+
+   // guards the tick marks and the reading side of the ring, which are used by
+   // both the writing thread (if delay is 0) and the tick source's thread
+   private final TickMarkQueue tickMarks = new TickMarkQueue();
+
+   private SleepWakeup sleep = new SleepWakeup();
+
+   /**
+    * Constructs a new {@link DelayedWritableChannel} with the given parameters
+    * and a heap buffer.
+    *
+    * @param t
+    *           the tick source to use
+    * @param real
+    *           the underlying {@link WritableByteChannel} to write data to
+    * @param delay
+    *           the delay (in ticks) to introduce to data
+    * @param bufferSize
+    *           the buffer size to use (see
+    *           {@link DelayedOutputStream#DelayedOutputStream(TickSource, java.io.OutputStream, long, int)}
+    *           )
+    */
+   public DelayedWritableChannel(TickSource t, WritableByteChannel real, long delay, int bufferSize) {
+      this(t, real, delay, bufferSize, false);
+   }
+
+   /**
+    * Constructs a new {@link DelayedWritableChannel} with the given parameters.
+    *
+    * @param t
+    *           the tick source to use
+    * @param real
+    *           the underlying {@link WritableByteChannel} to write data to
+    * @param delay
+    *           the delay (in ticks) to introduce to data
+    * @param bufferSize
+    *           the buffer size to use (see
+    *           {@link DelayedOutputStream#DelayedOutputStream(TickSource, java.io.OutputStream, long, int)}
+    *           )
+    * @param direct
+    *           whether to use a direct buffer, which avoids an additional copy
+    *           if the underlying channel is a native channel (eg. a socket)
+    */
+   public DelayedWritableChannel(TickSource t, WritableByteChannel real, long delay, int bufferSize, boolean direct) {
+      this.real = real;
+      this.t = t;
+      this.delay = delay;
+      this.ring = new ByteRing(bufferSize, direct);
+      this.currentTick = Math.max(0, t.getCurrentTick());
+
+      t.addListener(this);
+   }
+
+   @Override
+   public int write(ByteBuffer src) throws IOException {
+      int done = 0;
+      while (src.hasRemaining()) {
+         if (closed)
+            throw new ClosedChannelException();
+         if (error != null)
+            throw error;
+
+         int free = ring.free();
+         if (free == 0) {
+            if (nonBlocking)
+               break;
+            sleep.sleep();
+            continue;
+         }
+
+         int len = Math.min(free, src.remaining());
+         ring.put(src, len);
+         done += len;
+
+         handleWrittenData();
+      }
+      return done;
+   }
+
+   private void handleWrittenData() {
+      synchronized (tickMarks) {
+         if (delay > 0) {
+            updateCurrentTick();
+            tickMarks.add(currentTick + delay, ring.writeCount());
+         } else {
+            handleWritableData();
+         }
+      }
+      t.reschedule(nextTick());
+   }
+
+   /*
+    * the tick source doesn't tick an idle channel, so the last tick received
+    * may be outdated
+    */
+   private void updateCurrentTick() {
+      currentTick = Math.max(currentTick, t.getCurrentTick());
+   }
+
+   @Override
+   public void tick(long tick) {
+      synchronized (tickMarks) {
+         currentTick = tick;
+         handleWritableData();
+      }
+   }
+
+   /**
+    * Returns the tick at which the next data is due, or the next tick if data
+    * has to be retried.
+    */
+   @Override
+   public long nextTick() {
+      synchronized (tickMarks) {
+         if (!tickMarks.isEmpty())
+            return tickMarks.firstTick();
+         if (currentAvailableEnd != ring.readCount() && !closed && error == null)
+            return currentTick + 1;
+         return Long.MAX_VALUE;
+      }
+   }
+
+   private void handleWritableData() {
+      while (!tickMarks.isEmpty() && tickMarks.firstTick() <= currentTick)
+         currentAvailableEnd = tickMarks.poll();
+
+      if (tickMarks.isEmpty())
+         currentAvailableEnd = ring.writeCount();
+
+      int writable = (int) (currentAvailableEnd - ring.readCount());
+      if (writable == 0 || closed || error != null)
+         return;
+
+      try {
+         if (ring.drain(real, writable) > 0)
+            sleep.wakeup();
+      } catch (IOException e) {
+         error = e;
+         sleep.wakeup();
+      }
+   }
+
+   @Override
+   public boolean isOpen() {
+      return !closed;
+   }
+
+   /**
+    * Closes this channel and the underlying channel. Data which has not been
+    * written out yet is discarded.
+    */
+   @Override
+   public void close() throws IOException {
+      closed = true;
+      t.removeListener(this);
+      real.close();
+      sleep.wakeup();
+   }
+
+   /**
+    * Sets the non-blocking flag.
+    *
+    * @param nonBlocking
+    *           whether the channel should be in non-blocking mode (see
+    *           {@link DelayedWritableChannel})
+    */
+   public void setNonBlocking(boolean nonBlocking) {
+      this.nonBlocking = nonBlocking;
+   }
+
+   @Override
+   public void setDelay(long delay) {
+      synchronized (tickMarks) {
+         this.delay = delay;
+
+         updateCurrentTick();
+         tickMarks.collapse(currentTick + delay);
+         handleWritableData();
+      }
+      t.reschedule(nextTick());
+   }
+
+   @Override
+   public long getDelay() {
+      return delay;
+   }
+
+   /**
+    * Returns the buffer size, in bytes
+    *
+    * @return the buffer size
+    */
+   public int getBufferSize() {
+      return ring.capacity();
+   }
+
+   /**
+    * Returns whether the intermediate buffer is a direct buffer.
+    *
+    * @return whether the buffer is direct
+    */
+   public boolean isDirect() {
+      return ring.isDirect();
+   }
+
+   /**
+    * Returns the underlying {@link WritableByteChannel}.
+    *
+    * @return the underlying channel
+    */
+   public WritableByteChannel getBaseChannel() {
+      return real;
+   }
+
+   /**
+    * Returns the {@link TickSource} this channel uses.
+    *
+    * @return the used tick source
+    */
+   public TickSource getTickSource() {
+      return t;
+   }
+
+}
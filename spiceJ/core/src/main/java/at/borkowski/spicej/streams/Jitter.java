@@ -0,0 +1,55 @@
+package at.borkowski.spicej.streams;
+
+import java.util.SplittableRandom;
+
+import at.borkowski.spicej.shapers.DelayDistribution;
+
+/**
+ * Assigns release ticks to chunks of a delayed stream, adding a random delay
+ * drawn from a {@link DelayDistribution} to each chunk. Release ticks never
+ * decrease, so that chunks are not reordered (see
+ * {@link at.borkowski.spicej.shapers.JitterShaper}).
+ * 
+ * An instance is used by one thread at a time.
+ */
+class Jitter {
+   private final DelayDistribution distribution;
+   private final SplittableRandom random;
+
+   private long lastRelease = Long.MIN_VALUE;
+
+   Jitter(DelayDistribution distribution, long seed) {
+      this.distribution = distribution;
+      this.random = new SplittableRandom(seed);
+   }
+
+   DelayDistribution getDistribution() {
+      return distribution;
+   }
+
+   /**
+    * Returns the release tick of a chunk.
+    * 
+    * @param earliest
+    *           the tick the chunk would be released at without jitter
+    * @return the release tick
+    */
+   long releaseTick(long earliest) {
+      long tick = earliest + distribution.sample(random);
+      if (tick < lastRelease)
+         tick = lastRelease;
+      return lastRelease = tick;
+   }
+
+   /**
+    * Lets subsequent chunks be released as early as the given tick again,
+    * after the release points have been moved there (see
+    * {@link TickMarkQueue#collapse(long)}).
+    * 
+    * @param deadline
+    *           the latest release tick
+    */
+   void collapse(long deadline) {
+      lastRelease = Math.min(lastRelease, deadline);
+   }
+}
@@ -0,0 +1,295 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+import at.borkowski.spicej.shapers.ImpairmentShaper;
+import at.borkowski.spicej.shapers.LossModel;
+import at.borkowski.spicej.ticks.BulkTickListener;
+import at.borkowski.spicej.ticks.TickSource;
+
+/**
+ * Impairs framed messages (eg. datagrams) on their way to a
+ * {@link MessageSink} by losing, duplicating, reordering and corrupting them.
+ *
+ * All impairments are drawn as gaps between events: the number of messages
+ * until the next loss, duplication or reordering, and the number of bits until
+ * the next bit error. The random number generator is therefore used once per
+ * event instead of once per message (or bit), which keeps high message rates
+ * with low impairment probabilities cheap. The generator is seeded, so that
+ * the impairments are reproducible.
+ *
+ * A message held back for reordering is delivered after the next message, or
+ * with the next tick of the given {@link TickSource} if no message follows in
+ * the meantime.
+ */
+public class MessageImpairer implements ImpairmentShaper, BulkTickListener {
+   private final MessageSink sink;
+   private final TickSource t;
+   private final SplittableRandom random;
+
+   private LossModel lossModel = LossModel.none();
+   private LossModel.Process loss;
+   private double duplicationProbability, reorderProbability, bitErrorRate;
+
+   // the gaps until the next event, counted down by every message (or bit)
+   private long untilLoss, untilDuplication, untilReordering, bitsUntilError;
+
+   private byte[] corruptionBuffer = new byte[0];
+   private byte[] held = new byte[0];
+   private int heldLength;
+   private boolean holding;
+   private long heldTick;
+   private long currentTick;
+
+   private long received, lost, duplicated, reordered, corrupted;
+
+   /**
+    * Creates a message impairer, which initially does not impair messages.
+    *
+    * @param sink
+    *           the receiver of impaired messages
+    * @param t
+    *           the tick source releasing held back messages
+    * @param seed
+    *           the seed of the random number generator
+    */
+   public MessageImpairer(MessageSink sink, TickSource t, long seed) {
+      this.sink = sink;
+      this.t = t;
+      this.random = new SplittableRandom(seed);
+
+      setLossModel(lossModel);
+      setDuplicationProbability(0);
+      setReorderProbability(0);
+      setBitErrorRate(0);
+
+      t.addListener(this);
+   }
+
+   /**
+    * Passes a message on, impairing it according to the current settings. The
+    * message's bytes are not modified.
+    *
+    * @param message
+    *           the array containing the message
+    * @param offset
+    *           the offset of the message in the array
+    * @param length
+    *           the length of the message
+    * @throws IOException
+    *            if the sink throws an exception
+    */
+   public synchronized void send(byte[] message, int offset, int length) throws IOException {
+      received++;
+
+      if (untilLoss-- == 0) {
+         untilLoss = loss.nextGap();
+         lost++;
+         return;
+      }
+
+      long bits = 8L * length;
+      if (bitsUntilError < bits) {
+         message = corrupt(message, offset, length);
+         offset = 0;
+      } else {
+         bitsUntilError -= bits;
+      }
+
+      boolean duplicate = false;
+      if (untilDuplication-- == 0) {
+         untilDuplication = LossModel.geometric(random, duplicationProbability);
+         duplicate = true;
+         duplicated++;
+      }
+
+      if (untilReordering-- == 0) {
+         untilReordering = LossModel.geometric(random, reorderProbability);
+         if (!holding) {
+            hold(message, offset, length);
+            if (duplicate)
+               sink.send(message, offset, length);
+            return;
+         }
+      }
+
+      sink.send(message, offset, length);
+      if (duplicate)
+         sink.send(message, offset, length);
+      releaseHeld();
+   }
+
+   private byte[] corrupt(byte[] message, int offset, int length) {
+      if (corruptionBuffer.length < length)
+         corruptionBuffer = new byte[length];
+      System.arraycopy(message, offset, corruptionBuffer, 0, length);
+
+      long bits = 8L * length;
+      long position = bitsUntilError;
+      while (position < bits) {
+         corruptionBuffer[(int) (position >>> 3)] ^= 1 << (position & 7);
+         long gap = LossModel.geometric(random, bitErrorRate);
+         position = gap >= Long.MAX_VALUE - position ? Long.MAX_VALUE : position + gap + 1;
+      }
+      bitsUntilError = position == Long.MAX_VALUE ? position : position - bits;
+
+      corrupted++;
+      return corruptionBuffer;
+   }
+
+   private void hold(byte[] message, int offset, int length) {
+      if (held.length < length)
+         held = new byte[length];
+      System.arraycopy(message, offset, held, 0, length);
+      heldLength = length;
+      heldTick = currentTick;
+      holding = true;
+      reordered++;
+   }
+
+   private void releaseHeld() throws IOException {
+      if (!holding)
+         return;
+      holding = false;
+      sink.send(held, 0, heldLength);
+   }
+
+   @Override
+   public synchronized void tick(long tick) {
+      currentTick = tick;
+      if (holding && tick > heldTick) {
+         try {
+            releaseHeld();
+         } catch (IOException ioEx) {
+            throw new RuntimeException("impaired message transmission error", ioEx);
+         }
+      }
+   }
+
+   /**
+    * Handles several ticks at once, which releases a held back message like
+    * the first of them would.
+    */
+   @Override
+   public synchronized void ticks(long lastTick, long count) {
+      tick(lastTick);
+   }
+
+   /**
+    * Detaches this impairer from its tick source. A message still held back
+    * is delivered.
+    *
+    * @throws IOException
+    *            if the sink throws an exception
+    */
+   public synchronized void close() throws IOException {
+      t.removeListener(this);
+      releaseHeld();
+   }
+
+   @Override
+   public synchronized void setLossModel(LossModel lossModel) {
+      this.lossModel = lossModel;
+      this.loss = lossModel.start(random);
+      this.untilLoss = loss.nextGap();
+   }
+
+   @Override
+   public synchronized LossModel getLossModel() {
+      return lossModel;
+   }
+
+   @Override
+   public synchronized void setDuplicationProbability(double probability) {
+      this.duplicationProbability = checkProbability(probability);
+      this.untilDuplication = LossModel.geometric(random, probability);
+   }
+
+   @Override
+   public synchronized double getDuplicationProbability() {
+      return duplicationProbability;
+   }
+
+   @Override
+   public synchronized void setReorderProbability(double probability) {
+      this.reorderProbability = checkProbability(probability);
+      this.untilReordering = LossModel.geometric(random, probability);
+   }
+
+   @Override
+   public synchronized double getReorderProbability() {
+      return reorderProbability;
+   }
+
+   @Override
+   public synchronized void setBitErrorRate(double bitErrorRate) {
+      this.bitErrorRate = checkProbability(bitErrorRate);
+      this.bitsUntilError = LossModel.geometric(random, bitErrorRate);
+   }
+
+   @Override
+   public synchronized double getBitErrorRate() {
+      return bitErrorRate;
+   }
+
+   private static double checkProbability(double probability) {
+      if (!(probability >= 0 && probability <= 1))
+         throw new IllegalArgumentException("probability must be between 0 and 1");
+      return probability;
+   }
+
+   /**
+    * Returns the number of messages passed to {@link #send(byte[], int, int)}.
+    *
+    * @return the number of messages received
+    */
+   public synchronized long getReceived() {
+      return received;
+   }
+
+   /**
+    * Returns the number of messages lost.
+    *
+    * @return the number of messages lost
+    */
+   public synchronized long getLost() {
+      return lost;
+   }
+
+   /**
+    * Returns the number of messages delivered twice.
+    *
+    * @return the number of messages duplicated
+    */
+   public synchronized long getDuplicated() {
+      return duplicated;
+   }
+
+   /**
+    * Returns the number of messages held back for reordering.
+    *
+    * @return the number of messages reordered
+    */
+   public synchronized long getReordered() {
+      return reordered;
+   }
+
+   /**
+    * Returns the number of messages with at least one bit error.
+    *
+    * @return the number of messages corrupted
+    */
+   public synchronized long getCorrupted() {
+      return corrupted;
+   }
+
+   /**
+    * Returns the {@link TickSource} this impairer uses.
+    *
+    * @return the used tick source
+    */
+   public TickSource getTickSource() {
+      return t;
+   }
+}
@@ -0,0 +1,24 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+
+/**
+ * A receiver of framed messages (eg. datagrams).
+ */
+public interface MessageSink {
+
+   /**
+    * Receives a message. The message's bytes may only be used until this
+    * method returns.
+    * 
+    * @param message
+    *           the array containing the message
+    * @param offset
+    *           the offset of the message in the array
+    * @param length
+    *           the length of the message
+    * @throws IOException
+    *            if the message cannot be passed on
+    */
+   void send(byte[] message, int offset, int length) throws IOException;
+}
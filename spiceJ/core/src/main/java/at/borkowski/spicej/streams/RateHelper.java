@@ -1,28 +1,56 @@
 package at.borkowski.spicej.streams;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 import at.borkowski.spicej.WouldBlockException;
 import at.borkowski.spicej.impl.SleepWakeup;
-import at.borkowski.spicej.ticks.TickListener;
+import at.borkowski.spicej.metrics.ShapingMetrics;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
 import at.borkowski.spicej.ticks.TickSource;
 
 /**
  * A helper class for managing a constant rate of something. It uses a concept
  * of "things" to denote the item to have a constant rate, this is in our
  * context always a placeholder for "byte".
+ * 
+ * The helper works as a token bucket which is refilled by the rate of things
+ * per tick (after prescaling). By default, the bucket's depth equals the rate,
+ * ie. things not used within a tick are lost. If a burst size higher than the
+ * rate is set (see {@link #setBurst(int)}), unused things accumulate up to the
+ * burst size.
+ * 
+ * If metrics are set (see {@link #setMetrics(ShapingMetrics)}), the helper
+ * reports the things taken and the time spent sleeping.
+ * 
+ * The helper only needs ticks while the bucket is not full (see
+ * {@link DeadlineTickListener}), so an idle helper doesn't cost anything per
+ * tick. Refills missed in the meantime are applied with the next tick.
+ * 
+ * If a shared limiter is set (see {@link #setSharedLimiter(SharedRateLimiter)}
+ * ), things are only taken if both the helper and its share of the limiter
+ * allow them.
  */
 class RateHelper {
    private final TickSource tickSource;
    private int thingsPerTick;
    private int prescale;
+   private int burst = 0;
 
    private final Listener listener;
 
    private AtomicInteger spent = new AtomicInteger();
    private SleepWakeup sleep = new SleepWakeup();
+   private final BooleanSupplier refilled = new BooleanSupplier() {
+      @Override
+      public boolean getAsBoolean() {
+         return spent.get() < getCapacity();
+      }
+   };
    private int timewiseAvailable;
    private boolean nonBlockng = false;
+   private volatile ShapingMetrics metrics;
+   private volatile SharedRateLimiter.Share share;
 
    private IdleNotify test__IdleNotify;
 
@@ -44,7 +72,7 @@ class RateHelper {
 
       timewiseAvailable = thingsRate;
 
-      tickSource.addListener(listener = new Listener());
+      tickSource.addListener(listener = new Listener(tickSource.getCurrentTick()));
    }
 
    /**
@@ -52,6 +80,32 @@ class RateHelper {
     */
    public void close() {
       tickSource.removeListener(listener);
+      setSharedLimiter(null);
+   }
+
+   /**
+    * Sets a limiter whose rate this helper shares with others, in addition to
+    * its own rate.
+    * 
+    * @param limiter
+    *           the limiter, or <code>null</code> for not sharing a rate
+    */
+   public void setSharedLimiter(SharedRateLimiter limiter) {
+      SharedRateLimiter.Share previous = share;
+      share = limiter == null ? null : limiter.attach();
+      if (previous != null)
+         previous.detach();
+   }
+
+   /**
+    * Returns the limiter set (see {@link #setSharedLimiter(SharedRateLimiter)}
+    * ).
+    * 
+    * @return the limiter, or <code>null</code>
+    */
+   public SharedRateLimiter getSharedLimiter() {
+      SharedRateLimiter.Share share = this.share;
+      return share == null ? null : share.getLimiter();
    }
 
    /**
@@ -61,7 +115,8 @@ class RateHelper {
     */
    public void setThingsPerTick(int thingsPerTick) {
       this.thingsPerTick = thingsPerTick;
-      timewiseAvailable = (int) (thingsPerTick - spent.get());
+      timewiseAvailable = (int) (getCapacity() - spent.get());
+      tickSource.reschedule(listener.nextRefill());
    }
 
    /**
@@ -73,6 +128,40 @@ class RateHelper {
       return thingsPerTick;
    }
 
+   /**
+    * Sets the burst size, ie. the depth of the token bucket. Things not used
+    * within a tick accumulate up to this number. A burst size not higher than
+    * the rate of things per tick (eg. 0) means that things not used within a
+    * tick are lost.
+    * 
+    * @param burst
+    *           the new burst size
+    */
+   public void setBurst(int burst) {
+      this.burst = burst;
+      timewiseAvailable = (int) (getCapacity() - spent.get());
+      tickSource.reschedule(listener.nextRefill());
+   }
+
+   /**
+    * Returns the burst size (see {@link #setBurst(int)}).
+    * 
+    * @return the burst size
+    */
+   public int getBurst() {
+      return burst;
+   }
+
+   /**
+    * Returns the capacity of the token bucket, ie. the maximum number of things
+    * which can be taken at once.
+    * 
+    * @return the capacity
+    */
+   public int getCapacity() {
+      return Math.max(thingsPerTick, burst);
+   }
+
    /**
     * Takes one thing (eg. byte). This method blocks until one thing can be used
     * according to the current rate and prescaling settings.
@@ -80,11 +169,16 @@ class RateHelper {
    public void takeOne() {
       while (true) {
          int stored = spent.get();
-         if (stored >= thingsPerTick)
-            sleep();
-         else if (spent.compareAndSet(stored, stored + 1))
-            break;
+         if (stored >= getCapacity())
+            sleep(null);
+         else if (spent.compareAndSet(stored, stored + 1)) {
+            spent(stored);
+            if (takeShared(1) > 0)
+               break;
+            sleep(share);
+         }
       }
+      count(1);
    }
 
    /**
@@ -101,16 +195,68 @@ class RateHelper {
       int lenToTake;
       while (true) {
          int stored = spent.get();
-         lenToTake = Math.min(n, thingsPerTick - stored);
-         if (stored >= thingsPerTick)
-            sleep();
-         else if (spent.compareAndSet(stored, stored + lenToTake))
+         int capacity = getCapacity();
+         lenToTake = Math.min(n, capacity - stored);
+         if (stored >= capacity)
+            sleep(null);
+         else if (spent.compareAndSet(stored, stored + lenToTake)) {
+            spent(stored);
+            if ((lenToTake = takeShared(lenToTake)) > 0)
+               break;
+            sleep(share);
+         }
+      }
+      timewiseAvailable -= lenToTake;
+      count(lenToTake);
+      return lenToTake;
+   }
+
+   /**
+    * Takes several things (eg. bytes) if possible. Other than
+    * {@link #take(int)}, this method never blocks (nor throws a
+    * {@link WouldBlockException}), but returns 0 if no thing can be used
+    * according to the current rate and prescaling settings.
+    *
+    * @param n
+    *           up to how many things to take
+    * @return the number of things that have been taken, possibly 0
+    */
+   public int tryTake(int n) {
+      int lenToTake;
+      while (true) {
+         int stored = spent.get();
+         lenToTake = Math.min(n, getCapacity() - stored);
+         if (lenToTake <= 0)
+            return 0;
+         else if (spent.compareAndSet(stored, stored + lenToTake)) {
+            spent(stored);
+            if ((lenToTake = takeShared(lenToTake)) == 0)
+               return 0;
             break;
+         }
       }
       timewiseAvailable -= lenToTake;
+      count(lenToTake);
       return lenToTake;
    }
 
+   /*
+    * takes the things taken from the bucket from the shared limiter too,
+    * returning those the limiter doesn't allow to the bucket
+    */
+   private int takeShared(int n) {
+      SharedRateLimiter.Share share = this.share;
+      if (share == null)
+         return n;
+
+      int got = share.tryTake(n);
+      if (got < n) {
+         spent.addAndGet(got - n);
+         wakeup(n - got);
+      }
+      return got;
+   }
+
    /**
     * Returns several things (eg. bytes) as unused. This method is useful in
     * cases where {@link #take(int)} has been called, but not all of the number
@@ -122,20 +268,73 @@ class RateHelper {
    public void giveBack(int n) {
       spent.addAndGet(-n);
       timewiseAvailable += n;
-      wakeup();
+      SharedRateLimiter.Share share = this.share;
+      if (share != null)
+         share.giveBack(n);
+      count(-n);
+      wakeup(n);
+   }
+
+   /*
+    * a bucket which has been full until now needs to be refilled, so the tick
+    * source has to know that this helper isn't idle anymore
+    */
+   private void spent(int previouslySpent) {
+      if (previouslySpent == 0) {
+         listener.resume(tickSource.getCurrentTick());
+         tickSource.reschedule(listener.nextRefill());
+      }
+   }
+
+   private void count(int n) {
+      ShapingMetrics metrics = this.metrics;
+      if (metrics != null)
+         metrics.addBytes(n);
    }
 
-   private void wakeup() {
-      sleep.wakeup();
+   private void wakeup(int max) {
+      // every waiter takes at least one thing, so waking up more waiters than
+      // there are things available would only let them go back to sleep
+      sleep.wakeup(max);
    }
 
-   private void sleep() {
+   /*
+    * waits for the bucket to be refilled, or for the share of the shared
+    * limiter if given
+    */
+   private void sleep(SharedRateLimiter.Share share) {
       if (test__IdleNotify != null && test__IdleNotify.idle())
          return;
       if (nonBlockng)
          throw new WouldBlockException();
 
-      sleep.sleep();
+      ShapingMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+      if (share == null)
+         sleep.sleep(refilled);
+      else
+         share.await();
+      if (metrics != null)
+         metrics.addBlocked(System.nanoTime() - start);
+   }
+
+   /**
+    * Sets the metrics to report taken things and sleeping time to.
+    * 
+    * @param metrics
+    *           the metrics, or <code>null</code> for not reporting
+    */
+   public void setMetrics(ShapingMetrics metrics) {
+      this.metrics = metrics;
+   }
+
+   /**
+    * Returns the metrics reported to (see {@link #setMetrics(ShapingMetrics)}).
+    * 
+    * @return the metrics, or <code>null</code>
+    */
+   public ShapingMetrics getMetrics() {
+      return metrics;
    }
 
    /**
@@ -146,21 +345,68 @@ class RateHelper {
       this.test__IdleNotify = target;
    }
 
-   private class Listener implements TickListener {
+   private class Listener implements DeadlineTickListener {
+      // the last tick received, or the tick at which the bucket has stopped
+      // being full
+      private volatile long lastTick;
+
+      Listener(long currentTick) {
+         lastTick = currentTick;
+      }
+
       @Override
       public void tick(long tick) {
-         if (prescale <= 1 || tick % prescale == 0) {
-            int value;
-            while (true) {
-               int stored = spent.get();
-               if (stored > thingsPerTick && spent.compareAndSet(stored, value = (stored - thingsPerTick)))
-                  break;
-               else if (spent.compareAndSet(stored, (value = 0)))
-                  break;
-            }
-            timewiseAvailable = (int) (thingsPerTick - value);
-            wakeup();
+         long refills = refills(tick);
+         lastTick = tick;
+         if (refills == 0)
+            return;
+
+         long refilled = refills * thingsPerTick;
+         int value;
+         while (true) {
+            int stored = spent.get();
+            if (stored > refilled && spent.compareAndSet(stored, value = (int) (stored - refilled)))
+               break;
+            else if (spent.compareAndSet(stored, (value = 0)))
+               break;
          }
+         timewiseAvailable = (int) (getCapacity() - value);
+         wakeup(timewiseAvailable);
+      }
+
+      /*
+       * the number of refill ticks since the last tick, capped so that
+       * multiplying it with the rate doesn't overflow
+       */
+      private long refills(long tick) {
+         long refills;
+         if (prescale <= 1)
+            refills = tick - lastTick;
+         else
+            refills = Math.floorDiv(tick, prescale) - Math.floorDiv(lastTick, prescale);
+         return Math.min(refills, Integer.MAX_VALUE);
+      }
+
+      /*
+       * refills while the bucket has been full haven't had any effect, so they
+       * must not be applied once it isn't full anymore
+       */
+      void resume(long tick) {
+         lastTick = tick;
+      }
+
+      @Override
+      public long nextTick() {
+         if (spent.get() == 0 && !sleep.hasWaiters())
+            return Long.MAX_VALUE;
+         return nextRefill();
+      }
+
+      long nextRefill() {
+         long last = lastTick;
+         if (prescale <= 1)
+            return last + 1;
+         return (Math.floorDiv(last, prescale) + 1) * prescale;
       }
    }
 
@@ -172,7 +418,25 @@ class RateHelper {
     * @return
     */
    public int getTimewiseAvailable() {
-      return Math.max(0, timewiseAvailable);
+      SharedRateLimiter.Share share = this.share;
+      if (share == null)
+         return Math.max(0, timewiseAvailable);
+      return Math.max(0, Math.min(timewiseAvailable, share.getAvailable()));
+   }
+
+   /**
+    * Returns the tick from which on things may be taken again: the current tick
+    * if things may be taken now, or the tick of the next refill otherwise (of
+    * the bucket or of the share of the shared limiter, whichever is later).
+    * 
+    * @return the tick, see {@link TickSource#getCurrentTick()}
+    */
+   public long nextAvailableTick() {
+      long next = refilled.getAsBoolean() ? tickSource.getCurrentTick() : listener.nextRefill();
+      SharedRateLimiter.Share share = this.share;
+      if (share != null)
+         next = Math.max(next, share.nextAvailableTick());
+      return next;
    }
 
    /**
@@ -232,6 +496,7 @@ class RateHelper {
     */
    public void setPrescale(int prescale) {
       this.prescale = prescale;
+      tickSource.reschedule(listener.nextRefill());
    }
 
 }
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import at.borkowski.spicej.WouldBlockException;
+import at.borkowski.spicej.metrics.Metered;
+import at.borkowski.spicej.metrics.ShapingMetrics;
 import at.borkowski.spicej.shapers.RateShaper;
 import at.borkowski.spicej.streams.RateHelper.IdleNotify;
 import at.borkowski.spicej.ticks.TickSource;
@@ -38,7 +40,7 @@ import at.borkowski.spicej.ticks.TickSource;
  * Streams are non-boring by default.
  * 
  */
-public class RateLimitInputStream extends InputStream implements RateShaper {
+public class RateLimitInputStream extends InputStream implements RateShaper, Metered {
    private final InputStream real;
 
    private final RateHelper rateHelper;
@@ -75,6 +77,31 @@ public class RateLimitInputStream extends InputStream implements RateShaper {
       this.rateHelper = new RateHelper(tickSource, byteRate, prescale);
    }
 
+   /**
+    * Constructs a byte-rate-limited {@link InputStream} allowing bursts. See
+    * {@link #RateLimitInputStream(InputStream, TickSource, int, int)} for a
+    * description of the rate parameters, and {@link #setBurst(int)} for a
+    * description of the burst size.
+    * 
+    * @param real
+    *           The actual {@link InputStream} to read from
+    * @param tickSource
+    *           The tick source
+    * @param byteRate
+    *           The rate, ie. the limit of how many bytes per tick (after
+    *           prescaling) should be readable from this stream
+    * @param prescale
+    *           The prescaling, ie. the frequency of ticks to actually consider
+    *           for rating.
+    * @param burst
+    *           The burst size, ie. up to how many bytes may accumulate while
+    *           the stream is not read from
+    */
+   public RateLimitInputStream(InputStream real, TickSource tickSource, int byteRate, int prescale, int burst) {
+      this(real, tickSource, byteRate, prescale);
+      rateHelper.setBurst(burst);
+   }
+
    @Override
    public void setByteRate(int bytesPerTick) {
       rateHelper.setThingsPerTick(bytesPerTick);
@@ -85,6 +112,38 @@ public class RateLimitInputStream extends InputStream implements RateShaper {
       return rateHelper.getThingsPerTick();
    }
 
+   @Override
+   public void setBurst(int burst) {
+      rateHelper.setBurst(burst);
+   }
+
+   @Override
+   public int getBurst() {
+      return rateHelper.getBurst();
+   }
+
+   /**
+    * Sets a limiter whose rate this stream shares with others, eg. with all
+    * connections over a common link. The stream is then limited by both its own
+    * rate and its share of the limiter's.
+    * 
+    * @param limiter
+    *           the limiter, or <code>null</code> for not sharing a rate
+    */
+   public void setSharedLimiter(SharedRateLimiter limiter) {
+      rateHelper.setSharedLimiter(limiter);
+   }
+
+   /**
+    * Returns the limiter set (see {@link #setSharedLimiter(SharedRateLimiter)}
+    * ).
+    * 
+    * @return the limiter, or <code>null</code>
+    */
+   public SharedRateLimiter getSharedLimiter() {
+      return rateHelper.getSharedLimiter();
+   }
+
    // len <= num
    private int realRead(byte[] b, int off, int len) throws IOException {
       int lenToRead = rateHelper.take(len);
@@ -131,7 +190,7 @@ public class RateLimitInputStream extends InputStream implements RateShaper {
    public int read(byte[] b, int off, int len) throws IOException {
       int done = 0;
       while (done < len && (done == 0 || available() > 0 || (boring && real.available() > 0)))
-         done += realRead(b, off + done, Math.min(len - done, Math.max(1, rateHelper.getThingsPerTick())));
+         done += realRead(b, off + done, Math.min(len - done, Math.max(1, rateHelper.getCapacity())));
       return done;
    }
 
@@ -241,4 +300,14 @@ public class RateLimitInputStream extends InputStream implements RateShaper {
       rateHelper.setPrescale(prescale);
    }
 
+   @Override
+   public void setMetrics(ShapingMetrics metrics) {
+      rateHelper.setMetrics(metrics);
+   }
+
+   @Override
+   public ShapingMetrics getMetrics() {
+      return rateHelper.getMetrics();
+   }
+
 }
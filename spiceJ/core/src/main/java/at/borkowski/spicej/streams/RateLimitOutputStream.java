@@ -3,6 +3,8 @@ package at.borkowski.spicej.streams;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import at.borkowski.spicej.metrics.Metered;
+import at.borkowski.spicej.metrics.ShapingMetrics;
 import at.borkowski.spicej.shapers.RateShaper;
 import at.borkowski.spicej.streams.RateHelper.IdleNotify;
 import at.borkowski.spicej.ticks.TickSource;
@@ -11,7 +13,7 @@ import at.borkowski.spicej.ticks.TickSource;
  * Provides an {@link OutputStream} with a limited rate of bytes. For a
  * description of blocking mode, see {@link RateLimitInputStream}.
  */
-public class RateLimitOutputStream extends OutputStream implements RateShaper {
+public class RateLimitOutputStream extends OutputStream implements RateShaper, Metered {
    private final OutputStream real;
 
    private final RateHelper rateHelper;
@@ -36,6 +38,29 @@ public class RateLimitOutputStream extends OutputStream implements RateShaper {
       this.rateHelper = new RateHelper(tickSource, byteRate, prescale);
    }
 
+   /**
+    * Constructs a byte-rate-limited {@link OutputStream} allowing bursts. See
+    * {@link RateLimitInputStream} for a description of the rate parameters
+    * (byteRate and prescale), and {@link RateShaper#setBurst(int)} for a
+    * description of the burst size.
+    * 
+    * @param real
+    *           The raw {@link OutputStream} to send to
+    * @param tickSource
+    *           The tick source to use
+    * @param byteRate
+    *           The rate in bytes per tick (before prescaler) to use
+    * @param prescale
+    *           The prescaler to use (see {@link RateLimitInputStream})
+    * @param burst
+    *           The burst size, ie. up to how many bytes may accumulate while
+    *           the stream is not written to
+    */
+   public RateLimitOutputStream(OutputStream real, TickSource tickSource, int byteRate, int prescale, int burst) {
+      this(real, tickSource, byteRate, prescale);
+      rateHelper.setBurst(burst);
+   }
+
    @Override
    public void setByteRate(int bytesPerTick) {
       rateHelper.setThingsPerTick(bytesPerTick);
@@ -46,6 +71,38 @@ public class RateLimitOutputStream extends OutputStream implements RateShaper {
       return rateHelper.getThingsPerTick();
    }
 
+   @Override
+   public void setBurst(int burst) {
+      rateHelper.setBurst(burst);
+   }
+
+   @Override
+   public int getBurst() {
+      return rateHelper.getBurst();
+   }
+
+   /**
+    * Sets a limiter whose rate this stream shares with others, eg. with all
+    * connections over a common link. The stream is then limited by both its own
+    * rate and its share of the limiter's.
+    * 
+    * @param limiter
+    *           the limiter, or <code>null</code> for not sharing a rate
+    */
+   public void setSharedLimiter(SharedRateLimiter limiter) {
+      rateHelper.setSharedLimiter(limiter);
+   }
+
+   /**
+    * Returns the limiter set (see {@link #setSharedLimiter(SharedRateLimiter)}
+    * ).
+    * 
+    * @return the limiter, or <code>null</code>
+    */
+   public SharedRateLimiter getSharedLimiter() {
+      return rateHelper.getSharedLimiter();
+   }
+
    @Override
    public void write(int b) throws IOException {
       rateHelper.takeOne();
@@ -56,7 +113,7 @@ public class RateLimitOutputStream extends OutputStream implements RateShaper {
    public void write(byte[] b, int off, int len) throws IOException {
       int done = 0;
       while (done < len)
-         done += realWrite(b, off + done, Math.min(len - done, rateHelper.getThingsPerTick()));
+         done += realWrite(b, off + done, Math.min(len - done, rateHelper.getCapacity()));
    }
 
    // len <= num
@@ -126,4 +183,14 @@ public class RateLimitOutputStream extends OutputStream implements RateShaper {
       return rateHelper.getTickSource();
    }
 
+   @Override
+   public void setMetrics(ShapingMetrics metrics) {
+      rateHelper.setMetrics(metrics);
+   }
+
+   @Override
+   public ShapingMetrics getMetrics() {
+      return rateHelper.getMetrics();
+   }
+
 }
@@ -0,0 +1,222 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+import at.borkowski.spicej.metrics.Metered;
+import at.borkowski.spicej.metrics.ShapingMetrics;
+import at.borkowski.spicej.shapers.RateShaper;
+import at.borkowski.spicej.ticks.TickSource;
+
+/**
+ * Provides a {@link ReadableByteChannel} with a limited rate of bytes. The
+ * channel reads directly into the (heap or direct) buffer passed to
+ * {@link #read(ByteBuffer)}, it does not copy data. See
+ * {@link RateLimitInputStream} for a description of the rate parameters.
+ *
+ * A channel has two blocking modes: blocking and non-blocking. In blocking
+ * mode, {@link #read(ByteBuffer)} blocks until at least one byte may be read
+ * according to the rate. In non-blocking mode, it returns 0 instead, as usual
+ * for non-blocking channels (no {@link at.borkowski.spicej.WouldBlockException}
+ * is thrown). The channel is in non-blocking mode if it has been set so (see
+ * {@link #setNonBlocking(boolean)}) or if the underlying channel is a
+ * {@link SelectableChannel} in non-blocking mode, so that it can be used along
+ * with a selector on the underlying channel. Note that such a selector still
+ * reports the underlying channel as readable while the rate is exhausted; the
+ * rate becomes available again with the next tick (after prescaling). To avoid
+ * spinning, callers can drop their interest in reading until the tick returned
+ * by {@link #nextAvailableTick()}, and select with a timeout until then.
+ */
+public class RateLimitReadableChannel implements ReadableByteChannel, RateShaper, Metered {
+   private final ReadableByteChannel real;
+
+   private final RateHelper rateHelper;
+
+   private boolean nonBlocking = false;
+
+   /**
+    * Constructs a byte-rate-limited {@link ReadableByteChannel}. See
+    * {@link RateLimitInputStream} for a description of the rate parameters
+    * (byteRate and prescale).
+    *
+    * @param real
+    *           The actual {@link ReadableByteChannel} to read from
+    * @param tickSource
+    *           The tick source
+    * @param byteRate
+    *           The rate in bytes per tick (before prescaler) to use
+    * @param prescale
+    *           The prescaler to use (see {@link RateLimitInputStream})
+    */
+   public RateLimitReadableChannel(ReadableByteChannel real, TickSource tickSource, int byteRate, int prescale) {
+      this.real = real;
+
+      this.rateHelper = new RateHelper(tickSource, byteRate, prescale);
+   }
+
+   /**
+    * Constructs a byte-rate-limited {@link ReadableByteChannel} allowing
+    * bursts. See {@link RateLimitInputStream} for a description of the rate
+    * parameters (byteRate and prescale), and {@link RateShaper#setBurst(int)}
+    * for a description of the burst size.
+    *
+    * @param real
+    *           The actual {@link ReadableByteChannel} to read from
+    * @param tickSource
+    *           The tick source
+    * @param byteRate
+    *           The rate in bytes per tick (before prescaler) to use
+    * @param prescale
+    *           The prescaler to use (see {@link RateLimitInputStream})
+    * @param burst
+    *           The burst size, ie. up to how many bytes may accumulate while
+    *           the channel is not read from
+    */
+   public RateLimitReadableChannel(ReadableByteChannel real, TickSource tickSource, int byteRate, int prescale, int burst) {
+      this(real, tickSource, byteRate, prescale);
+      rateHelper.setBurst(burst);
+   }
+
+   @Override
+   public int read(ByteBuffer dst) throws IOException {
+      if (!dst.hasRemaining())
+         return 0;
+
+      int len = Math.min(dst.remaining(), rateHelper.getCapacity());
+      int lenToRead = isNonBlocking() ? rateHelper.tryTake(len) : rateHelper.take(len);
+      if (lenToRead == 0)
+         return 0;
+
+      int limit = dst.limit();
+      int rd = 0;
+      try {
+         dst.limit(dst.position() + lenToRead);
+         rd = real.read(dst);
+      } finally {
+         dst.limit(limit);
+         if (rd < lenToRead)
+            rateHelper.giveBack(lenToRead - Math.max(rd, 0));
+      }
+      return rd;
+   }
+
+   @Override
+   public boolean isOpen() {
+      return real.isOpen();
+   }
+
+   @Override
+   public void close() throws IOException {
+      real.close();
+      rateHelper.close();
+   }
+
+   /**
+    * Sets the non-blocking flag.
+    *
+    * @param nonBlocking
+    *           whether the channel should be in non-blocking mode (see
+    *           {@link RateLimitReadableChannel}).
+    */
+   public void setNonBlocking(boolean nonBlocking) {
+      this.nonBlocking = nonBlocking;
+   }
+
+   /**
+    * Returns the tick from which on bytes may be read again according to the
+    * rate: the current tick if bytes may be read now, or the tick of the next
+    * refill otherwise (see {@link RateLimitReadableChannel}).
+    *
+    * @return the tick, see {@link TickSource#getCurrentTick()}
+    */
+   public long nextAvailableTick() {
+      return rateHelper.nextAvailableTick();
+   }
+
+   private boolean isNonBlocking() {
+      return nonBlocking || (real instanceof SelectableChannel && !((SelectableChannel) real).isBlocking());
+   }
+
+   @Override
+   public void setByteRate(int bytesPerTick) {
+      rateHelper.setThingsPerTick(bytesPerTick);
+   }
+
+   @Override
+   public int getByteRate() {
+      return rateHelper.getThingsPerTick();
+   }
+
+   @Override
+   public int getPrescale() {
+      return rateHelper.getPrescale();
+   }
+
+   @Override
+   public void setPrescale(int prescale) {
+      rateHelper.setPrescale(prescale);
+   }
+
+   @Override
+   public void setBurst(int burst) {
+      rateHelper.setBurst(burst);
+   }
+
+   @Override
+   public int getBurst() {
+      return rateHelper.getBurst();
+   }
+
+   /**
+    * Sets a limiter whose rate this channel shares with others, eg. with all
+    * connections over a common link. The channel is then limited by both its own
+    * rate and its share of the limiter's.
+    *
+    * @param limiter
+    *           the limiter, or <code>null</code> for not sharing a rate
+    */
+   public void setSharedLimiter(SharedRateLimiter limiter) {
+      rateHelper.setSharedLimiter(limiter);
+   }
+
+   /**
+    * Returns the limiter set (see {@link #setSharedLimiter(SharedRateLimiter)}
+    * ).
+    *
+    * @return the limiter, or <code>null</code>
+    */
+   public SharedRateLimiter getSharedLimiter() {
+      return rateHelper.getSharedLimiter();
+   }
+
+   /**
+    * Returns the underlying {@link ReadableByteChannel}.
+    *
+    * @return the underlying channel
+    */
+   public ReadableByteChannel getBaseChannel() {
+      return real;
+   }
+
+   /**
+    * Returns the {@link TickSource} this channel uses.
+    *
+    * @return the used tick source
+    */
+   public TickSource getTickSource() {
+      return rateHelper.getTickSource();
+   }
+
+   @Override
+   public void setMetrics(ShapingMetrics metrics) {
+      rateHelper.setMetrics(metrics);
+   }
+
+   @Override
+   public ShapingMetrics getMetrics() {
+      return rateHelper.getMetrics();
+   }
+
+}
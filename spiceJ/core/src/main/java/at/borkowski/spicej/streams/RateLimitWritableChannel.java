@@ -0,0 +1,220 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+import at.borkowski.spicej.metrics.Metered;
+import at.borkowski.spicej.metrics.ShapingMetrics;
+import at.borkowski.spicej.shapers.RateShaper;
+import at.borkowski.spicej.ticks.TickSource;
+
+/**
+ * Provides a {@link WritableByteChannel} with a limited rate of bytes. The
+ * channel writes directly from the (heap or direct) buffer passed to
+ * {@link #write(ByteBuffer)}, it does not copy data.
+ *
+ * In blocking mode, {@link #write(ByteBuffer)} blocks until all remaining bytes
+ * of the buffer have been written. In non-blocking mode, it writes only as many
+ * bytes as the rate and the underlying channel allow, possibly none. For a
+ * description of the blocking modes, see {@link RateLimitReadableChannel}.
+ * While the rate is exhausted, {@link #nextAvailableTick()} tells when bytes
+ * may be written again.
+ */
+public class RateLimitWritableChannel implements WritableByteChannel, RateShaper, Metered {
+   private final WritableByteChannel real;
+
+   private final RateHelper rateHelper;
+
+   private boolean nonBlocking = false;
+
+   /**
+    * Constructs a byte-rate-limited {@link WritableByteChannel}. See
+    * {@link RateLimitInputStream} for a description of the rate parameters
+    * (byteRate and prescale).
+    *
+    * @param real
+    *           The raw {@link WritableByteChannel} to send to
+    * @param tickSource
+    *           The tick source to use
+    * @param byteRate
+    *           The rate in bytes per tick (before prescaler) to use
+    * @param prescale
+    *           The prescaler to use (see {@link RateLimitInputStream})
+    */
+   public RateLimitWritableChannel(WritableByteChannel real, TickSource tickSource, int byteRate, int prescale) {
+      this.real = real;
+
+      this.rateHelper = new RateHelper(tickSource, byteRate, prescale);
+   }
+
+   /**
+    * Constructs a byte-rate-limited {@link WritableByteChannel} allowing
+    * bursts. See {@link RateLimitInputStream} for a description of the rate
+    * parameters (byteRate and prescale), and {@link RateShaper#setBurst(int)}
+    * for a description of the burst size.
+    *
+    * @param real
+    *           The raw {@link WritableByteChannel} to send to
+    * @param tickSource
+    *           The tick source to use
+    * @param byteRate
+    *           The rate in bytes per tick (before prescaler) to use
+    * @param prescale
+    *           The prescaler to use (see {@link RateLimitInputStream})
+    * @param burst
+    *           The burst size, ie. up to how many bytes may accumulate while
+    *           the channel is not written to
+    */
+   public RateLimitWritableChannel(WritableByteChannel real, TickSource tickSource, int byteRate, int prescale, int burst) {
+      this(real, tickSource, byteRate, prescale);
+      rateHelper.setBurst(burst);
+   }
+
+   @Override
+   public int write(ByteBuffer src) throws IOException {
+      int done = 0;
+      while (src.hasRemaining()) {
+         int len = Math.min(src.remaining(), rateHelper.getCapacity());
+         int lenToWrite = isNonBlocking() ? rateHelper.tryTake(len) : rateHelper.take(len);
+         if (lenToWrite == 0)
+            break;
+
+         int limit = src.limit();
+         int written = 0;
+         try {
+            src.limit(src.position() + lenToWrite);
+            written = real.write(src);
+         } finally {
+            src.limit(limit);
+            if (written < lenToWrite)
+               rateHelper.giveBack(lenToWrite - written);
+         }
+
+         done += written;
+         // the underlying channel does not accept more bytes right now
+         if (written < lenToWrite)
+            break;
+      }
+      return done;
+   }
+
+   @Override
+   public boolean isOpen() {
+      return real.isOpen();
+   }
+
+   @Override
+   public void close() throws IOException {
+      real.close();
+      rateHelper.close();
+   }
+
+   /**
+    * Sets the non-blocking flag.
+    *
+    * @param nonBlocking
+    *           whether the channel should be in non-blocking mode (see
+    *           {@link RateLimitReadableChannel}).
+    */
+   public void setNonBlocking(boolean nonBlocking) {
+      this.nonBlocking = nonBlocking;
+   }
+
+   /**
+    * Returns the tick from which on bytes may be written again according to
+    * the rate: the current tick if bytes may be written now, or the tick of the
+    * next refill otherwise (see {@link RateLimitReadableChannel}).
+    *
+    * @return the tick, see {@link TickSource#getCurrentTick()}
+    */
+   public long nextAvailableTick() {
+      return rateHelper.nextAvailableTick();
+   }
+
+   private boolean isNonBlocking() {
+      return nonBlocking || (real instanceof SelectableChannel && !((SelectableChannel) real).isBlocking());
+   }
+
+   @Override
+   public void setByteRate(int bytesPerTick) {
+      rateHelper.setThingsPerTick(bytesPerTick);
+   }
+
+   @Override
+   public int getByteRate() {
+      return rateHelper.getThingsPerTick();
+   }
+
+   @Override
+   public int getPrescale() {
+      return rateHelper.getPrescale();
+   }
+
+   @Override
+   public void setPrescale(int prescale) {
+      rateHelper.setPrescale(prescale);
+   }
+
+   @Override
+   public void setBurst(int burst) {
+      rateHelper.setBurst(burst);
+   }
+
+   @Override
+   public int getBurst() {
+      return rateHelper.getBurst();
+   }
+
+   /**
+    * Sets a limiter whose rate this channel shares with others, eg. with all
+    * connections over a common link. The channel is then limited by both its own
+    * rate and its share of the limiter's.
+    *
+    * @param limiter
+    *           the limiter, or <code>null</code> for not sharing a rate
+    */
+   public void setSharedLimiter(SharedRateLimiter limiter) {
+      rateHelper.setSharedLimiter(limiter);
+   }
+
+   /**
+    * Returns the limiter set (see {@link #setSharedLimiter(SharedRateLimiter)}
+    * ).
+    *
+    * @return the limiter, or <code>null</code>
+    */
+   public SharedRateLimiter getSharedLimiter() {
+      return rateHelper.getSharedLimiter();
+   }
+
+   /**
+    * Returns the underlying {@link WritableByteChannel}.
+    *
+    * @return the underlying channel
+    */
+   public WritableByteChannel getBaseChannel() {
+      return real;
+   }
+
+   /**
+    * Returns the {@link TickSource} this channel uses.
+    *
+    * @return the used tick source
+    */
+   public TickSource getTickSource() {
+      return rateHelper.getTickSource();
+   }
+
+   @Override
+   public void setMetrics(ShapingMetrics metrics) {
+      rateHelper.setMetrics(metrics);
+   }
+
+   @Override
+   public ShapingMetrics getMetrics() {
+      return rateHelper.getMetrics();
+   }
+
+}
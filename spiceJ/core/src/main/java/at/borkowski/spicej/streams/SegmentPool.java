@@ -0,0 +1,99 @@
+package at.borkowski.spicej.streams;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size byte segments, from which segmented delay buffers (see
+ * {@link DelayedOutputStream#DelayedOutputStream(at.borkowski.spicej.ticks.TickSource, java.io.OutputStream, long, SegmentPool, int)}
+ * ) grow and to which they return segments once drained. A pool can be shared
+ * by any number of streams; it keeps up to a maximum number of unused segments
+ * for reuse and leaves the rest to the garbage collector.
+ */
+public class SegmentPool {
+   /**
+    * The default segment size.
+    */
+   public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024;
+
+   /**
+    * The default number of unused segments to keep.
+    */
+   public static final int DEFAULT_MAX_POOLED = 256;
+
+   private final int segmentSize;
+   private final int maxPooled;
+
+   private final ConcurrentLinkedQueue<byte[]> pooled = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger pooledCount = new AtomicInteger();
+
+   /**
+    * Creates a pool with the default segment size and the default number of
+    * unused segments to keep.
+    */
+   public SegmentPool() {
+      this(DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_POOLED);
+   }
+
+   /**
+    * Creates a pool.
+    *
+    * @param segmentSize
+    *           the size of each segment, in bytes
+    * @param maxPooled
+    *           up to how many unused segments to keep for reuse
+    */
+   public SegmentPool(int segmentSize, int maxPooled) {
+      if (segmentSize <= 0)
+         throw new IllegalArgumentException("segment size must be positive");
+      this.segmentSize = segmentSize;
+      this.maxPooled = maxPooled;
+   }
+
+   /**
+    * Takes a segment from the pool, or allocates a new one if the pool is
+    * empty.
+    *
+    * @return a segment of {@link #getSegmentSize()} bytes
+    */
+   public byte[] acquire() {
+      byte[] segment = pooled.poll();
+      if (segment == null)
+         return new byte[segmentSize];
+
+      pooledCount.decrementAndGet();
+      return segment;
+   }
+
+   /**
+    * Returns a segment to the pool.
+    *
+    * @param segment
+    *           the segment, which must have been acquired from this pool
+    */
+   public void release(byte[] segment) {
+      if (pooledCount.incrementAndGet() > maxPooled) {
+         pooledCount.decrementAndGet();
+         return;
+      }
+      pooled.add(segment);
+   }
+
+   /**
+    * Returns the size of the segments.
+    *
+    * @return the segment size, in bytes
+    */
+   public int getSegmentSize() {
+      return segmentSize;
+   }
+
+   /**
+    * Returns the number of unused segments currently kept for reuse.
+    *
+    * @return the number of pooled segments
+    */
+   public int getPooledSegments() {
+      return pooledCount.get();
+   }
+}
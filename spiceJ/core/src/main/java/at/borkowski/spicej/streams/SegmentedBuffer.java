@@ -0,0 +1,126 @@
+package at.borkowski.spicej.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A FIFO buffer of bytes made of segments from a {@link SegmentPool}. The
+ * buffer grows by one segment whenever the last one is full, up to a maximum
+ * number of buffered bytes, and returns segments to the pool as soon as they
+ * have been drained. Its memory thus follows the number of bytes actually
+ * buffered (plus at most two partially used segments).
+ *
+ * The buffer is meant for one producing and one consuming thread at a time:
+ * both sides only publish the total number of bytes they have written or read.
+ */
+class SegmentedBuffer {
+   private final SegmentPool pool;
+   private final int segmentSize;
+   private final int capacity;
+
+   // the oldest segment is read from, the newest is written to
+   private final ConcurrentLinkedQueue<byte[]> segments = new ConcurrentLinkedQueue<>();
+   private byte[] writeSegment;
+
+   private volatile long readCount = 0;
+   private volatile long writeCount = 0;
+
+   /**
+    * Creates a buffer.
+    *
+    * @param pool
+    *           the pool to take segments from
+    * @param capacity
+    *           up to how many bytes the buffer may hold
+    */
+   SegmentedBuffer(SegmentPool pool, int capacity) {
+      if (capacity <= 0)
+         throw new IllegalArgumentException("capacity must be positive");
+
+      this.pool = pool;
+      this.segmentSize = pool.getSegmentSize();
+      this.capacity = capacity;
+   }
+
+   int capacity() {
+      return capacity;
+   }
+
+   long readCount() {
+      return readCount;
+   }
+
+   long writeCount() {
+      return writeCount;
+   }
+
+   int used() {
+      return (int) (writeCount - readCount);
+   }
+
+   int free() {
+      return capacity - used();
+   }
+
+   /**
+    * Returns the number of segments currently held.
+    */
+   int segmentCount() {
+      return segments.size();
+   }
+
+   /**
+    * Appends a byte. There must be at least one byte {@link #free()}.
+    */
+   void put(byte b) {
+      long written = writeCount;
+      writableSegment(written)[(int) (written % segmentSize)] = b;
+      writeCount = written + 1;
+   }
+
+   /**
+    * Appends bytes. There must be at least len bytes {@link #free()}.
+    */
+   void put(byte[] b, int off, int len) {
+      while (len > 0) {
+         long written = writeCount;
+         int position = (int) (written % segmentSize);
+         int chunk = Math.min(len, segmentSize - position);
+         System.arraycopy(b, off, writableSegment(written), position, chunk);
+
+         writeCount = written + chunk;
+         off += chunk;
+         len -= chunk;
+      }
+   }
+
+   /**
+    * Writes the given number of the oldest bytes to a stream and removes them.
+    * There must be at least len bytes {@link #used()}.
+    */
+   void writeTo(OutputStream out, int len) throws IOException {
+      while (len > 0) {
+         long read = readCount;
+         int position = (int) (read % segmentSize);
+         int chunk = Math.min(len, segmentSize - position);
+         out.write(segments.peek(), position, chunk);
+
+         readCount = read + chunk;
+         len -= chunk;
+
+         // a fully read segment has also been fully written, so the producer
+         // has moved on to a new one
+         if (position + chunk == segmentSize)
+            pool.release(segments.poll());
+      }
+   }
+
+   private byte[] writableSegment(long written) {
+      if (written % segmentSize == 0) {
+         writeSegment = pool.acquire();
+         segments.add(writeSegment);
+      }
+      return writeSegment;
+   }
+}
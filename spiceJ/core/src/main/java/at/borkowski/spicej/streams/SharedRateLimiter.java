@@ -0,0 +1,477 @@
+package at.borkowski.spicej.streams;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
+import at.borkowski.spicej.ticks.TickSource;
+
+/**
+ * A rate of things (eg. bytes) shared by several streams, eg. to model a link
+ * all connections of a proxy have to share. Streams take part by attaching to
+ * the limiter (see {@link RateLimitInputStream#setSharedLimiter(SharedRateLimiter)}
+ * and the like, or {@link #attach()}), and are then limited by both their own
+ * rate and the shared one.
+ *
+ * The shared budget of each tick (after prescaling) is divided into stripes,
+ * which are taken from with a compare-and-set each, like the budget of a
+ * single stream (see {@link RateLimitInputStream}). Every share has a stripe
+ * of its own and only takes from the others once it is empty, so that many
+ * streams do not contend for a single counter. As with a single stream, things
+ * not used within a tick are lost.
+ *
+ * The budget is divided among the shares in a max-min fair way: a share may
+ * take at most the fair share of a tick. Shares which do not need their fair
+ * share leave the rest to the others, and the fair share is recomputed at
+ * every refill from how much each share has used and which shares have been
+ * limited in the previous tick, so that the shares converge to their max-min
+ * fair rates within a few ticks of a change of demand.
+ *
+ * The limiter only needs ticks while its budget is in use (see
+ * {@link DeadlineTickListener}). Streams attached to it should use the same
+ * tick source.
+ */
+public class SharedRateLimiter {
+   // ints per stripe, so that each stripe has a cache line of its own
+   private static final int SPACING = 16;
+   private static final long LIMITED = 1L << 31;
+   private static final long TAKEN = LIMITED - 1;
+
+   private final TickSource tickSource;
+   private final Listener listener;
+   private final int stripes;
+   private final AtomicIntegerArray budget;
+   private final List<Share> shares = new CopyOnWriteArrayList<>();
+   private final AtomicBoolean drawn = new AtomicBoolean();
+   private final SleepWakeup sleep = new SleepWakeup();
+
+   private volatile int thingsPerTick;
+   private volatile int prescale;
+   private volatile int fairShare;
+   private volatile int round = 0;
+   private int nextStripe = 0;
+
+   /**
+    * Creates a limiter with one stripe per available processor (but at most
+    * 64) and registers it with the given {@link TickSource}.
+    *
+    * @param tickSource
+    *           the tick source to use
+    * @param thingsPerTick
+    *           how many things (eg. bytes) per tick (after prescaling) all
+    *           shares together may take
+    * @param prescale
+    *           how to prescale ticks
+    */
+   public SharedRateLimiter(TickSource tickSource, int thingsPerTick, int prescale) {
+      this(tickSource, thingsPerTick, prescale, Math.min(64, Runtime.getRuntime().availableProcessors()));
+   }
+
+   /**
+    * Creates a limiter and registers it with the given {@link TickSource}.
+    *
+    * @param tickSource
+    *           the tick source to use
+    * @param thingsPerTick
+    *           how many things (eg. bytes) per tick (after prescaling) all
+    *           shares together may take
+    * @param prescale
+    *           how to prescale ticks
+    * @param stripes
+    *           into how many stripes to divide the budget
+    */
+   public SharedRateLimiter(TickSource tickSource, int thingsPerTick, int prescale, int stripes) {
+      if (thingsPerTick < 1)
+         throw new IllegalArgumentException("rate must be positive");
+      if (stripes < 1)
+         throw new IllegalArgumentException("stripe count must be positive");
+
+      this.tickSource = tickSource;
+      this.thingsPerTick = thingsPerTick;
+      this.prescale = prescale;
+      this.stripes = stripes;
+      this.fairShare = thingsPerTick;
+
+      budget = new AtomicIntegerArray(stripes * SPACING);
+      refill(thingsPerTick);
+
+      tickSource.addListener(listener = new Listener(tickSource.getCurrentTick()));
+   }
+
+   /**
+    * Creates a new share of this limiter, eg. for a stream.
+    *
+    * @return the share, which has to be detached (see {@link Share#detach()})
+    *         once it isn't used anymore
+    */
+   public Share attach() {
+      Share share;
+      synchronized (shares) {
+         share = new Share(nextStripe++ % stripes);
+      }
+      shares.add(share);
+      return share;
+   }
+
+   /**
+    * Cleans up used resources, unregisters the tick source. Shares still
+    * attached are detached (see {@link Share#detach()}), and streams waiting
+    * for their share are woken up.
+    */
+   public void close() {
+      tickSource.removeListener(listener);
+      for (Share share : shares)
+         share.detach();
+      sleep.wakeup();
+   }
+
+   /**
+    * Sets the rate of things (eg. bytes) per tick (after prescaling) all shares
+    * together may take. The new rate applies from the next refill on.
+    *
+    * @param thingsPerTick
+    *           the new rate
+    */
+   public void setThingsPerTick(int thingsPerTick) {
+      if (thingsPerTick < 1)
+         throw new IllegalArgumentException("rate must be positive");
+      this.thingsPerTick = thingsPerTick;
+   }
+
+   /**
+    * Returns the rate of things (eg. bytes) per tick all shares together may
+    * take.
+    *
+    * @return the rate
+    */
+   public int getThingsPerTick() {
+      return thingsPerTick;
+   }
+
+   /**
+    * Returns the current prescale
+    *
+    * @return the current prescale
+    */
+   public int getPrescale() {
+      return prescale;
+   }
+
+   /**
+    * Sets a new prescale
+    *
+    * @param prescale
+    *           the new prescale
+    */
+   public void setPrescale(int prescale) {
+      this.prescale = prescale;
+      tickSource.reschedule(listener.nextRefill());
+   }
+
+   /**
+    * Returns the number of things a single share may take within the current
+    * tick.
+    *
+    * @return the fair share
+    */
+   public int getFairShare() {
+      return fairShare;
+   }
+
+   /**
+    * Returns the number of shares currently attached.
+    *
+    * @return the share count
+    */
+   public int getShareCount() {
+      return shares.size();
+   }
+
+   /**
+    * Returns the {@link TickSource} used by this limiter.
+    *
+    * @return the used tick source
+    */
+   public TickSource getTickSource() {
+      return tickSource;
+   }
+
+   private void refill(int total) {
+      for (int i = 0; i < stripes; i++)
+         budget.set(i * SPACING, total / stripes + (i < total % stripes ? 1 : 0));
+   }
+
+   private int pool() {
+      int pool = 0;
+      for (int i = 0; i < stripes; i++)
+         pool += Math.max(0, budget.get(i * SPACING));
+      return pool;
+   }
+
+   /*
+    * takes up to n things from the stripes, starting with the given one
+    */
+   private int draw(int home, int n) {
+      int got = 0;
+      for (int i = 0; i < stripes && got < n; i++) {
+         int index = ((home + i) % stripes) * SPACING;
+         while (got < n) {
+            int stored = budget.get(index);
+            if (stored <= 0)
+               break;
+            int k = Math.min(n - got, stored);
+            if (budget.compareAndSet(index, stored, stored - k))
+               got += k;
+         }
+      }
+
+      // a budget which has been untouched until now needs to be refilled, so
+      // the tick source has to know that this limiter isn't idle anymore
+      if (got > 0 && !drawn.get() && drawn.compareAndSet(false, true)) {
+         listener.resume(tickSource.getCurrentTick());
+         tickSource.reschedule(listener.nextRefill());
+      }
+      return got;
+   }
+
+   /*
+    * water-filling: shares which haven't been limited keep what they have
+    * used, the limited ones split the rest
+    */
+   private void updateFairShare(int total) {
+      int active = 0, limited = 0;
+      long unlimitedTaken = 0;
+      for (Share share : shares) {
+         long state = share.state.get();
+         if ((int) (state >>> 32) != round)
+            continue;
+         active++;
+         if ((state & LIMITED) != 0)
+            limited++;
+         else
+            unlimitedTaken += state & TAKEN;
+      }
+
+      long fair = total;
+      if (limited > 0)
+         fair = Math.max(total / active, (total - unlimitedTaken) / limited);
+      fairShare = (int) Math.max(1, Math.min(total, fair));
+   }
+
+   /**
+    * A share of a {@link SharedRateLimiter}. Each share is meant to be used by
+    * a single stream.
+    */
+   public class Share {
+      private final int home;
+
+      // the round (high 32 bits), whether the share has been limited in it, and
+      // the things it has taken in it (low 31 bits)
+      private final AtomicLong state = new AtomicLong();
+
+      private volatile boolean attached = true;
+
+      // the limiter only needs ticks if it has a waiter, so the tick source
+      // is only told once the waiter has been registered
+      private final BooleanSupplier available = new BooleanSupplier() {
+         @Override
+         public boolean getAsBoolean() {
+            tickSource.reschedule(listener.nextRefill());
+            return getAvailable() > 0;
+         }
+      };
+
+      Share(int home) {
+         this.home = home;
+         state.set((long) (round - 1) << 32);
+      }
+
+      /**
+       * Takes several things (eg. bytes) if possible. This method never blocks,
+       * but returns 0 if no thing can be taken within the current tick.
+       *
+       * @param n
+       *           up to how many things to take
+       * @return the number of things that have been taken, possibly 0
+       */
+      public int tryTake(int n) {
+         if (!attached || n <= 0)
+            return Math.max(0, n);
+
+         while (true) {
+            int current = round;
+            long state = this.state.get();
+            long taken = (int) (state >>> 32) == current ? state & TAKEN : 0;
+            long limited = (int) (state >>> 32) == current ? state & LIMITED : 0;
+
+            int got = draw(home, (int) Math.max(0, Math.min(n, fairShare - taken)));
+            if (got < n)
+               limited = LIMITED;
+
+            long updated = ((long) current << 32) | limited | (taken + got);
+            if (this.state.compareAndSet(state, updated))
+               return got;
+
+            // only concurrent users of the same share get here
+            giveBackStripe(got);
+         }
+      }
+
+      /**
+       * Takes several things (eg. bytes). This method blocks until at least one
+       * thing can be taken.
+       *
+       * @param n
+       *           up to how many things to take
+       * @return the number of things that have been taken, at least 1
+       */
+      public int take(int n) {
+         int got;
+         while ((got = tryTake(n)) == 0)
+            await();
+         return got;
+      }
+
+      /**
+       * Waits until the next refill (or until things are given back).
+       */
+      void await() {
+         sleep.sleep(available);
+      }
+
+      /**
+       * Returns several things (eg. bytes) as unused (see
+       * {@link #tryTake(int)}). Things taken within a previous tick are lost
+       * anyway.
+       *
+       * @param n
+       *           how many things to give back
+       */
+      public void giveBack(int n) {
+         if (!attached || n <= 0)
+            return;
+
+         while (true) {
+            int current = round;
+            long state = this.state.get();
+            if ((int) (state >>> 32) != current)
+               return;
+            long taken = state & TAKEN;
+            int k = (int) Math.min(n, taken);
+            if (this.state.compareAndSet(state, (state & ~TAKEN) | (taken - k))) {
+               giveBackStripe(k);
+               return;
+            }
+         }
+      }
+
+      private void giveBackStripe(int n) {
+         if (n <= 0)
+            return;
+         budget.addAndGet(home * SPACING, n);
+         sleep.wakeup(n);
+      }
+
+      /**
+       * Returns an estimate on how many things this share can take within the
+       * current tick, which may be too high if other shares take things
+       * concurrently.
+       *
+       * @return the estimate
+       */
+      public int getAvailable() {
+         if (!attached)
+            return Integer.MAX_VALUE;
+         long state = this.state.get();
+         long taken = (int) (state >>> 32) == round ? state & TAKEN : 0;
+         return (int) Math.max(0, Math.min(pool(), fairShare - taken));
+      }
+
+      /**
+       * Returns the tick from which on this share may take things again: the
+       * current tick if it may take things now, or the tick of the next refill
+       * otherwise.
+       *
+       * @return the tick, see {@link TickSource#getCurrentTick()}
+       */
+      public long nextAvailableTick() {
+         if (getAvailable() > 0)
+            return tickSource.getCurrentTick();
+         return listener.nextRefill();
+      }
+
+      /**
+       * Returns the limiter of this share.
+       *
+       * @return the limiter
+       */
+      public SharedRateLimiter getLimiter() {
+         return SharedRateLimiter.this;
+      }
+
+      /**
+       * Detaches this share from the limiter. Afterwards, the share doesn't
+       * limit anything anymore.
+       */
+      public void detach() {
+         attached = false;
+         shares.remove(this);
+      }
+   }
+
+   private class Listener implements DeadlineTickListener {
+      // the last tick received, or the tick at which the budget has stopped
+      // being untouched
+      private volatile long lastTick;
+
+      Listener(long currentTick) {
+         lastTick = currentTick;
+      }
+
+      @Override
+      public void tick(long tick) {
+         long refills = refills(tick);
+         lastTick = tick;
+         if (refills == 0)
+            return;
+
+         // the stripes first, so that a share seeing the new round finds them
+         // refilled
+         int total = thingsPerTick;
+         drawn.set(false);
+         refill(total);
+         updateFairShare(total);
+         round++;
+         sleep.wakeup();
+      }
+
+      private long refills(long tick) {
+         if (prescale <= 1)
+            return tick - lastTick;
+         return Math.floorDiv(tick, prescale) - Math.floorDiv(lastTick, prescale);
+      }
+
+      void resume(long tick) {
+         lastTick = tick;
+      }
+
+      @Override
+      public long nextTick() {
+         if (!drawn.get() && !sleep.hasWaiters())
+            return Long.MAX_VALUE;
+         return nextRefill();
+      }
+
+      long nextRefill() {
+         long last = lastTick;
+         if (prescale <= 1)
+            return last + 1;
+         return (Math.floorDiv(last, prescale) + 1) * prescale;
+      }
+   }
+}
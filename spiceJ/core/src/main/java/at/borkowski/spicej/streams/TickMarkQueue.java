@@ -0,0 +1,131 @@
+package at.borkowski.spicej.streams;
+
+/**
+ * A queue of tick marks, ie. pairs of a tick and a value (eg. a buffer
+ * position) which becomes valid at that tick. This is used by delayed streams
+ * to keep track of which data is to be released at which tick.
+ *
+ * Since a stream releases its data in order, marks are kept sorted by their
+ * tick in insertion order: adding a mark which is due earlier than marks
+ * already queued (eg. after the delay has been reduced) releases all data
+ * queued before it at that earlier tick, so those marks are merged into the
+ * new one. Adding a mark for the tick of the last queued mark replaces that
+ * mark's value. Therefore, all operations are O(1) (amortized), and the queue
+ * stores primitives in growable ring arrays, allocating only when it grows.
+ *
+ * This class is not thread-safe.
+ */
+class TickMarkQueue {
+   private static final int INITIAL_CAPACITY = 16;
+
+   private long[] ticks;
+   private long[] values;
+   private int head = 0;
+   private int size = 0;
+
+   /**
+    * Creates an empty queue.
+    */
+   TickMarkQueue() {
+      ticks = new long[INITIAL_CAPACITY];
+      values = new long[INITIAL_CAPACITY];
+   }
+
+   /**
+    * Adds a mark. Marks queued for a later tick than the given one are merged
+    * into the new mark, and a mark queued for the same tick is replaced.
+    *
+    * @param tick
+    *           the tick at which the value becomes valid
+    * @param value
+    *           the value
+    */
+   void add(long tick, long value) {
+      while (size > 0 && ticks[last()] >= tick)
+         size--;
+
+      if (size == ticks.length)
+         grow();
+
+      int index = index(size);
+      ticks[index] = tick;
+      values[index] = value;
+      size++;
+   }
+
+   /**
+    * Moves all marks queued for a tick later than the given deadline to the
+    * deadline, ie. merges them into one mark at the deadline with the value of
+    * the last of them.
+    *
+    * @param deadline
+    *           the latest tick any mark should be queued for
+    */
+   void collapse(long deadline) {
+      if (size > 0 && ticks[last()] > deadline)
+         add(deadline, values[last()]);
+   }
+
+   /**
+    * Returns whether the queue is empty.
+    *
+    * @return whether the queue is empty
+    */
+   boolean isEmpty() {
+      return size == 0;
+   }
+
+   /**
+    * Returns the number of queued marks.
+    *
+    * @return the number of marks
+    */
+   int size() {
+      return size;
+   }
+
+   /**
+    * Returns the tick of the first (earliest) mark. Must not be called on an
+    * empty queue.
+    *
+    * @return the first mark's tick
+    */
+   long firstTick() {
+      return ticks[head];
+   }
+
+   /**
+    * Removes the first (earliest) mark and returns its value. Must not be called
+    * on an empty queue.
+    *
+    * @return the first mark's value
+    */
+   long poll() {
+      long value = values[head];
+      if (++head == ticks.length)
+         head = 0;
+      size--;
+      return value;
+   }
+
+   private int index(int i) {
+      int index = head + i;
+      return index >= ticks.length ? index - ticks.length : index;
+   }
+
+   private int last() {
+      return index(size - 1);
+   }
+
+   private void grow() {
+      long[] newTicks = new long[ticks.length * 2];
+      long[] newValues = new long[values.length * 2];
+      for (int i = 0; i < size; i++) {
+         newTicks[i] = ticks[index(i)];
+         newValues[i] = values[index(i)];
+      }
+      ticks = newTicks;
+      values = newValues;
+      head = 0;
+   }
+}
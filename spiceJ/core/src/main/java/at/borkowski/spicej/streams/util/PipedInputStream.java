@@ -1,275 +1,325 @@
-// @formatter:off
-/*
- * THIS FILE IS TAKEN FROM THE ORACLE (JDK7) SOURCE
- * 
- *   This file is a very light adaption of the Oracle JDK 7 implementation of PipedInputStream.
- *   The modifications are:
- *     - package names 
- *     - removed JavaDoc
- *     - two calls to notifyAll() (in read() and read(byte[], int, int)
- *     - removal of the reader/writer alive detection mechanism (error prone and performance lowering)
- *     - addition of a mechanism to avoid deadlocks
- *
- *   According to [1], the JDK source code is distributed under GNU GPL v2, which permits redistribution
- *   and modification.
- *   
- *   [1] http://www.oracle.com/technetwork/articles/javase/opensourcejdk-jsp-136417.html
- */
-
-/*
- * Copyright (c) 1995, 2006, Oracle and/or its affiliates. All rights reserved.
- * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- *
- */
-
 package at.borkowski.spicej.streams.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import at.borkowski.spicej.WouldBlockException;
 
+/**
+ * The reading end of a pipe, connected to a {@link PipedOutputStream}. Other
+ * than {@link java.io.PipedInputStream}, this pipe does not detect whether the
+ * threads using it are still alive.
+ *
+ * The pipe is a ring buffer designed for one writing and one reading thread:
+ * the reader and the writer never lock against each other, but only publish
+ * their positions in the buffer (which are padded to avoid false sharing).
+ * Several readers (or several writers) are serialized by a lock of their side
+ * of the pipe.
+ *
+ * A side waiting for data or space first spins, then yields and finally parks
+ * until the other side has made progress.
+ *
+ * If deadlock exceptions are enabled (see
+ * {@link #setExceptionOnDeadlock(boolean)}), operations which would block throw
+ * a {@link WouldBlockException} instead.
+ */
 public class PipedInputStream extends InputStream {
-    boolean closedByWriter = false;
-    volatile boolean closedByReader = false;
-    boolean connected = false;
-
-    private static final int DEFAULT_PIPE_SIZE = 1024;
-
-    // This used to be a constant before the pipe size was allowed
-    // to change. This field will continue to be maintained
-    // for backward compatibility.
-    protected static final int PIPE_SIZE = DEFAULT_PIPE_SIZE;
-
-    protected byte buffer[];
-
-    protected int in = -1;
-
-    protected int out = 0;
-    
-    protected boolean exceptionOnDeadlock = false;
-
-    public PipedInputStream(PipedOutputStream src) throws IOException {
-        this(src, DEFAULT_PIPE_SIZE);
-    }
-
-    public PipedInputStream(PipedOutputStream src, int pipeSize)
-            throws IOException {
-         initPipe(pipeSize);
-         connect(src);
-    }
-
-    public PipedInputStream() {
-        initPipe(DEFAULT_PIPE_SIZE);
-    }
-
-    public PipedInputStream(int pipeSize) {
-        initPipe(pipeSize);
-    }
-    
-    public void setExceptionOnDeadlock(boolean exceptionOnDeadlock) {
-       this.exceptionOnDeadlock = exceptionOnDeadlock;
-    }
-
-    private void initPipe(int pipeSize) {
-         if (pipeSize <= 0) {
-            throw new IllegalArgumentException("Pipe Size <= 0");
+   private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+   private static final int SPINS = 100;
+   private static final int YIELDS = 10;
+   // parking is woken up by the other side, this is just a safety net
+   private static final long PARK_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+
+   private final byte[] buffer;
+
+   // total number of bytes read and written, only ever written by their side
+   private final PaddedCounter readCount = new PaddedCounter();
+   private final PaddedCounter writeCount = new PaddedCounter();
+
+   private final Lock readLock = new ReentrantLock();
+   private final Lock writeLock = new ReentrantLock();
+
+   private volatile Thread waitingReader, waitingWriter;
+
+   volatile boolean connected = false;
+   private volatile boolean closedByWriter = false;
+   private volatile boolean closedByReader = false;
+
+   private volatile boolean exceptionOnDeadlock = false;
+
+   /**
+    * Creates a pipe connected to the given output stream, with the default
+    * pipe size (64 KiB).
+    *
+    * @param src
+    *           the output stream to connect to
+    * @throws IOException
+    *            if the output stream is already connected
+    */
+   public PipedInputStream(PipedOutputStream src) throws IOException {
+      this(src, DEFAULT_PIPE_SIZE);
+   }
+
+   /**
+    * Creates a pipe connected to the given output stream.
+    *
+    * @param src
+    *           the output stream to connect to
+    * @param pipeSize
+    *           the number of bytes the pipe can hold
+    * @throws IOException
+    *            if the output stream is already connected
+    */
+   public PipedInputStream(PipedOutputStream src, int pipeSize) throws IOException {
+      this(pipeSize);
+      connect(src);
+   }
+
+   /**
+    * Creates a pipe with the default pipe size (64 KiB), which must be
+    * connected before use.
+    */
+   public PipedInputStream() {
+      this(DEFAULT_PIPE_SIZE);
+   }
+
+   /**
+    * Creates a pipe which must be connected before use.
+    *
+    * @param pipeSize
+    *           the number of bytes the pipe can hold
+    */
+   public PipedInputStream(int pipeSize) {
+      if (pipeSize <= 0)
+         throw new IllegalArgumentException("Pipe Size <= 0");
+      buffer = new byte[pipeSize];
+   }
+
+   /**
+    * Sets whether operations which would block (reading from an empty pipe or
+    * writing to a full one) throw a {@link WouldBlockException} instead.
+    *
+    * @param exceptionOnDeadlock
+    *           whether to throw instead of blocking
+    */
+   public void setExceptionOnDeadlock(boolean exceptionOnDeadlock) {
+      this.exceptionOnDeadlock = exceptionOnDeadlock;
+   }
+
+   /**
+    * Connects this pipe to the given output stream.
+    *
+    * @param src
+    *           the output stream to connect to
+    * @throws IOException
+    *            if either end is already connected
+    */
+   public void connect(PipedOutputStream src) throws IOException {
+      src.connect(this);
+   }
+
+   @Override
+   public int read() throws IOException {
+      readLock.lock();
+      try {
+         long read = readCount.value;
+         if (!awaitData(read))
+            return -1;
+
+         int ret = buffer[(int) (read % buffer.length)] & 0xFF;
+         readCount.value = read + 1;
+         wake(waitingWriter);
+         return ret;
+      } finally {
+         readLock.unlock();
+      }
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      if (b == null)
+         throw new NullPointerException();
+      else if (off < 0 || len < 0 || len > b.length - off)
+         throw new IndexOutOfBoundsException();
+      else if (len == 0)
+         return 0;
+
+      readLock.lock();
+      try {
+         long read = readCount.value;
+         if (!awaitData(read))
+            return -1;
+
+         int count = (int) Math.min(len, writeCount.value - read);
+         int position = (int) (read % buffer.length);
+         int chunk1 = Math.min(count, buffer.length - position);
+         System.arraycopy(buffer, position, b, off, chunk1);
+         System.arraycopy(buffer, 0, b, off + chunk1, count - chunk1);
+
+         readCount.value = read + count;
+         wake(waitingWriter);
+         return count;
+      } finally {
+         readLock.unlock();
+      }
+   }
+
+   @Override
+   public int available() throws IOException {
+      if (closedByReader)
+         return 0;
+      return (int) (writeCount.value - readCount.value);
+   }
+
+   @Override
+   public void close() throws IOException {
+      closedByReader = true;
+      wake(waitingWriter);
+   }
+
+   void receive(int b) throws IOException {
+      writeLock.lock();
+      try {
+         checkStateForReceive();
+         long written = writeCount.value;
+         awaitSpace(written);
+
+         buffer[(int) (written % buffer.length)] = (byte) b;
+         writeCount.value = written + 1;
+         wake(waitingReader);
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   void receive(byte[] b, int off, int len) throws IOException {
+      writeLock.lock();
+      try {
+         checkStateForReceive();
+         while (len > 0) {
+            long written = writeCount.value;
+            awaitSpace(written);
+
+            int count = (int) Math.min(len, buffer.length - (written - readCount.value));
+            int position = (int) (written % buffer.length);
+            int chunk1 = Math.min(count, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, chunk1);
+            System.arraycopy(b, off + chunk1, buffer, 0, count - chunk1);
+
+            writeCount.value = written + count;
+            wake(waitingReader);
+
+            off += count;
+            len -= count;
          }
-         buffer = new byte[pipeSize];
-    }
-
-    public void connect(PipedOutputStream src) throws IOException {
-        src.connect(this);
-    }
-
-    protected synchronized void receive(int b) throws IOException {
-        checkStateForReceive();
-        if (in == out)
-            awaitSpace();
-        if (in < 0) {
-            in = 0;
-            out = 0;
-        }
-        buffer[in++] = (byte)(b & 0xFF);
-        if (in >= buffer.length) {
-            in = 0;
-        }
-    }
-
-    synchronized void receive(byte b[], int off, int len)  throws IOException {
-        checkStateForReceive();
-        int bytesToTransfer = len;
-        while (bytesToTransfer > 0) {
-            if (in == out)
-                awaitSpace();
-            int nextTransferAmount = 0;
-            if (out < in) {
-                nextTransferAmount = buffer.length - in;
-            } else if (in < out) {
-                if (in == -1) {
-                    in = out = 0;
-                    nextTransferAmount = buffer.length - in;
-                } else {
-                    nextTransferAmount = out - in;
-                }
-            }
-            if (nextTransferAmount > bytesToTransfer)
-                nextTransferAmount = bytesToTransfer;
-            assert(nextTransferAmount > 0);
-            System.arraycopy(b, off, buffer, in, nextTransferAmount);
-            bytesToTransfer -= nextTransferAmount;
-            off += nextTransferAmount;
-            in += nextTransferAmount;
-            if (in >= buffer.length) {
-                in = 0;
-            }
-        }
-        notifyAll();
-    }
-
-    private void checkStateForReceive() throws IOException {
-        if (!connected) {
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   void receivedLast() {
+      closedByWriter = true;
+      wake(waitingReader);
+   }
+
+   void wakeReader() {
+      wake(waitingReader);
+   }
+
+   private void checkStateForReceive() throws IOException {
+      if (!connected)
+         throw new IOException("Pipe not connected");
+      else if (closedByWriter || closedByReader)
+         throw new IOException("Pipe closed");
+   }
+
+   /*
+    * Waits until data beyond the given read count is available. Returns false
+    * if the writer has closed the pipe and all data has been read.
+    */
+   private boolean awaitData(long read) throws IOException {
+      int attempt = 0;
+      while (true) {
+         if (!connected)
             throw new IOException("Pipe not connected");
-        } else if (closedByWriter || closedByReader) {
+         else if (closedByReader)
             throw new IOException("Pipe closed");
-        }
-    }
-
-    private void awaitSpace() throws IOException {
-        while (in == out) {
-            if(exceptionOnDeadlock) throw new WouldBlockException();
-            checkStateForReceive();
-
-            /* full: kick any waiting readers */
-            notifyAll();
-            try {
-                wait(1000);
-            } catch (InterruptedException ex) {
-                throw new java.io.InterruptedIOException();
-            }
-        }
-    }
-
-    synchronized void receivedLast() {
-        closedByWriter = true;
-        notifyAll();
-    }
-
-    public synchronized int read()  throws IOException {
-        if (!connected) {
-            throw new IOException("Pipe not connected");
-        } else if (closedByReader) {
-            throw new IOException("Pipe closed");
-        }
-
-        while (in < 0) {
-            if(exceptionOnDeadlock) throw new WouldBlockException();
-            if (closedByWriter) {
-                /* closed by writer, return EOF */
-                return -1;
-            }
-            /* might be a writer waiting */
-            notifyAll();
-            try {
-                wait(1000);
-            } catch (InterruptedException ex) {
-                throw new java.io.InterruptedIOException();
-            }
-        }
-        int ret = buffer[out++] & 0xFF;
-        if (out >= buffer.length) {
-            out = 0;
-        }
-        if (in == out) {
-            /* now empty */
-            in = -1;
-        }
-            notifyAll();
-
-        return ret;
-    }
-
-    public synchronized int read(byte b[], int off, int len)  throws IOException {
-        if (b == null) {
-            throw new NullPointerException();
-        } else if (off < 0 || len < 0 || len > b.length - off) {
-            throw new IndexOutOfBoundsException();
-        } else if (len == 0) {
-            return 0;
-        }
-
-        /* possibly wait on the first character */
-        int c = read();
-        if (c < 0) {
-            return -1;
-        }
-        b[off] = (byte) c;
-        int rlen = 1;
-        while ((in >= 0) && (len > 1)) {
-
-            int available;
-
-            if (in > out) {
-                available = Math.min((buffer.length - out), (in - out));
-            } else {
-                available = buffer.length - out;
-            }
-
-            // A byte is read beforehand outside the loop
-            if (available > (len - 1)) {
-                available = len - 1;
-            }
-            System.arraycopy(buffer, out, b, off + rlen, available);
-            out += available;
-            rlen += available;
-            len -= available;
-
-            if (out >= buffer.length) {
-                out = 0;
-            }
-            if (in == out) {
-                /* now empty */
-                in = -1;
-            }
-        }
-           notifyAll();
-        return rlen;
-    }
-
-    public synchronized int available() throws IOException {
-        if(in < 0)
-            return 0;
-        else if(in == out)
-            return buffer.length;
-        else if (in > out)
-            return in - out;
-        else
-            return in + buffer.length - out;
-    }
-
-    public void close()  throws IOException {
-        closedByReader = true;
-        synchronized (this) {
-            in = -1;
-        }
-    }
+         else if (writeCount.value != read)
+            return true;
+         else if (closedByWriter)
+            // the writer might have written right before closing
+            return writeCount.value != read;
+         else if (exceptionOnDeadlock)
+            throw new WouldBlockException();
+
+         if (attempt < SPINS) {
+            attempt++;
+         } else if (attempt < SPINS + YIELDS) {
+            attempt++;
+            Thread.yield();
+         } else {
+            waitingReader = Thread.currentThread();
+            if (writeCount.value == read && !closedByWriter && !closedByReader)
+               LockSupport.parkNanos(this, PARK_TIMEOUT);
+            waitingReader = null;
+            if (Thread.interrupted())
+               throw new InterruptedIOException();
+         }
+      }
+   }
+
+   /*
+    * Waits until there is space in the buffer beyond the given write count.
+    */
+   private void awaitSpace(long written) throws IOException {
+      int attempt = 0;
+      while (written - readCount.value == buffer.length) {
+         checkStateForReceive();
+         if (exceptionOnDeadlock)
+            throw new WouldBlockException();
+
+         if (attempt < SPINS) {
+            attempt++;
+         } else if (attempt < SPINS + YIELDS) {
+            attempt++;
+            Thread.yield();
+         } else {
+            waitingWriter = Thread.currentThread();
+            if (written - readCount.value == buffer.length && !closedByReader)
+               LockSupport.parkNanos(this, PARK_TIMEOUT);
+            waitingWriter = null;
+            if (Thread.interrupted())
+               throw new InterruptedIOException();
+         }
+      }
+   }
+
+   private static void wake(Thread thread) {
+      if (thread != null)
+         LockSupport.unpark(thread);
+   }
+
+   /*
+    * A counter padded to a cache line on either side, so that the reader's and
+    * the writer's counters (and other fields) don't share a cache line.
+    */
+   @SuppressWarnings("unused")
+   private static class LeftPadding {
+      long p01, p02, p03, p04, p05, p06, p07;
+   }
+
+   private static class Counter extends LeftPadding {
+      volatile long value;
+   }
+
+   @SuppressWarnings("unused")
+   private static class PaddedCounter extends Counter {
+      long p11, p12, p13, p14, p15, p16, p17;
+   }
 }
@@ -0,0 +1,25 @@
+package at.borkowski.spicej.ticks;
+
+/**
+ * A {@link TickListener} which can process several consecutive ticks at once.
+ * 
+ * Tick sources which fire several ticks at the same time (eg. when catching up
+ * with ticks they have missed) pass them to such listeners with a single call to
+ * {@link #ticks(long, long)} instead of calling {@link #tick(long)} for each of
+ * them. The guarantees of {@link TickListener} apply to both methods.
+ */
+public interface BulkTickListener extends TickListener {
+
+   /**
+    * Called when several consecutive tick events are fired at once. This must
+    * have the same effect as calling {@link #tick(long)} for each of the ticks
+    * from <code>lastTick - count + 1</code> to <code>lastTick</code>, in that
+    * order.
+    * 
+    * @param lastTick
+    *           the number of the last tick
+    * @param count
+    *           the number of ticks, at least 1
+    */
+   public void ticks(long lastTick, long count);
+}
@@ -0,0 +1,30 @@
+package at.borkowski.spicej.ticks;
+
+/**
+ * A {@link TickListener} which only needs to receive certain ticks, eg. because
+ * it has nothing to do until data is released at a later tick.
+ * 
+ * Tick sources don't call such a listener for ticks before the one returned by
+ * {@link #nextTick()}, and may sleep through ticks none of their listeners
+ * needs. Therefore, other than stated by {@link TickListener#tick(long)}, the
+ * listener does not receive consecutive ticks: it has to treat a tick as the
+ * passing of all ticks since the last one it has received.
+ * 
+ * If the listener needs an earlier tick because of an event outside of tick
+ * handling (eg. data being written), it has to call
+ * {@link TickSource#reschedule(long)} after updating the state
+ * {@link #nextTick()} is based on.
+ */
+public interface DeadlineTickListener extends TickListener {
+
+   /**
+    * Returns the next tick this listener needs to receive. A tick which has
+    * already passed means the next tick. This method is called by the tick
+    * source, but may be called concurrently with events outside of tick
+    * handling.
+    * 
+    * @return the next tick needed, or {@link Long#MAX_VALUE} if the listener
+    *         is idle
+    */
+   public long nextTick();
+}
@@ -37,4 +37,17 @@ public interface TickSource {
     * @return the current tick
     */
    long getCurrentTick();
+
+   /**
+    * Notifies the source that a {@link DeadlineTickListener} needs the given
+    * tick, which is earlier than the one it has reported before. Sources which
+    * sleep through ticks none of their listeners needs wake up in time for it.
+    * 
+    * This is only a hint: sources distributing all ticks (like the default
+    * implementation) can ignore it.
+    * 
+    * @param tick
+    *           the tick needed
+    */
+   default void reschedule(long tick) {}
 }
@@ -0,0 +1,162 @@
+package at.borkowski.spicej.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.ticks.BulkTickListener;
+import at.borkowski.spicej.ticks.TickListener;
+
+public class ShardedTickDispatcherTest {
+
+   private static final int LISTENERS = 1000;
+
+   private SimulationTickSource source;
+   private ShardedTickDispatcher sut;
+   private final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+
+   @Before
+   public void setUp() {
+      source = new SimulationTickSource();
+      sut = new ShardedTickDispatcher(4);
+      source.setDispatcher(sut);
+   }
+
+   @After
+   public void tearDown() {
+      sut.close();
+   }
+
+   @Test
+   public void testOrderAndExclusion() {
+      List<RecordingListener> listeners = new ArrayList<>();
+      for (int i = 0; i < LISTENERS; i++) {
+         RecordingListener listener = new RecordingListener();
+         listeners.add(listener);
+         source.addListener(listener);
+      }
+
+      for (int i = 0; i < 100; i++)
+         source.advance();
+      source.doTicks(5);
+
+      for (RecordingListener listener : listeners) {
+         assertFalse(listener.overlapped);
+         assertEquals(105, listener.ticks);
+         assertEquals(104, listener.lastTick);
+      }
+      assertEquals(4, threads.size());
+   }
+
+   @Test
+   public void testBulkTicks() {
+      final long[] received = new long[3];
+      for (int i = 0; i < LISTENERS - 1; i++)
+         source.addListener(new RecordingListener());
+      source.addListener(new BulkTickListener() {
+         @Override
+         public void tick(long tick) {
+            received[2]++;
+         }
+
+         @Override
+         public void ticks(long lastTick, long count) {
+            received[0] = lastTick;
+            received[1] = count;
+         }
+      });
+
+      source.advance();
+      source.doTicks(3);
+
+      assertEquals(3, received[0]);
+      assertEquals(3, received[1]);
+      assertEquals(1, received[2]);
+   }
+
+   @Test
+   public void testFewListeners() {
+      for (int i = 0; i < ShardedTickDispatcher.MIN_SHARD_SIZE; i++)
+         source.addListener(new RecordingListener());
+      source.advance();
+
+      assertEquals(Collections.singleton(Thread.currentThread()), threads);
+   }
+
+   @Test
+   public void testListenerChanges() {
+      RecordingListener first = new RecordingListener();
+      source.addListener(first);
+      for (int i = 0; i < LISTENERS; i++)
+         source.addListener(new RecordingListener());
+      source.advance();
+
+      RecordingListener added = new RecordingListener();
+      source.addListener(added);
+      source.removeListener(first);
+      source.advance();
+
+      assertEquals(1, first.ticks);
+      assertEquals(1, added.ticks);
+   }
+
+   @Test
+   public void testException() {
+      final AtomicBoolean thrown = new AtomicBoolean();
+      List<RecordingListener> listeners = new ArrayList<>();
+      for (int i = 0; i < LISTENERS; i++) {
+         RecordingListener listener = new RecordingListener();
+         listeners.add(listener);
+         source.addListener(listener);
+      }
+      source.addListener(new TickListener() {
+         @Override
+         public void tick(long tick) {
+            thrown.set(true);
+            throw new IllegalStateException("failing listener");
+         }
+      });
+
+      try {
+         source.advance();
+         fail();
+      } catch (IllegalStateException expected) {}
+
+      assertTrue(thrown.get());
+      for (RecordingListener listener : listeners)
+         assertEquals(1, listener.ticks);
+   }
+
+   private class RecordingListener implements TickListener {
+      private final AtomicBoolean inside = new AtomicBoolean();
+      private volatile boolean overlapped = false;
+      private long ticks = 0;
+      private long lastTick = -1;
+
+      @Override
+      public void tick(long tick) {
+         if (!inside.compareAndSet(false, true))
+            overlapped = true;
+         threads.add(Thread.currentThread());
+
+         if (tick != lastTick + 1)
+            overlapped = true;
+         lastTick = tick;
+         ticks++;
+
+         inside.set(false);
+      }
+   }
+}
@@ -0,0 +1,165 @@
+package at.borkowski.spicej.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.streams.DelayedOutputStream;
+import at.borkowski.spicej.streams.RateLimitInputStream;
+import at.borkowski.spicej.ticks.TickListener;
+
+public class SimulationSchedulerTest {
+
+   private static final long DELAY = 1000000;
+
+   private SimulationTickSource t;
+   private SimulationScheduler sut;
+
+   @Before
+   public void setUp() {
+      t = new SimulationTickSource();
+      sut = new SimulationScheduler(t);
+      t.advance();
+   }
+
+   @Test
+   public void testNoEvents() {
+      assertEquals(Long.MAX_VALUE, sut.nextEventTick());
+      assertFalse(sut.step());
+      assertEquals(0, sut.run());
+      assertEquals(0, t.getCurrentTick());
+   }
+
+   @Test
+   public void testDelay() throws IOException {
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      DelayedOutputStream delayed = new DelayedOutputStream(t, sink, DELAY, 10);
+
+      delayed.write(1);
+      assertEquals(DELAY, sut.nextEventTick());
+
+      assertTrue(sut.step());
+      assertEquals(DELAY, t.getCurrentTick());
+      assertEquals(1, sink.size());
+      assertFalse(sut.step());
+
+      delayed.close();
+   }
+
+   @Test
+   public void testActions() throws IOException {
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      final DelayedOutputStream delayed = new DelayedOutputStream(t, sink, DELAY, 10);
+
+      // a sender writing a byte every 10 delays, with the delay halved in
+      // between
+      for (int i = 0; i < 3; i++) {
+         sut.schedule(i * 10 * DELAY, new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  delayed.write(1);
+               } catch (IOException e) {
+                  throw new RuntimeException(e);
+               }
+            }
+         });
+      }
+      sut.schedule(15 * DELAY, new Runnable() {
+         @Override
+         public void run() {
+            delayed.setDelay(DELAY / 2);
+         }
+      });
+
+      assertEquals(2, sut.runUntil(10 * DELAY - 1));
+      assertEquals(1, sink.size());
+
+      // the writes, the releases and the change of the delay
+      assertEquals(5, sut.run());
+      assertEquals(3, sink.size());
+      assertEquals(20 * DELAY + DELAY / 2, t.getCurrentTick());
+
+      delayed.close();
+   }
+
+   @Test
+   public void testActionOrder() {
+      final List<Integer> order = new ArrayList<>();
+      for (final int i : new int[] { 3, 1, 2 }) {
+         sut.schedule(i == 3 ? 5 : 7, new Runnable() {
+            @Override
+            public void run() {
+               order.add(i);
+               if (i == 3) {
+                  sut.schedule(5, new Runnable() {
+                     @Override
+                     public void run() {
+                        order.add(4);
+                     }
+                  });
+               }
+            }
+         });
+      }
+
+      assertEquals(2, sut.run());
+      assertEquals(Arrays.asList(3, 4, 1, 2), order);
+      assertEquals(7, t.getCurrentTick());
+   }
+
+   @Test
+   public void testRate() throws IOException {
+      RateLimitInputStream limited = new RateLimitInputStream(new ByteArrayInputStream(new byte[100]), t, 10, 100);
+      limited.setNonBlocking(true);
+      byte[] buffer = new byte[20];
+
+      assertEquals(10, limited.read(buffer));
+      assertEquals(100, sut.nextEventTick());
+      sut.step();
+      assertEquals(10, limited.available());
+      assertEquals(10, limited.read(buffer));
+
+      // a full bucket doesn't need refills
+      sut.step();
+      assertEquals(200, t.getCurrentTick());
+      assertEquals(Long.MAX_VALUE, sut.nextEventTick());
+
+      limited.close();
+   }
+
+   @Test
+   public void testRunUntil() {
+      final int[] ticks = { 0 };
+      t.addListener(new TickListener() {
+         @Override
+         public void tick(long tick) {
+            ticks[0]++;
+         }
+      });
+
+      // a plain listener needs every tick
+      assertEquals(10, sut.runUntil(10));
+      assertEquals(10, ticks[0]);
+      assertEquals(10, t.getCurrentTick());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testPastAction() {
+      t.advance();
+      sut.schedule(0, new Runnable() {
+         @Override
+         public void run() {}
+      });
+   }
+}
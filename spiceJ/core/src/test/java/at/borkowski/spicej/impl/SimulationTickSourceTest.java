@@ -1,6 +1,7 @@
 package at.borkowski.spicej.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -8,6 +9,7 @@ import static org.mockito.Mockito.verify;
 import org.junit.Before;
 import org.junit.Test;
 
+import at.borkowski.spicej.ticks.BulkTickListener;
 import at.borkowski.spicej.ticks.TickListener;
 
 public class SimulationTickSourceTest {
@@ -63,6 +65,54 @@ public class SimulationTickSourceTest {
       verify(listenerB).tick(4);
    }
 
+   @Test
+   public void testBulkTicks() {
+      TickListener listener = mock(TickListener.class);
+      BulkTickListener bulkListener = mock(BulkTickListener.class);
+
+      sut.addListener(listener);
+      sut.addListener(bulkListener);
+      sut.doTicks(3);
+
+      assertEquals(3, sut.getCurrentTick());
+      verify(listener).tick(1);
+      verify(listener).tick(2);
+      verify(listener).tick(3);
+      verify(bulkListener).ticks(3, 3);
+      verify(bulkListener, never()).tick(anyLong());
+   }
+
+   @Test
+   public void testAdvanceMany() {
+      TickListener listener = mock(TickListener.class);
+      BulkTickListener bulkListener = mock(BulkTickListener.class);
+
+      sut.addListener(listener);
+      sut.addListener(bulkListener);
+      sut.advance(0);
+      assertEquals(0, sut.getCurrentTick());
+
+      sut.advance(1);
+      verify(listener).tick(1);
+      verify(bulkListener).tick(1);
+
+      sut.advance(1000);
+      assertEquals(1001, sut.getCurrentTick());
+      verify(listener).tick(2);
+      verify(listener).tick(1001);
+      verify(bulkListener).ticks(1001, 1000);
+
+      sut.advanceTo(1001);
+      sut.advanceTo(2000);
+      assertEquals(2000, sut.getCurrentTick());
+      verify(bulkListener).ticks(2000, 999);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testAdvanceToPast() {
+      sut.advanceTo(-1);
+   }
+
    @Test
    public void testReset() {
       assertEquals(0, sut.getCurrentTick());
@@ -0,0 +1,82 @@
+package at.borkowski.spicej.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SleepWakeupTest {
+
+   private SleepWakeup sut;
+   private AtomicInteger awake;
+
+   @Before
+   public void setUp() {
+      sut = new SleepWakeup();
+      awake = new AtomicInteger();
+   }
+
+   @Test(timeout = 4000)
+   public void testWakeupAll() throws InterruptedException {
+      Thread a = startSleeper();
+      Thread b = startSleeper();
+      awaitWaiters(2);
+
+      sut.wakeup();
+      a.join();
+      b.join();
+
+      assertEquals(2, awake.get());
+      assertFalse(sut.hasWaiters());
+   }
+
+   @Test(timeout = 4000)
+   public void testWakeupLimited() throws InterruptedException {
+      Thread a = startSleeper();
+      Thread b = startSleeper();
+      awaitWaiters(2);
+
+      sut.wakeup(1);
+      while (awake.get() == 0)
+         Thread.sleep(1);
+      Thread.sleep(50);
+      assertEquals(1, awake.get());
+      assertTrue(sut.hasWaiters());
+
+      sut.wakeup(1);
+      a.join();
+      b.join();
+      assertEquals(2, awake.get());
+   }
+
+   @Test
+   public void testWakeupWithoutWaiters() {
+      sut.wakeup();
+      sut.wakeup(5);
+      assertFalse(sut.hasWaiters());
+   }
+
+   private Thread startSleeper() {
+      Thread thread = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            sut.sleep();
+            awake.incrementAndGet();
+         }
+      });
+      thread.start();
+      return thread;
+   }
+
+   private void awaitWaiters(int count) throws InterruptedException {
+      // the waiters queue is not observable beyond hasWaiters(), so give the
+      // second sleeper some time after the first one has been seen
+      while (!sut.hasWaiters())
+         Thread.sleep(1);
+      Thread.sleep(50 * count);
+   }
+}
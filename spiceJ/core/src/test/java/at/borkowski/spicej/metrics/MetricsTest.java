@@ -0,0 +1,108 @@
+package at.borkowski.spicej.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+   @Test
+   public void testShapingMetrics() {
+      ShapingMetrics sut = new ShapingMetrics();
+
+      sut.addBytes(10);
+      sut.addBytes(-3);
+      sut.addBlocked(100);
+      sut.addBlocked(50);
+
+      assertEquals(7, sut.getBytes());
+      assertEquals(150, sut.getBlockedNanoseconds());
+      assertEquals(2, sut.getBlockedCount());
+      assertEquals(0, sut.getBufferedBytes());
+      assertEquals(0, sut.getBufferCapacity());
+
+      sut.setBuffer(new BufferGauge() {
+         @Override
+         public int getBufferedBytes() {
+            return 5;
+         }
+
+         @Override
+         public int getBufferCapacity() {
+            return 20;
+         }
+
+         @Override
+         public int getPendingReleases() {
+            return 2;
+         }
+      });
+
+      assertEquals(5, sut.getBufferedBytes());
+      assertEquals(20, sut.getBufferCapacity());
+      assertEquals(2, sut.getPendingReleases());
+   }
+
+   @Test
+   public void testTickMetrics() {
+      TickMetrics sut = new TickMetrics();
+      assertEquals(0, sut.getAverageLagNanoseconds());
+
+      sut.recordTick(10);
+      sut.recordTick(30);
+      sut.recordTick(20);
+
+      assertEquals(3, sut.getTicks());
+      assertEquals(60, sut.getTotalLagNanoseconds());
+      assertEquals(30, sut.getMaxLagNanoseconds());
+      assertEquals(20, sut.getAverageLagNanoseconds());
+      assertEquals(20, sut.getLastLagNanoseconds());
+
+      sut.recordMissed(5);
+      sut.recordSkipped(2);
+      assertEquals(5, sut.getMissedTicks());
+      assertEquals(2, sut.getSkippedTicks());
+
+      assertEquals(0, sut.getAverageDispatchNanoseconds());
+      sut.recordDispatch(100);
+      sut.recordDispatch(300);
+      assertEquals(300, sut.getMaxDispatchNanoseconds());
+      assertEquals(200, sut.getAverageDispatchNanoseconds());
+      assertEquals(300, sut.getLastDispatchNanoseconds());
+   }
+
+   @Test
+   public void testRegister() throws Exception {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ShapingMetrics metrics = new ShapingMetrics();
+      metrics.addBytes(42);
+
+      ObjectName name = Metrics.register(metrics, "type=Shaper,name=test");
+      try {
+         assertEquals(new ObjectName("at.borkowski.spicej:type=Shaper,name=test"), name);
+         assertEquals(42L, server.getAttribute(name, "Bytes"));
+      } finally {
+         Metrics.unregister(name);
+      }
+      assertFalse(server.isRegistered(name));
+
+      // unregistering twice is harmless
+      Metrics.unregister(name);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testRegisterTwice() {
+      ObjectName name = Metrics.register(new TickMetrics(), "type=Clock,name=twice");
+      try {
+         Metrics.register(new TickMetrics(), "type=Clock,name=twice");
+      } finally {
+         Metrics.unregister(name);
+      }
+   }
+}
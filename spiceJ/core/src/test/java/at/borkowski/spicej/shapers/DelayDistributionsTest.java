@@ -0,0 +1,93 @@
+package at.borkowski.spicej.shapers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class DelayDistributionsTest {
+
+   private static final int SAMPLES = 100000;
+
+   private final SplittableRandom random = new SplittableRandom(1234);
+
+   @Test
+   public void testConstant() {
+      DelayDistribution sut = DelayDistributions.constant(7);
+      for (int i = 0; i < 100; i++)
+         assertEquals(7, sut.sample(random));
+   }
+
+   @Test
+   public void testUniform() {
+      DelayDistribution sut = DelayDistributions.uniform(3, 6);
+      int[] counts = new int[10];
+      for (int i = 0; i < SAMPLES; i++)
+         counts[(int) sut.sample(random)]++;
+
+      for (int i = 0; i < counts.length; i++)
+         if (i < 3 || i > 6)
+            assertEquals(0, counts[i]);
+         else
+            assertEquals(SAMPLES / 4, counts[i], SAMPLES / 100);
+   }
+
+   @Test
+   public void testNormal() {
+      DelayDistribution sut = DelayDistributions.normal(50, 5);
+      double sum = 0, sumOfSquares = 0;
+      for (int i = 0; i < SAMPLES; i++) {
+         long sample = sut.sample(random);
+         sum += sample;
+         sumOfSquares += sample * sample;
+      }
+
+      double mean = sum / SAMPLES;
+      double variance = sumOfSquares / SAMPLES - mean * mean;
+      assertEquals(50, mean, 0.1);
+      // rounding to whole ticks adds a variance of 1/12
+      assertEquals(25 + 1D / 12, variance, 0.5);
+   }
+
+   @Test
+   public void testNormalClamped() {
+      DelayDistribution sut = DelayDistributions.normal(0, 10);
+      for (int i = 0; i < SAMPLES; i++)
+         assertTrue(sut.sample(random) >= 0);
+   }
+
+   @Test
+   public void testPareto() {
+      DelayDistribution sut = DelayDistributions.pareto(10, 1.5, 1000);
+      int above100 = 0;
+      for (int i = 0; i < SAMPLES; i++) {
+         long sample = sut.sample(random);
+         assertTrue(sample >= 10 && sample <= 1000);
+         if (sample > 100)
+            above100++;
+      }
+
+      // P(X > 100) = (10 / 100) ^ 1.5
+      assertEquals(Math.pow(0.1, 1.5), (double) above100 / SAMPLES, 0.005);
+   }
+
+   @Test
+   public void testHistogram() {
+      DelayDistribution sut = DelayDistributions.histogram(new long[] { 1, 5, 9, 20 }, new double[] { 1, 0, 2, 1 });
+      int[] counts = new int[21];
+      for (int i = 0; i < SAMPLES; i++)
+         counts[(int) sut.sample(random)]++;
+
+      assertEquals(SAMPLES / 4, counts[1], SAMPLES / 100);
+      assertEquals(0, counts[5]);
+      assertEquals(SAMPLES / 2, counts[9], SAMPLES / 100);
+      assertEquals(SAMPLES / 4, counts[20], SAMPLES / 100);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testHistogramMismatch() {
+      DelayDistributions.histogram(new long[] { 1, 2 }, new double[] { 1 });
+   }
+}
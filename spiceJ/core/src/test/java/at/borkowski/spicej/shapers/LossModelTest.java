@@ -0,0 +1,87 @@
+package at.borkowski.spicej.shapers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class LossModelTest {
+
+   private static final int MESSAGES = 1000000;
+
+   private final SplittableRandom random = new SplittableRandom(99);
+
+   @Test
+   public void testNone() {
+      assertEquals(Long.MAX_VALUE, LossModel.none().start(random).nextGap());
+   }
+
+   @Test
+   public void testGeometric() {
+      assertEquals(0, LossModel.geometric(random, 1));
+      assertEquals(Long.MAX_VALUE, LossModel.geometric(random, 0));
+
+      long sum = 0;
+      for (int i = 0; i < MESSAGES; i++)
+         sum += LossModel.geometric(random, 0.2);
+      // mean number of failures before a success: (1 - p) / p
+      assertEquals(4, (double) sum / MESSAGES, 0.05);
+   }
+
+   @Test
+   public void testBernoulli() {
+      boolean[] lost = simulate(LossModel.bernoulli(0.01));
+      assertEquals(0.01, rate(lost), 0.001);
+   }
+
+   @Test
+   public void testGilbertElliott() {
+      // bad state a fifth of the time, bursts of 1 / 0.2 = 5 messages
+      boolean[] lost = simulate(LossModel.gilbertElliott(0.05, 0.2, 0, 1));
+      assertEquals(0.2, rate(lost), 0.01);
+
+      int bursts = 0;
+      for (int i = 0; i < lost.length; i++)
+         if (lost[i] && (i == 0 || !lost[i - 1]))
+            bursts++;
+      assertEquals(5, (double) count(lost) / bursts, 0.2);
+   }
+
+   @Test
+   public void testGilbertElliottPartialLoss() {
+      boolean[] lost = simulate(LossModel.gilbertElliott(0.1, 0.3, 0.01, 0.5));
+      // 0.75 * 0.01 + 0.25 * 0.5
+      assertEquals(0.1325, rate(lost), 0.005);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testInvalidProbability() {
+      LossModel.bernoulli(1.5);
+   }
+
+   private boolean[] simulate(LossModel model) {
+      LossModel.Process sut = model.start(random);
+      boolean[] lost = new boolean[MESSAGES];
+      long next = sut.nextGap();
+      for (int i = 0; i < MESSAGES; i++) {
+         if (next-- == 0) {
+            lost[i] = true;
+            next = sut.nextGap();
+         }
+      }
+      return lost;
+   }
+
+   private static int count(boolean[] lost) {
+      int count = 0;
+      for (boolean l : lost)
+         if (l)
+            count++;
+      return count;
+   }
+
+   private static double rate(boolean[] lost) {
+      return (double) count(lost) / lost.length;
+   }
+}
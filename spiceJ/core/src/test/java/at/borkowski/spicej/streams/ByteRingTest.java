@@ -0,0 +1,82 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.junit.Test;
+
+public class ByteRingTest {
+
+   @Test
+   public void testWrapHeap() {
+      testWrap(new ByteRing(10, false));
+   }
+
+   @Test
+   public void testWrapDirect() {
+      testWrap(new ByteRing(10, true));
+   }
+
+   private void testWrap(ByteRing sut) {
+      byte counter = 0;
+      for (int round = 0; round < 20; round++) {
+         ByteBuffer src = ByteBuffer.allocate(7);
+         for (int i = 0; i < 7; i++)
+            src.put(counter++);
+         src.flip();
+
+         sut.put(src, 7);
+         assertEquals(0, src.remaining());
+         assertEquals(7, sut.used());
+         assertEquals(3, sut.free());
+
+         ByteBuffer dst = ByteBuffer.allocateDirect(7);
+         sut.get(dst, 7);
+         assertEquals(0, sut.used());
+         dst.flip();
+         for (int i = 0; i < 7; i++)
+            assertEquals((byte) (counter - 7 + i), dst.get());
+      }
+   }
+
+   @Test
+   public void testFillDrain() throws IOException {
+      ByteRing sut = new ByteRing(10, true);
+      Pipe in = Pipe.open(), out = Pipe.open();
+      in.source().configureBlocking(false);
+      out.source().configureBlocking(false);
+
+      assertEquals(0, sut.fill(in.source(), sut.free()));
+
+      in.sink().write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6 }));
+      assertEquals(6, sut.fill(in.source(), sut.free()));
+      assertEquals(4, sut.drain(out.sink(), 4));
+
+      in.sink().write(ByteBuffer.wrap(new byte[] { 7, 8, 9, 10, 11, 12 }));
+      assertEquals(6, sut.fill(in.source(), sut.free()));
+      assertEquals(8, sut.used());
+      assertEquals(8, sut.drain(out.sink(), 8));
+
+      ByteBuffer result = ByteBuffer.allocate(20);
+      assertEquals(12, out.source().read(result));
+      for (int i = 0; i < 12; i++)
+         assertEquals(i + 1, result.get(i));
+
+      in.sink().close();
+      assertEquals(-1, sut.fill(in.source(), sut.free()));
+   }
+
+   @Test
+   public void testPutRestoresLimit() {
+      ByteRing sut = new ByteRing(4, false);
+      ByteBuffer src = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6 });
+
+      sut.put(src, 4);
+      assertEquals(4, src.position());
+      assertEquals(6, src.limit());
+      assertEquals(0, sut.free());
+   }
+}
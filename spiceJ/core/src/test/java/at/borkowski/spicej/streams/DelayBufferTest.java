@@ -0,0 +1,64 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DelayBufferTest {
+
+   private static final int LENGTH = 3 * DelayBuffer.SCRATCH_SIZE + 17;
+
+   @Test
+   public void testHeap() throws IOException {
+      DelayBuffer sut = DelayBuffer.allocate(LENGTH, false);
+      assertFalse(sut.isDirect());
+      testTransfer(sut);
+   }
+
+   @Test
+   public void testDirect() throws IOException {
+      DelayBuffer sut = DelayBuffer.allocate(LENGTH, true);
+      assertTrue(sut.isDirect());
+      testTransfer(sut);
+   }
+
+   private void testTransfer(DelayBuffer sut) throws IOException {
+      assertEquals(LENGTH, sut.length());
+
+      byte[] data = new byte[LENGTH - 10];
+      new Random(1).nextBytes(data);
+
+      ByteArrayInputStream in = new ByteArrayInputStream(data);
+      int index = 5;
+      while (index < 5 + data.length) {
+         int rd = sut.readFrom(in, index, 5 + data.length - index);
+         assertTrue(rd > 0);
+         index += rd;
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      sut.writeTo(out, 5, data.length);
+      assertArrayEquals(data, out.toByteArray());
+
+      byte[] copy = new byte[data.length];
+      sut.get(5, copy, 0, copy.length);
+      assertArrayEquals(data, copy);
+
+      sut.put(0, (byte) 42);
+      assertEquals(42, sut.get(0));
+
+      sut.put(LENGTH - 3, new byte[] { 1, 2, 3 }, 0, 3);
+      byte[] tail = new byte[3];
+      sut.get(LENGTH - 3, tail, 0, 3);
+      assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, tail));
+   }
+}
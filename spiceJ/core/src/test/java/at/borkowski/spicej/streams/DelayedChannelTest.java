@@ -0,0 +1,170 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.Streams;
+import at.borkowski.spicej.impl.SimulationTickSource;
+
+public class DelayedChannelTest {
+
+   public static final int BUFFER = 50;
+   public static final int DELAY = 3;
+
+   SimulationTickSource t;
+   Pipe pipe;
+
+   @Before
+   public void setUp() throws IOException {
+      t = new SimulationTickSource();
+      pipe = Pipe.open();
+      pipe.source().configureBlocking(false);
+
+      t.advance();
+      t.advance();
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      pipe.sink().close();
+      pipe.source().close();
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testReadRequiresNonBlocking() throws IOException {
+      pipe.source().configureBlocking(true);
+      new DelayedReadableChannel(t, pipe.source(), DELAY, BUFFER);
+   }
+
+   @Test
+   public void testReadDelay() throws IOException {
+      DelayedReadableChannel sut = Streams.addReadDelay(pipe.source(), t, DELAY, BUFFER, true);
+      sut.setNonBlocking(true);
+      assertTrue(sut.isDirect());
+
+      pipe.sink().write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }));
+
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      assertEquals(0, sut.read(dst));
+      for (int i = 0; i < DELAY - 1; i++) {
+         t.advance();
+         assertEquals(0, sut.read(dst));
+      }
+      t.advance();
+      assertEquals(5, sut.read(dst));
+      assertEquals(0, sut.read(dst));
+
+      dst.flip();
+      for (int i = 0; i < 5; i++)
+         assertEquals(i + 1, dst.get());
+   }
+
+   @Test
+   public void testReadDelayAdvanceMany() throws IOException {
+      DelayedReadableChannel sut = new DelayedReadableChannel(t, pipe.source(), DELAY, BUFFER);
+      sut.setNonBlocking(true);
+
+      pipe.sink().write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }));
+
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      t.advance(DELAY - 1);
+      assertEquals(0, sut.read(dst));
+      t.advance(1);
+      assertEquals(5, sut.read(dst));
+
+      // the data is read as of the first tick of the span
+      pipe.sink().write(ByteBuffer.wrap(new byte[] { 6, 7 }));
+      t.advance(DELAY);
+      assertEquals(2, sut.read(dst));
+   }
+
+   @Test
+   public void testReadEof() throws IOException {
+      DelayedReadableChannel sut = new DelayedReadableChannel(t, pipe.source(), DELAY, BUFFER);
+      sut.setNonBlocking(true);
+
+      pipe.sink().write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+      t.advance();
+      pipe.sink().close();
+      t.advance();
+
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      assertEquals(0, sut.read(dst));
+      t.advance();
+      assertEquals(3, sut.read(dst));
+      assertEquals(-1, sut.read(dst));
+   }
+
+   @Test(timeout = 5000)
+   public void testReadBlocking() throws Exception {
+      final DelayedReadableChannel sut = new DelayedReadableChannel(t, pipe.source(), DELAY, BUFFER);
+      pipe.sink().write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+
+      final int[] result = new int[1];
+      Thread reader = new Thread() {
+         @Override
+         public void run() {
+            try {
+               result[0] = sut.read(ByteBuffer.allocate(100));
+            } catch (IOException e) {
+               result[0] = -2;
+            }
+         }
+      };
+      reader.start();
+
+      for (int i = 0; i < DELAY; i++)
+         t.advance();
+      reader.join();
+
+      assertEquals(3, result[0]);
+   }
+
+   @Test
+   public void testWriteDelay() throws IOException {
+      DelayedWritableChannel sut = Streams.addWriteDelay(pipe.sink(), t, DELAY, BUFFER, false);
+
+      ByteBuffer src = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+      assertEquals(5, sut.write(src));
+
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      for (int i = 0; i < DELAY - 1; i++) {
+         t.advance();
+         assertEquals(0, pipe.source().read(dst));
+      }
+      t.advance();
+      assertEquals(5, pipe.source().read(dst));
+   }
+
+   @Test
+   public void testWriteDelay0() throws IOException {
+      DelayedWritableChannel sut = new DelayedWritableChannel(t, pipe.sink(), 0, BUFFER, true);
+
+      assertEquals(5, sut.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 })));
+      assertEquals(5, pipe.source().read(ByteBuffer.allocate(100)));
+   }
+
+   @Test
+   public void testWriteNonBlockingFull() throws IOException {
+      DelayedWritableChannel sut = new DelayedWritableChannel(t, pipe.sink(), DELAY, 10);
+      sut.setNonBlocking(true);
+
+      ByteBuffer src = ByteBuffer.wrap(new byte[15]);
+      assertEquals(10, sut.write(src));
+      assertEquals(0, sut.write(src));
+
+      for (int i = 0; i < DELAY; i++)
+         t.advance();
+
+      assertEquals(5, sut.write(src));
+      assertEquals(10, pipe.source().read(ByteBuffer.allocate(100)));
+   }
+}
@@ -0,0 +1,24 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.streams.util.PipedInputStream;
+
+/**
+ * Runs the tests of {@link DelayedInputStreamTest} with the buffer in direct memory.
+ */
+public class DelayedInputStreamDirectTest extends DelayedInputStreamTest {
+
+   @Override
+   DelayedInputStream create(SimulationTickSource t, PipedInputStream real, long delay, int bufferSize) {
+      return new DelayedInputStream(t, real, delay, bufferSize, true);
+   }
+
+   @Test
+   public void testDirect() {
+      assertTrue(sutn.isDirect());
+   }
+}
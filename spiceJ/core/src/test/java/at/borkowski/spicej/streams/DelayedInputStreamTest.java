@@ -32,11 +32,11 @@ public class DelayedInputStreamTest {
       PipedInputStream pis0, pis1, pisn;
 
       feed0 = new PipedOutputStream(pis0 = new PipedInputStream());
-      sut0 = new DelayedInputStream(t, pis0, 0, BUFFER);
+      sut0 = create(t, pis0, 0, BUFFER);
       feed1 = new PipedOutputStream(pis1 = new PipedInputStream());
-      sut1 = new DelayedInputStream(t, pis1, 1, BUFFER);
+      sut1 = create(t, pis1, 1, BUFFER);
       feedn = new PipedOutputStream(pisn = new PipedInputStream());
-      sutn = new DelayedInputStream(t, pisn, DELAY, BUFFER);
+      sutn = create(t, pisn, DELAY, BUFFER);
 
       t.advance();
       t.advance();
@@ -45,6 +45,10 @@ public class DelayedInputStreamTest {
       t.advance();
    }
 
+   DelayedInputStream create(SimulationTickSource t, PipedInputStream real, long delay, int bufferSize) {
+      return new DelayedInputStream(t, real, delay, bufferSize);
+   }
+
    @Test
    public void testOneByteDelay0() throws IOException {
       DelayedInputStream sut = sut0;
@@ -0,0 +1,24 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.streams.util.PipedOutputStream;
+
+/**
+ * Runs the tests of {@link DelayedOutputStreamTest} with the buffer in direct memory.
+ */
+public class DelayedOutputStreamDirectTest extends DelayedOutputStreamTest {
+
+   @Override
+   DelayedOutputStream create(SimulationTickSource t, PipedOutputStream real, long delay, int bufferSize) {
+      return new DelayedOutputStream(t, real, delay, bufferSize, true);
+   }
+
+   @Test
+   public void testDirect() {
+      assertTrue(sutn.isDirect());
+   }
+}
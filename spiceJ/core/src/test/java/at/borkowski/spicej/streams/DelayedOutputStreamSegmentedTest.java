@@ -0,0 +1,58 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.streams.util.PipedInputStream;
+import at.borkowski.spicej.streams.util.PipedOutputStream;
+
+/**
+ * Runs the tests of {@link DelayedOutputStreamTest} with a segmented buffer.
+ * The segments are small, so that the tests' data spans several of them.
+ */
+public class DelayedOutputStreamSegmentedTest extends DelayedOutputStreamTest {
+
+   public static final int SEGMENT = 16;
+
+   SegmentPool pool;
+
+   @Override
+   DelayedOutputStream create(SimulationTickSource t, PipedOutputStream real, long delay, int bufferSize) {
+      if (pool == null)
+         pool = new SegmentPool(SEGMENT, 100);
+      return new DelayedOutputStream(t, real, delay, pool, bufferSize);
+   }
+
+   @Test
+   public void testSegmentsFollowData() throws IOException {
+      DelayedOutputStream sut = sutn;
+      PipedInputStream feed = feedn;
+
+      assertFalse(sut.isDirect());
+      assertEquals(BUFFER, sut.getBufferSize());
+      assertEquals(0, sut.segmentCount());
+
+      sut.write(new byte[40]);
+      assertEquals(3, sut.segmentCount());
+      assertEquals(0, pool.getPooledSegments());
+
+      for (int i = 0; i < DELAY; i++)
+         t.advance();
+
+      assertEquals(40, feed.read(new byte[100]));
+      assertEquals(0, sut.bufferedBytes());
+      // the last segment is still being written to
+      assertEquals(1, sut.segmentCount());
+      assertEquals(2, pool.getPooledSegments());
+
+      // 8 bytes fill the last segment, the rest takes the pooled ones
+      sut.write(new byte[30]);
+      assertEquals(3, sut.segmentCount());
+      assertEquals(0, pool.getPooledSegments());
+   }
+}
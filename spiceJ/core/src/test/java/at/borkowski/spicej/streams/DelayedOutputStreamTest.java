@@ -10,6 +10,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.metrics.ShapingMetrics;
 import at.borkowski.spicej.streams.util.PipedInputStream;
 import at.borkowski.spicej.streams.util.PipedOutputStream;
 
@@ -32,11 +33,11 @@ public class DelayedOutputStreamTest {
       PipedOutputStream pos0, pos1, posn;
 
       feed0 = new PipedInputStream(pos0 = new PipedOutputStream());
-      sut0 = new DelayedOutputStream(t, pos0, 0, BUFFER);
+      sut0 = create(t, pos0, 0, BUFFER);
       feed1 = new PipedInputStream(pos1 = new PipedOutputStream());
-      sut1 = new DelayedOutputStream(t, pos1, 1, BUFFER);
+      sut1 = create(t, pos1, 1, BUFFER);
       feedn = new PipedInputStream(posn = new PipedOutputStream());
-      sutn = new DelayedOutputStream(t, posn, DELAY, BUFFER);
+      sutn = create(t, posn, DELAY, BUFFER);
 
       t.advance();
       t.advance();
@@ -45,6 +46,27 @@ public class DelayedOutputStreamTest {
       t.advance();
    }
 
+   DelayedOutputStream create(SimulationTickSource t, PipedOutputStream real, long delay, int bufferSize) {
+      return new DelayedOutputStream(t, real, delay, bufferSize);
+   }
+
+   @Test
+   public void testIdle() throws IOException {
+      // an idle stream doesn't need any ticks, but still delays data from the
+      // current tick on
+      assertEquals(Long.MAX_VALUE, sutn.nextTick());
+
+      sutn.write(13);
+      assertEquals(t.getCurrentTick() + DELAY, sutn.nextTick());
+
+      for (int i = 0; i < DELAY; i++) {
+         assertEquals(0, feedn.available());
+         t.advance();
+      }
+      assertEquals(1, feedn.available());
+      assertEquals(Long.MAX_VALUE, sutn.nextTick());
+   }
+
    @Test
    public void testOneByteDelay0() throws IOException {
       DelayedOutputStream sut = sut0;
@@ -329,4 +351,73 @@ public class DelayedOutputStreamTest {
       }
 
    }
+
+   @Test
+   public void testSingleBytesCoalesced() throws IOException {
+      DelayedOutputStream sut = sutn;
+      PipedInputStream feed = feedn;
+
+      for (int i = 0; i < 10; i++)
+         sut.write(i);
+      assertEquals(1, sut.tickMarkCount());
+      t.advance();
+      for (int i = 10; i < 20; i++)
+         sut.write(i);
+      assertEquals(2, sut.tickMarkCount());
+      assertEquals(20, sut.bufferedBytes());
+
+      for (int i = 0; i < DELAY - 1; i++)
+         t.advance();
+      assertEquals(10, feed.available());
+      t.advance();
+      assertEquals(20, feed.available());
+      assertEquals(0, sut.tickMarkCount());
+
+      for (int i = 0; i < 20; i++)
+         assertEquals(i, feed.read());
+   }
+
+   @Test
+   public void testWriteToBufferEnd() throws IOException {
+      DelayedOutputStream sut = sutn;
+      PipedInputStream feed = feedn;
+
+      sut.write(1);
+      for (int i = 0; i < DELAY; i++)
+         t.advance();
+      assertEquals(1, feed.read());
+
+      // the ring buffer has BUFFER + 1 bytes, so this write ends exactly at its end
+      sut.write(new byte[BUFFER]);
+      t.advance();
+      assertEquals(0, feed.available());
+
+      for (int i = 0; i < DELAY - 1; i++)
+         t.advance();
+      assertEquals(BUFFER, feed.available());
+   }
+
+   @Test
+   public void testMetrics() throws IOException {
+      ShapingMetrics metrics = new ShapingMetrics();
+      sutn.setMetrics(metrics);
+      assertEquals(BUFFER, metrics.getBufferCapacity());
+
+      sutn.write(new byte[10]);
+      t.advance();
+      sutn.write(new byte[5]);
+      assertEquals(15, metrics.getBufferedBytes());
+      assertEquals(2, metrics.getPendingReleases());
+      assertEquals(0, metrics.getBytes());
+
+      for (int i = 1; i < DELAY; i++)
+         t.advance();
+      assertEquals(10, metrics.getBytes());
+      assertEquals(5, metrics.getBufferedBytes());
+      assertEquals(1, metrics.getPendingReleases());
+
+      t.advance();
+      assertEquals(15, metrics.getBytes());
+      assertEquals(0, metrics.getBufferedBytes());
+   }
 }
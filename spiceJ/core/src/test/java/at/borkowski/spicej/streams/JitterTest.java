@@ -0,0 +1,125 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.shapers.DelayDistribution;
+import at.borkowski.spicej.shapers.DelayDistributions;
+import at.borkowski.spicej.streams.util.PipedInputStream;
+import at.borkowski.spicej.streams.util.PipedOutputStream;
+
+public class JitterTest {
+
+   private static final int DELAY = 5;
+   private static final int JITTER = 10;
+   private static final int BYTES = 200;
+   private static final long SEED = 42;
+
+   @Test
+   public void testOutputStream() throws IOException {
+      long[] releases = releasesOfOutputStream(SEED);
+
+      boolean varying = false;
+      for (int i = 0; i < BYTES; i++) {
+         // byte i is written at tick i
+         assertTrue(releases[i] >= i + DELAY);
+         assertTrue(releases[i] <= i + DELAY + JITTER);
+         if (i > 0) {
+            assertTrue("reordered", releases[i] >= releases[i - 1]);
+            varying |= releases[i] - i != releases[i - 1] - (i - 1);
+         }
+      }
+      assertTrue(varying);
+
+      assertArrayEquals(releases, releasesOfOutputStream(SEED));
+   }
+
+   private long[] releasesOfOutputStream(long seed) throws IOException {
+      SimulationTickSource t = new SimulationTickSource();
+      PipedInputStream feed = new PipedInputStream();
+      DelayedOutputStream sut = new DelayedOutputStream(t, new PipedOutputStream(feed), DELAY, 1000);
+      sut.setJitter(DelayDistributions.uniform(0, JITTER), seed);
+
+      long[] releases = new long[BYTES];
+      for (int tick = 0; tick <= BYTES + DELAY + JITTER; tick++) {
+         t.advance();
+         if (tick < BYTES)
+            sut.write(tick);
+         while (feed.available() > 0)
+            releases[feed.read()] = tick;
+      }
+      return releases;
+   }
+
+   @Test
+   public void testInputStream() throws IOException {
+      SimulationTickSource t = new SimulationTickSource();
+      PipedOutputStream feed = new PipedOutputStream();
+      DelayedInputStream sut = new DelayedInputStream(t, new PipedInputStream(feed), DELAY, 1000);
+      sut.setJitter(DelayDistributions.uniform(0, JITTER), SEED);
+
+      int expected = 0;
+      long previousRelease = 0;
+      for (int tick = 0; expected < BYTES; tick++) {
+         if (tick < BYTES)
+            feed.write(tick);
+         t.advance();
+         while (sut.available() > 0) {
+            assertEquals(expected, sut.read());
+            // byte i is read from the underlying stream at tick i
+            assertTrue(tick >= expected + DELAY - 1);
+            assertTrue(tick <= expected + DELAY - 1 + JITTER);
+            assertTrue(tick >= previousRelease);
+            previousRelease = tick;
+            expected++;
+         }
+      }
+   }
+
+   @Test
+   public void testSameTickCoalesced() throws IOException {
+      SimulationTickSource t = new SimulationTickSource();
+      DelayedOutputStream sut = new DelayedOutputStream(t, new PipedOutputStream(new PipedInputStream()), DELAY, 100000);
+      sut.setJitter(DelayDistributions.uniform(0, JITTER), SEED);
+      t.advance();
+
+      // release ticks never decrease, so one tick's many chunks end up in at
+      // most one mark per possible release tick
+      for (int i = 0; i < 5000; i++)
+         sut.write(i);
+      assertTrue(sut.tickMarkCount() <= JITTER + 1);
+   }
+
+   @Test
+   public void testDisable() throws IOException {
+      SimulationTickSource t = new SimulationTickSource();
+      PipedInputStream feed = new PipedInputStream();
+      DelayedOutputStream sut = new DelayedOutputStream(t, new PipedOutputStream(feed), 0, 100);
+
+      DelayDistribution jitter = DelayDistributions.constant(3);
+      sut.setJitter(jitter, SEED);
+      assertSame(jitter, sut.getJitter());
+
+      t.advance();
+      sut.write(1);
+      assertEquals(0, feed.available());
+      t.advance();
+      t.advance();
+      assertEquals(0, feed.available());
+      t.advance();
+      assertEquals(1, feed.available());
+
+      sut.setJitter(null, SEED);
+      assertNull(sut.getJitter());
+      sut.write(2);
+      assertEquals(2, feed.available());
+   }
+}
@@ -0,0 +1,150 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.shapers.LossModel;
+
+public class MessageImpairerTest {
+
+   private static final int MESSAGES = 100000;
+
+   SimulationTickSource t;
+   List<byte[]> delivered;
+   MessageImpairer sut;
+
+   @Before
+   public void setUp() {
+      t = new SimulationTickSource();
+      delivered = new ArrayList<>();
+      sut = new MessageImpairer(new RecordingSink(delivered), t, 7);
+      t.advance();
+   }
+
+   @Test
+   public void testUnimpaired() throws IOException {
+      sendNumbered(1000);
+
+      assertEquals(1000, delivered.size());
+      for (int i = 0; i < 1000; i++)
+         assertEquals(i, number(delivered.get(i)));
+   }
+
+   @Test
+   public void testLoss() throws IOException {
+      sut.setLossModel(LossModel.bernoulli(0.1));
+      sendNumbered(MESSAGES);
+
+      assertEquals(MESSAGES, sut.getReceived());
+      assertEquals(MESSAGES - sut.getLost(), delivered.size());
+      assertEquals(0.1, (double) sut.getLost() / MESSAGES, 0.005);
+   }
+
+   @Test
+   public void testDuplication() throws IOException {
+      sut.setDuplicationProbability(0.05);
+      sendNumbered(MESSAGES);
+
+      assertEquals(MESSAGES + sut.getDuplicated(), delivered.size());
+      assertEquals(0.05, (double) sut.getDuplicated() / MESSAGES, 0.005);
+   }
+
+   @Test
+   public void testReordering() throws IOException {
+      sut.setReorderProbability(0.1);
+      sendNumbered(MESSAGES);
+      sut.close();
+
+      assertEquals(MESSAGES, delivered.size());
+      int swapped = 0;
+      for (int i = 1; i < MESSAGES; i++)
+         if (number(delivered.get(i)) < number(delivered.get(i - 1)))
+            swapped++;
+      assertEquals(sut.getReordered(), swapped);
+      assertEquals(0.1, (double) swapped / MESSAGES, 0.01);
+   }
+
+   @Test
+   public void testHeldMessageReleasedByTick() throws IOException {
+      sut.setReorderProbability(1);
+      sut.send(new byte[] { 1 }, 0, 1);
+      assertEquals(0, delivered.size());
+
+      t.advance();
+      assertEquals(1, delivered.size());
+   }
+
+   @Test
+   public void testCorruption() throws IOException {
+      double ber = 1e-4;
+      sut.setBitErrorRate(ber);
+
+      byte[] message = new byte[100];
+      for (int i = 0; i < MESSAGES; i++)
+         sut.send(message, 0, message.length);
+
+      long flipped = 0;
+      for (byte[] d : delivered)
+         for (byte b : d)
+            flipped += Integer.bitCount(b & 0xFF);
+
+      // the original message is left untouched
+      assertArrayEquals(new byte[100], message);
+      assertEquals(ber, (double) flipped / (8L * message.length * MESSAGES), ber / 20);
+      assertTrue(sut.getCorrupted() > 0 && sut.getCorrupted() <= flipped);
+   }
+
+   @Test
+   public void testReproducible() throws IOException {
+      sut.setLossModel(LossModel.gilbertElliott(0.01, 0.3, 0, 1));
+      sut.setReorderProbability(0.01);
+      sendNumbered(10000);
+
+      List<byte[]> other = new ArrayList<>();
+      MessageImpairer sut2 = new MessageImpairer(new RecordingSink(other), t, 7);
+      sut2.setLossModel(LossModel.gilbertElliott(0.01, 0.3, 0, 1));
+      sut2.setReorderProbability(0.01);
+      for (int i = 0; i < 10000; i++)
+         sut2.send(numbered(i), 0, 4);
+
+      assertEquals(delivered.size(), other.size());
+      for (int i = 0; i < delivered.size(); i++)
+         assertArrayEquals(delivered.get(i), other.get(i));
+   }
+
+   private void sendNumbered(int count) throws IOException {
+      for (int i = 0; i < count; i++)
+         sut.send(numbered(i), 0, 4);
+   }
+
+   private static byte[] numbered(int i) {
+      return new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+   }
+
+   private static int number(byte[] b) {
+      return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+   }
+
+   private static class RecordingSink implements MessageSink {
+      private final List<byte[]> delivered;
+
+      RecordingSink(List<byte[]> delivered) {
+         this.delivered = delivered;
+      }
+
+      @Override
+      public void send(byte[] message, int offset, int length) {
+         delivered.add(Arrays.copyOfRange(message, offset, offset + length));
+      }
+   }
+}
@@ -1,6 +1,7 @@
 package at.borkowski.spicej.streams;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 
@@ -8,6 +9,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import at.borkowski.spicej.impl.SimulationTickSource;
+import at.borkowski.spicej.metrics.ShapingMetrics;
 import at.borkowski.spicej.streams.RateHelper.IdleNotify;
 
 public class RateHelperTest {
@@ -97,4 +99,171 @@ public class RateHelperTest {
       singlewrite(33);
       assertEquals(t0 + 3, t.getCurrentTick());
    }
+
+   @Test
+   public void testBurst() throws IOException {
+      sut.setBurst(30);
+      assertEquals(30, sut.getCapacity());
+
+      int rd = sut.take(50);
+      assertEquals(30, rd);
+      assertEquals(t0, t.getCurrentTick());
+      assertEquals(0, sut.getTimewiseAvailable());
+
+      t.advance();
+      assertEquals(10, sut.getTimewiseAvailable());
+      t.advance();
+      t.advance();
+      assertEquals(30, sut.getTimewiseAvailable());
+      t.advance();
+      assertEquals(30, sut.getTimewiseAvailable());
+   }
+
+   @Test
+   public void testAdvanceMany() throws IOException {
+      sut.setBurst(30);
+      assertEquals(30, sut.take(30));
+
+      t.advance(2);
+      assertEquals(20, sut.getTimewiseAvailable());
+      t.advance(1000000);
+      assertEquals(30, sut.getTimewiseAvailable());
+      assertEquals(t0 + 1000002, t.getCurrentTick());
+   }
+
+   @Test
+   public void testBurstBelowRate() throws IOException {
+      sut.setBurst(5);
+      assertEquals(10, sut.getCapacity());
+
+      int rd = sut.take(33);
+      assertEquals(10, rd);
+   }
+
+   @Test
+   public void testIdle() {
+      RateHelper helper = new RateHelper(t, 10, 3);
+      helper.setNonBlocking(true);
+
+      // the full bucket isn't refilled while the helper is idle, so these
+      // refills must not count later
+      for (int i = 0; i < 5; i++)
+         t.advance();
+      assertEquals(t0 + 5, t.getCurrentTick());
+
+      assertEquals(10, helper.tryTake(20));
+      t.advance();
+      assertEquals(0, helper.tryTake(1));
+      t.advance();
+      assertEquals(10, helper.tryTake(20));
+
+      helper.close();
+   }
+
+   @Test
+   public void testMetrics() throws IOException {
+      ShapingMetrics metrics = new ShapingMetrics();
+      sut.setMetrics(metrics);
+
+      sut.take(3);
+      sut.takeOne();
+      sut.giveBack(2);
+      assertEquals(2, metrics.getBytes());
+
+      // sleeping is simulated by the idle notify, which is not counted
+      sut.take(20);
+      assertEquals(0, metrics.getBlockedCount());
+   }
+
+   @Test
+   public void testMetricsBlocked() throws InterruptedException {
+      final RateHelper sut = new RateHelper(t, 1, 1);
+      ShapingMetrics metrics = new ShapingMetrics();
+      sut.setMetrics(metrics);
+      sut.takeOne();
+
+      Thread taker = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            sut.takeOne();
+         }
+      });
+      taker.start();
+
+      Thread.sleep(50);
+      t.advance();
+      taker.join();
+
+      assertEquals(2, metrics.getBytes());
+      assertEquals(1, metrics.getBlockedCount());
+      assertTrue(metrics.getBlockedNanoseconds() >= 40 * 1000000L);
+   }
+
+   @Test
+   public void testRefillBeforeSleep() {
+      final RateHelper sut = new RateHelper(t, 1, 1);
+      sut.takeOne();
+
+      // the refill happens after the failed take, but before the helper
+      // sleeps, so the helper must not wait for another one (an idle
+      // deadline-driven source wouldn't generate it)
+      sut.test__SetIdleNotify(new IdleNotify() {
+         @Override
+         public boolean idle() {
+            t.advance();
+            return false;
+         }
+      });
+
+      long start = System.nanoTime();
+      sut.takeOne();
+      assertTrue(System.nanoTime() - start < 1000 * 1000000L);
+   }
+
+   @Test
+   public void testSharedRefillBeforeSleep() {
+      SharedRateLimiter limiter = new SharedRateLimiter(t, 1, 1);
+      RateHelper sut = new RateHelper(t, 100, 1);
+      sut.setSharedLimiter(limiter);
+      sut.takeOne();
+
+      // like testRefillBeforeSleep, for the shared limiter
+      sut.test__SetIdleNotify(new IdleNotify() {
+         @Override
+         public boolean idle() {
+            t.advance();
+            return false;
+         }
+      });
+
+      long start = System.nanoTime();
+      sut.takeOne();
+      assertTrue(System.nanoTime() - start < 1000 * 1000000L);
+
+      sut.close();
+      limiter.close();
+   }
+
+   @Test
+   public void testSharedLimiter() {
+      SharedRateLimiter limiter = new SharedRateLimiter(t, 100, 1, 4);
+      RateHelper a = new RateHelper(t, 100, 1);
+      RateHelper b = new RateHelper(t, 100, 1);
+      a.setSharedLimiter(limiter);
+      b.setSharedLimiter(limiter);
+
+      assertEquals(100, a.tryTake(1000));
+      assertEquals(0, b.tryTake(1000));
+      assertEquals(0, b.getTimewiseAvailable());
+
+      // both have been limited, so they split the rate from now on
+      t.advance();
+      assertEquals(50, a.tryTake(1000));
+      assertEquals(50, b.tryTake(1000));
+
+      b.close();
+      assertEquals(1, limiter.getShareCount());
+      limiter.close();
+      a.close();
+   }
 }
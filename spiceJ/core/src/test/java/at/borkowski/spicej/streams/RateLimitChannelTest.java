@@ -0,0 +1,188 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.Streams;
+import at.borkowski.spicej.impl.SimulationTickSource;
+
+public class RateLimitChannelTest {
+
+   SimulationTickSource t;
+   Pipe pipe;
+
+   @Before
+   public void setUp() throws IOException {
+      t = new SimulationTickSource();
+      pipe = Pipe.open();
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      pipe.sink().close();
+      pipe.source().close();
+   }
+
+   @Test
+   public void testReadNonBlocking() throws IOException {
+      pipe.source().configureBlocking(false);
+      RateLimitReadableChannel sut = Streams.limitReadRate(pipe.source(), t, 10, 1);
+
+      pipe.sink().write(ByteBuffer.wrap(data(25)));
+
+      ByteBuffer dst = ByteBuffer.allocateDirect(100);
+      assertEquals(10, sut.read(dst));
+      assertEquals(0, sut.read(dst));
+      t.advance();
+      assertEquals(10, sut.read(dst));
+      t.advance();
+      assertEquals(5, sut.read(dst));
+      assertEquals(100, dst.limit());
+
+      dst.flip();
+      for (int i = 0; i < 25; i++)
+         assertEquals((byte) i, dst.get());
+   }
+
+   @Test
+   public void testReadGivesBackUnused() throws IOException {
+      pipe.source().configureBlocking(false);
+      RateLimitReadableChannel sut = new RateLimitReadableChannel(pipe.source(), t, 10, 1);
+
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      assertEquals(0, sut.read(dst));
+
+      pipe.sink().write(ByteBuffer.wrap(data(3)));
+      assertEquals(3, sut.read(dst));
+
+      pipe.sink().write(ByteBuffer.wrap(data(20)));
+      assertEquals(7, sut.read(dst));
+      assertEquals(0, sut.read(dst));
+   }
+
+   @Test
+   public void testReadExplicitNonBlocking() throws IOException {
+      RateLimitReadableChannel sut = new RateLimitReadableChannel(pipe.source(), t, 4, 1);
+      sut.setNonBlocking(true);
+
+      pipe.sink().write(ByteBuffer.wrap(data(10)));
+
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      assertEquals(4, sut.read(dst));
+      assertEquals(0, sut.read(dst));
+   }
+
+   @Test(timeout = 5000)
+   public void testReadBlocking() throws Exception {
+      RateLimitReadableChannel sut = new RateLimitReadableChannel(pipe.source(), t, 10, 1);
+      pipe.sink().write(ByteBuffer.wrap(data(30)));
+
+      Thread ticker = startTicker();
+      try {
+         ByteBuffer dst = ByteBuffer.allocate(30);
+         while (dst.hasRemaining())
+            assertEquals(true, sut.read(dst) > 0);
+      } finally {
+         ticker.interrupt();
+         ticker.join();
+      }
+   }
+
+   @Test
+   public void testWriteNonBlocking() throws IOException {
+      pipe.sink().configureBlocking(false);
+      pipe.source().configureBlocking(false);
+      RateLimitWritableChannel sut = Streams.limitWriteRate(pipe.sink(), t, 10, 1);
+
+      ByteBuffer src = ByteBuffer.wrap(data(25));
+      assertEquals(10, sut.write(src));
+      assertEquals(0, sut.write(src));
+      t.advance();
+      assertEquals(10, sut.write(src));
+      t.advance();
+      assertEquals(5, sut.write(src));
+      assertEquals(25, src.limit());
+
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      assertEquals(25, pipe.source().read(dst));
+   }
+
+   @Test
+   public void testNextAvailableTick() throws IOException {
+      pipe.source().configureBlocking(false);
+      pipe.sink().configureBlocking(false);
+      RateLimitReadableChannel reader = new RateLimitReadableChannel(pipe.source(), t, 10, 1);
+      RateLimitWritableChannel writer = new RateLimitWritableChannel(pipe.sink(), t, 10, 4);
+      long start = t.getCurrentTick();
+
+      assertEquals(start, writer.nextAvailableTick());
+      assertEquals(10, writer.write(ByteBuffer.wrap(data(25))));
+      // with a prescale of 4, the next refill is at the next multiple of 4
+      assertEquals((Math.floorDiv(start, 4) + 1) * 4, writer.nextAvailableTick());
+
+      assertEquals(start, reader.nextAvailableTick());
+      assertEquals(10, reader.read(ByteBuffer.allocate(100)));
+      assertEquals(start + 1, reader.nextAvailableTick());
+      t.advance();
+      assertEquals(start + 1, reader.nextAvailableTick());
+   }
+
+   @Test
+   public void testWriteBurst() throws IOException {
+      RateLimitWritableChannel sut = new RateLimitWritableChannel(pipe.sink(), t, 10, 1, 30);
+      sut.setNonBlocking(true);
+
+      t.advance();
+      t.advance();
+      t.advance();
+
+      assertEquals(30, sut.write(ByteBuffer.wrap(data(50))));
+   }
+
+   @Test(timeout = 5000)
+   public void testWriteBlocking() throws Exception {
+      pipe.source().configureBlocking(false);
+      RateLimitWritableChannel sut = new RateLimitWritableChannel(pipe.sink(), t, 10, 1);
+
+      Thread ticker = startTicker();
+      try {
+         assertEquals(35, sut.write(ByteBuffer.wrap(data(35))));
+      } finally {
+         ticker.interrupt();
+         ticker.join();
+      }
+
+      assertEquals(35, pipe.source().read(ByteBuffer.allocate(100)));
+   }
+
+   private Thread startTicker() {
+      Thread ticker = new Thread() {
+         @Override
+         public void run() {
+            try {
+               while (true) {
+                  Thread.sleep(1);
+                  t.advance();
+               }
+            } catch (InterruptedException ignore) {}
+         }
+      };
+      ticker.setDaemon(true);
+      ticker.start();
+      return ticker;
+   }
+
+   private static byte[] data(int length) {
+      byte[] data = new byte[length];
+      for (int i = 0; i < length; i++)
+         data[i] = (byte) i;
+      return data;
+   }
+}
@@ -0,0 +1,29 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class SegmentPoolTest {
+
+   @Test
+   public void testReuse() {
+      SegmentPool sut = new SegmentPool(10, 2);
+
+      byte[] a = sut.acquire(), b = sut.acquire(), c = sut.acquire();
+      assertEquals(10, a.length);
+      assertNotSame(a, b);
+
+      sut.release(a);
+      sut.release(b);
+      sut.release(c);
+      assertEquals(2, sut.getPooledSegments());
+
+      assertSame(a, sut.acquire());
+      assertSame(b, sut.acquire());
+      assertEquals(0, sut.getPooledSegments());
+      assertNotSame(c, sut.acquire());
+   }
+}
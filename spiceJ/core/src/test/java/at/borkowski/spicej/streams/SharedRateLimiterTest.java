@@ -0,0 +1,125 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.SimulationScheduler;
+import at.borkowski.spicej.impl.SimulationTickSource;
+
+public class SharedRateLimiterTest {
+
+   private SimulationTickSource t;
+   private SharedRateLimiter sut;
+
+   @Before
+   public void setUp() {
+      t = new SimulationTickSource();
+      sut = new SharedRateLimiter(t, 100, 1, 8);
+      t.advance();
+   }
+
+   @After
+   public void tearDown() {
+      sut.close();
+   }
+
+   @Test
+   public void testStripes() {
+      SharedRateLimiter.Share share = sut.attach();
+
+      // a single share takes the budget of all stripes, but not more
+      assertEquals(60, share.tryTake(60));
+      assertEquals(40, share.getAvailable());
+      assertEquals(40, share.tryTake(60));
+      assertEquals(0, share.tryTake(1));
+      assertEquals(t.getCurrentTick() + 1, share.nextAvailableTick());
+
+      // unused things are not carried over
+      t.advance();
+      t.advance();
+      assertEquals(100, share.tryTake(1000));
+   }
+
+   @Test
+   public void testMaxMinFairness() {
+      SharedRateLimiter.Share a = sut.attach();
+      SharedRateLimiter.Share b = sut.attach();
+      SharedRateLimiter.Share c = sut.attach();
+
+      assertEquals(100, a.tryTake(100));
+      assertEquals(0, b.tryTake(100));
+      assertEquals(0, c.tryTake(10));
+
+      // c only needs 10, which a and b leave to it once they're limited
+      int[] taken = null;
+      for (int i = 0; i < 2; i++) {
+         t.advance();
+         taken = new int[] { a.tryTake(100), b.tryTake(100), c.tryTake(10) };
+      }
+      assertEquals(45, taken[0]);
+      assertEquals(45, taken[1]);
+      assertEquals(10, taken[2]);
+      assertEquals(45, sut.getFairShare());
+
+      // without c, a and b split the budget
+      c.detach();
+      t.advance();
+      assertEquals(50, a.tryTake(100));
+      assertEquals(50, b.tryTake(100));
+   }
+
+   @Test
+   public void testGiveBack() {
+      SharedRateLimiter.Share a = sut.attach();
+      SharedRateLimiter.Share b = sut.attach();
+
+      assertEquals(100, a.tryTake(100));
+      a.giveBack(30);
+      assertEquals(30, b.tryTake(100));
+      assertEquals(0, a.tryTake(100));
+   }
+
+   @Test
+   public void testIdle() {
+      assertEquals(Long.MAX_VALUE, new SimulationScheduler(t).nextEventTick());
+
+      sut.attach().tryTake(1);
+      assertEquals(t.getCurrentTick() + 1, new SimulationScheduler(t).nextEventTick());
+   }
+
+   @Test
+   public void testDetached() {
+      SharedRateLimiter.Share share = sut.attach();
+      share.detach();
+
+      assertEquals(1000, share.tryTake(1000));
+      assertEquals(0, sut.getShareCount());
+   }
+
+   @Test
+   public void testCloseWakesWaiters() throws InterruptedException {
+      final SharedRateLimiter.Share share = sut.attach();
+      assertEquals(100, share.tryTake(100));
+
+      final int[] taken = new int[1];
+      Thread taker = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            taken[0] = share.take(10);
+         }
+      });
+      taker.start();
+      Thread.sleep(50);
+
+      // the share is detached, so the waiter may take everything
+      sut.close();
+      taker.join(1000);
+      assertFalse(taker.isAlive());
+      assertEquals(10, taken[0]);
+      assertEquals(0, sut.getShareCount());
+   }
+}
@@ -0,0 +1,99 @@
+package at.borkowski.spicej.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TickMarkQueueTest {
+
+   private TickMarkQueue sut;
+
+   @Before
+   public void setUp() {
+      sut = new TickMarkQueue();
+   }
+
+   @Test
+   public void testOrder() {
+      assertTrue(sut.isEmpty());
+
+      sut.add(10, 100);
+      sut.add(12, 120);
+      sut.add(15, 150);
+
+      assertEquals(3, sut.size());
+      assertEquals(10, sut.firstTick());
+      assertEquals(100, sut.poll());
+      assertEquals(12, sut.firstTick());
+      assertEquals(120, sut.poll());
+      assertEquals(15, sut.firstTick());
+      assertEquals(150, sut.poll());
+      assertTrue(sut.isEmpty());
+   }
+
+   @Test
+   public void testSameTick() {
+      sut.add(10, 100);
+      sut.add(10, 101);
+      sut.add(10, 102);
+
+      assertEquals(1, sut.size());
+      assertEquals(102, sut.poll());
+   }
+
+   @Test
+   public void testEarlierTickMerges() {
+      sut.add(10, 100);
+      sut.add(20, 200);
+      sut.add(30, 300);
+      sut.add(15, 310);
+
+      assertEquals(2, sut.size());
+      assertEquals(10, sut.firstTick());
+      assertEquals(100, sut.poll());
+      assertEquals(15, sut.firstTick());
+      assertEquals(310, sut.poll());
+   }
+
+   @Test
+   public void testCollapse() {
+      sut.add(10, 100);
+      sut.add(20, 200);
+      sut.add(30, 300);
+
+      sut.collapse(40);
+      assertEquals(3, sut.size());
+
+      sut.collapse(20);
+      assertEquals(2, sut.size());
+      assertEquals(100, sut.poll());
+      assertEquals(20, sut.firstTick());
+      assertEquals(300, sut.poll());
+      assertTrue(sut.isEmpty());
+
+      sut.collapse(5);
+      assertTrue(sut.isEmpty());
+   }
+
+   @Test
+   public void testGrowWrapped() {
+      for (int i = 0; i < 10; i++)
+         sut.add(i, i);
+      for (int i = 0; i < 10; i++)
+         assertEquals(i, sut.poll());
+
+      for (int i = 0; i < 1000; i++)
+         sut.add(i, 2 * i);
+
+      assertEquals(1000, sut.size());
+      for (int i = 0; i < 1000; i++) {
+         assertFalse(sut.isEmpty());
+         assertEquals(i, sut.firstTick());
+         assertEquals(2 * i, sut.poll());
+      }
+      assertTrue(sut.isEmpty());
+   }
+}
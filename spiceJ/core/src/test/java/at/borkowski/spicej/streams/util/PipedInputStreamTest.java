@@ -0,0 +1,112 @@
+package at.borkowski.spicej.streams.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.WouldBlockException;
+
+public class PipedInputStreamTest {
+
+   public static final int PIPE_SIZE = 10;
+
+   private PipedInputStream sut;
+   private PipedOutputStream pos;
+
+   @Before
+   public void setUp() throws IOException {
+      pos = new PipedOutputStream();
+      sut = new PipedInputStream(pos, PIPE_SIZE);
+   }
+
+   @Test
+   public void testWrapAround() throws IOException {
+      byte[] rd = new byte[PIPE_SIZE];
+
+      pos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+      assertEquals(7, sut.available());
+      assertEquals(7, sut.read(rd));
+
+      pos.write(new byte[] { 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 });
+      assertEquals(PIPE_SIZE, sut.available());
+      assertEquals(8, sut.read());
+      assertEquals(9, sut.read(rd, 0, 9));
+      assertArrayEquals(new byte[] { 9, 10, 11, 12, 13, 14, 15, 16, 17, 0 }, rd);
+      assertEquals(0, sut.available());
+   }
+
+   @Test
+   public void testEof() throws IOException {
+      pos.write(new byte[] { 1, 2 });
+      pos.close();
+
+      byte[] rd = new byte[5];
+      assertEquals(2, sut.read(rd));
+      assertEquals(-1, sut.read(rd));
+      assertEquals(-1, sut.read());
+   }
+
+   @Test(expected = IOException.class)
+   public void testClosedByReader() throws IOException {
+      sut.close();
+      pos.write(1);
+   }
+
+   @Test(expected = WouldBlockException.class)
+   public void testExceptionOnDeadlockRead() throws IOException {
+      sut.setExceptionOnDeadlock(true);
+      sut.read();
+   }
+
+   @Test
+   public void testExceptionOnDeadlockWrite() throws IOException {
+      sut.setExceptionOnDeadlock(true);
+      pos.write(new byte[PIPE_SIZE]);
+      try {
+         pos.write(1);
+      } catch (WouldBlockException expected) {
+         assertEquals(PIPE_SIZE, sut.available());
+         return;
+      }
+      throw new AssertionError("write should have thrown");
+   }
+
+   @Test(timeout = 10000)
+   public void testConcurrent() throws Exception {
+      final byte[] data = new byte[1024 * 1024];
+      new Random().nextBytes(data);
+
+      Thread writer = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Random random = new Random();
+               int done = 0;
+               while (done < data.length) {
+                  int len = Math.min(data.length - done, 1 + random.nextInt(3 * PIPE_SIZE));
+                  pos.write(data, done, len);
+                  done += len;
+               }
+               pos.close();
+            } catch (IOException e) {
+               throw new RuntimeException(e);
+            }
+         }
+      });
+      writer.start();
+
+      byte[] rd = new byte[data.length];
+      int done = 0;
+      while (done < rd.length)
+         done += sut.read(rd, done, Math.min(rd.length - done, 7));
+      writer.join();
+
+      assertEquals(-1, sut.read());
+      assertArrayEquals(data, rd);
+   }
+}
@@ -0,0 +1,62 @@
+package at.borkowski.spicej.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized direct buffers. Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so buffers which are
+ * only needed temporarily are returned to the pool and reused.
+ *
+ * The pool is not thread-safe, it is meant to be owned by a single event loop.
+ */
+class BufferPool {
+   private final int bufferSize;
+   private final int maxPooled;
+   private final ArrayDeque<ByteBuffer> pooled = new ArrayDeque<>();
+
+   /**
+    * Creates a pool.
+    *
+    * @param bufferSize
+    *           the size of each buffer, in bytes
+    * @param maxPooled
+    *           up to how many unused buffers to keep for reuse
+    */
+   BufferPool(int bufferSize, int maxPooled) {
+      if (bufferSize <= 0)
+         throw new IllegalArgumentException("buffer size must be positive");
+      this.bufferSize = bufferSize;
+      this.maxPooled = maxPooled;
+   }
+
+   /**
+    * Takes a buffer from the pool, or allocates a new one if the pool is empty.
+    * The buffer's position and limit are undefined.
+    *
+    * @return a direct buffer of {@link #getBufferSize()} bytes
+    */
+   ByteBuffer acquire() {
+      ByteBuffer buffer = pooled.poll();
+      return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+   }
+
+   /**
+    * Returns a buffer to the pool.
+    *
+    * @param buffer
+    *           the buffer, which must have been acquired from this pool
+    */
+   void release(ByteBuffer buffer) {
+      if (pooled.size() < maxPooled)
+         pooled.push(buffer);
+   }
+
+   int getBufferSize() {
+      return bufferSize;
+   }
+
+   int getPooledBuffers() {
+      return pooled.size();
+   }
+}
@@ -0,0 +1,302 @@
+package at.borkowski.spicej.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import at.borkowski.spicej.rt.RateCalculator;
+import at.borkowski.spicej.streams.DelayedInputStream;
+import at.borkowski.spicej.streams.RateLimitInputStream;
+
+/**
+ * One direction of a connection served by {@link NioSocketProxy}, moving bytes
+ * from a source channel to a sink channel.
+ *
+ * The pump applies the same shaping as the stream-based proxy: a rate
+ * limitation in the sense of {@link RateLimitInputStream} (a quota of bytes per
+ * prescaled tick, unused quota is not carried over), and a delay in the sense
+ * of {@link DelayedInputStream} (bytes become available for sending a fixed
+ * time after they have been received).
+ *
+ * Instead of being clocked by a tick source, the pump is driven by its event
+ * loop, which passes the current time (see {@link System#nanoTime()}) to every
+ * call and asks the pump for its next deadline. A pump never blocks and is not
+ * thread-safe, all methods must be called by the owning event loop.
+ */
+class ChannelPump {
+   /**
+    * The resolution of delay deadlines in nanoseconds. Deadlines are rounded up
+    * to this resolution, which matches the resolution of selector timeouts and
+    * coalesces reads within the same period into one release mark.
+    */
+   static final long DEADLINE_RESOLUTION = 1000000;
+
+   private static final int INITIAL_MARKS = 16;
+
+   private final ReadableByteChannel source;
+   private final WritableByteChannel sink;
+
+   private final ByteBuffer view;
+   private final int capacity;
+
+   private final long origin;
+   private final int bytesPerPeriod;
+   private final long period;
+   private final long delay;
+
+   private long currentPeriod = -1;
+   private int budget;
+
+   private int head = 0;
+   private int count = 0;
+
+   private long received = 0;
+   private long released = 0;
+   private long sent = 0;
+
+   private long[] markTimes = new long[INITIAL_MARKS];
+   private long[] markEnds = new long[INITIAL_MARKS];
+   private int markHead = 0;
+   private int markCount = 0;
+
+   private boolean eof = false;
+   private boolean finished = false;
+
+   /**
+    * Creates a pump.
+    *
+    * @param source
+    *           the (non-blocking) channel to read from
+    * @param sink
+    *           the (non-blocking) channel to write to
+    * @param rate
+    *           the rate limitation to apply, or <code>null</code> for no limit
+    * @param delay
+    *           the delay to add, in nanoseconds (0 for no delay)
+    * @param bufferSize
+    *           the size of the (direct) buffer to use
+    * @param now
+    *           the current time in nanoseconds
+    */
+   ChannelPump(ReadableByteChannel source, WritableByteChannel sink, RateCalculator.Result rate, long delay, int bufferSize, long now) {
+      this.source = source;
+      this.sink = sink;
+      this.origin = now;
+      this.delay = delay;
+
+      if (rate != null) {
+         bytesPerPeriod = rate.getBytesPerTick();
+         period = (long) rate.getTickNanosecondsInterval() * rate.getPrescale();
+      } else {
+         bytesPerPeriod = 0;
+         period = 0;
+      }
+
+      this.capacity = bufferSize;
+      this.view = ByteBuffer.allocateDirect(bufferSize);
+   }
+
+   /**
+    * Performs as much I/O as currently possible without blocking.
+    *
+    * @param now
+    *           the current time in nanoseconds
+    * @return whether any bytes have been moved
+    * @throws IOException
+    *            if reading or writing fails
+    */
+   boolean pump(long now) throws IOException {
+      if (finished)
+         return false;
+
+      refill(now);
+
+      boolean any = false, progress;
+      do {
+         progress = read(now);
+         release(now);
+         progress |= write();
+         any |= progress;
+      } while (progress);
+
+      if (eof && count == 0) {
+         finished = true;
+         if (sink instanceof SocketChannel)
+            ((SocketChannel) sink).shutdownOutput();
+         else
+            sink.close();
+      }
+
+      return any;
+   }
+
+   private boolean isLimited() {
+      return bytesPerPeriod > 0;
+   }
+
+   private void refill(long now) {
+      if (!isLimited())
+         return;
+
+      long p = (now - origin) / period;
+      if (p != currentPeriod) {
+         currentPeriod = p;
+         budget = bytesPerPeriod;
+      }
+   }
+
+   private boolean read(long now) throws IOException {
+      if (!wantsRead())
+         return false;
+
+      int tail = head + count;
+      if (tail >= capacity)
+         tail -= capacity;
+
+      int len = Math.min(capacity - count, capacity - tail);
+      if (isLimited())
+         len = Math.min(len, budget);
+
+      view.limit(tail + len).position(tail);
+      int rd = source.read(view);
+      if (rd == -1) {
+         eof = true;
+         return false;
+      } else if (rd == 0) {
+         return false;
+      }
+
+      count += rd;
+      received += rd;
+      if (isLimited())
+         budget -= rd;
+      if (delay > 0)
+         addMark(deadline(now + delay), received);
+      else
+         released = received;
+
+      return true;
+   }
+
+   private long deadline(long time) {
+      long rounded = (time - origin + DEADLINE_RESOLUTION - 1) / DEADLINE_RESOLUTION;
+      return origin + rounded * DEADLINE_RESOLUTION;
+   }
+
+   private void addMark(long time, long end) {
+      if (markCount > 0) {
+         int last = (markHead + markCount - 1) % markTimes.length;
+         if (markTimes[last] == time) {
+            markEnds[last] = end;
+            return;
+         }
+      }
+
+      if (markCount == markTimes.length)
+         growMarks();
+
+      int index = (markHead + markCount) % markTimes.length;
+      markTimes[index] = time;
+      markEnds[index] = end;
+      markCount++;
+   }
+
+   private void growMarks() {
+      long[] times = new long[markTimes.length * 2];
+      long[] ends = new long[markEnds.length * 2];
+      for (int i = 0; i < markCount; i++) {
+         times[i] = markTimes[(markHead + i) % markTimes.length];
+         ends[i] = markEnds[(markHead + i) % markEnds.length];
+      }
+      markTimes = times;
+      markEnds = ends;
+      markHead = 0;
+   }
+
+   private void release(long now) {
+      while (markCount > 0 && markTimes[markHead] - now <= 0) {
+         released = markEnds[markHead];
+         markHead = (markHead + 1) % markTimes.length;
+         markCount--;
+      }
+   }
+
+   private boolean write() throws IOException {
+      boolean progress = false;
+      while (released > sent) {
+         int len = (int) Math.min(released - sent, capacity - head);
+         view.limit(head + len).position(head);
+         int wr = sink.write(view);
+         if (wr == 0)
+            break;
+
+         progress = true;
+         sent += wr;
+         count -= wr;
+         head += wr;
+         if (head >= capacity)
+            head -= capacity;
+      }
+      return progress;
+   }
+
+   /**
+    * Returns whether the pump is ready to accept data from its source, ie.
+    * whether the event loop should listen for its source to become readable.
+    *
+    * @return whether the pump wants to read
+    */
+   boolean wantsRead() {
+      return !eof && !finished && count < capacity && (!isLimited() || budget > 0);
+   }
+
+   /**
+    * Returns whether the pump holds data due for sending, ie. whether the event
+    * loop should listen for its sink to become writable.
+    *
+    * @return whether the pump wants to write
+    */
+   boolean wantsWrite() {
+      return !finished && released > sent;
+   }
+
+   /**
+    * Returns the next point in time at which the pump's state changes without
+    * any I/O happening (the rate quota is refilled while the pump is waiting
+    * for it, or delayed data is released).
+    *
+    * @return the next deadline, or {@link Long#MAX_VALUE} if there is none
+    */
+   long nextDeadline() {
+      if (finished)
+         return Long.MAX_VALUE;
+
+      long next = Long.MAX_VALUE;
+      if (isLimited() && budget <= 0 && !eof)
+         next = origin + (currentPeriod + 1) * period;
+      if (markCount > 0)
+         next = Math.min(next, markTimes[markHead]);
+      return next;
+   }
+
+   /**
+    * Returns whether the pump has reached the end of its source and sent all
+    * data to its sink.
+    *
+    * @return whether the pump is finished
+    */
+   boolean isFinished() {
+      return finished;
+   }
+
+   /**
+    * Returns the number of bytes held in the pump's buffer.
+    *
+    * @return the number of buffered bytes
+    */
+   int bufferedBytes() {
+      return count;
+   }
+}
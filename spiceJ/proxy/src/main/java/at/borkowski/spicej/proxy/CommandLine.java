@@ -29,9 +29,39 @@ public class CommandLine {
    @Parameter(names = { "--help", "-?" }, description = "Prints usage.")
    public boolean help;
 
-   @Parameter(names = { "--udp", "-u" }, description = "Use UDP instead of TCP (not yet implemented)")
+   @Parameter(names = { "--nio", "-n" }, description = "Serve connections by a fixed number of non-blocking event loops instead of threads per connection")
+   public boolean nio = false;
+
+   @Parameter(names = { "--event-loops", "-e" }, description = "The number of event loops to use in non-blocking mode (defaults to the number of processors)")
+   public Integer eventLoops;
+
+   @Parameter(names = { "--virtual-threads", "-V" }, description = "Serve connections by virtual threads instead of platform threads (requires Java 21 or newer)")
+   public boolean virtualThreads = false;
+
+   @Parameter(names = { "--flush-policy", "-f" }, description = "When to flush forwarded data: PER_CHUNK (default), PER_TICK or COALESCED (can't be used with --nio)")
+   public FlushPolicy flushPolicy;
+
+   @Parameter(names = { "--delay-buffer", "-s" }, description = "The size of the buffers holding delayed data per direction and connection, in bytes (defaults to 100 KiB, must hold rate times delay)")
+   public Integer delayBufferSize;
+
+   @Parameter(names = { "--direct-buffers", "-D" }, description = "Allocate the buffers holding delayed data in direct (off-heap) memory (always the case with --nio and --udp)")
+   public boolean directBuffers = false;
+
+   @Parameter(names = { "--udp", "-u" }, description = "Forward UDP datagrams instead of TCP connections (can't be used with --nio, --virtual-threads or --flush-policy)")
    public boolean udp = false;
 
+   @Parameter(names = { "--jmx", "-j" }, description = "Register the metrics of the proxy and its connections as MBeans (can't be used with --nio or --udp)")
+   public boolean jmx = false;
+
+   @Parameter(names = { "--link-rate-send", "-x" }, description = "The byte rate all connections share towards the remote host, in bytes per second (can't be used with --nio or --udp)")
+   public Float linkRateSend;
+
+   @Parameter(names = { "--link-rate-receive", "-y" }, description = "The byte rate all connections share from the remote host, in bytes per second (can't be used with --nio or --udp)")
+   public Float linkRateReceive;
+
+   @Parameter(names = { "--link-rate", "-l" }, description = "The byte rate all connections share in both directions, in bytes per second (can't be used with -x/--link-rate-send or -y/--link-rate-receive)")
+   public Float linkRate;
+
    public static class ProxyDescription {
       public int localPort, remotePort;
       public String remoteHost = "localhost";
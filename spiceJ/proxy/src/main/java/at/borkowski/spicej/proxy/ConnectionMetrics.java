@@ -0,0 +1,94 @@
+package at.borkowski.spicej.proxy;
+
+import at.borkowski.spicej.metrics.ShapingMetrics;
+
+/**
+ * The metrics of a connection served by {@link SocketProxy}. Each direction is
+ * described by three {@link ShapingMetrics} instances: one counting the bytes
+ * forwarded, one reported to by the rate limitation and one reported to by the
+ * delay (the latter two stay at zero for unshaped directions).
+ */
+public class ConnectionMetrics implements ConnectionMetricsMBean {
+   final ShapingMetrics up = new ShapingMetrics(), down = new ShapingMetrics();
+   final ShapingMetrics rateUp = new ShapingMetrics(), rateDown = new ShapingMetrics();
+   final ShapingMetrics delayUp = new ShapingMetrics(), delayDown = new ShapingMetrics();
+
+   private final long id;
+   private final String client;
+   private final long opened = System.nanoTime();
+
+   ConnectionMetrics(long id, String client) {
+      this.id = id;
+      this.client = client;
+   }
+
+   @Override
+   public long getId() {
+      return id;
+   }
+
+   @Override
+   public String getClient() {
+      return client;
+   }
+
+   @Override
+   public long getOpenMilliseconds() {
+      return (System.nanoTime() - opened) / 1000000;
+   }
+
+   @Override
+   public long getBytesUp() {
+      return up.getBytes();
+   }
+
+   @Override
+   public long getBytesDown() {
+      return down.getBytes();
+   }
+
+   @Override
+   public long getThroughputUp() {
+      return throughput(getBytesUp());
+   }
+
+   @Override
+   public long getThroughputDown() {
+      return throughput(getBytesDown());
+   }
+
+   private long throughput(long bytes) {
+      long elapsed = System.nanoTime() - opened;
+      return elapsed <= 0 ? 0 : (long) (bytes * 1000000000D / elapsed);
+   }
+
+   @Override
+   public long getBlockedNanosecondsUp() {
+      return rateUp.getBlockedNanoseconds();
+   }
+
+   @Override
+   public long getBlockedNanosecondsDown() {
+      return rateDown.getBlockedNanoseconds();
+   }
+
+   @Override
+   public int getBufferedBytesUp() {
+      return delayUp.getBufferedBytes();
+   }
+
+   @Override
+   public int getBufferedBytesDown() {
+      return delayDown.getBufferedBytes();
+   }
+
+   @Override
+   public int getPendingReleasesUp() {
+      return delayUp.getPendingReleases();
+   }
+
+   @Override
+   public int getPendingReleasesDown() {
+      return delayDown.getPendingReleases();
+   }
+}
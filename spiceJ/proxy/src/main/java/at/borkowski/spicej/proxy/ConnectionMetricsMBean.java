@@ -0,0 +1,101 @@
+package at.borkowski.spicej.proxy;
+
+/**
+ * The management interface of {@link ConnectionMetrics}.
+ */
+public interface ConnectionMetricsMBean {
+   /**
+    * Returns the number of the connection, counted from 1 per proxy.
+    *
+    * @return the connection number
+    */
+   long getId();
+
+   /**
+    * Returns the address of the client.
+    *
+    * @return the client's address
+    */
+   String getClient();
+
+   /**
+    * Returns how long the connection has been open.
+    *
+    * @return the connection's age, in milliseconds
+    */
+   long getOpenMilliseconds();
+
+   /**
+    * Returns the number of bytes forwarded to the remote host.
+    *
+    * @return the number of upstream bytes
+    */
+   long getBytesUp();
+
+   /**
+    * Returns the number of bytes forwarded to the client.
+    *
+    * @return the number of downstream bytes
+    */
+   long getBytesDown();
+
+   /**
+    * Returns the average upstream throughput since the connection has been
+    * opened.
+    *
+    * @return the upstream throughput, in bytes per second
+    */
+   long getThroughputUp();
+
+   /**
+    * Returns the average downstream throughput since the connection has been
+    * opened.
+    *
+    * @return the downstream throughput, in bytes per second
+    */
+   long getThroughputDown();
+
+   /**
+    * Returns the time the upstream direction was blocked by its rate
+    * limitation.
+    *
+    * @return the blocked time, in nanoseconds
+    */
+   long getBlockedNanosecondsUp();
+
+   /**
+    * Returns the time the downstream direction was blocked by its rate
+    * limitation.
+    *
+    * @return the blocked time, in nanoseconds
+    */
+   long getBlockedNanosecondsDown();
+
+   /**
+    * Returns the number of upstream bytes currently held back by the delay.
+    *
+    * @return the number of delayed upstream bytes
+    */
+   int getBufferedBytesUp();
+
+   /**
+    * Returns the number of downstream bytes currently held back by the delay.
+    *
+    * @return the number of delayed downstream bytes
+    */
+   int getBufferedBytesDown();
+
+   /**
+    * Returns the number of pending releases of delayed upstream data.
+    *
+    * @return the number of pending upstream releases
+    */
+   int getPendingReleasesUp();
+
+   /**
+    * Returns the number of pending releases of delayed downstream data.
+    *
+    * @return the number of pending downstream releases
+    */
+   int getPendingReleasesDown();
+}
@@ -0,0 +1,507 @@
+package at.borkowski.spicej.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import at.borkowski.spicej.rt.RateCalculator;
+
+/**
+ * A proxy for UDP datagrams. The proxy receives datagrams on a local port and
+ * forwards them to a remote port. Every client (ie. every source address) gets
+ * a session with its own channel towards the remote host, through which replies
+ * are received and forwarded back to the client. Sessions are closed after
+ * having been idle for a certain time (see {@link #setSessionTimeout(long)}).
+ * The number of sessions is limited (see {@link #setMaxSessions(int)}), and
+ * datagrams of new clients above the limit are dropped.
+ *
+ * Rate and delay are applied per session and direction with the semantics of
+ * {@link NioSocketProxy}, but to whole datagrams (see {@link DatagramQueue}).
+ * Datagrams which don't fit into the delay buffer (see
+ * {@link #setDelayBufferSize(int)}) are dropped.
+ *
+ * All sessions are served by a single event loop, which is run by
+ * {@link #run()}. The loop receives and sends datagrams in batches, and
+ * datagrams which are neither delayed nor rate limited are sent straight from
+ * the receive buffer. Delayed datagrams are held in direct buffers, which are
+ * pooled among the sessions. Each iteration of the loop only serves the
+ * sessions which have received datagrams, whose channel has become writable or
+ * whose deadline has passed, so that traffic of one session doesn't cost
+ * anything per other open session.
+ *
+ * As with {@link NioSocketProxy}, the settings concerning the threads of
+ * {@link SocketProxy} (virtual threads, flush policy, direct buffers and JMX)
+ * as well as its metrics are not supported: their methods throw
+ * {@link IllegalStateException}.
+ */
+public class DatagramProxy extends SocketProxy {
+   /**
+    * The maximal size of a datagram.
+    */
+   public static final int MAX_DATAGRAM_SIZE = 65535;
+
+   /**
+    * The maximal number of datagrams received from a channel at once, before
+    * the other channels are served.
+    */
+   public static final int BATCH_SIZE = 64;
+
+   /**
+    * The default session timeout, in milliseconds.
+    */
+   public static final long DEFAULT_SESSION_TIMEOUT = 60000;
+
+   /**
+    * The default maximal number of sessions.
+    */
+   public static final int DEFAULT_MAX_SESSIONS = 4096;
+
+   /**
+    * The maximal number of unused delay buffers kept for reuse.
+    */
+   static final int MAX_POOLED_BUFFERS = 64;
+
+   private final RateCalculator.Result rateUpCalculation, rateDownCalculation;
+
+   private volatile long sessionTimeout = DEFAULT_SESSION_TIMEOUT * 1000000;
+   private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+
+   private DatagramChannel listener;
+   private Selector selector;
+   private SelectionKey listenerKey;
+   private SocketAddress remote;
+   private BufferPool pool;
+
+   private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+   private final Map<SocketAddress, Session> sessions = new HashMap<>();
+   private final List<Session> sessionList = new ArrayList<>();
+   // the sessions to be served in the current iteration of the event loop
+   private final List<Session> touched = new ArrayList<>();
+   // the sessions which couldn't send to a client, waiting for the listener to
+   // become writable
+   private final List<Session> blocked = new ArrayList<>();
+   // the sessions with a deadline, ordered by deadline
+   private final TreeSet<Session> timers = new TreeSet<>(new Comparator<Session>() {
+      @Override
+      public int compare(Session a, Session b) {
+         if (a.scheduled != b.scheduled)
+            return Long.compare(a.scheduled, b.scheduled);
+         return Long.compare(a.id, b.id);
+      }
+   });
+   private long nextSessionId = 0;
+
+   private volatile int sessionCount = 0;
+   private volatile long droppedDatagrams = 0;
+   private volatile boolean closed = false;
+
+   /**
+    * Creates a UDP proxy. See
+    * {@link SocketProxy#SocketProxy(int, String, int, Float, Float, Float, Float)}
+    * for a description of the parameters.
+    *
+    * @param localPort
+    *           the local port to receive datagrams on
+    * @param remoteHost
+    *           the remote host to send datagrams to
+    * @param remotePort
+    *           the remote port to send datagrams to
+    * @param rateUp
+    *           the upstream rate limitation to establish, or <code>null</code>
+    *           for no limit
+    * @param rateDown
+    *           the downstream rate limitation to establish, or
+    *           <code>null</code> for no limit
+    * @param delayUp
+    *           the delay to add to upstream datagrams, or <code>null</code> for
+    *           no delay
+    * @param delayDown
+    *           the delay to add to downstream datagrams, or <code>null</code>
+    *           for no delay
+    */
+   public DatagramProxy(int localPort, String remoteHost, int remotePort, Float rateUp, Float rateDown, Float delayUp, Float delayDown) {
+      super(localPort, remoteHost, remotePort, rateUp, rateDown, delayUp, delayDown, true);
+
+      this.rateUpCalculation = rateUp == null ? null : RateCalculator.calculate(rateUp, NioSocketProxy.MIN_INTERVAL_NS);
+      this.rateDownCalculation = rateDown == null ? null : RateCalculator.calculate(rateDown, NioSocketProxy.MIN_INTERVAL_NS);
+   }
+
+   /**
+    * Sets the time after which a session without any datagrams in either
+    * direction is closed. The default is {@link #DEFAULT_SESSION_TIMEOUT}.
+    *
+    * @param milliseconds
+    *           the session timeout, in milliseconds
+    */
+   public void setSessionTimeout(long milliseconds) {
+      if (milliseconds <= 0)
+         throw new IllegalArgumentException("session timeout must be positive");
+      this.sessionTimeout = milliseconds * 1000000;
+   }
+
+   /**
+    * Returns the time after which idle sessions are closed.
+    *
+    * @return the session timeout, in milliseconds
+    */
+   public long getSessionTimeout() {
+      return sessionTimeout / 1000000;
+   }
+
+   /**
+    * Sets the maximal number of open sessions. Datagrams from clients without
+    * a session are dropped while this number of sessions is open. The default
+    * is {@link #DEFAULT_MAX_SESSIONS}.
+    *
+    * @param maxSessions
+    *           the maximal number of sessions
+    */
+   public void setMaxSessions(int maxSessions) {
+      if (maxSessions <= 0)
+         throw new IllegalArgumentException("maximal session count must be positive");
+      this.maxSessions = maxSessions;
+   }
+
+   /**
+    * Returns the maximal number of open sessions (see
+    * {@link #setMaxSessions(int)}).
+    *
+    * @return the maximal number of sessions
+    */
+   public int getMaxSessions() {
+      return maxSessions;
+   }
+
+   /**
+    * Returns the number of datagrams from clients which have been dropped
+    * because no session could be opened for them, eg. because the maximal
+    * number of sessions was open (see {@link #setMaxSessions(int)}).
+    *
+    * @return the number of dropped datagrams
+    */
+   public long getDroppedDatagrams() {
+      return droppedDatagrams;
+   }
+
+   /**
+    * Returns the number of currently open sessions.
+    *
+    * @return the number of sessions
+    */
+   public int getSessionCount() {
+      return sessionCount;
+   }
+
+   /**
+    * Initializes the proxy provider. This method must be called before the
+    * actual use.
+    *
+    * @throws IOException
+    *            If the initialization fails.
+    */
+   @Override
+   public void initialize() throws IOException {
+      if (listener != null)
+         throw new IllegalStateException("already initialized");
+
+      remote = new InetSocketAddress(remoteHost, remotePort);
+      pool = new BufferPool(getDelayBufferSize(), MAX_POOLED_BUFFERS);
+      selector = Selector.open();
+
+      listener = DatagramChannel.open();
+      listener.bind(new InetSocketAddress(localPort));
+      listener.configureBlocking(false);
+      listenerKey = listener.register(selector, SelectionKey.OP_READ);
+   }
+
+   /**
+    * Runs the event loop until the proxy is closed (see {@link #close()}).
+    */
+   @Override
+   public void run() {
+      try {
+         while (!closed) {
+            long timeout = timeout(System.nanoTime());
+            if (timeout < 0)
+               selector.selectNow();
+            else
+               selector.select(timeout);
+
+            long now = System.nanoTime();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+               SelectionKey key = it.next();
+               it.remove();
+               if (!key.isValid())
+                  continue;
+
+               if (key == listenerKey) {
+                  if (key.isReadable())
+                     receiveFromClients(now);
+                  if (key.isWritable()) {
+                     for (Session session : blocked)
+                        touch(session);
+                     blocked.clear();
+                  }
+               } else {
+                  Session session = (Session) key.attachment();
+                  if (key.isReadable())
+                     session.receiveFromServer(now);
+                  touch(session);
+               }
+            }
+
+            while (!timers.isEmpty() && timers.first().scheduled <= now) {
+               Session session = timers.pollFirst();
+               session.scheduled = Long.MAX_VALUE;
+               touch(session);
+            }
+
+            for (Session session : touched) {
+               session.touched = false;
+               session.process(now);
+               if (session.closed) {
+                  removeSession(session);
+                  continue;
+               }
+               schedule(session);
+               if (session.down.isBlocked())
+                  blocked.add(session);
+            }
+            touched.clear();
+
+            // sessions which have been unblocked otherwise only cost a spurious
+            // wakeup
+            if (listenerKey.isValid())
+               listenerKey.interestOps(SelectionKey.OP_READ | (blocked.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+         }
+      } catch (IOException e) {
+         if (!closed)
+            e.printStackTrace();
+      } finally {
+         for (Session session : sessionList)
+            session.close();
+         sessionList.clear();
+         sessions.clear();
+         touched.clear();
+         blocked.clear();
+         timers.clear();
+         sessionCount = 0;
+         try {
+            listener.close();
+         } catch (IOException ignore) {}
+         try {
+            selector.close();
+         } catch (IOException ignore) {}
+      }
+   }
+
+   private void receiveFromClients(long now) throws IOException {
+      for (int i = 0; i < BATCH_SIZE; i++) {
+         receiveBuffer.clear();
+         SocketAddress client = listener.receive(receiveBuffer);
+         if (client == null)
+            return;
+         receiveBuffer.flip();
+
+         Session session = sessions.get(client);
+         if (session == null) {
+            session = openSession(client, now);
+            if (session == null) {
+               droppedDatagrams++;
+               continue;
+            }
+         }
+         session.lastActivity = now;
+         session.up.offer(receiveBuffer, now);
+         touch(session);
+      }
+   }
+
+   private void touch(Session session) {
+      if (!session.touched && !session.closed) {
+         session.touched = true;
+         touched.add(session);
+      }
+   }
+
+   /*
+    * a session woken up before its deadline is processed and rescheduled, so
+    * it can stay scheduled for an earlier time than needed, which spares
+    * rescheduling it for every datagram extending its session timeout
+    */
+   private void schedule(Session session) {
+      if (session.deadline >= session.scheduled)
+         return;
+      if (session.scheduled != Long.MAX_VALUE)
+         timers.remove(session);
+      session.scheduled = session.deadline;
+      timers.add(session);
+   }
+
+   /*
+    * returns null if the session can't be opened, which happens once per
+    * datagram of the client, so it isn't reported
+    */
+   private Session openSession(SocketAddress client, long now) {
+      if (sessionList.size() >= maxSessions)
+         return null;
+
+      DatagramChannel server = null;
+      try {
+         server = DatagramChannel.open();
+         server.configureBlocking(false);
+         server.connect(remote);
+
+         Session session = new Session(nextSessionId++, client, server, now);
+         session.key = server.register(selector, SelectionKey.OP_READ, session);
+         sessions.put(client, session);
+         session.index = sessionList.size();
+         sessionList.add(session);
+         sessionCount = sessionList.size();
+         return session;
+      } catch (IOException e) {
+         if (server != null) {
+            try {
+               server.close();
+            } catch (IOException ignore) {}
+         }
+         return null;
+      }
+   }
+
+   private void removeSession(Session session) {
+      // the order of sessions doesn't matter, so the last one takes its place
+      Session last = sessionList.remove(sessionList.size() - 1);
+      if (last != session) {
+         sessionList.set(session.index, last);
+         last.index = session.index;
+      }
+      if (session.scheduled != Long.MAX_VALUE)
+         timers.remove(session);
+      sessions.remove(session.client);
+      sessionCount = sessionList.size();
+   }
+
+   /*
+    * returns the select timeout: 0 for waiting indefinitely, -1 for not waiting
+    * at all, or the milliseconds to wait until the next deadline
+    */
+   private long timeout(long now) {
+      long deadline = timers.isEmpty() ? Long.MAX_VALUE : timers.first().scheduled;
+      if (deadline == Long.MAX_VALUE)
+         return 0;
+      if (deadline <= now)
+         return -1;
+      return Math.max(1, (deadline - now + 999999) / 1000000);
+   }
+
+   /**
+    * Stops the event loop, closing all sessions. Queued datagrams are
+    * discarded.
+    */
+   @Override
+   public void close() {
+      closed = true;
+      if (listener != null) {
+         try {
+            listener.close();
+         } catch (IOException ignore) {}
+         selector.wakeup();
+      }
+   }
+
+   private class Session {
+      private final long id;
+      private final SocketAddress client;
+      private final DatagramChannel server;
+      private final DatagramQueue up, down;
+      private SelectionKey key;
+
+      long lastActivity;
+      long deadline = Long.MAX_VALUE;
+      // the deadline the session is ordered by in the timers, which may be
+      // earlier than its actual deadline
+      long scheduled = Long.MAX_VALUE;
+      int index;
+      boolean touched = false;
+      boolean closed = false;
+
+      Session(long id, final SocketAddress client, final DatagramChannel server, long now) {
+         this.id = id;
+         this.client = client;
+         this.server = server;
+         this.lastActivity = now;
+
+         up = new DatagramQueue(new DatagramQueue.Sender() {
+            @Override
+            public boolean send(ByteBuffer datagram) throws IOException {
+               return server.write(datagram) > 0 || !datagram.hasRemaining();
+            }
+         }, pool, rateUpCalculation, NioSocketProxy.delayNanoseconds(delayUp), now);
+         down = new DatagramQueue(new DatagramQueue.Sender() {
+            @Override
+            public boolean send(ByteBuffer datagram) throws IOException {
+               return listener.send(datagram, client) > 0 || !datagram.hasRemaining();
+            }
+         }, pool, rateDownCalculation, NioSocketProxy.delayNanoseconds(delayDown), now);
+      }
+
+      void receiveFromServer(long now) {
+         for (int i = 0; i < BATCH_SIZE; i++) {
+            receiveBuffer.clear();
+            try {
+               if (server.receive(receiveBuffer) == null)
+                  return;
+            } catch (IOException e) {
+               // eg. the remote port is unreachable, which is reported by a
+               // later receive
+               return;
+            }
+            receiveBuffer.flip();
+
+            lastActivity = now;
+            down.offer(receiveBuffer, now);
+         }
+      }
+
+      void process(long now) {
+         if (closed)
+            return;
+
+         up.flush(now);
+         down.flush(now);
+
+         if (up.isEmpty() && down.isEmpty() && now - lastActivity >= sessionTimeout) {
+            close();
+            return;
+         }
+
+         key.interestOps(SelectionKey.OP_READ | (up.isBlocked() ? SelectionKey.OP_WRITE : 0));
+
+         deadline = Math.min(up.nextDeadline(), down.nextDeadline());
+         if (up.isEmpty() && down.isEmpty())
+            deadline = lastActivity + sessionTimeout;
+      }
+
+      void close() {
+         closed = true;
+         deadline = Long.MAX_VALUE;
+         try {
+            server.close();
+         } catch (IOException ignore) {}
+      }
+   }
+}
@@ -0,0 +1,359 @@
+package at.borkowski.spicej.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import at.borkowski.spicej.rt.RateCalculator;
+
+/**
+ * One direction of a session served by {@link DatagramProxy}, holding datagrams
+ * until they may be sent.
+ *
+ * The queue shapes datagrams like {@link ChannelPump} shapes bytes: a datagram
+ * is due a fixed delay after it has been received, and it is sent while there
+ * is rate quota left in the current prescaled tick. Since datagrams can't be
+ * split, a datagram may overdraw the quota; the overdrawn bytes are deducted
+ * from the following ticks. Unused quota is not carried over.
+ *
+ * Queued datagrams are copied back to back into a direct buffer taken from a
+ * {@link BufferPool} (or dropped if the buffer is full, like a router's queue
+ * drops them). The buffer is returned to the pool as soon as the queue is
+ * empty, and datagrams which may be sent right away are not copied at all.
+ *
+ * Like {@link ChannelPump}, the queue is driven by its event loop, which passes
+ * the current time (see {@link System#nanoTime()}) to every call. It is not
+ * thread-safe.
+ */
+class DatagramQueue {
+   /**
+    * The receiver of datagrams leaving the queue.
+    */
+   interface Sender {
+      /**
+       * Sends a datagram without blocking.
+       *
+       * @param datagram
+       *           the datagram, from the buffer's position to its limit
+       * @return whether the datagram has been sent, <code>false</code> if it
+       *         can't be sent right now
+       * @throws IOException
+       *            if sending the datagram fails
+       */
+      boolean send(ByteBuffer datagram) throws IOException;
+   }
+
+   private static final int INITIAL_DATAGRAMS = 16;
+
+   private final Sender sender;
+   private final BufferPool pool;
+
+   private final long origin;
+   private final int bytesPerPeriod;
+   private final long period;
+   private final long delay;
+
+   private long currentPeriod = -1;
+   private long budget;
+
+   // held while datagrams are queued
+   private ByteBuffer storage;
+   // the offset of the oldest datagram and the offset behind the newest one
+   private int head = 0, tail = 0;
+
+   private int[] offsets = new int[INITIAL_DATAGRAMS];
+   private int[] lengths = new int[INITIAL_DATAGRAMS];
+   private long[] dueTimes = new long[INITIAL_DATAGRAMS];
+   private int first = 0;
+   private int count = 0;
+
+   private boolean blocked = false;
+   private long sent = 0, dropped = 0;
+
+   /**
+    * Creates a queue.
+    *
+    * @param sender
+    *           the receiver of datagrams leaving the queue
+    * @param pool
+    *           the pool to take the buffer from, which also determines how many
+    *           bytes may be queued
+    * @param rate
+    *           the rate limitation to apply, or <code>null</code> for no limit
+    * @param delay
+    *           the delay to add, in nanoseconds (0 for no delay)
+    * @param now
+    *           the current time in nanoseconds
+    */
+   DatagramQueue(Sender sender, BufferPool pool, RateCalculator.Result rate, long delay, long now) {
+      this.sender = sender;
+      this.pool = pool;
+      this.origin = now;
+      this.delay = delay;
+
+      if (rate != null) {
+         bytesPerPeriod = rate.getBytesPerTick();
+         period = (long) rate.getTickNanosecondsInterval() * rate.getPrescale();
+      } else {
+         bytesPerPeriod = 0;
+         period = 0;
+      }
+   }
+
+   /**
+    * Passes a received datagram to the queue. If the datagram may be sent right
+    * away, it is sent directly from the given buffer, otherwise it is copied
+    * into the queue.
+    *
+    * @param datagram
+    *           the datagram, from the buffer's position to its limit
+    * @param now
+    *           the current time in nanoseconds
+    * @return whether the datagram has been sent or queued, <code>false</code>
+    *         if it has been dropped
+    */
+   boolean offer(ByteBuffer datagram, long now) {
+      refill(now);
+
+      if (count == 0 && delay == 0 && hasBudget()) {
+         int length = datagram.remaining();
+         if (send(datagram)) {
+            spend(length);
+            return true;
+         }
+         blocked = true;
+      }
+
+      return enqueue(datagram, now + delay);
+   }
+
+   /**
+    * Sends as many due datagrams as the rate limitation and the sender allow.
+    *
+    * @param now
+    *           the current time in nanoseconds
+    * @return whether any datagram has left the queue
+    */
+   boolean flush(long now) {
+      refill(now);
+      blocked = false;
+
+      boolean progress = false;
+      while (count > 0 && dueTimes[first] - now <= 0 && hasBudget()) {
+         int offset = offsets[first];
+         int length = lengths[first];
+         storage.limit(offset + length).position(offset);
+         if (!send(storage)) {
+            blocked = true;
+            break;
+         }
+
+         spend(length);
+         removeFirst();
+         progress = true;
+      }
+      return progress;
+   }
+
+   /*
+    * returns false if the sender doesn't accept the datagram right now; a
+    * datagram the sender fails on is dropped, like one lost on the network
+    */
+   private boolean send(ByteBuffer datagram) {
+      try {
+         if (!sender.send(datagram))
+            return false;
+         sent++;
+      } catch (IOException e) {
+         dropped++;
+      }
+      return true;
+   }
+
+   private boolean isLimited() {
+      return bytesPerPeriod > 0;
+   }
+
+   private boolean hasBudget() {
+      return !isLimited() || budget > 0;
+   }
+
+   private void spend(int length) {
+      if (isLimited())
+         budget -= length;
+   }
+
+   private void refill(long now) {
+      if (!isLimited())
+         return;
+
+      long p = (now - origin) / period;
+      if (p != currentPeriod) {
+         // overdrawn quota is paid off by the elapsed ticks, unused quota is
+         // not carried over
+         if (budget < 0)
+            budget = Math.min(bytesPerPeriod, budget + (p - currentPeriod) * bytesPerPeriod);
+         else
+            budget = bytesPerPeriod;
+         currentPeriod = p;
+      }
+   }
+
+   private boolean enqueue(ByteBuffer datagram, long due) {
+      int length = datagram.remaining();
+      if (length > pool.getBufferSize()) {
+         dropped++;
+         return false;
+      }
+
+      if (storage == null)
+         storage = pool.acquire();
+
+      int offset = allocate(length);
+      if (offset < 0) {
+         dropped++;
+         if (count == 0)
+            releaseStorage();
+         return false;
+      }
+
+      storage.limit(offset + length).position(offset);
+      storage.put(datagram);
+
+      if (count == offsets.length)
+         grow();
+
+      int index = (first + count) % offsets.length;
+      offsets[index] = offset;
+      lengths[index] = length;
+      dueTimes[index] = due;
+      count++;
+      return true;
+   }
+
+   /*
+    * returns the offset at which a datagram of the given length can be stored,
+    * or -1 if there is no room for it. Datagrams are stored contiguously, so
+    * the room at the end of the buffer is skipped if the datagram doesn't fit
+    * there. The tail only catches up with the head if the queue is empty, so
+    * that the queue is wrapped around exactly if the tail is before the head.
+    */
+   private int allocate(int length) {
+      int capacity = storage.capacity();
+      if (tail >= head) {
+         if (capacity - tail >= length)
+            return place(tail, length);
+         if (length < head)
+            return place(0, length);
+         return -1;
+      }
+
+      if (tail + length < head)
+         return place(tail, length);
+      return -1;
+   }
+
+   private int place(int offset, int length) {
+      tail = offset + length;
+      return offset;
+   }
+
+   private void grow() {
+      int[] newOffsets = new int[offsets.length * 2];
+      int[] newLengths = new int[lengths.length * 2];
+      long[] newDueTimes = new long[dueTimes.length * 2];
+      for (int i = 0; i < count; i++) {
+         int index = (first + i) % offsets.length;
+         newOffsets[i] = offsets[index];
+         newLengths[i] = lengths[index];
+         newDueTimes[i] = dueTimes[index];
+      }
+      offsets = newOffsets;
+      lengths = newLengths;
+      dueTimes = newDueTimes;
+      first = 0;
+   }
+
+   private void removeFirst() {
+      first = (first + 1) % offsets.length;
+      count--;
+
+      if (count == 0)
+         releaseStorage();
+      else
+         head = offsets[first];
+   }
+
+   private void releaseStorage() {
+      pool.release(storage);
+      storage = null;
+      head = tail = 0;
+   }
+
+   /**
+    * Returns the next point in time at which a datagram may be sent without any
+    * I/O happening (the oldest datagram becomes due, or the rate quota becomes
+    * positive again). If the sender has refused a datagram, there is no
+    * deadline; the event loop has to wait for the sink to become writable
+    * instead.
+    *
+    * @return the next deadline, or {@link Long#MAX_VALUE} if there is none
+    */
+   long nextDeadline() {
+      if (count == 0 || blocked)
+         return Long.MAX_VALUE;
+
+      long next = dueTimes[first];
+      if (isLimited() && budget <= 0) {
+         long periods = -budget / bytesPerPeriod + 1;
+         next = Math.max(next, origin + (currentPeriod + periods) * period);
+      }
+      return next;
+   }
+
+   /**
+    * Returns whether the sender has refused the last datagram, ie. whether the
+    * event loop should listen for the sink to become writable.
+    *
+    * @return whether the queue is blocked
+    */
+   boolean isBlocked() {
+      return blocked;
+   }
+
+   /**
+    * Returns whether no datagrams are queued.
+    *
+    * @return whether the queue is empty
+    */
+   boolean isEmpty() {
+      return count == 0;
+   }
+
+   /**
+    * Returns the number of queued datagrams.
+    *
+    * @return the number of queued datagrams
+    */
+   int size() {
+      return count;
+   }
+
+   /**
+    * Returns the number of datagrams sent.
+    *
+    * @return the number of datagrams sent
+    */
+   long getSent() {
+      return sent;
+   }
+
+   /**
+    * Returns the number of datagrams dropped, either because the queue was full
+    * or because sending them failed.
+    *
+    * @return the number of datagrams dropped
+    */
+   long getDropped() {
+      return dropped;
+   }
+}
@@ -0,0 +1,26 @@
+package at.borkowski.spicej.proxy;
+
+/**
+ * Determines when a {@link StreamGobbler} writes and flushes the data it has
+ * read.
+ */
+public enum FlushPolicy {
+   /**
+    * Every chunk read is written and flushed immediately.
+    */
+   PER_CHUNK,
+
+   /**
+    * Every chunk read is written immediately, but the target is only flushed
+    * when the source can't provide further data without blocking, ie. usually
+    * once the quota of the current tick is exhausted.
+    */
+   PER_TICK,
+
+   /**
+    * Chunks are collected in the gobbler's buffer and written and flushed at
+    * once when the buffer is full or the source can't provide further data
+    * without blocking. This minimizes the number of writes.
+    */
+   COALESCED;
+}
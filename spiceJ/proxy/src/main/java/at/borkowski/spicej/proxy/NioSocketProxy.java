@@ -0,0 +1,385 @@
+package at.borkowski.spicej.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import at.borkowski.spicej.rt.RateCalculator;
+
+/**
+ * A non-blocking variant of {@link SocketProxy}. Instead of using several
+ * threads per connection, all connections are served by a small, fixed pool of
+ * event loops, each driven by a single {@link Selector}.
+ *
+ * Rate and delay are applied with the same semantics as in {@link SocketProxy}
+ * (see {@link ChannelPump}), but they are not clocked by tick sources. Each
+ * event loop keeps track of the deadlines of its connections instead. Since
+ * selectors wait with millisecond resolution, rates are calculated with a
+ * minimal tick interval of {@link #MIN_INTERVAL_NS}, and delays are rounded up
+ * to full milliseconds.
+ *
+ * The remote host is resolved once (see {@link #initialize()}), and the event
+ * loops connect to it without blocking, so that a slow remote host doesn't
+ * hold up accepting other connections.
+ *
+ * Buffers are always direct, and the settings concerning the threads of
+ * {@link SocketProxy} (virtual threads, flush policy, direct buffers and JMX)
+ * as well as its metrics are not supported: their methods throw
+ * {@link IllegalStateException}.
+ */
+public class NioSocketProxy extends SocketProxy {
+   /**
+    * The default number of event loops.
+    */
+   public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+   /**
+    * The minimal tick interval (in nanoseconds) used for calculating rates.
+    */
+   public static final int MIN_INTERVAL_NS = 1000000;
+
+   /**
+    * The buffer size used for connections without delay.
+    */
+   public static final int UNDELAYED_BUFFER_SIZE = 64 * 1024;
+
+   private final int eventLoopCount;
+   private final RateCalculator.Result rateUpCalculation, rateDownCalculation;
+
+   private InetSocketAddress remote;
+   private ServerSocketChannel listener;
+   private EventLoop[] eventLoops;
+   private int nextEventLoop = 0;
+
+   /**
+    * Creates a non-blocking proxy. See
+    * {@link SocketProxy#SocketProxy(int, String, int, Float, Float, Float, Float)}
+    * for a description of the parameters.
+    *
+    * @param localPort
+    *           the local port to listen on
+    * @param remoteHost
+    *           the remote host to connect to
+    * @param remotePort
+    *           the remote port to connect to
+    * @param rateUp
+    *           the upstream rate limitation to establish, or <code>null</code>
+    *           for no limit
+    * @param rateDown
+    *           the downstream rate limitation to establish, or
+    *           <code>null</code> for no limit
+    * @param delayUp
+    *           the delay to add to the uplink stream, or <code>null</code> for
+    *           no delay
+    * @param delayDown
+    *           the delay to add to the downlink stream, or <code>null</code>
+    *           for no delay
+    * @param eventLoops
+    *           the number of event loops (threads) to serve connections with
+    */
+   public NioSocketProxy(int localPort, String remoteHost, int remotePort, Float rateUp, Float rateDown, Float delayUp, Float delayDown, int eventLoops) {
+      super(localPort, remoteHost, remotePort, rateUp, rateDown, delayUp, delayDown, true);
+
+      if (eventLoops < 1)
+         throw new IllegalArgumentException("at least one event loop required");
+
+      this.eventLoopCount = eventLoops;
+      this.rateUpCalculation = rateUp == null ? null : RateCalculator.calculate(rateUp, MIN_INTERVAL_NS);
+      this.rateDownCalculation = rateDown == null ? null : RateCalculator.calculate(rateDown, MIN_INTERVAL_NS);
+   }
+
+   static long delayNanoseconds(Float delay) {
+      if (delay == null || delay * 1000000 < 1)
+         return 0;
+      return (long) (1000000D * delay);
+   }
+
+   /**
+    * Initializes the proxy provider, resolves the remote host and starts its
+    * event loops. This method must be called before the actual use.
+    *
+    * @throws IOException
+    *            If the initialization fails, eg. if the remote host can't be
+    *            resolved.
+    */
+   @Override
+   public void initialize() throws IOException {
+      if (listener != null)
+         throw new IllegalStateException("already initialized");
+
+      remote = new InetSocketAddress(remoteHost, remotePort);
+      if (remote.isUnresolved())
+         throw new UnknownHostException(remoteHost);
+
+      listener = ServerSocketChannel.open();
+      listener.bind(new InetSocketAddress(localPort));
+
+      eventLoops = new EventLoop[eventLoopCount];
+      for (int i = 0; i < eventLoopCount; i++) {
+         eventLoops[i] = new EventLoop();
+         Thread thread = new Thread(eventLoops[i], "event loop " + i);
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+
+   /**
+    * Accepts connections until the proxy is closed (see {@link #close()}).
+    * Accepted connections are handed over to the event loops in a round-robin
+    * fashion.
+    */
+   @Override
+   public void run() {
+      while (listener.isOpen()) {
+         try {
+            SocketChannel client = listener.accept();
+            try {
+               eventLoops[nextEventLoop].register(client);
+               nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            } catch (Exception ignore) {
+               ignore.printStackTrace();
+               try {
+                  client.close();
+               } catch (Exception ignore2) {}
+            }
+         } catch (ClosedChannelException closed) {
+            break;
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   /**
+    * Stops accepting connections and shuts down the event loops, closing all
+    * connections.
+    */
+   @Override
+   public void close() {
+      try {
+         listener.close();
+      } catch (IOException ignore) {}
+
+      for (EventLoop eventLoop : eventLoops)
+         eventLoop.close();
+   }
+
+   private class EventLoop implements Runnable {
+      private final Selector selector;
+      private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+      private final List<Connection> connections = new ArrayList<>();
+      // the connections with a deadline, ordered by deadline
+      private final TreeSet<Connection> timers = new TreeSet<>(new Comparator<Connection>() {
+         @Override
+         public int compare(Connection a, Connection b) {
+            if (a.deadline != b.deadline)
+               return Long.compare(a.deadline, b.deadline);
+            return Long.compare(a.id, b.id);
+         }
+      });
+      // the connections whose deadline has passed in the current iteration
+      private final List<Connection> due = new ArrayList<>();
+      private long nextConnectionId = 0;
+
+      private volatile boolean closed = false;
+
+      EventLoop() throws IOException {
+         selector = Selector.open();
+      }
+
+      void register(SocketChannel client) throws IOException {
+         client.configureBlocking(false);
+         pending.add(new Connection(client));
+         selector.wakeup();
+      }
+
+      void close() {
+         closed = true;
+         selector.wakeup();
+      }
+
+      @Override
+      public void run() {
+         try {
+            while (!closed) {
+               long timeout = timeout(System.nanoTime());
+               if (timeout < 0)
+                  selector.selectNow();
+               else
+                  selector.select(timeout);
+
+               long now = System.nanoTime();
+
+               Connection connection;
+               while ((connection = pending.poll()) != null) {
+                  connection.id = nextConnectionId++;
+                  connection.index = connections.size();
+                  connections.add(connection);
+                  connection.open(now);
+               }
+
+               Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+               while (it.hasNext()) {
+                  SelectionKey key = it.next();
+                  it.remove();
+                  ((Connection) key.attachment()).process(now);
+               }
+
+               // processing a connection may schedule it again, so the due
+               // ones are taken from the timers first
+               while (!timers.isEmpty() && timers.first().deadline <= now)
+                  due.add(timers.pollFirst());
+               for (Connection expired : due) {
+                  expired.deadline = Long.MAX_VALUE;
+                  expired.process(now);
+               }
+               due.clear();
+            }
+         } catch (IOException e) {
+            e.printStackTrace();
+         } finally {
+            while (!connections.isEmpty())
+               connections.get(connections.size() - 1).close();
+            for (Connection connection : pending)
+               connection.close();
+            try {
+               selector.close();
+            } catch (IOException ignore) {}
+         }
+      }
+
+      /*
+       * returns the select timeout: 0 for waiting indefinitely, -1 for not
+       * waiting at all, or the milliseconds to wait until the next deadline
+       */
+      private long timeout(long now) {
+         long deadline = timers.isEmpty() ? Long.MAX_VALUE : timers.first().deadline;
+         if (deadline == Long.MAX_VALUE)
+            return 0;
+         if (deadline <= now)
+            return -1;
+         return Math.max(1, (deadline - now + 999999) / 1000000);
+      }
+
+      private class Connection {
+         private final SocketChannel client;
+         private SocketChannel server;
+         private SelectionKey clientKey, serverKey;
+         private ChannelPump up, down;
+
+         long id;
+         long deadline = Long.MAX_VALUE;
+         int index = -1;
+         boolean closed = false;
+
+         Connection(SocketChannel client) {
+            this.client = client;
+         }
+
+         void open(long now) {
+            try {
+               server = SocketChannel.open();
+               server.configureBlocking(false);
+               clientKey = client.register(selector, 0, this);
+               serverKey = server.register(selector, 0, this);
+               if (!server.connect(remote)) {
+                  serverKey.interestOps(SelectionKey.OP_CONNECT);
+                  return;
+               }
+            } catch (IOException e) {
+               close();
+               return;
+            }
+            process(now);
+         }
+
+         /*
+          * returns whether the connection to the server has been established,
+          * and creates the pumps once it has
+          */
+         private boolean connect(long now) throws IOException {
+            if (!server.finishConnect())
+               return false;
+            up = pump(client, server, rateUpCalculation, delayNanoseconds(delayUp), now);
+            down = pump(server, client, rateDownCalculation, delayNanoseconds(delayDown), now);
+            return true;
+         }
+
+         private ChannelPump pump(SocketChannel source, SocketChannel sink, RateCalculator.Result rate, long delay, long now) {
+            return new ChannelPump(source, sink, rate, delay, delay > 0 ? getDelayBufferSize() : UNDELAYED_BUFFER_SIZE, now);
+         }
+
+         void process(long now) {
+            if (closed)
+               return;
+
+            try {
+               if (up == null && !connect(now))
+                  return;
+               up.pump(now);
+               down.pump(now);
+            } catch (IOException e) {
+               close();
+               return;
+            }
+
+            if (up.isFinished() && down.isFinished()) {
+               close();
+               return;
+            }
+
+            clientKey.interestOps((up.wantsRead() ? SelectionKey.OP_READ : 0) | (down.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+            serverKey.interestOps((down.wantsRead() ? SelectionKey.OP_READ : 0) | (up.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+            schedule(Math.min(up.nextDeadline(), down.nextDeadline()));
+         }
+
+         private void schedule(long deadline) {
+            if (deadline == this.deadline)
+               return;
+            if (this.deadline != Long.MAX_VALUE)
+               timers.remove(this);
+            this.deadline = deadline;
+            if (deadline != Long.MAX_VALUE)
+               timers.add(this);
+         }
+
+         void close() {
+            if (closed)
+               return;
+            closed = true;
+            schedule(Long.MAX_VALUE);
+
+            // the order of connections doesn't matter, so the last one takes
+            // its place
+            if (index >= 0) {
+               Connection last = connections.remove(connections.size() - 1);
+               if (last != this) {
+                  connections.set(index, last);
+                  last.index = index;
+               }
+               index = -1;
+            }
+            try {
+               client.close();
+            } catch (Exception ignore) {}
+            if (server != null) {
+               try {
+                  server.close();
+               } catch (Exception ignore) {}
+            }
+         }
+      }
+   }
+}
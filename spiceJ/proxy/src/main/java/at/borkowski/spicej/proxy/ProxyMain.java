@@ -40,11 +40,6 @@ public class ProxyMain {
          return null;
       }
 
-      if (commandLine.udp) {
-         err("UDP is not yet implemented");
-         return null;
-      }
-
       if (commandLine.rate != null) {
          if (commandLine.rateReceive != null) {
             err("You can't use --rate and --rate-receive at the same time");
@@ -57,6 +52,18 @@ public class ProxyMain {
          commandLine.rateReceive = commandLine.rateSend = commandLine.rate;
       }
 
+      if (commandLine.linkRate != null) {
+         if (commandLine.linkRateReceive != null) {
+            err("You can't use --link-rate and --link-rate-receive at the same time");
+            return null;
+         }
+         if (commandLine.linkRateSend != null) {
+            err("You can't use --link-rate and --link-rate-send at the same time");
+            return null;
+         }
+         commandLine.linkRateReceive = commandLine.linkRateSend = commandLine.linkRate;
+      }
+
       if (commandLine.delay != null) {
          if (commandLine.delayReceive != null) {
             err("You can't use --delay and --delay-receive at the same time");
@@ -87,8 +94,75 @@ public class ProxyMain {
       if (split.length == 3)
          remoteHost = split[1];
 
+      if (commandLine.eventLoops != null && !commandLine.nio) {
+         err("You can't use --event-loops without --nio");
+         return null;
+      }
+
+      if (commandLine.virtualThreads) {
+         if (commandLine.nio) {
+            err("You can't use --virtual-threads and --nio at the same time");
+            return null;
+         }
+         if (!SocketProxy.isVirtualThreadsSupported()) {
+            err("Virtual threads require Java 21 or newer");
+            return null;
+         }
+      }
+
+      if (commandLine.flushPolicy != null && commandLine.nio) {
+         err("You can't use --flush-policy and --nio at the same time");
+         return null;
+      }
+
+      if (commandLine.udp) {
+         if (commandLine.nio) {
+            err("You can't use --udp and --nio at the same time");
+            return null;
+         }
+         if (commandLine.virtualThreads) {
+            err("You can't use --udp and --virtual-threads at the same time");
+            return null;
+         }
+         if (commandLine.flushPolicy != null) {
+            err("You can't use --udp and --flush-policy at the same time");
+            return null;
+         }
+      }
+
+      if (commandLine.jmx && (commandLine.nio || commandLine.udp)) {
+         err("You can't use --jmx with --nio or --udp");
+         return null;
+      }
+
+      if ((commandLine.linkRateSend != null || commandLine.linkRateReceive != null) && (commandLine.nio || commandLine.udp)) {
+         err("You can't use link rates with --nio or --udp");
+         return null;
+      }
+
+      if (commandLine.delayBufferSize != null && commandLine.delayBufferSize <= 0) {
+         err("The delay buffer size must be positive");
+         return null;
+      }
+
       SocketProxy sp;
-      sp = new SocketProxy(localPort, remoteHost, remotePort, commandLine.rateSend, commandLine.rateReceive, commandLine.delayReceive, commandLine.delaySend);
+      if (commandLine.udp)
+         sp = new DatagramProxy(localPort, remoteHost, remotePort, commandLine.rateSend, commandLine.rateReceive, commandLine.delayReceive, commandLine.delaySend);
+      else if (commandLine.nio)
+         sp = new NioSocketProxy(localPort, remoteHost, remotePort, commandLine.rateSend, commandLine.rateReceive, commandLine.delayReceive, commandLine.delaySend, commandLine.eventLoops == null ? NioSocketProxy.DEFAULT_EVENT_LOOPS : commandLine.eventLoops);
+      else
+         sp = new SocketProxy(localPort, remoteHost, remotePort, commandLine.rateSend, commandLine.rateReceive, commandLine.delayReceive, commandLine.delaySend, commandLine.linkRateSend, commandLine.linkRateReceive);
+      if (commandLine.virtualThreads)
+         sp.setVirtualThreads(true);
+      if (commandLine.flushPolicy != null)
+         sp.setFlushPolicy(commandLine.flushPolicy);
+      if (commandLine.delayBufferSize != null)
+         sp.setDelayBufferSize(commandLine.delayBufferSize);
+      // buffers are always direct with --nio and --udp
+      if (commandLine.directBuffers && !commandLine.nio && !commandLine.udp)
+         sp.setDirectBuffers(true);
+      if (commandLine.jmx)
+         sp.setJmx(true);
 
       return sp;
    }
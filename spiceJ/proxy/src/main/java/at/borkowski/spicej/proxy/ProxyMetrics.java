@@ -0,0 +1,108 @@
+package at.borkowski.spicej.proxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import at.borkowski.spicej.metrics.TickMetrics;
+import at.borkowski.spicej.rt.TickSourceRegistry;
+
+/**
+ * The metrics of a {@link SocketProxy}: its connections (see
+ * {@link ConnectionMetrics}), the bytes forwarded by all of them, and the tick
+ * lag of the clocks driving the shapers.
+ */
+public class ProxyMetrics implements ProxyMetricsMBean {
+   private final TickSourceRegistry tickSources;
+
+   private final AtomicLong accepted = new AtomicLong();
+   private final Set<ConnectionMetrics> open = ConcurrentHashMap.newKeySet();
+   // the bytes of closed connections, those of open ones are summed up on
+   // request
+   private final LongAdder closedBytesUp = new LongAdder(), closedBytesDown = new LongAdder();
+
+   ProxyMetrics(TickSourceRegistry tickSources) {
+      this.tickSources = tickSources;
+   }
+
+   ConnectionMetrics open(String client) {
+      ConnectionMetrics connection = new ConnectionMetrics(accepted.incrementAndGet(), client);
+      open.add(connection);
+      return connection;
+   }
+
+   void close(ConnectionMetrics connection) {
+      open.remove(connection);
+      closedBytesUp.add(connection.getBytesUp());
+      closedBytesDown.add(connection.getBytesDown());
+   }
+
+   /**
+    * Returns the metrics of the connections currently open.
+    *
+    * @return the metrics of the open connections
+    */
+   public Collection<ConnectionMetrics> getConnections() {
+      return new ArrayList<>(open);
+   }
+
+   @Override
+   public long getAcceptedConnections() {
+      return accepted.get();
+   }
+
+   @Override
+   public int getOpenConnections() {
+      return open.size();
+   }
+
+   @Override
+   public long getBytesUp() {
+      long bytes = closedBytesUp.sum();
+      for (ConnectionMetrics connection : open)
+         bytes += connection.getBytesUp();
+      return bytes;
+   }
+
+   @Override
+   public long getBytesDown() {
+      long bytes = closedBytesDown.sum();
+      for (ConnectionMetrics connection : open)
+         bytes += connection.getBytesDown();
+      return bytes;
+   }
+
+   @Override
+   public int getClockCount() {
+      return tickSources.getClockCount();
+   }
+
+   @Override
+   public long getMaxTickLagNanoseconds() {
+      long max = 0;
+      for (TickMetrics clock : tickSources.getClockMetrics())
+         max = Math.max(max, clock.getMaxLagNanoseconds());
+      return max;
+   }
+
+   @Override
+   public long getAverageTickLagNanoseconds() {
+      long ticks = 0, lag = 0;
+      for (TickMetrics clock : tickSources.getClockMetrics()) {
+         ticks += clock.getTicks();
+         lag += clock.getTotalLagNanoseconds();
+      }
+      return ticks == 0 ? 0 : lag / ticks;
+   }
+
+   @Override
+   public long getMaxTickDispatchNanoseconds() {
+      long max = 0;
+      for (TickMetrics clock : tickSources.getClockMetrics())
+         max = Math.max(max, clock.getMaxDispatchNanoseconds());
+      return max;
+   }
+}
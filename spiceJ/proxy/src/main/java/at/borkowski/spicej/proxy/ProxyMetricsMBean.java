@@ -0,0 +1,65 @@
+package at.borkowski.spicej.proxy;
+
+/**
+ * The management interface of {@link ProxyMetrics}.
+ */
+public interface ProxyMetricsMBean {
+   /**
+    * Returns the number of connections accepted so far.
+    *
+    * @return the number of accepted connections
+    */
+   long getAcceptedConnections();
+
+   /**
+    * Returns the number of connections currently open.
+    *
+    * @return the number of open connections
+    */
+   int getOpenConnections();
+
+   /**
+    * Returns the number of bytes forwarded to the remote host by all
+    * connections.
+    *
+    * @return the number of upstream bytes
+    */
+   long getBytesUp();
+
+   /**
+    * Returns the number of bytes forwarded to clients by all connections.
+    *
+    * @return the number of downstream bytes
+    */
+   long getBytesDown();
+
+   /**
+    * Returns the number of clocks (timer threads) currently running.
+    *
+    * @return the number of clocks
+    */
+   int getClockCount();
+
+   /**
+    * Returns the highest lag of a tick of any running clock, ie. how much later
+    * than scheduled the tick has been generated.
+    *
+    * @return the maximum tick lag, in nanoseconds
+    */
+   long getMaxTickLagNanoseconds();
+
+   /**
+    * Returns the average lag of the ticks of all running clocks.
+    *
+    * @return the average tick lag, in nanoseconds
+    */
+   long getAverageTickLagNanoseconds();
+
+   /**
+    * Returns the highest time any running clock took to distribute a tick to
+    * the shaped connections.
+    *
+    * @return the maximum tick dispatch latency, in nanoseconds
+    */
+   long getMaxTickDispatchNanoseconds();
+}
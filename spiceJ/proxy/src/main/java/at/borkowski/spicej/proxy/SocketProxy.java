@@ -1,16 +1,29 @@
 package at.borkowski.spicej.proxy;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.ObjectName;
 
 import at.borkowski.spicej.Streams;
+import at.borkowski.spicej.metrics.Metrics;
+import at.borkowski.spicej.metrics.ShapingMetrics;
+import at.borkowski.spicej.streams.DelayedInputStream;
+import at.borkowski.spicej.streams.RateLimitInputStream;
+import at.borkowski.spicej.streams.SharedRateLimiter;
 import at.borkowski.spicej.rt.DelayCalculator;
 import at.borkowski.spicej.rt.RateCalculator;
-import at.borkowski.spicej.rt.RealTimeTickSource;
 import at.borkowski.spicej.rt.RateCalculator.Result;
+import at.borkowski.spicej.rt.TickSourceRegistry;
 
 /**
  * A proxy provider for TCP connections allowing for upstream and downstream
@@ -23,14 +36,45 @@ public class SocketProxy implements Runnable {
    final int localPort, remotePort;
    final String remoteHost;
    final Float rateUp, rateDown, delayUp, delayDown;
+   private final Float sharedRateUp, sharedRateDown;
+
+   // proxies serving connections by event loops need neither tick sources
+   // nor the settings of thread-based connections
+   private final boolean eventLoops;
+   private final TickSourceRegistry tickSources;
+   private final ProxyMetrics metrics;
 
    private ServerSocket listener;
+   private ThreadFactory threadFactory = DAEMON_THREADS;
+   private FlushPolicy flushPolicy = FlushPolicy.PER_CHUNK;
+   private int delayBufferSize = BUFFER_SIZE;
+   private boolean directBuffers = false;
+   private boolean jmx = false;
+   private SharedRateLimiter sharedUp, sharedDown;
+   private ObjectName jmxName;
 
    /**
     * The buffer size used for socket connections if delaying is added.
     */
    public static final int BUFFER_SIZE = 100 * 1024;
 
+   /*
+    * Whether the streams of channel-backed sockets can be used like those of
+    * plain sockets. Before Java 13, reading from such a stream blocks writing to
+    * the same socket, and their available() always returns 0, which the
+    * shaping streams rely on.
+    */
+   private static final boolean CHANNEL_STREAMS = javaVersion() >= 13;
+
+   private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+         Thread thread = new Thread(runnable);
+         thread.setDaemon(true);
+         return thread;
+      }
+   };
+
    /**
     * Creates a proxy and binds to the local port.
     * 
@@ -54,6 +98,56 @@ public class SocketProxy implements Runnable {
     *           for no delay
     */
    public SocketProxy(int localPort, String remoteHost, int remotePort, Float rateUp, Float rateDown, Float delayUp, Float delayDown) {
+      this(localPort, remoteHost, remotePort, rateUp, rateDown, delayUp, delayDown, null, null);
+   }
+
+   /**
+    * Creates a proxy with rates shared by all of its connections, eg. to model
+    * a link all clients have to share. The shared rates are divided fairly
+    * among the connections transferring data (see {@link SharedRateLimiter}),
+    * each of which is still limited by its own rates, if any. Proxies serving
+    * connections by event loops (see {@link NioSocketProxy} and
+    * {@link DatagramProxy}) don't support shared rates.
+    * 
+    * @param localPort
+    *           the local port to listen on
+    * @param remoteHost
+    *           the remote host to connect to
+    * @param remotePort
+    *           the remote port to connect to
+    * @param rateUp
+    *           the upstream rate limitation to establish per connection, or
+    *           <code>null</code> for no limit
+    * @param rateDown
+    *           the downstream rate limitation to establish per connection, or
+    *           <code>null</code> for no limit
+    * @param delayUp
+    *           the delay to add to the uplink stream, or <code>null</code> for
+    *           no delay
+    * @param delayDown
+    *           the delay to add to the downlink stream, or <code>null</code>
+    *           for no delay
+    * @param sharedRateUp
+    *           the upstream rate shared by all connections, or
+    *           <code>null</code> if the connections share no rate, in bytes
+    *           per second
+    * @param sharedRateDown
+    *           the downstream rate shared by all connections, or
+    *           <code>null</code> if the connections share no rate, in bytes
+    *           per second
+    */
+   public SocketProxy(int localPort, String remoteHost, int remotePort, Float rateUp, Float rateDown, Float delayUp, Float delayDown, Float sharedRateUp, Float sharedRateDown) {
+      this(localPort, remoteHost, remotePort, rateUp, rateDown, delayUp, delayDown, sharedRateUp, sharedRateDown, false);
+   }
+
+   /*
+    * for proxies serving connections by event loops
+    */
+   SocketProxy(int localPort, String remoteHost, int remotePort, Float rateUp, Float rateDown, Float delayUp, Float delayDown, boolean eventLoops) {
+      this(localPort, remoteHost, remotePort, rateUp, rateDown, delayUp, delayDown, null, null, eventLoops);
+   }
+
+   private SocketProxy(int localPort, String remoteHost, int remotePort, Float rateUp, Float rateDown, Float delayUp, Float delayDown, Float sharedRateUp, Float sharedRateDown, boolean eventLoops) {
       this.localPort = localPort;
       this.remoteHost = remoteHost;
       this.remotePort = remotePort;
@@ -61,22 +155,236 @@ public class SocketProxy implements Runnable {
       this.rateDown = rateDown;
       this.delayUp = delayUp;
       this.delayDown = delayDown;
+      this.sharedRateUp = sharedRateUp;
+      this.sharedRateDown = sharedRateDown;
+      this.eventLoops = eventLoops;
+
+      if (eventLoops) {
+         tickSources = null;
+         metrics = null;
+         return;
+      }
+
+      tickSources = new TickSourceRegistry();
+      metrics = new ProxyMetrics(tickSources);
+      // idle connections don't need any ticks
+      tickSources.setDeadlineDriven(true);
+   }
+
+   private void requireThreads() {
+      if (eventLoops)
+         throw new IllegalStateException("not supported by proxies serving connections by event loops");
+   }
+
+   /**
+    * Sets whether connections are served by virtual threads instead of
+    * platform threads. Virtual threads are much cheaper than platform threads,
+    * so that many more connections can be served at the same time. This
+    * requires Java 21 or newer. This method must be called before the proxy
+    * is run.
+    * 
+    * @param virtualThreads
+    *           whether to use virtual threads
+    * @throws UnsupportedOperationException
+    *            if virtual threads are requested but not supported by the
+    *            running Java version
+    * @throws IllegalStateException
+    *            if the proxy serves connections by event loops (see
+    *            {@link NioSocketProxy} and {@link DatagramProxy})
+    */
+   public void setVirtualThreads(boolean virtualThreads) {
+      requireThreads();
+      threadFactory = virtualThreads ? VirtualThreads.factory() : DAEMON_THREADS;
+   }
+
+   /**
+    * Sets the flush policy of the gobblers forwarding data of shaped directions
+    * (see {@link FlushPolicy}). The default is {@link FlushPolicy#PER_CHUNK}.
+    * This method must be called before the proxy is run.
+    * 
+    * @param flushPolicy
+    *           the flush policy
+    * @throws IllegalStateException
+    *            if the proxy serves connections by event loops (see
+    *            {@link NioSocketProxy} and {@link DatagramProxy})
+    */
+   public void setFlushPolicy(FlushPolicy flushPolicy) {
+      requireThreads();
+      this.flushPolicy = flushPolicy;
+   }
+
+   /**
+    * Returns the flush policy (see {@link #setFlushPolicy(FlushPolicy)}).
+    * 
+    * @return the flush policy
+    */
+   public FlushPolicy getFlushPolicy() {
+      return flushPolicy;
+   }
+
+   /**
+    * Sets the size of the buffers holding delayed data, per direction and
+    * connection. The buffer must hold all data in flight, ie. at least the
+    * rate times the delay (the bandwidth-delay product); data which does not
+    * fit is delayed further. The default is {@link #BUFFER_SIZE}. This method
+    * must be called before the proxy is run.
+    * 
+    * @param delayBufferSize
+    *           the buffer size, in bytes
+    */
+   public void setDelayBufferSize(int delayBufferSize) {
+      if (delayBufferSize <= 0)
+         throw new IllegalArgumentException("buffer size must be positive");
+      this.delayBufferSize = delayBufferSize;
+   }
+
+   /**
+    * Returns the size of the buffers holding delayed data (see
+    * {@link #setDelayBufferSize(int)}).
+    * 
+    * @return the buffer size, in bytes
+    */
+   public int getDelayBufferSize() {
+      return delayBufferSize;
+   }
+
+   /**
+    * Sets whether the buffers holding delayed data are allocated in direct
+    * (off-heap) memory, which keeps large buffers from growing the heap and
+    * prolonging garbage collection. This method must be called before the
+    * proxy is run.
+    * 
+    * @param directBuffers
+    *           whether to use direct buffers
+    * @throws IllegalStateException
+    *            if the proxy serves connections by event loops (see
+    *            {@link NioSocketProxy} and {@link DatagramProxy})
+    */
+   public void setDirectBuffers(boolean directBuffers) {
+      requireThreads();
+      this.directBuffers = directBuffers;
+   }
+
+   /**
+    * Returns whether the buffers holding delayed data are allocated in direct
+    * memory (see {@link #setDirectBuffers(boolean)}). Proxies serving
+    * connections by event loops always use direct buffers.
+    * 
+    * @return whether direct buffers are used
+    */
+   public boolean isDirectBuffers() {
+      return eventLoops || directBuffers;
+   }
+
+   /**
+    * Sets whether the proxy's metrics (see {@link #getMetrics()}) and the
+    * metrics of each connection are registered as MBeans, so that they can be
+    * read by JMX clients. The proxy is registered as
+    * <code>at.borkowski.spicej:type=Proxy,port=&lt;local port&gt;</code> upon
+    * initialization, and each connection as
+    * <code>at.borkowski.spicej:type=Connection,port=&lt;local port&gt;,id=&lt;number&gt;</code>
+    * while it is open. This method must be called before the proxy is
+    * initialized.
+    * 
+    * @param jmx
+    *           whether to register MBeans
+    * @throws IllegalStateException
+    *            if the proxy serves connections by event loops (see
+    *            {@link NioSocketProxy} and {@link DatagramProxy})
+    */
+   public void setJmx(boolean jmx) {
+      requireThreads();
+      this.jmx = jmx;
+   }
+
+   /**
+    * Returns whether metrics are registered as MBeans (see
+    * {@link #setJmx(boolean)}).
+    * 
+    * @return whether MBeans are registered
+    */
+   public boolean isJmx() {
+      return jmx;
+   }
+
+   /**
+    * Returns the upstream rate shared by all connections (see
+    * {@link #SocketProxy(int, String, int, Float, Float, Float, Float, Float, Float)}).
+    * 
+    * @return the rate, or <code>null</code>
+    */
+   public Float getSharedRateUp() {
+      return sharedRateUp;
+   }
+
+   /**
+    * Returns the downstream rate shared by all connections (see
+    * {@link #SocketProxy(int, String, int, Float, Float, Float, Float, Float, Float)}).
+    * 
+    * @return the rate, or <code>null</code>
+    */
+   public Float getSharedRateDown() {
+      return sharedRateDown;
    }
 
-   private static InputStream delay(InputStream inputStream, Float delay) {
+   /**
+    * Returns the metrics of the proxy and its connections. Metrics are always
+    * collected, registering them as MBeans is optional (see
+    * {@link #setJmx(boolean)}).
+    * 
+    * @return the metrics
+    * @throws IllegalStateException
+    *            if the proxy serves connections by event loops (see
+    *            {@link NioSocketProxy} and {@link DatagramProxy})
+    */
+   public ProxyMetrics getMetrics() {
+      requireThreads();
+      return metrics;
+   }
+
+   /**
+    * Returns whether virtual threads are supported by the running Java version
+    * (see {@link #setVirtualThreads(boolean)}).
+    * 
+    * @return whether virtual threads are supported
+    */
+   public static boolean isVirtualThreadsSupported() {
+      return VirtualThreads.isSupported();
+   }
+
+   private InputStream delay(InputStream inputStream, Float delay, ShapingMetrics metrics) {
       if (delay == null || delay * 1000000 < 1)
          return inputStream;
 
       DelayCalculator.Result calculation = DelayCalculator.calculate((long) (1000000D * delay));
-      return Streams.addDelay(inputStream, new RealTimeTickSource(calculation.getTickNanosecondsInterval(), true), calculation.getDelay(), BUFFER_SIZE);
+      DelayedInputStream delayed = Streams.addDelay(inputStream, tickSources.get(calculation.getTickNanosecondsInterval()), calculation.getDelay(), delayBufferSize, directBuffers);
+      delayed.setMetrics(metrics);
+      return delayed;
    }
 
-   private static InputStream rate(InputStream inputStream, Float rate) {
-      if (rate == null)
+   private InputStream rate(InputStream inputStream, Float rate, SharedRateLimiter shared, ShapingMetrics metrics) {
+      RateLimitInputStream limited;
+      if (rate != null) {
+         Result calculation = RateCalculator.calculate(rate);
+         limited = Streams.limitRate(inputStream, tickSources.get(calculation.getTickNanosecondsInterval()), calculation.getBytesPerTick(), calculation.getPrescale());
+      } else if (shared != null) {
+         // a connection without a rate of its own may use the whole shared rate
+         limited = Streams.limitRate(inputStream, shared.getTickSource(), shared.getThingsPerTick(), shared.getPrescale());
+      } else {
          return inputStream;
+      }
+
+      limited.setSharedLimiter(shared);
+      limited.setMetrics(metrics);
+      return limited;
+   }
+
+   private SharedRateLimiter sharedLimiter(Float rate) {
+      if (rate == null)
+         return null;
 
       Result calculation = RateCalculator.calculate(rate);
-      return Streams.limitRate(inputStream, new RealTimeTickSource(calculation.getTickNanosecondsInterval(), true), calculation.getBytesPerTick(), calculation.getPrescale());
+      return new SharedRateLimiter(tickSources.get(calculation.getTickNanosecondsInterval()), calculation.getBytesPerTick(), calculation.getPrescale());
    }
 
    /**
@@ -89,19 +397,67 @@ public class SocketProxy implements Runnable {
    public void initialize() throws IOException {
       if (listener != null)
          throw new IllegalStateException("already initialized");
-      listener = new ServerSocket(localPort);
+      if (useChannels()) {
+         ServerSocketChannel channel = ServerSocketChannel.open();
+         channel.bind(new InetSocketAddress(localPort));
+         listener = channel.socket();
+      } else {
+         listener = new ServerSocket(localPort);
+      }
+      sharedUp = sharedLimiter(sharedRateUp);
+      sharedDown = sharedLimiter(sharedRateDown);
+      if (jmx)
+         jmxName = Metrics.register(metrics, "type=Proxy,port=" + localPort);
+   }
+
+   /**
+    * Returns whether connections are established using channels, which allows
+    * unshaped directions to be forwarded from channel to channel (see
+    * {@link StreamGobbler}). This is the case if at least one direction is
+    * unshaped and the running Java version supports using the streams of
+    * channel-backed sockets for the shaped direction.
+    * 
+    * @return whether connections use channels
+    */
+   boolean useChannels() {
+      return CHANNEL_STREAMS && ((!isShaped(rateUp, delayUp) && sharedRateUp == null) || (!isShaped(rateDown, delayDown) && sharedRateDown == null));
+   }
+
+   private static boolean isShaped(Float rate, Float delay) {
+      return rate != null || (delay != null && delay * 1000000 >= 1);
+   }
+
+   private static int javaVersion() {
+      String version = System.getProperty("java.specification.version");
+      try {
+         return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+      } catch (RuntimeException e) {
+         return 0;
+      }
+   }
+
+   private StreamGobbler gobble(Socket from, Socket to, Float rate, SharedRateLimiter shared, Float delay, ShapingMetrics transfer, ShapingMetrics rateMetrics, ShapingMetrics delayMetrics) throws IOException {
+      StreamGobbler gobbler;
+      if (!isShaped(rate, delay) && shared == null && from.getChannel() != null && to.getChannel() != null)
+         gobbler = new StreamGobbler(from.getChannel(), to.getChannel());
+      else
+         gobbler = new StreamGobbler(delay(rate(new ShutdownInputStream(from), rate, shared, rateMetrics), delay, delayMetrics), new ShutdownOutputStream(to), flushPolicy);
+      gobbler.setMetrics(transfer);
+      return gobbler;
    }
 
    @Override
    public void run() {
-      while (true) {
+      while (!listener.isClosed()) {
          try {
             Socket client = listener.accept();
             try {
-               Socket server = new Socket(remoteHost, remotePort);
-               Thread connector = new Thread(new Connector(client, server));
-               connector.setDaemon(true);
-               connector.start();
+               Socket server;
+               if (client.getChannel() != null)
+                  server = SocketChannel.open(new InetSocketAddress(remoteHost, remotePort)).socket();
+               else
+                  server = new Socket(remoteHost, remotePort);
+               threadFactory.newThread(new Connector(client, server)).start();
             } catch (Exception ignore) {
                ignore.printStackTrace();
                try {
@@ -109,11 +465,66 @@ public class SocketProxy implements Runnable {
                } catch (Exception ignore2) {}
             }
          } catch (IOException e) {
-            e.printStackTrace();
+            if (!listener.isClosed())
+               e.printStackTrace();
          }
       }
    }
 
+   /**
+    * Stops accepting connections. Connections already established are not
+    * affected.
+    */
+   public void close() {
+      try {
+         listener.close();
+      } catch (IOException ignore) {}
+      if (jmxName != null) {
+         Metrics.unregister(jmxName);
+         jmxName = null;
+      }
+   }
+
+   /*
+    * Closing a socket's stream closes the whole socket. Since the other
+    * direction may still be transferring data, a gobbler finishing one
+    * direction must only shut down its half of the connection.
+    */
+   private static class ShutdownInputStream extends FilterInputStream {
+      private final Socket socket;
+
+      ShutdownInputStream(Socket socket) throws IOException {
+         super(socket.getInputStream());
+         this.socket = socket;
+      }
+
+      @Override
+      public void close() throws IOException {
+         if (!socket.isClosed() && !socket.isInputShutdown())
+            socket.shutdownInput();
+      }
+   }
+
+   private static class ShutdownOutputStream extends FilterOutputStream {
+      private final Socket socket;
+
+      ShutdownOutputStream(Socket socket) throws IOException {
+         super(socket.getOutputStream());
+         this.socket = socket;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+         if (!socket.isClosed() && !socket.isOutputShutdown())
+            socket.shutdownOutput();
+      }
+   }
+
    class Connector implements Runnable {
       private final Socket client, server;
 
@@ -124,18 +535,16 @@ public class SocketProxy implements Runnable {
 
       @Override
       public void run() {
+         ConnectionMetrics connection = metrics.open(String.valueOf(client.getRemoteSocketAddress()));
+         ObjectName name = jmx ? Metrics.register(connection, "type=Connection,port=" + localPort + ",id=" + connection.getId()) : null;
+
          StreamGobbler a = null, b = null;
          try {
-            a = new StreamGobbler(delay(rate(client.getInputStream(), rateUp), delayUp), server.getOutputStream());
-            b = new StreamGobbler(delay(rate(server.getInputStream(), rateDown), delayDown), client.getOutputStream());
+            a = gobble(client, server, rateUp, sharedUp, delayUp, connection.up, connection.rateUp, connection.delayUp);
+            b = gobble(server, client, rateDown, sharedDown, delayDown, connection.down, connection.rateDown, connection.delayDown);
 
-            Thread t = new Thread(a);
-            t.setDaemon(true);
-            t.start();
-
-            t = new Thread(b);
-            t.setDaemon(true);
-            t.start();
+            threadFactory.newThread(a).start();
+            threadFactory.newThread(b).start();
 
             a.waitFor();
             b.waitFor();
@@ -156,6 +565,10 @@ public class SocketProxy implements Runnable {
             try {
                server.close();
             } catch (Exception ignore) {}
+
+            metrics.close(connection);
+            if (name != null)
+               Metrics.unregister(name);
          }
       }
 
@@ -1,52 +1,232 @@
 package at.borkowski.spicej.proxy;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+
+import at.borkowski.spicej.metrics.ShapingMetrics;
+import at.borkowski.spicej.streams.DelayedInputStream;
+import at.borkowski.spicej.streams.RateLimitInputStream;
 
 /**
  * A stream gobbler, copying data from an {@link InputStream} to an
  * {@link OutputStream}.
+ * 
+ * If the input stream is (or is based on) a {@link RateLimitInputStream}, the
+ * gobbler's buffer is sized to hold the quota of a whole tick, so that a tick's
+ * data is transferred by one read and one write. The buffer follows changes of
+ * the stream's rate. When the data is written and flushed is determined by a
+ * {@link FlushPolicy}.
+ * 
+ * For unshaped connections, a gobbler can also copy data directly from one
+ * channel to another, using a large direct buffer. This avoids copying the data
+ * to and from the Java heap.
+ * 
+ * The bytes forwarded can be counted by a {@link ShapingMetrics} instance (see
+ * {@link #setMetrics(ShapingMetrics)}).
  */
 public class StreamGobbler implements Runnable {
+   /**
+    * The buffer size used for copying between channels and from streams which
+    * are not rate-limited.
+    */
+   public static final int UNLIMITED_BUFFER_SIZE = 64 * 1024;
+
+   /**
+    * The minimum buffer size used for rate-limited streams.
+    */
+   public static final int MIN_BUFFER_SIZE = 1024;
+
+   /**
+    * The maximum buffer size used for rate-limited streams.
+    */
+   public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
    private final InputStream is;
    private final OutputStream os;
+   private final ReadableByteChannel inChannel;
+   private final WritableByteChannel outChannel;
+   private final Closeable source, sink;
+   private final FlushPolicy flushPolicy;
+   private ShapingMetrics metrics;
 
    private Thread thread;
    private Throwable t = null;
-   private boolean finished = false;
+   private final CountDownLatch finished = new CountDownLatch(1);
    private boolean cancel = false;
 
    StreamGobbler(InputStream is, OutputStream os) {
+      this(is, os, FlushPolicy.PER_CHUNK);
+   }
+
+   StreamGobbler(InputStream is, OutputStream os, FlushPolicy flushPolicy) {
       this.is = is;
       this.os = os;
+      this.inChannel = null;
+      this.outChannel = null;
+      this.source = is;
+      this.sink = os;
+      this.flushPolicy = flushPolicy;
+   }
+
+   StreamGobbler(ReadableByteChannel inChannel, WritableByteChannel outChannel) {
+      this.is = null;
+      this.os = null;
+      this.inChannel = inChannel;
+      this.outChannel = outChannel;
+      this.source = inChannel instanceof SocketChannel ? shutdownInput((SocketChannel) inChannel) : inChannel;
+      this.sink = outChannel instanceof SocketChannel ? shutdownOutput((SocketChannel) outChannel) : outChannel;
+      this.flushPolicy = FlushPolicy.PER_CHUNK;
+   }
+
+   /**
+    * Sets the metrics to count the forwarded bytes in. This method must be
+    * called before the gobbler is run.
+    * 
+    * @param metrics
+    *           the metrics, or <code>null</code> for not counting
+    */
+   public void setMetrics(ShapingMetrics metrics) {
+      this.metrics = metrics;
    }
 
    public void run() {
       thread = Thread.currentThread();
       try {
-         byte[] block = new byte[1024];
-         while (!cancel) {
-            int rd = is.read(block);
-            if (rd == -1)
-               break;
-            os.write(block, 0, rd);
-            os.flush();
-         }
+         if (inChannel != null)
+            copyChannels();
+         else
+            copyStreams();
       } catch (Throwable t) {
          this.t = t;
       } finally {
          try {
-            os.close();
+            sink.close();
          } catch (IOException ignore) {}
          try {
-            is.close();
+            source.close();
          } catch (IOException ignore) {}
 
-         finished = true;
-         synchronized (this) {
-            this.notifyAll();
+         finished.countDown();
+      }
+   }
+
+   // socket channels are shut down half-way only, since the opposite gobbler
+   // might still be using the connection
+   private static Closeable shutdownInput(final SocketChannel channel) {
+      return new Closeable() {
+         @Override
+         public void close() throws IOException {
+            if (channel.isOpen())
+               channel.shutdownInput();
+         }
+      };
+   }
+
+   private static Closeable shutdownOutput(final SocketChannel channel) {
+      return new Closeable() {
+         @Override
+         public void close() throws IOException {
+            if (channel.isOpen())
+               channel.shutdownOutput();
          }
+      };
+   }
+
+   private void copyStreams() throws IOException {
+      RateLimitInputStream rateLimited = findRateLimit(is);
+      byte[] block = new byte[bufferSize(rateLimited)];
+      int buffered = 0;
+      while (!cancel) {
+         if (rateLimited != null && buffered == 0) {
+            int size = bufferSize(rateLimited);
+            if (size != block.length)
+               block = new byte[size];
+         }
+
+         int rd = is.read(block, buffered, block.length - buffered);
+         if (rd == -1)
+            break;
+
+         switch (flushPolicy) {
+         case PER_CHUNK:
+            os.write(block, 0, rd);
+            os.flush();
+            count(rd);
+            break;
+         case PER_TICK:
+            os.write(block, 0, rd);
+            if (is.available() == 0)
+               os.flush();
+            count(rd);
+            break;
+         case COALESCED:
+            buffered += rd;
+            if (buffered == block.length || is.available() == 0) {
+               os.write(block, 0, buffered);
+               os.flush();
+               count(buffered);
+               buffered = 0;
+            }
+            break;
+         }
+      }
+      if (buffered > 0) {
+         os.write(block, 0, buffered);
+         count(buffered);
+      }
+   }
+
+   private void count(int n) {
+      if (metrics != null)
+         metrics.addBytes(n);
+   }
+
+   /**
+    * Returns the buffer size a gobbler uses for reading from the given stream.
+    * 
+    * @param is
+    *           the stream to read from
+    * @return the buffer size
+    */
+   static int bufferSize(InputStream is) {
+      return bufferSize(findRateLimit(is));
+   }
+
+   private static int bufferSize(RateLimitInputStream rateLimited) {
+      if (rateLimited == null)
+         return UNLIMITED_BUFFER_SIZE;
+      int quota = Math.max(rateLimited.getByteRate(), rateLimited.getBurst());
+      return Math.min(MAX_BUFFER_SIZE, Math.max(MIN_BUFFER_SIZE, quota));
+   }
+
+   private static RateLimitInputStream findRateLimit(InputStream is) {
+      while (true) {
+         if (is instanceof RateLimitInputStream)
+            return (RateLimitInputStream) is;
+         else if (is instanceof DelayedInputStream)
+            is = ((DelayedInputStream) is).getBaseStream();
+         else
+            return null;
+      }
+   }
+
+   private void copyChannels() throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(UNLIMITED_BUFFER_SIZE);
+      while (!cancel) {
+         if (inChannel.read(buffer) == -1)
+            break;
+         buffer.flip();
+         count(buffer.remaining());
+         while (buffer.hasRemaining())
+            outChannel.write(buffer);
+         buffer.clear();
       }
    }
 
@@ -58,15 +238,16 @@ public class StreamGobbler implements Runnable {
     *            if the gobbler has thrown an exception
     */
    public void waitFor() throws Throwable {
-      while (!finished) {
+      boolean interrupted = false;
+      while (finished.getCount() > 0) {
          try {
-            synchronized (this) {
-               this.wait(100);
-            }
+            finished.await();
          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            interrupted = true;
          }
       }
+      if (interrupted)
+         Thread.currentThread().interrupt();
 
       if (t != null)
          throw t;
@@ -83,11 +264,11 @@ public class StreamGobbler implements Runnable {
       } catch (Throwable ignore) {}
 
       try {
-         is.close();
+         source.close();
       } catch (Exception ignore) {}
 
       try {
-         os.close();
+         sink.close();
       } catch (Exception ignore) {}
    }
 }
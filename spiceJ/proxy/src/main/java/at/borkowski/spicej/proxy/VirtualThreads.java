@@ -0,0 +1,48 @@
+package at.borkowski.spicej.proxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Provides access to virtual threads if the running Java version supports
+ * them (Java 21 or newer). Since the proxy is compiled for Java 8, the API is
+ * accessed reflectively.
+ */
+class VirtualThreads {
+   private static final ThreadFactory FACTORY = createFactory();
+
+   private VirtualThreads() {}
+
+   /**
+    * Returns whether virtual threads are supported by the running Java
+    * version.
+    * 
+    * @return whether virtual threads are supported
+    */
+   static boolean isSupported() {
+      return FACTORY != null;
+   }
+
+   /**
+    * Returns a factory creating virtual threads.
+    * 
+    * @return the thread factory
+    * @throws UnsupportedOperationException
+    *            if virtual threads are not supported
+    */
+   static ThreadFactory factory() {
+      if (FACTORY == null)
+         throw new UnsupportedOperationException("virtual threads require Java 21 or newer");
+      return FACTORY;
+   }
+
+   private static ThreadFactory createFactory() {
+      try {
+         Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+         Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+         return (ThreadFactory) factory.invoke(builder);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,135 @@
+package at.borkowski.spicej.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.rt.RateCalculator;
+
+public class ChannelPumpTest {
+
+   private static final long MS = 1000000;
+   private static final long T0 = 1000 * MS;
+
+   private Pipe in, out;
+
+   @Before
+   public void setUp() throws IOException {
+      in = Pipe.open();
+      out = Pipe.open();
+      in.source().configureBlocking(false);
+      out.source().configureBlocking(false);
+   }
+
+   private void feed(byte[] data) throws IOException {
+      in.sink().write(ByteBuffer.wrap(data));
+   }
+
+   private byte[] drain() throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(1024);
+      out.source().read(buffer);
+      buffer.flip();
+      byte[] result = new byte[buffer.remaining()];
+      buffer.get(result);
+      return result;
+   }
+
+   @Test
+   public void testUnshaped() throws IOException {
+      ChannelPump sut = new ChannelPump(in.source(), out.sink(), null, 0, 100, T0);
+      byte[] blk = { 3, 1, 4, 1, 5, 9, 2, 6 };
+
+      feed(blk);
+      assertTrue(sut.pump(T0));
+      assertArrayEquals(blk, drain());
+      assertEquals(0, sut.bufferedBytes());
+      assertEquals(Long.MAX_VALUE, sut.nextDeadline());
+      assertTrue(sut.wantsRead());
+      assertFalse(sut.wantsWrite());
+   }
+
+   @Test
+   public void testRate() throws IOException {
+      ChannelPump sut = new ChannelPump(in.source(), out.sink(), new RateCalculator.Result(10, 2, (int) MS), 0, 100, T0);
+
+      feed(new byte[25]);
+      sut.pump(T0);
+      assertEquals(10, drain().length);
+      assertFalse(sut.wantsRead());
+      assertEquals(T0 + 2 * MS, sut.nextDeadline());
+
+      sut.pump(T0 + MS);
+      assertEquals(0, drain().length);
+
+      sut.pump(T0 + 2 * MS);
+      assertEquals(10, drain().length);
+
+      sut.pump(T0 + 5 * MS);
+      assertEquals(5, drain().length);
+      assertTrue(sut.wantsRead());
+   }
+
+   @Test
+   public void testDelay() throws IOException {
+      ChannelPump sut = new ChannelPump(in.source(), out.sink(), null, 5 * MS, 100, T0);
+      byte[] blkA = { 1, 2, 3 };
+      byte[] blkB = { 4, 5 };
+
+      feed(blkA);
+      sut.pump(T0);
+      assertEquals(0, drain().length);
+      assertEquals(3, sut.bufferedBytes());
+      assertEquals(T0 + 5 * MS, sut.nextDeadline());
+
+      feed(blkB);
+      sut.pump(T0 + 2 * MS);
+      assertEquals(0, drain().length);
+      assertEquals(5, sut.bufferedBytes());
+
+      sut.pump(T0 + 5 * MS);
+      assertArrayEquals(blkA, drain());
+      assertEquals(T0 + 7 * MS, sut.nextDeadline());
+
+      sut.pump(T0 + 7 * MS);
+      assertArrayEquals(blkB, drain());
+      assertEquals(0, sut.bufferedBytes());
+      assertEquals(Long.MAX_VALUE, sut.nextDeadline());
+   }
+
+   @Test
+   public void testWrapAround() throws IOException {
+      ChannelPump sut = new ChannelPump(in.source(), out.sink(), null, MS, 10, T0);
+      byte[] blk = { 1, 2, 3, 4, 5, 6, 7 };
+
+      for (int i = 0; i < 5; i++) {
+         feed(blk);
+         sut.pump(T0 + 2 * i * MS);
+         sut.pump(T0 + (2 * i + 1) * MS);
+         assertArrayEquals(blk, drain());
+      }
+   }
+
+   @Test
+   public void testEof() throws IOException {
+      ChannelPump sut = new ChannelPump(in.source(), out.sink(), null, MS, 100, T0);
+
+      feed(new byte[] { 1, 2 });
+      in.sink().close();
+      sut.pump(T0);
+      assertFalse(sut.isFinished());
+      assertFalse(sut.wantsRead());
+
+      sut.pump(T0 + MS);
+      assertEquals(2, drain().length);
+      assertTrue(sut.isFinished());
+      assertEquals(-1, out.source().read(ByteBuffer.allocate(1)));
+   }
+}
@@ -0,0 +1,213 @@
+package at.borkowski.spicej.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatagramProxyTest {
+
+   private DatagramSocket echo;
+   private DatagramProxy sut;
+   private int port;
+
+   @Before
+   public void setUp() throws SocketException {
+      echo = new DatagramSocket(0);
+      Thread server = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            byte[] buffer = new byte[DatagramProxy.MAX_DATAGRAM_SIZE];
+            while (true) {
+               try {
+                  DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                  echo.receive(packet);
+                  echo.send(packet);
+               } catch (IOException e) {
+                  return;
+               }
+            }
+         }
+      });
+      server.setDaemon(true);
+      server.start();
+
+      try (DatagramSocket free = new DatagramSocket(0)) {
+         port = free.getLocalPort();
+      }
+   }
+
+   @After
+   public void tearDown() {
+      if (sut != null)
+         sut.close();
+      echo.close();
+   }
+
+   private void start(Float rate, Float delay) throws IOException {
+      sut = new DatagramProxy(port, "localhost", echo.getLocalPort(), rate, rate, delay, delay);
+      sut.initialize();
+      Thread loop = new Thread(sut);
+      loop.setDaemon(true);
+      loop.start();
+   }
+
+   private static void send(DatagramSocket client, byte[] data, int port) throws IOException {
+      client.send(new DatagramPacket(data, data.length, InetAddress.getByName("localhost"), port));
+   }
+
+   private static byte[] receive(DatagramSocket client) throws IOException {
+      DatagramPacket packet = new DatagramPacket(new byte[DatagramProxy.MAX_DATAGRAM_SIZE], DatagramProxy.MAX_DATAGRAM_SIZE);
+      client.receive(packet);
+      return Arrays.copyOf(packet.getData(), packet.getLength());
+   }
+
+   private static DatagramSocket client() throws SocketException {
+      DatagramSocket client = new DatagramSocket();
+      client.setSoTimeout(5000);
+      return client;
+   }
+
+   @Test
+   public void testUnshaped() throws IOException {
+      start(null, null);
+
+      try (DatagramSocket client = client()) {
+         for (int i = 0; i < 100; i++) {
+            byte[] data = { (byte) i, 1, 2, 3 };
+            send(client, data, port);
+            assertArrayEquals(data, receive(client));
+         }
+      }
+      assertEquals(1, sut.getSessionCount());
+   }
+
+   @Test
+   public void testSessions() throws IOException {
+      start(null, null);
+
+      try (DatagramSocket clientA = client(); DatagramSocket clientB = client()) {
+         send(clientA, new byte[] { 1 }, port);
+         send(clientB, new byte[] { 2 }, port);
+
+         assertArrayEquals(new byte[] { 1 }, receive(clientA));
+         assertArrayEquals(new byte[] { 2 }, receive(clientB));
+      }
+      assertEquals(2, sut.getSessionCount());
+   }
+
+   @Test
+   public void testMaxSessions() throws IOException, InterruptedException {
+      start(null, null);
+      sut.setMaxSessions(1);
+
+      try (DatagramSocket clientA = client(); DatagramSocket clientB = client()) {
+         send(clientA, new byte[] { 1 }, port);
+         assertArrayEquals(new byte[] { 1 }, receive(clientA));
+
+         // the second client gets no session, its datagrams are dropped
+         send(clientB, new byte[] { 2 }, port);
+         send(clientB, new byte[] { 3 }, port);
+         long deadline = System.currentTimeMillis() + 5000;
+         while (sut.getDroppedDatagrams() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+         assertEquals(2, sut.getDroppedDatagrams());
+         assertEquals(1, sut.getSessionCount());
+
+         send(clientA, new byte[] { 4 }, port);
+         assertArrayEquals(new byte[] { 4 }, receive(clientA));
+      }
+   }
+
+   @Test
+   public void testDelay() throws IOException {
+      start(null, 100F);
+
+      try (DatagramSocket client = client()) {
+         byte[] data = { 1, 2, 3 };
+
+         long t0 = System.nanoTime();
+         send(client, data, port);
+         assertArrayEquals(data, receive(client));
+         long elapsed = System.nanoTime() - t0;
+
+         assertTrue(elapsed >= 200 * 1000000L);
+      }
+   }
+
+   @Test
+   public void testRate() throws IOException {
+      start(1000F, null);
+
+      try (DatagramSocket client = client()) {
+         long t0 = System.nanoTime();
+         for (int i = 0; i < 3; i++)
+            send(client, new byte[500], port);
+         for (int i = 0; i < 3; i++)
+            assertEquals(500, receive(client).length);
+         long elapsed = System.nanoTime() - t0;
+
+         // 1000 B are passed per second, so the third datagram leaves after
+         // one second
+         assertTrue(elapsed >= 900 * 1000000L);
+      }
+   }
+
+   @Test
+   public void testSessionTimeout() throws Exception {
+      start(null, null);
+      sut.setSessionTimeout(50);
+
+      try (DatagramSocket client = client()) {
+         send(client, new byte[] { 1 }, port);
+         receive(client);
+         assertEquals(1, sut.getSessionCount());
+
+         long deadline = System.currentTimeMillis() + 5000;
+         while (sut.getSessionCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+         assertEquals(0, sut.getSessionCount());
+      }
+   }
+
+   @Test
+   public void testSessionTimeoutWhileOthersActive() throws Exception {
+      start(null, null);
+      sut.setSessionTimeout(200);
+
+      try (DatagramSocket idle = client(); DatagramSocket active = client()) {
+         send(idle, new byte[] { 1 }, port);
+         receive(idle);
+         send(active, new byte[] { 2 }, port);
+         receive(active);
+         assertEquals(2, sut.getSessionCount());
+
+         // the active session's traffic must neither keep the idle one open
+         // nor be affected by it timing out
+         long deadline = System.currentTimeMillis() + 5000;
+         while (sut.getSessionCount() != 1 && System.currentTimeMillis() < deadline) {
+            send(active, new byte[] { 2 }, port);
+            assertArrayEquals(new byte[] { 2 }, receive(active));
+            Thread.sleep(20);
+         }
+         assertEquals(1, sut.getSessionCount());
+
+         send(active, new byte[] { 3 }, port);
+         assertArrayEquals(new byte[] { 3 }, receive(active));
+
+         while (sut.getSessionCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+         assertEquals(0, sut.getSessionCount());
+      }
+   }
+}
@@ -0,0 +1,192 @@
+package at.borkowski.spicej.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.rt.RateCalculator;
+
+public class DatagramQueueTest {
+
+   private static final long MS = 1000000;
+   private static final long T0 = 1000 * MS;
+
+   private final List<byte[]> sent = new ArrayList<>();
+   private boolean accepting;
+   private boolean failing;
+   private BufferPool pool;
+
+   private final DatagramQueue.Sender sender = new DatagramQueue.Sender() {
+      @Override
+      public boolean send(ByteBuffer datagram) throws IOException {
+         if (failing)
+            throw new IOException("unreachable");
+         if (!accepting)
+            return false;
+         byte[] data = new byte[datagram.remaining()];
+         datagram.get(data);
+         sent.add(data);
+         return true;
+      }
+   };
+
+   @Before
+   public void setUp() {
+      accepting = true;
+      failing = false;
+      pool = new BufferPool(100, 4);
+   }
+
+   private static ByteBuffer datagram(int... bytes) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      for (int b : bytes)
+         buffer.put((byte) b);
+      buffer.flip();
+      return buffer;
+   }
+
+   @Test
+   public void testUnshaped() {
+      DatagramQueue sut = new DatagramQueue(sender, pool, null, 0, T0);
+
+      assertTrue(sut.offer(datagram(1, 2, 3), T0));
+      assertTrue(sut.offer(datagram(4), T0));
+
+      assertEquals(2, sent.size());
+      assertArrayEquals(new byte[] { 1, 2, 3 }, sent.get(0));
+      assertArrayEquals(new byte[] { 4 }, sent.get(1));
+      assertTrue(sut.isEmpty());
+      assertEquals(Long.MAX_VALUE, sut.nextDeadline());
+      // sent directly, without taking a buffer
+      assertEquals(0, pool.getPooledBuffers());
+   }
+
+   @Test
+   public void testDelay() {
+      DatagramQueue sut = new DatagramQueue(sender, pool, null, 5 * MS, T0);
+
+      sut.offer(datagram(1, 2, 3), T0);
+      sut.offer(datagram(4, 5), T0 + 2 * MS);
+      assertEquals(0, sent.size());
+      assertEquals(2, sut.size());
+      assertEquals(T0 + 5 * MS, sut.nextDeadline());
+
+      assertFalse(sut.flush(T0 + 4 * MS));
+      assertTrue(sut.flush(T0 + 5 * MS));
+      assertEquals(1, sent.size());
+      assertArrayEquals(new byte[] { 1, 2, 3 }, sent.get(0));
+      assertEquals(T0 + 7 * MS, sut.nextDeadline());
+
+      sut.flush(T0 + 7 * MS);
+      assertEquals(2, sent.size());
+      assertArrayEquals(new byte[] { 4, 5 }, sent.get(1));
+      assertTrue(sut.isEmpty());
+      assertEquals(Long.MAX_VALUE, sut.nextDeadline());
+      assertEquals(1, pool.getPooledBuffers());
+   }
+
+   @Test
+   public void testRate() {
+      DatagramQueue sut = new DatagramQueue(sender, pool, new RateCalculator.Result(10, 2, (int) MS), 0, T0);
+
+      // the first datagram overdraws the quota of 10 bytes per 2 ms by 15 bytes
+      sut.offer(ByteBuffer.allocate(25), T0);
+      sut.offer(ByteBuffer.allocate(5), T0);
+      assertEquals(1, sent.size());
+      assertEquals(1, sut.size());
+
+      // the debt is paid off after two more periods
+      assertEquals(T0 + 4 * MS, sut.nextDeadline());
+      sut.flush(T0 + 2 * MS);
+      assertEquals(1, sent.size());
+      sut.flush(T0 + 4 * MS);
+      assertEquals(2, sent.size());
+
+      // unused quota is not carried over
+      sut.flush(T0 + 20 * MS);
+      sut.offer(ByteBuffer.allocate(10), T0 + 20 * MS);
+      sut.offer(ByteBuffer.allocate(1), T0 + 20 * MS);
+      assertEquals(3, sent.size());
+      assertEquals(T0 + 22 * MS, sut.nextDeadline());
+   }
+
+   @Test
+   public void testBlocked() {
+      DatagramQueue sut = new DatagramQueue(sender, pool, null, 0, T0);
+
+      accepting = false;
+      assertTrue(sut.offer(datagram(1), T0));
+      assertTrue(sut.offer(datagram(2), T0));
+      assertTrue(sut.isBlocked());
+      assertEquals(Long.MAX_VALUE, sut.nextDeadline());
+
+      assertFalse(sut.flush(T0 + MS));
+      assertTrue(sut.isBlocked());
+
+      accepting = true;
+      assertTrue(sut.flush(T0 + MS));
+      assertFalse(sut.isBlocked());
+      assertEquals(2, sent.size());
+      assertArrayEquals(new byte[] { 1 }, sent.get(0));
+      assertArrayEquals(new byte[] { 2 }, sent.get(1));
+   }
+
+   @Test
+   public void testFull() {
+      DatagramQueue sut = new DatagramQueue(sender, pool, null, MS, T0);
+
+      assertFalse(sut.offer(ByteBuffer.allocate(101), T0));
+      assertTrue(sut.offer(ByteBuffer.allocate(60), T0));
+      assertFalse(sut.offer(ByteBuffer.allocate(60), T0));
+      assertTrue(sut.offer(ByteBuffer.allocate(40), T0));
+      assertEquals(2, sut.getDropped());
+      assertEquals(2, sut.size());
+
+      sut.flush(T0 + MS);
+      assertEquals(2, sent.size());
+      assertEquals(60, sent.get(0).length);
+      assertEquals(40, sent.get(1).length);
+   }
+
+   @Test
+   public void testWrapAround() {
+      DatagramQueue sut = new DatagramQueue(sender, pool, null, MS, T0);
+
+      // 30 byte datagrams, two of which are queued at a time, so that some
+      // have to skip the end of the buffer
+      for (int i = 0; i < 20; i++) {
+         byte[] data = new byte[30];
+         data[0] = (byte) i;
+         data[29] = (byte) i;
+         assertTrue(sut.offer(ByteBuffer.wrap(data), T0 + i * MS));
+         sut.flush(T0 + i * MS);
+         assertEquals(i, sent.size());
+         if (i > 0)
+            assertEquals(i - 1, sent.get(i - 1)[29]);
+      }
+      assertEquals(0, sut.getDropped());
+   }
+
+   @Test
+   public void testFailure() {
+      DatagramQueue sut = new DatagramQueue(sender, pool, null, MS, T0);
+
+      sut.offer(datagram(1), T0);
+      sut.offer(datagram(2), T0);
+
+      failing = true;
+      assertTrue(sut.flush(T0 + MS));
+      assertTrue(sut.isEmpty());
+      assertEquals(2, sut.getDropped());
+      assertEquals(0, sut.getSent());
+   }
+}
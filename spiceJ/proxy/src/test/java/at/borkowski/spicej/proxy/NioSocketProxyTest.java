@@ -0,0 +1,146 @@
+package at.borkowski.spicej.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioSocketProxyTest {
+
+   private ServerSocket echo;
+   private NioSocketProxy sut;
+   private int port;
+
+   @Before
+   public void setUp() throws IOException {
+      echo = new ServerSocket(0);
+      Thread server = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            while (true) {
+               try (Socket socket = echo.accept()) {
+                  InputStream is = socket.getInputStream();
+                  OutputStream os = socket.getOutputStream();
+                  byte[] buffer = new byte[1024];
+                  int rd;
+                  while ((rd = is.read(buffer)) != -1)
+                     os.write(buffer, 0, rd);
+               } catch (IOException e) {
+                  return;
+               }
+            }
+         }
+      });
+      server.setDaemon(true);
+      server.start();
+
+      try (ServerSocket free = new ServerSocket(0)) {
+         port = free.getLocalPort();
+      }
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      if (sut != null)
+         sut.close();
+      echo.close();
+   }
+
+   private void start(Float rate, Float delay) throws IOException {
+      sut = new NioSocketProxy(port, "localhost", echo.getLocalPort(), rate, rate, delay, delay, 2);
+      sut.initialize();
+      Thread acceptor = new Thread(sut);
+      acceptor.setDaemon(true);
+      acceptor.start();
+   }
+
+   private byte[] roundTrip(byte[] data) throws IOException {
+      try (Socket client = new Socket("localhost", port)) {
+         client.getOutputStream().write(data);
+         client.shutdownOutput();
+
+         byte[] result = new byte[data.length];
+         InputStream is = client.getInputStream();
+         int done = 0;
+         while (done < result.length) {
+            int rd = is.read(result, done, result.length - done);
+            if (rd == -1)
+               break;
+            done += rd;
+         }
+         return result;
+      }
+   }
+
+   @Test
+   public void testUnshaped() throws IOException {
+      start(null, null);
+
+      byte[] data = new byte[256 * 1024];
+      new Random().nextBytes(data);
+
+      assertArrayEquals(data, roundTrip(data));
+      assertArrayEquals(data, roundTrip(data));
+   }
+
+   @Test
+   public void testRate() throws IOException {
+      start(1000F, null);
+
+      byte[] data = new byte[1500];
+      new Random().nextBytes(data);
+
+      long t0 = System.nanoTime();
+      assertArrayEquals(data, roundTrip(data));
+      long elapsed = System.nanoTime() - t0;
+
+      // 1000 B are passed per second, the remaining 500 B after one second
+      assertTrue(elapsed >= 900 * 1000000L);
+   }
+
+   @Test
+   public void testDelay() throws IOException {
+      start(null, 100F);
+
+      byte[] data = { 1, 2, 3 };
+
+      long t0 = System.nanoTime();
+      assertArrayEquals(data, roundTrip(data));
+      long elapsed = System.nanoTime() - t0;
+
+      assertTrue(elapsed >= 200 * 1000000L);
+   }
+
+   @Test(timeout = 5000)
+   public void testRemoteRefused() throws IOException {
+      int closedPort;
+      try (ServerSocket free = new ServerSocket(0)) {
+         closedPort = free.getLocalPort();
+      }
+      sut = new NioSocketProxy(port, "localhost", closedPort, null, null, null, null, 1);
+      sut.initialize();
+      Thread acceptor = new Thread(sut);
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      // the failed connect closes the client's connection
+      try (Socket client = new Socket("localhost", port)) {
+         assertEquals(-1, client.getInputStream().read());
+      } catch (IOException reset) {}
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void testThreadSettingsUnsupported() {
+      new NioSocketProxy(port, "localhost", echo.getLocalPort(), null, null, null, null, 1).setJmx(true);
+   }
+}
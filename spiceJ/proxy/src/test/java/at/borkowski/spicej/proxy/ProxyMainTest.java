@@ -1,7 +1,9 @@
 package at.borkowski.spicej.proxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -25,11 +27,45 @@ public class ProxyMainTest {
    }
 
    @Test
-   public void testUnimplemented() {
+   public void testJmx() {
+      assertTrue(ProxyMain.processCommand("--jmx", "1234:1235").isJmx());
+      assertFalse(ProxyMain.processCommand("1234:1235").isJmx());
+
       ProxyMain.setPrintCommandLineErrors(false);
+      assertNull(ProxyMain.processCommand("-j", "-n", "1234:1235"));
+      assertNull(ProxyMain.processCommand("-j", "-u", "1234:1235"));
+   }
+
+   @Test
+   public void testLinkRate() {
+      SocketProxy res = ProxyMain.processCommand("-l", "50000", "-a", "1000", "1234:1235");
+      assertEquals(50000F, res.getSharedRateUp(), DELTA);
+      assertEquals(50000F, res.getSharedRateDown(), DELTA);
+      assertEquals(1000F, res.rateUp, DELTA);
+
+      res = ProxyMain.processCommand("--link-rate-receive", "20000", "1234:1235");
+      assertNull(res.getSharedRateUp());
+      assertEquals(20000F, res.getSharedRateDown(), DELTA);
 
+      ProxyMain.setPrintCommandLineErrors(false);
+      assertNull(ProxyMain.processCommand("-l", "1", "-x", "1", "1234:1235"));
+      assertNull(ProxyMain.processCommand("-l", "1", "-n", "1234:1235"));
+      assertNull(ProxyMain.processCommand("-y", "1", "-u", "1234:1235"));
+   }
+
+   @Test
+   public void testUdp() {
+      SocketProxy res = ProxyMain.processCommand("--udp", "-r", "50000", "-d", "20", "1234:target:1235");
+      assertTrue(res instanceof DatagramProxy);
+      assertEquals(50000F, res.rateUp, DELTA);
+      assertEquals(20F, res.delayDown, DELTA);
+      assertEquals(1234, res.localPort);
+      assertEquals("target", res.remoteHost);
+
+      ProxyMain.setPrintCommandLineErrors(false);
       assertNull(ProxyMain.processCommand("-u"));
-      assertNull(ProxyMain.processCommand("--udp"));
+      assertNull(ProxyMain.processCommand("-u", "-n", "1234:1235"));
+      assertNull(ProxyMain.processCommand("-u", "-f", "PER_TICK", "1234:1235"));
    }
 
    @Test
@@ -99,4 +135,58 @@ public class ProxyMainTest {
       assertEquals(1235, res.remotePort);
       assertEquals("target", res.remoteHost);
    }
+
+   @Test
+   public void testNio() {
+      SocketProxy res = ProxyMain.processCommand("--nio", "-r", "50000", "1234:1235");
+      assertTrue(res instanceof NioSocketProxy);
+      assertEquals(50000F, res.rateUp, DELTA);
+      assertEquals(1234, res.localPort);
+
+      res = ProxyMain.processCommand("-n", "-e", "3", "1234:1235");
+      assertTrue(res instanceof NioSocketProxy);
+
+      ProxyMain.setPrintCommandLineErrors(false);
+      assertNull(ProxyMain.processCommand("-e", "3", "1234:1235"));
+   }
+
+   @Test
+   public void testVirtualThreads() {
+      ProxyMain.setPrintCommandLineErrors(false);
+
+      SocketProxy res = ProxyMain.processCommand("--virtual-threads", "1234:1235");
+      assertEquals(SocketProxy.isVirtualThreadsSupported(), res != null);
+
+      assertNull(ProxyMain.processCommand("-V", "-n", "1234:1235"));
+   }
+
+   @Test
+   public void testFlushPolicy() {
+      SocketProxy res = ProxyMain.processCommand("1234:1235");
+      assertEquals(FlushPolicy.PER_CHUNK, res.getFlushPolicy());
+
+      res = ProxyMain.processCommand("--flush-policy", "COALESCED", "1234:1235");
+      assertEquals(FlushPolicy.COALESCED, res.getFlushPolicy());
+
+      ProxyMain.setPrintCommandLineErrors(false);
+      assertNull(ProxyMain.processCommand("-f", "PER_TICK", "-n", "1234:1235"));
+   }
+
+   @Test
+   public void testDelayBuffers() {
+      SocketProxy res = ProxyMain.processCommand("1234:1235");
+      assertEquals(SocketProxy.BUFFER_SIZE, res.getDelayBufferSize());
+      assertFalse(res.isDirectBuffers());
+
+      res = ProxyMain.processCommand("--delay-buffer", "50000000", "--direct-buffers", "1234:1235");
+      assertEquals(50000000, res.getDelayBufferSize());
+      assertTrue(res.isDirectBuffers());
+
+      // event-loop proxies always use direct buffers
+      assertTrue(ProxyMain.processCommand("--nio", "--direct-buffers", "1234:1235").isDirectBuffers());
+      assertTrue(ProxyMain.processCommand("--udp", "1234:1235").isDirectBuffers());
+
+      ProxyMain.setPrintCommandLineErrors(false);
+      assertNull(ProxyMain.processCommand("-s", "0", "1234:1235"));
+   }
 }
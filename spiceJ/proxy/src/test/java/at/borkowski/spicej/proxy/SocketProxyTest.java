@@ -0,0 +1,225 @@
+package at.borkowski.spicej.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketProxyTest {
+
+   private ServerSocket echo;
+   private SocketProxy sut;
+   private int port;
+
+   @Before
+   public void setUp() throws IOException {
+      echo = new ServerSocket(0);
+      Thread server = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            while (true) {
+               try (Socket socket = echo.accept()) {
+                  InputStream is = socket.getInputStream();
+                  OutputStream os = socket.getOutputStream();
+                  byte[] buffer = new byte[1024];
+                  int rd;
+                  while ((rd = is.read(buffer)) != -1)
+                     os.write(buffer, 0, rd);
+               } catch (IOException e) {
+                  return;
+               }
+            }
+         }
+      });
+      server.setDaemon(true);
+      server.start();
+
+      try (ServerSocket free = new ServerSocket(0)) {
+         port = free.getLocalPort();
+      }
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      if (sut != null)
+         sut.close();
+      echo.close();
+   }
+
+   private void start(Float rate, Float delay) throws IOException {
+      start(rate, rate, delay, delay);
+   }
+
+   private void start(Float rateUp, Float rateDown, Float delayUp, Float delayDown) throws IOException {
+      sut = new SocketProxy(port, "localhost", echo.getLocalPort(), rateUp, rateDown, delayUp, delayDown);
+      sut.initialize();
+      Thread acceptor = new Thread(sut);
+      acceptor.setDaemon(true);
+      acceptor.start();
+   }
+
+   private byte[] roundTrip(byte[] data) throws IOException {
+      try (Socket client = new Socket("localhost", port)) {
+         client.getOutputStream().write(data);
+         client.shutdownOutput();
+
+         byte[] result = new byte[data.length];
+         InputStream is = client.getInputStream();
+         int done = 0;
+         while (done < result.length) {
+            int rd = is.read(result, done, result.length - done);
+            if (rd == -1)
+               break;
+            done += rd;
+         }
+         return result;
+      }
+   }
+
+   @Test
+   public void testUnshaped() throws IOException {
+      start(null, null);
+
+      byte[] data = new byte[256 * 1024];
+      new Random().nextBytes(data);
+
+      assertArrayEquals(data, roundTrip(data));
+      assertArrayEquals(data, roundTrip(data));
+   }
+
+   @Test
+   public void testRate() throws IOException {
+      start(1000F, null);
+
+      byte[] data = new byte[2500];
+      new Random().nextBytes(data);
+
+      long t0 = System.nanoTime();
+      assertArrayEquals(data, roundTrip(data));
+      long elapsed = System.nanoTime() - t0;
+
+      // 1000 B are passed per second; a real-time tick source ticks right
+      // when it starts, so up to 2000 B can pass immediately, the remaining
+      // 500 B after one second
+      assertTrue(elapsed >= 900 * 1000000L);
+   }
+
+   @Test
+   public void testSharedRate() throws Exception {
+      sut = new SocketProxy(port, "localhost", echo.getLocalPort(), null, null, null, null, 1000F, null);
+      sut.initialize();
+      Thread acceptor = new Thread(sut);
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      final byte[] data = new byte[1500];
+      new Random().nextBytes(data);
+      final AtomicInteger passed = new AtomicInteger();
+      Thread[] clients = new Thread[2];
+      for (int i = 0; i < clients.length; i++) {
+         clients[i] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  if (Arrays.equals(data, roundTrip(data)))
+                     passed.incrementAndGet();
+               } catch (IOException e) {
+                  e.printStackTrace();
+               }
+            }
+         });
+      }
+
+      long t0 = System.nanoTime();
+      for (Thread client : clients)
+         client.start();
+      for (Thread client : clients)
+         client.join();
+      long elapsed = System.nanoTime() - t0;
+
+      // each connection alone could pass immediately, but both together have
+      // to share 1000 B per second (see testRate)
+      assertEquals(2, passed.get());
+      assertTrue(elapsed >= 900 * 1000000L);
+   }
+
+   @Test
+   public void testAsymmetric() throws IOException {
+      start(1000F, null, null, null);
+
+      byte[] data = new byte[2500];
+      new Random().nextBytes(data);
+
+      long t0 = System.nanoTime();
+      assertArrayEquals(data, roundTrip(data));
+      long elapsed = System.nanoTime() - t0;
+
+      // see testRate()
+      assertTrue(elapsed >= 900 * 1000000L);
+   }
+
+   @Test
+   public void testDelay() throws IOException {
+      start(null, 100F);
+
+      byte[] data = { 1, 2, 3 };
+
+      long t0 = System.nanoTime();
+      assertArrayEquals(data, roundTrip(data));
+      long elapsed = System.nanoTime() - t0;
+
+      // delays are accurate to a tick in each direction
+      assertTrue(elapsed >= 180 * 1000000L);
+   }
+
+   @Test
+   public void testMetrics() throws Exception {
+      start(null, 10F);
+
+      byte[] data = new byte[1000];
+      new Random().nextBytes(data);
+      assertArrayEquals(data, roundTrip(data));
+
+      // the gobbler counts bytes after having written them
+      ProxyMetrics metrics = sut.getMetrics();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (metrics.getBytesDown() < 1000 && System.currentTimeMillis() < deadline)
+         Thread.sleep(10);
+
+      assertEquals(1, metrics.getAcceptedConnections());
+      assertEquals(1000, metrics.getBytesUp());
+      assertEquals(1000, metrics.getBytesDown());
+   }
+
+   @Test
+   public void testJmx() throws Exception {
+      sut = new SocketProxy(port, "localhost", echo.getLocalPort(), null, null, null, null);
+      sut.setJmx(true);
+      sut.initialize();
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("at.borkowski.spicej:type=Proxy,port=" + port);
+      assertTrue(server.isRegistered(name));
+      assertEquals(0L, server.getAttribute(name, "AcceptedConnections"));
+
+      sut.close();
+      assertFalse(server.isRegistered(name));
+   }
+}
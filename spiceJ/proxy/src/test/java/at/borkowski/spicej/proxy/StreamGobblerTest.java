@@ -1,19 +1,27 @@
 package at.borkowski.spicej.proxy;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 import org.junit.Test;
 
+import at.borkowski.spicej.impl.SimulationTickSource;
 import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.streams.DelayedInputStream;
+import at.borkowski.spicej.streams.RateLimitInputStream;
 import at.borkowski.spicej.streams.util.PipedInputStream;
 import at.borkowski.spicej.streams.util.PipedOutputStream;
 
@@ -91,4 +99,64 @@ public class StreamGobblerTest {
       verify(pos, atLeast(1)).close();
    }
 
+   @Test
+   public void testBufferSize() {
+      SimulationTickSource t = new SimulationTickSource();
+      InputStream base = new ByteArrayInputStream(new byte[0]);
+
+      RateLimitInputStream rateLimited = new RateLimitInputStream(base, t, 5000, 1);
+      assertEquals(5000, StreamGobbler.bufferSize(rateLimited));
+      assertEquals(5000, StreamGobbler.bufferSize(new DelayedInputStream(t, rateLimited, 10, 100)));
+
+      rateLimited.setBurst(20000);
+      assertEquals(20000, StreamGobbler.bufferSize(rateLimited));
+
+      rateLimited.setByteRate(10);
+      rateLimited.setBurst(0);
+      assertEquals(StreamGobbler.MIN_BUFFER_SIZE, StreamGobbler.bufferSize(rateLimited));
+
+      rateLimited.setByteRate(Integer.MAX_VALUE);
+      assertEquals(StreamGobbler.MAX_BUFFER_SIZE, StreamGobbler.bufferSize(rateLimited));
+
+      assertEquals(StreamGobbler.UNLIMITED_BUFFER_SIZE, StreamGobbler.bufferSize(base));
+   }
+
+   @Test
+   public void testCoalesced() throws IOException {
+      byte[] blk = new byte[3000];
+      for (int i = 0; i < blk.length; i++)
+         blk[i] = (byte) i;
+
+      InputStream is = new FilterInputStream(new ByteArrayInputStream(blk)) {
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 100));
+         }
+      };
+      ByteArrayOutputStream os = spy(new ByteArrayOutputStream());
+      sut = new StreamGobbler(is, os, FlushPolicy.COALESCED);
+      sut.run();
+
+      assertArrayEquals(blk, os.toByteArray());
+      verify(os, times(1)).write(any(byte[].class), eq(0), eq(3000));
+      verify(os, times(1)).flush();
+   }
+
+   @Test
+   public void testPerTick() throws IOException {
+      byte[] blk = new byte[3000];
+
+      InputStream is = new FilterInputStream(new ByteArrayInputStream(blk)) {
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 100));
+         }
+      };
+      ByteArrayOutputStream os = spy(new ByteArrayOutputStream());
+      sut = new StreamGobbler(is, os, FlushPolicy.PER_TICK);
+      sut.run();
+
+      verify(os, times(30)).write(any(byte[].class), eq(0), eq(100));
+      verify(os, times(1)).flush();
+   }
 }
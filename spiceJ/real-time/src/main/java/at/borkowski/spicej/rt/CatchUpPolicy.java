@@ -0,0 +1,32 @@
+package at.borkowski.spicej.rt;
+
+import at.borkowski.spicej.ticks.BulkTickListener;
+
+/**
+ * Determines how a {@link RealTimeTickSource} catches up with ticks it has
+ * missed, ie. ticks which have become due while the timer thread was delayed
+ * or the previous tick was still being handled.
+ */
+public enum CatchUpPolicy {
+   /**
+    * All missed ticks are fired back-to-back, one by one. This keeps the
+    * number of ticks in line with the elapsed time, at the cost of a burst of
+    * tick handling.
+    */
+   BURST,
+
+   /**
+    * All missed ticks are fired at once, ie. {@link BulkTickListener}s receive
+    * them with a single call carrying the number of ticks. Other listeners
+    * still receive them one by one. This keeps the number of ticks in line with
+    * the elapsed time while letting listeners catch up in constant time.
+    */
+   COALESCE,
+
+   /**
+    * Only the latest missed tick is fired, the others are dropped. The tick
+    * numbers stay consecutive, but fall behind the elapsed time by the number
+    * of skipped ticks.
+    */
+   SKIP
+}
@@ -0,0 +1,125 @@
+package at.borkowski.spicej.rt;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for deadlines with a precision close to busy waiting, but at a
+ * fraction of its CPU cost. The thread is parked until a certain margin before
+ * the deadline, and spins for the rest of the time.
+ * 
+ * The margin is the time by which parking may overshoot. It is calibrated once
+ * per JVM by measuring the overshoot of a few short parks, and adapted by each
+ * waiter to the overshoot of its parks at runtime.
+ * 
+ * Spinning uses <code>Thread.onSpinWait()</code> if the running Java version
+ * supports it (Java 9 or newer). Since this module is compiled for Java 8, the
+ * method is accessed via a method handle.
+ * 
+ * Waiting ends early if the thread is unparked. Waiters are not thread-safe.
+ */
+class ParkSpinWaiter {
+   /**
+    * The lower bound of the margin.
+    */
+   static final long MIN_MARGIN = 20 * 1000;
+
+   /**
+    * The upper bound of the margin.
+    */
+   static final long MAX_MARGIN = 2 * 1000000;
+
+   private static final int CALIBRATION_PARKS = 20;
+   private static final long CALIBRATION_PARK_TIME = 100 * 1000;
+
+   private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+   private static volatile long calibratedMargin = 0;
+
+   private long margin;
+
+   /**
+    * Creates a waiter, calibrating the margin if this hasn't happened yet.
+    */
+   ParkSpinWaiter() {
+      margin = calibratedMargin();
+   }
+
+   /**
+    * Waits for the given point in time, or a part of the time until then.
+    * Callers are expected to call this method until the deadline has passed.
+    * 
+    * @param deadline
+    *           the point in time, see {@link System#nanoTime()}
+    */
+   void await(long deadline) {
+      long now = System.nanoTime();
+      long wakeup = deadline - margin;
+      if (wakeup - now > 0) {
+         LockSupport.parkNanos(this, wakeup - now);
+         // a park ending early has been ended on purpose (see LockSupport.unpark)
+         long overshoot = System.nanoTime() - wakeup;
+         if (overshoot >= 0)
+            adapt(overshoot);
+      } else {
+         onSpinWait();
+      }
+   }
+
+   /*
+    * follows a higher overshoot quickly, so that deadlines aren't missed, and a
+    * lower one slowly, so that the margin covers most parks. The margin at most
+    * doubles at once, so that single outliers don't cause a lot of spinning.
+    */
+   private void adapt(long overshoot) {
+      if (overshoot > margin)
+         margin += Math.min(margin, (overshoot - margin) / 2);
+      else
+         margin -= (margin - overshoot) / 16;
+      margin = Math.max(MIN_MARGIN, Math.min(MAX_MARGIN, margin));
+   }
+
+   /**
+    * Returns the current margin of this waiter.
+    * 
+    * @return the margin, in nanoseconds
+    */
+   long getMargin() {
+      return margin;
+   }
+
+   static long calibratedMargin() {
+      long margin = calibratedMargin;
+      if (margin == 0)
+         calibratedMargin = margin = calibrate();
+      return margin;
+   }
+
+   private static long calibrate() {
+      long overshoot = 0;
+      for (int i = 0; i < CALIBRATION_PARKS; i++) {
+         long start = System.nanoTime();
+         LockSupport.parkNanos(CALIBRATION_PARK_TIME);
+         overshoot = Math.max(overshoot, System.nanoTime() - start - CALIBRATION_PARK_TIME);
+      }
+      // the margin needs to cover the worst case seen
+      return Math.max(MIN_MARGIN, Math.min(MAX_MARGIN, overshoot * 3 / 2));
+   }
+
+   static void onSpinWait() {
+      if (ON_SPIN_WAIT == null)
+         return;
+      try {
+         ON_SPIN_WAIT.invokeExact();
+      } catch (Throwable ignore) {}
+   }
+
+   private static MethodHandle findOnSpinWait() {
+      try {
+         return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         return null;
+      }
+   }
+}
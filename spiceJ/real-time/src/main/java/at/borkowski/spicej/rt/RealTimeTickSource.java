@@ -1,6 +1,10 @@
 package at.borkowski.spicej.rt;
 
+import java.util.concurrent.locks.LockSupport;
+
 import at.borkowski.spicej.impl.AbstractTickSource;
+import at.borkowski.spicej.metrics.TickMetrics;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
 import at.borkowski.spicej.ticks.TickListener;
 
 /**
@@ -11,21 +15,35 @@ import at.borkowski.spicej.ticks.TickListener;
  * The lower bound is the resolution of {@link System#nanoTime()}, the upper
  * bound is {@link Integer#MAX_VALUE}.
  * 
- * Ticks are generated at a fixed tick-to-tick interval, regardless of the
- * duration of handling ticks. If the handling of ticks for all is not finished
- * until the next tick, one or more subsequent ticks will be fired immediately.
+ * Ticks are scheduled at fixed points in time based on
+ * {@link System#nanoTime()}, regardless of the duration of handling ticks, so
+ * that the source doesn't drift from its interval. If the handling of ticks for
+ * all is not finished until the next tick (or the timer thread is delayed),
+ * the missed ticks are caught up with according to the source's
+ * {@link CatchUpPolicy} (see {@link #setCatchUpPolicy(CatchUpPolicy)}).
  * 
- * Ticks start at 0 and are processed in single-threaded mode.
+ * Ticks start at 0 and are processed in single-threaded mode, unless a
+ * dispatcher is set.
  * 
  * If the last tick listener has been removed from this source, it shuts itself
  * down via {@link #stop()}, if it's not set to keepAlive mode using
  * {@link #setKeepAlive(boolean)}.
+ * 
+ * The source records how much later than scheduled each tick is generated, how
+ * long it takes to distribute it, and how many ticks have been missed (see
+ * {@link #getMetrics()}). If distributing a tick to many listeners takes
+ * longer than the interval, they can be distributed to in parallel (see
+ * {@link #setDispatcher(at.borkowski.spicej.impl.ShardedTickDispatcher)}).
  */
 public class RealTimeTickSource extends AbstractTickSource {
    private final long interval;
    private boolean keepAlive = false;
+   private volatile CatchUpPolicy catchUpPolicy = CatchUpPolicy.BURST;
+   private final TickMetrics metrics = new TickMetrics();
 
-   private MyTimer timer;
+   private volatile boolean deadlineDriven = false;
+   private volatile MyTimer timer;
+   private volatile IdlePosition idlePosition;
 
    /**
     * The threshold below which busy waiting is employed. Waiting via Java sleep
@@ -36,6 +54,12 @@ public class RealTimeTickSource extends AbstractTickSource {
     * with busy waiting. Intervals above are implemented by synchronized
     * waiting.
     * 
+    * Busy waiting is limited to the last moments before each tick: until then,
+    * the timer thread is parked. The time reserved for busy waiting is
+    * calibrated from how much parking overshoots on the running system. Timers
+    * of intervals above the threshold wait for the last moments before each
+    * tick the same way.
+    * 
     * On the current development machine, this threshold had to be at least a
     * value of 4.2 ms to ensure the real-time tests passing, which is why 15 ms
     * have been chosen as a margin. Above 10 ms of threshold, an constat error
@@ -45,9 +69,8 @@ public class RealTimeTickSource extends AbstractTickSource {
 
    /**
     * The threshold above which a different implementation of the internal timer
-    * is used, which is only considering milliseconds. This means that above
-    * this threshold, the precision of this tick source is reduced to
-    * milliseconds.
+    * is used, which is only waiting in slices of milliseconds. Ticks are still
+    * scheduled with the precision of {@link System#nanoTime()}.
     */
    public static final long MILLISECOND_THRESHOLD = 50 * 1000000;
 
@@ -90,6 +113,86 @@ public class RealTimeTickSource extends AbstractTickSource {
       this.keepAlive = keepAlive;
    }
 
+   /**
+    * Sets how missed ticks are caught up with. The default is
+    * {@link CatchUpPolicy#BURST}. The policy can be changed while the source is
+    * running.
+    * 
+    * @param catchUpPolicy
+    *           the catch-up policy
+    */
+   public void setCatchUpPolicy(CatchUpPolicy catchUpPolicy) {
+      if (catchUpPolicy == null)
+         throw new NullPointerException("catchUpPolicy");
+      this.catchUpPolicy = catchUpPolicy;
+   }
+
+   /**
+    * Returns how missed ticks are caught up with.
+    * 
+    * @return the catch-up policy
+    */
+   public CatchUpPolicy getCatchUpPolicy() {
+      return catchUpPolicy;
+   }
+
+   /**
+    * Returns the metrics of this tick source, which record the lag of its
+    * ticks, ie. the difference between the actual and the scheduled time of
+    * each tick, the time it took to distribute them, as well as missed and
+    * skipped ticks.
+    * 
+    * @return the metrics
+    */
+   public TickMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Sets whether the source is deadline-driven. A deadline-driven source
+    * sleeps through ticks none of its listeners needs (see
+    * {@link DeadlineTickListener}), which makes idle listeners cost nothing.
+    * The default is <code>false</code>, ie. the source wakes up for every
+    * tick. The mode can be changed while the source is running.
+    * 
+    * @param deadlineDriven
+    *           whether the source should be deadline-driven
+    */
+   public void setDeadlineDriven(boolean deadlineDriven) {
+      this.deadlineDriven = deadlineDriven;
+      MyTimer timer = this.timer;
+      if (timer != null)
+         timer.wakeup();
+   }
+
+   /**
+    * Returns whether the source is deadline-driven (see
+    * {@link #setDeadlineDriven(boolean)}).
+    * 
+    * @return whether the source is deadline-driven
+    */
+   public boolean isDeadlineDriven() {
+      return deadlineDriven;
+   }
+
+   @Override
+   public void reschedule(long tick) {
+      MyTimer timer = this.timer;
+      if (timer != null && deadlineDriven)
+         timer.reschedule(tick);
+   }
+
+   /**
+    * Returns the current tick. While the source sleeps through ticks (see
+    * {@link #setDeadlineDriven(boolean)}), these ticks are counted as they
+    * pass.
+    */
+   @Override
+   public long getCurrentTick() {
+      IdlePosition idlePosition = this.idlePosition;
+      return idlePosition == null ? super.getCurrentTick() : idlePosition.currentTick();
+   }
+
    @Override
    public void reset() {
       stop();
@@ -117,7 +220,7 @@ public class RealTimeTickSource extends AbstractTickSource {
          throw new IllegalStateException("already running");
 
       if (interval < BUSY_WAITING_THRESHOLD)
-         timer = new MyBusyTimer();
+         timer = new MyParkingTimer();
       else if (interval < MILLISECOND_THRESHOLD)
          timer = new MyWaitingTimer();
       else
@@ -143,107 +246,206 @@ public class RealTimeTickSource extends AbstractTickSource {
 
    private abstract class MyTimer implements Runnable {
 
-      protected boolean cancel = false;
+      protected volatile boolean cancel = false;
+      private volatile Thread thread;
 
-      void cancel() {
-         this.cancel = true;
-      }
-   }
+      // waits for the last moments before each tick
+      final ParkSpinWaiter waiter = new ParkSpinWaiter();
 
-   private class MyBusyTimer extends MyTimer {
+      // in deadline-driven mode: the tick the timer is going to wake up for,
+      // and whether the listeners need an earlier one
+      private volatile long wakeupTick = Long.MIN_VALUE;
+      private volatile boolean rescheduled = false;
 
       @Override
       public void run() {
-         long nextWakeup = System.nanoTime();
+         thread = Thread.currentThread();
+
+         /*
+          * tick n is due at origin + n * interval, so that the schedule doesn't
+          * accumulate any rounding errors, no matter how long the source runs
+          */
+         long origin = System.nanoTime();
+         long scheduled = 0; // the number of ticks generated or skipped
+         long missedUntil = 0; // the ticks before this one are counted as missed
+         long maxIdle = Math.max(1, 1000000000L / interval);
+
+         long needed = Long.MIN_VALUE; // the next tick the listeners need
+         boolean neededStale = true;
 
          while (!cancel) {
-            if (System.nanoTime() >= nextWakeup) {
-               RealTimeTickSource.super.doTick();
-               nextWakeup = nextWakeup + interval;
+            boolean deadlines = deadlineDriven;
+            if (deadlines && (neededStale || rescheduled)) {
+               // any reschedule while the deadlines are collected wakes the
+               // timer up again
+               wakeupTick = Long.MAX_VALUE;
+               rescheduled = false;
+               needed = nextDeadline();
+               wakeupTick = needed;
+               if (rescheduled)
+                  continue;
+               neededStale = false;
             }
-         }
-      }
-
-   }
 
-   private class MyWaitingTimer extends MyTimer {
+            // ticks before the needed one are passed without distributing them
+            long idle = deadlines ? Math.max(0, needed - (RealTimeTickSource.super.getCurrentTick() + 1)) : 0;
+
+            long next = origin + scheduled * interval;
+            long now = System.nanoTime();
+            if (now - next < 0) {
+               if (idle > 0) {
+                  if (idlePosition == null)
+                     idlePosition = new IdlePosition(origin, RealTimeTickSource.super.getCurrentTick(), scheduled - 1);
+                  await(origin + (scheduled + Math.min(idle, maxIdle)) * interval);
+               } else {
+                  await(next);
+               }
+               continue;
+            }
 
-      private final Object lock = new Object();
+            long due = (now - origin) / interval + 1 - scheduled;
+            if (idle > 0) {
+               long skipped = Math.min(idle, due);
+               RealTimeTickSource.super.skipTicks(skipped);
+               scheduled += skipped;
+               due -= skipped;
+               if (due == 0)
+                  continue;
+               next = origin + scheduled * interval;
+            }
+            idlePosition = null;
 
-      @Override
-      public void run() {
-         long nextWakeup = System.nanoTime();
+            long end = scheduled + due;
+            long firstMissed = Math.max(scheduled + 1, missedUntil);
+            if (end > firstMissed) {
+               metrics.recordMissed(end - firstMissed);
+               missedUntil = end;
+            }
 
-         while (!cancel) {
-            if (System.nanoTime() >= nextWakeup) {
+            switch (catchUpPolicy) {
+            case BURST:
+               metrics.recordTick(now - next);
+               RealTimeTickSource.super.doTick();
+               scheduled++;
+               break;
+            case COALESCE:
+               metrics.recordTick(now - next);
+               if (due == 1)
+                  RealTimeTickSource.super.doTick();
+               else
+                  RealTimeTickSource.super.doTicks(due);
+               scheduled = end;
+               break;
+            case SKIP:
+               metrics.recordTick(now - (next + (due - 1) * interval));
+               if (due > 1)
+                  metrics.recordSkipped(due - 1);
                RealTimeTickSource.super.doTick();
-               nextWakeup = nextWakeup + interval;
+               scheduled = end;
+               break;
             }
+            metrics.recordDispatch(System.nanoTime() - now);
+            neededStale = true;
+         }
+      }
 
-            long period = (long) ((nextWakeup - System.nanoTime()) / 4);
-
-            /* 
-             * don't sync-sleep below 1 ms per sleep slice, since method
-             * call overhead will take loner than that (1 ms is very long
-             * for a method call, this is a safety margin for slower systems)
-             */
-            if (period > 1 * 1000000) {
-               period = Math.min(period, 10 * 1000000);
-               try {
-                  synchronized (lock) {
-                     lock.wait(period / 1000000, (int) (period % 1000000));
-                  }
-               } catch (InterruptedException ignore) {}
-            }
+      /**
+       * Waits for the given point in time, or a part of the time until then.
+       * Waiting ends early when the timer is woken up (see
+       * {@link #wakeup()}).
+       * 
+       * @param deadline
+       *           the point in time, see {@link System#nanoTime()}
+       */
+      abstract void await(long deadline);
+
+      void reschedule(long tick) {
+         if (tick < wakeupTick) {
+            rescheduled = true;
+            wakeup();
          }
       }
 
       void cancel() {
-         super.cancel();
-         synchronized (lock) {
-            lock.notifyAll();
-         }
+         this.cancel = true;
+         wakeup();
       }
 
+      void wakeup() {
+         Thread thread = this.thread;
+         if (thread != null)
+            LockSupport.unpark(thread);
+      }
+
+      void sleep(long nanoseconds) {
+         if (!cancel && !rescheduled)
+            LockSupport.parkNanos(this, nanoseconds);
+      }
    }
 
-   private class MyMillisecondTimer extends MyTimer {
+   /*
+    * the position of the timer when it started to sleep through ticks
+    */
+   private class IdlePosition {
+      private final long origin, tick, index;
+
+      IdlePosition(long origin, long tick, long index) {
+         this.origin = origin;
+         this.tick = tick;
+         this.index = index;
+      }
+
+      long currentTick() {
+         long elapsed = (System.nanoTime() - origin) / interval;
+         return tick + Math.max(0, elapsed - index);
+      }
+   }
 
-      private final Object lock = new Object();
+   private class MyParkingTimer extends MyTimer {
 
       @Override
-      public void run() {
-         long nextWakeup = System.currentTimeMillis();
+      void await(long deadline) {
+         if (deadline - System.nanoTime() > ParkSpinWaiter.MAX_MARGIN)
+            sleep(deadline - System.nanoTime() - ParkSpinWaiter.MAX_MARGIN);
+         else
+            waiter.await(deadline);
+      }
 
-         while (!cancel) {
-            if (System.currentTimeMillis() >= nextWakeup) {
-               RealTimeTickSource.super.doTick();
-               nextWakeup = nextWakeup + interval / 1000000;
-            }
+   }
 
-            long period = (long) ((nextWakeup - System.currentTimeMillis()) / 4);
-
-            /* 
-             * don't sync-sleep below 1 ms per sleep slice, since method
-             * call overhead will take loner than that (1 ms is very long
-             * for a method call, this is a safety margin for slower systems)
-             */
-            if (period > 5) {
-               period = Math.min(period, 100);
-               try {
-                  synchronized (lock) {
-                     lock.wait(period);
-                  }
-               } catch (InterruptedException ignore) {}
-            }
-         }
+   private class MyWaitingTimer extends MyTimer {
+
+      @Override
+      void await(long deadline) {
+         long period = (deadline - System.nanoTime()) / 4;
+
+         /* 
+          * don't sync-sleep below 1 ms per sleep slice, since method
+          * call overhead will take loner than that (1 ms is very long
+          * for a method call, this is a safety margin for slower systems)
+          */
+         if (period > 1 * 1000000)
+            sleep(Math.min(period, 10 * 1000000));
+         else
+            waiter.await(deadline);
       }
 
-      void cancel() {
-         super.cancel();
-         synchronized (lock) {
-            lock.notifyAll();
-         }
+   }
+
+   private class MyMillisecondTimer extends MyTimer {
+
+      @Override
+      void await(long deadline) {
+         long period = (deadline - System.nanoTime()) / 4 / 1000000;
+
+         /* 
+          * don't sync-sleep below 5 ms per sleep slice, waiting with a
+          * precision of milliseconds wouldn't be worth it
+          */
+         if (period > 5)
+            sleep(Math.min(period, 100) * 1000000);
+         else
+            waiter.await(deadline);
       }
 
    }
@@ -0,0 +1,296 @@
+package at.borkowski.spicej.rt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.borkowski.spicej.impl.AbstractTickSource;
+import at.borkowski.spicej.impl.ShardedTickDispatcher;
+import at.borkowski.spicej.metrics.TickMetrics;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
+import at.borkowski.spicej.ticks.TickListener;
+import at.borkowski.spicej.ticks.TickSource;
+
+/**
+ * A registry of shared real-time tick sources. Instead of creating a
+ * {@link RealTimeTickSource} (and thus a timer thread) per shaped stream, users
+ * request a tick source for a given interval from the registry. All sources
+ * handed out by one registry share as few clocks as possible: a single clock is
+ * run per distinct interval, and a source whose interval is a multiple of an
+ * already running clock's interval is derived from that clock by prescaling.
+ *
+ * This means that the CPU cost of a registry grows with the number of distinct
+ * tick intervals, not with the number of streams using them.
+ *
+ * Clocks are started when the first listener is added to one of the sources
+ * derived from them, and stopped when the last listener is removed. Sources
+ * obtained from a registry can be used like any other tick source, but they
+ * should not be reset while in use.
+ *
+ * Each clock distributes the ticks to all sources derived from it on its timer
+ * thread. If that takes too long, the clocks can be given worker threads to
+ * distribute the ticks in parallel (see {@link #setDispatchParallelism(int)}).
+ */
+public class TickSourceRegistry {
+   private final Map<Long, Clock> clocks = new HashMap<>();
+   private CatchUpPolicy catchUpPolicy = CatchUpPolicy.BURST;
+   private boolean deadlineDriven = false;
+   private int dispatchParallelism = 1;
+
+   /**
+    * Returns a tick source generating ticks at the given interval. The source
+    * is backed by a shared clock (see {@link TickSourceRegistry}).
+    *
+    * @param nanoSecondsPerTick
+    *           the interval of ticks in nanoseconds
+    * @return the tick source
+    */
+   public synchronized TickSource get(long nanoSecondsPerTick) {
+      if (nanoSecondsPerTick <= 0)
+         throw new IllegalArgumentException("interval must be positive");
+
+      long base = 0;
+      for (long interval : clocks.keySet())
+         if (nanoSecondsPerTick % interval == 0 && interval > base)
+            base = interval;
+
+      if (base == 0)
+         base = nanoSecondsPerTick;
+
+      return new SharedTickSource(base, nanoSecondsPerTick / base);
+   }
+
+   /**
+    * Sets how the clocks catch up with missed ticks (see
+    * {@link RealTimeTickSource#setCatchUpPolicy(CatchUpPolicy)}). The policy
+    * applies to running clocks as well as to clocks started later.
+    * 
+    * @param catchUpPolicy
+    *           the catch-up policy
+    */
+   public synchronized void setCatchUpPolicy(CatchUpPolicy catchUpPolicy) {
+      if (catchUpPolicy == null)
+         throw new NullPointerException("catchUpPolicy");
+      this.catchUpPolicy = catchUpPolicy;
+      for (Clock clock : clocks.values())
+         clock.source.setCatchUpPolicy(catchUpPolicy);
+   }
+
+   /**
+    * Returns how the clocks catch up with missed ticks.
+    * 
+    * @return the catch-up policy
+    */
+   public synchronized CatchUpPolicy getCatchUpPolicy() {
+      return catchUpPolicy;
+   }
+
+   /**
+    * Sets whether the clocks are deadline-driven (see
+    * {@link RealTimeTickSource#setDeadlineDriven(boolean)}). The setting
+    * applies to running clocks as well as to clocks started later. Sources
+    * obtained from the registry pass the deadlines of their listeners on to
+    * their clocks.
+    * 
+    * @param deadlineDriven
+    *           whether the clocks should be deadline-driven
+    */
+   public synchronized void setDeadlineDriven(boolean deadlineDriven) {
+      this.deadlineDriven = deadlineDriven;
+      for (Clock clock : clocks.values())
+         clock.source.setDeadlineDriven(deadlineDriven);
+   }
+
+   /**
+    * Returns whether the clocks are deadline-driven.
+    * 
+    * @return whether the clocks are deadline-driven
+    */
+   public synchronized boolean isDeadlineDriven() {
+      return deadlineDriven;
+   }
+
+   /**
+    * Sets the maximal number of threads distributing a tick of a clock,
+    * including its timer thread (see {@link ShardedTickDispatcher}). The
+    * default is 1, ie. ticks are distributed by the timer thread alone. The
+    * setting applies to clocks started later.
+    * 
+    * @param parallelism
+    *           the number of threads per clock
+    */
+   public synchronized void setDispatchParallelism(int parallelism) {
+      if (parallelism < 1)
+         throw new IllegalArgumentException("parallelism must be positive");
+      this.dispatchParallelism = parallelism;
+   }
+
+   /**
+    * Returns the maximal number of threads distributing a tick of a clock.
+    * 
+    * @return the number of threads per clock
+    */
+   public synchronized int getDispatchParallelism() {
+      return dispatchParallelism;
+   }
+
+   /**
+    * Returns the number of clocks (ie. timer threads) currently running.
+    *
+    * @return the number of running clocks
+    */
+   public synchronized int getClockCount() {
+      return clocks.size();
+   }
+
+   /**
+    * Returns the metrics of the clocks currently running (see
+    * {@link RealTimeTickSource#getMetrics()}).
+    *
+    * @return the metrics of the running clocks
+    */
+   public synchronized List<TickMetrics> getClockMetrics() {
+      List<TickMetrics> metrics = new ArrayList<>(clocks.size());
+      for (Clock clock : clocks.values())
+         metrics.add(clock.source.getMetrics());
+      return metrics;
+   }
+
+   private Clock acquire(long interval) {
+      Clock clock = clocks.get(interval);
+      if (clock == null) {
+         clock = new Clock(new RealTimeTickSource(interval, false));
+         clock.source.setKeepAlive(true);
+         clock.source.setCatchUpPolicy(catchUpPolicy);
+         clock.source.setDeadlineDriven(deadlineDriven);
+         if (dispatchParallelism > 1)
+            clock.dispatcher = new ShardedTickDispatcher(dispatchParallelism);
+         clocks.put(interval, clock);
+         clock.source.start();
+      }
+      clock.users++;
+      return clock;
+   }
+
+   private void release(long interval, Clock clock) {
+      if (--clock.users == 0) {
+         clock.source.stop();
+         if (clock.dispatcher != null)
+            clock.dispatcher.close();
+         clocks.remove(interval);
+      }
+   }
+
+   private static class Clock {
+      private final RealTimeTickSource source;
+      // distributes the ticks of the sources derived from the clock
+      private ShardedTickDispatcher dispatcher;
+      private int users = 0;
+
+      Clock(RealTimeTickSource source) {
+         this.source = source;
+      }
+   }
+
+   /*
+    * derives its ticks from the base clock's by counting the base ticks passed,
+    * so that it can be ticked only when one of its listeners needs a tick
+    */
+   private class SharedTickSource extends AbstractTickSource implements DeadlineTickListener {
+      private final long baseInterval;
+      private final long prescale;
+
+      private volatile Clock clock;
+      // the last base tick received, and the number of base ticks passed since
+      // the last tick of this source
+      private volatile long lastBase = Long.MIN_VALUE;
+      private volatile long count = 0;
+
+      SharedTickSource(long baseInterval, long prescale) {
+         this.baseInterval = baseInterval;
+         this.prescale = prescale;
+      }
+
+      @Override
+      public void addListener(TickListener listener) {
+         synchronized (TickSourceRegistry.this) {
+            super.addListener(listener);
+            if (clock == null) {
+               clock = acquire(baseInterval);
+               // the sources of a clock are ticked one after another by its
+               // timer thread, so they can share its dispatcher
+               setDispatcher(clock.dispatcher);
+               lastBase = Long.MIN_VALUE;
+               count = 0;
+               clock.source.addListener(this);
+            }
+         }
+      }
+
+      @Override
+      public void removeListener(TickListener listener) {
+         synchronized (TickSourceRegistry.this) {
+            super.removeListener(listener);
+            if (clock != null && listeners.isEmpty()) {
+               clock.source.removeListener(this);
+               release(baseInterval, clock);
+               clock = null;
+            }
+         }
+      }
+
+      @Override
+      public void tick(long tick) {
+         long elapsed = lastBase == Long.MIN_VALUE ? 1 : tick - lastBase;
+         lastBase = tick;
+
+         long passed = count + elapsed;
+         long ticks = passed / prescale;
+         count = passed % prescale;
+         if (ticks == 1)
+            doTick();
+         else if (ticks > 1)
+            doTicks(ticks);
+      }
+
+      @Override
+      public long nextTick() {
+         return toBase(nextDeadline());
+      }
+
+      @Override
+      public void reschedule(long tick) {
+         Clock clock = this.clock;
+         if (clock != null)
+            clock.source.reschedule(toBase(tick));
+      }
+
+      /*
+       * converts a tick of this source to the base tick it happens at
+       */
+      private long toBase(long tick) {
+         long last = lastBase;
+         long ahead = tick - super.getCurrentTick();
+         if (last == Long.MIN_VALUE || ahead <= 0)
+            return Long.MIN_VALUE;
+         if (ahead >= Long.MAX_VALUE / 4 / prescale)
+            return Long.MAX_VALUE;
+         return last + ahead * prescale - count;
+      }
+
+      /**
+       * Returns the current tick, counting the ticks of the base clock passed
+       * since the last tick of this source.
+       */
+      @Override
+      public long getCurrentTick() {
+         long current = super.getCurrentTick();
+         Clock clock = this.clock;
+         long last = lastBase;
+         if (clock == null || last == Long.MIN_VALUE)
+            return current;
+         return current + Math.max(0, (clock.source.getCurrentTick() - last + count) / prescale);
+      }
+   }
+}
@@ -0,0 +1,178 @@
+package at.borkowski.spicej.rt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.ticks.BulkTickListener;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
+import at.borkowski.spicej.ticks.TickListener;
+
+public class RealTimeTickSourceTest {
+
+   private static final long MS = 1000000;
+
+   private RealTimeTickSource sut;
+
+   @After
+   public void tearDown() {
+      if (sut != null)
+         sut.stop();
+   }
+
+   private RecordingListener start(long interval, CatchUpPolicy policy) {
+      RecordingListener listener = new RecordingListener();
+      sut = new RealTimeTickSource(interval, false);
+      sut.setCatchUpPolicy(policy);
+      sut.addListener(listener);
+      sut.start();
+      return listener;
+   }
+
+   @Test
+   public void testFractionalInterval() {
+      // 1.5 ms, which would be 1 ms if truncated to milliseconds
+      RecordingListener listener = start(1500000, CatchUpPolicy.BURST);
+      SleepWakeup.sleep(300);
+      sut.stop();
+
+      int ticks = listener.size();
+      assertTrue("ticks: " + ticks, ticks >= 180 && ticks <= 210);
+   }
+
+   @Test
+   public void testParking() {
+      sut = new RealTimeTickSource(2 * MS, false);
+      sut.addListener(new TickListener() {
+         @Override
+         public void tick(long tick) {}
+      });
+      sut.start();
+      SleepWakeup.sleep(300);
+      sut.stop();
+
+      // the timer parks in between ticks, but still wakes up in time
+      long ticks = sut.getMetrics().getTicks();
+      assertTrue("ticks: " + ticks, ticks >= 130 && ticks <= 152);
+      assertTrue(sut.getMetrics().getAverageLagNanoseconds() < MS);
+   }
+
+   @Test
+   public void testBurst() {
+      RecordingListener listener = start(10 * MS, CatchUpPolicy.BURST);
+      SleepWakeup.sleep(200);
+      sut.stop();
+
+      listener.assertConsecutive();
+      assertEquals(0, listener.bulks);
+      assertTrue(sut.getMetrics().getMissedTicks() >= 3);
+      assertEquals(0, sut.getMetrics().getSkippedTicks());
+   }
+
+   @Test
+   public void testCoalesce() {
+      RecordingListener listener = start(10 * MS, CatchUpPolicy.COALESCE);
+      SleepWakeup.sleep(200);
+      sut.stop();
+
+      listener.assertConsecutive();
+      assertTrue(listener.maxBulk >= 4);
+      assertTrue(sut.getMetrics().getMissedTicks() >= 3);
+      assertEquals(0, sut.getMetrics().getSkippedTicks());
+   }
+
+   @Test
+   public void testSkip() {
+      RecordingListener listener = start(10 * MS, CatchUpPolicy.SKIP);
+      SleepWakeup.sleep(200);
+      sut.stop();
+
+      listener.assertConsecutive();
+      assertEquals(0, listener.bulks);
+      assertTrue(sut.getMetrics().getSkippedTicks() >= 3);
+      assertEquals(sut.getMetrics().getMissedTicks(), sut.getMetrics().getSkippedTicks());
+      assertTrue(listener.size() <= 200 / 10 - 3 + 2);
+   }
+
+   @Test
+   public void testDeadlineDriven() {
+      final List<Long> received = new ArrayList<>();
+      final long[] next = { Long.MAX_VALUE };
+      DeadlineTickListener listener = new DeadlineTickListener() {
+         @Override
+         public synchronized void tick(long tick) {
+            received.add(tick);
+            next[0] = Long.MAX_VALUE;
+         }
+
+         @Override
+         public synchronized long nextTick() {
+            return next[0];
+         }
+      };
+
+      sut = new RealTimeTickSource(2 * MS, false);
+      sut.setDeadlineDriven(true);
+      sut.addListener(listener);
+      sut.start();
+
+      // the source sleeps through the ticks, but counts them
+      SleepWakeup.sleep(100);
+      assertEquals(0, sut.getMetrics().getTicks());
+      long current = sut.getCurrentTick();
+      assertTrue("current: " + current, current >= 40 && current <= 55);
+
+      long needed = current + 10;
+      synchronized (listener) {
+         next[0] = needed;
+      }
+      sut.reschedule(needed);
+      SleepWakeup.sleep(100);
+      sut.stop();
+
+      synchronized (listener) {
+         assertEquals(1, received.size());
+         assertEquals(needed, (long) received.get(0));
+      }
+      assertEquals(1, sut.getMetrics().getTicks());
+   }
+
+   /*
+    * records the ticks, taking 50 ms to handle the first one
+    */
+   private static class RecordingListener implements BulkTickListener {
+      private final List<Long> ticks = new ArrayList<>();
+      private int bulks = 0;
+      private long maxBulk = 0;
+
+      @Override
+      public synchronized void tick(long tick) {
+         if (ticks.isEmpty())
+            SleepWakeup.sleep(50);
+         ticks.add(tick);
+      }
+
+      @Override
+      public synchronized void ticks(long lastTick, long count) {
+         bulks++;
+         maxBulk = Math.max(maxBulk, count);
+         for (long tick = lastTick - count + 1; tick <= lastTick; tick++)
+            ticks.add(tick);
+      }
+
+      synchronized int size() {
+         return ticks.size();
+      }
+
+      synchronized void assertConsecutive() {
+         for (int i = 0; i < ticks.size(); i++)
+            assertEquals(i, (long) ticks.get(i));
+      }
+   }
+}
@@ -0,0 +1,185 @@
+package at.borkowski.spicej.rt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.borkowski.spicej.impl.ShardedTickDispatcher;
+import at.borkowski.spicej.impl.SleepWakeup;
+import at.borkowski.spicej.ticks.DeadlineTickListener;
+import at.borkowski.spicej.ticks.TickListener;
+import at.borkowski.spicej.ticks.TickSource;
+
+public class TickSourceRegistryTest {
+
+   private static final long MS = 1000000;
+
+   private TickSourceRegistry sut;
+
+   @Before
+   public void setUp() {
+      sut = new TickSourceRegistry();
+   }
+
+   @Test
+   public void testSharing() {
+      TickListener listener = new CountingListener();
+
+      TickSource a = sut.get(10 * MS);
+      TickSource b = sut.get(10 * MS);
+      assertEquals(0, sut.getClockCount());
+
+      a.addListener(listener);
+      b.addListener(listener);
+      assertEquals(1, sut.getClockCount());
+
+      TickSource c = sut.get(30 * MS);
+      c.addListener(listener);
+      assertEquals(1, sut.getClockCount());
+
+      TickSource d = sut.get(15 * MS);
+      d.addListener(listener);
+      assertEquals(2, sut.getClockCount());
+
+      a.removeListener(listener);
+      c.removeListener(listener);
+      assertEquals(2, sut.getClockCount());
+
+      b.removeListener(listener);
+      assertEquals(1, sut.getClockCount());
+
+      d.removeListener(listener);
+      assertEquals(0, sut.getClockCount());
+   }
+
+   @Test
+   public void testRestart() {
+      TickListener listener = new CountingListener();
+
+      TickSource a = sut.get(10 * MS);
+      a.addListener(listener);
+      a.removeListener(listener);
+      assertEquals(0, sut.getClockCount());
+
+      a.addListener(listener);
+      assertEquals(1, sut.getClockCount());
+      a.removeListener(listener);
+   }
+
+   @Test
+   public void testPrescaling() {
+      CountingListener base = new CountingListener();
+      CountingListener derived = new CountingListener();
+
+      TickSource a = sut.get(2 * MS);
+      a.addListener(base);
+      TickSource b = sut.get(20 * MS);
+      b.addListener(derived);
+
+      SleepWakeup.sleep(300);
+
+      a.removeListener(base);
+      b.removeListener(derived);
+
+      assertTrue(derived.count > 0);
+      assertTrue(base.count >= 5 * derived.count);
+   }
+
+   @Test
+   public void testDeadlineDriven() {
+      sut.setDeadlineDriven(true);
+      CountingListener base = new CountingListener();
+      final long[] next = { Long.MAX_VALUE };
+      final CountingListener derivedTicks = new CountingListener();
+      DeadlineTickListener derived = new DeadlineTickListener() {
+         @Override
+         public void tick(long tick) {
+            derivedTicks.tick(tick);
+            next[0] = Long.MAX_VALUE;
+         }
+
+         @Override
+         public long nextTick() {
+            return next[0];
+         }
+      };
+
+      TickSource a = sut.get(2 * MS);
+      a.addListener(base);
+      TickSource b = sut.get(20 * MS);
+      b.addListener(derived);
+
+      SleepWakeup.sleep(100);
+      assertEquals(0, derivedTicks.count);
+      long current = b.getCurrentTick();
+      assertTrue("current: " + current, current >= 3 && current <= 6);
+
+      // the derived source tells the base clock when it needs a tick
+      a.removeListener(base);
+      next[0] = current + 3;
+      b.reschedule(next[0]);
+      SleepWakeup.sleep(150);
+      b.removeListener(derived);
+
+      assertEquals(1, derivedTicks.count);
+      assertTrue(base.count > 30);
+   }
+
+   @Test
+   public void testDispatchParallelism() {
+      sut.setDispatchParallelism(4);
+      TickSource a = sut.get(2 * MS);
+      final List<LastTickListener> listeners = new ArrayList<>();
+      for (int i = 0; i < 4 * ShardedTickDispatcher.MIN_SHARD_SIZE; i++)
+         listeners.add(new LastTickListener());
+
+      // all listeners have been ticked before the next tick is distributed
+      final int[] late = { 0 };
+      final CountingListener probe = new CountingListener() {
+         @Override
+         public void tick(long tick) {
+            super.tick(tick);
+            for (LastTickListener listener : listeners)
+               if (listener.last != -1 && listener.last < tick - 1)
+                  late[0]++;
+         }
+      };
+      a.addListener(probe);
+      for (LastTickListener listener : listeners)
+         a.addListener(listener);
+
+      SleepWakeup.sleep(100);
+      a.removeListener(probe);
+      for (LastTickListener listener : listeners)
+         a.removeListener(listener);
+      assertEquals(0, sut.getClockCount());
+
+      assertTrue(probe.count > 20);
+      assertEquals(0, late[0]);
+      for (LastTickListener listener : listeners)
+         assertTrue(listener.last > 0);
+   }
+
+   private static class LastTickListener implements TickListener {
+      private volatile long last = -1;
+
+      @Override
+      public void tick(long tick) {
+         last = tick;
+      }
+   }
+
+   private static class CountingListener implements TickListener {
+      private volatile int count = 0;
+
+      @Override
+      public void tick(long tick) {
+         count++;
+      }
+   }
+}
@@ -6,5 +6,8 @@
  * Furthermore, these tests are not following a pass/fail nature but rather help
  * verifying the general performance of software components binding to real
  * time.
+ * 
+ * The unit tests of this module (named <code>*Test</code>) are in this package
+ * as well.
  */
 package at.borkowski.spicej.rt;
\ No newline at end of file